@@ -0,0 +1,56 @@
+package cworks.treefs.awssp;
+
+import cworks.json.JsonObject;
+import cworks.treefs.spi.AsyncStorageProviderAdapter;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * AsyncStorageProvider for the S3StorageProvider, get one with {@link S3StorageProvider#async()}.
+ *
+ * The AWS SDK only makes blocking requests so operations run on the provider's bounded request
+ * pool, uploads then send their parts on the provider's upload pool as createFile always does.
+ * exists and readMetadata are answered on the caller's thread, without a trip to S3 or the pool,
+ * when the provider's metadata cache already knows the path.
+ *
+ * @author comartin
+ */
+public class S3AsyncStorageProvider extends AsyncStorageProviderAdapter {
+
+    private final S3StorageProvider provider;
+
+    S3AsyncStorageProvider(S3StorageProvider provider, ExecutorService requests) {
+        super(provider, requests);
+        this.provider = provider;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> exists(Path path) {
+        if(!isNull(path)) {
+            S3MetadataCache.Lookup cached = provider._s3CachedPath(path);
+            if(cached.found) {
+                return CompletableFuture.completedFuture(!isNull(cached.treefsMeta));
+            }
+        }
+        return super.exists(path);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> readMetadata(Path path) {
+        if(!isNull(path)) {
+            S3MetadataCache.Lookup cached = provider._s3CachedPath(path);
+            if(cached.found) {
+                JsonObject metadata = isNull(cached.treefsMeta) ? null
+                    : cached.treefsMeta.getObject("metadata");
+                return CompletableFuture.completedFuture(
+                    isNull(metadata) ? null : metadata.toMap());
+            }
+        }
+        return super.readMetadata(path);
+    }
+}
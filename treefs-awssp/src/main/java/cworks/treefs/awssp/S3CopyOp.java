@@ -0,0 +1,404 @@
+package cworks.treefs.awssp;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import cworks.json.Json;
+import cworks.json.JsonObject;
+import cworks.treefs.common.dt.ISO8601DateParser;
+import cworks.treefs.spi.StorageException;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+import static cworks.treefs.common.ObjectUtils.isNullOrEmpty;
+
+/**
+ * Server-side copy of many objects, used for copying, moving and trashing folders.  The caller
+ * feeds it objects straight from a listing and each one is copied on the provider's copy pool
+ * while the listing goes on to the next page.
+ *
+ * 1. at most maxInFlight objects are being copied at once, handing over the next one blocks
+ *    until one finishes, so a folder of any size holds at most maxInFlight requests in memory
+ * 2. the treefs-meta of a copy is rewritten for its new key when the metadata cache already
+ *    knows the source's, otherwise the object's metadata is copied as is and no HEAD is made,
+ *    path and name are always read from the key so a copied treefs-meta is still right
+ * 3. objects over {@link #MAX_COPY_SIZE} can't be copied by a single CopyObject and are copied
+ *    with a multipart upload of UploadPartCopy ranges instead, so are objects over a smaller
+ *    multipartSize when one is given
+ * 4. a failed request is retried up to retries times with a growing pause, client errors (4xx)
+ *    are not retried, an object that still fails is recorded in the result and the rest of the
+ *    objects are still copied
+ * 5. a move hands each source object to an S3DeleteOp once its copy succeeded, so sources
+ *    are removed in batches, objects that failed stay where they were
+ *
+ * Not thread-safe, a single caller hands over objects and waits for the result.
+ *
+ * @author comartin
+ */
+final class S3CopyOp {
+
+    private static final Logger logger = Logger.getLogger(S3CopyOp.class);
+
+    /**
+     * S3 refuses a single CopyObject of an object larger than this
+     */
+    static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+    /**
+     * Pause before the first retry of a request, doubled for every further retry
+     */
+    private static final long RETRY_PAUSE = 200L;
+
+    /**
+     * Progress is logged each time this many more objects are done
+     */
+    private static final int PROGRESS_EVERY = 1000;
+
+    private final AmazonS3 s3;
+
+    private final S3MetadataCache metadataCache;
+
+    private final String sourceBucket;
+
+    private final String targetBucket;
+
+    /**
+     * delete of the sources of a move, null for a copy
+     */
+    private final S3DeleteOp sources;
+
+    private final boolean retarget;
+
+    private final long partSize;
+
+    /**
+     * objects larger than this are copied in parts, at most {@link #MAX_COPY_SIZE}
+     */
+    private final long multipartSize;
+
+    private final int retries;
+
+    private final ExecutorService executor;
+
+    private final int maxInFlight;
+
+    private final Semaphore inFlight;
+
+    private final S3CopyResult result = new S3CopyResult();
+
+    private int submitted = 0;
+
+    /**
+     * @param s3 client to copy with
+     * @param metadataCache cache the treefs-meta of sources is looked up in and copies are
+     *     invalidated in
+     * @param sourceBucket bucket objects are copied from
+     * @param targetBucket bucket objects are copied to
+     * @param sources delete each source object is handed to once it's copied, null to keep
+     *     the sources
+     * @param retarget true to rewrite the path, name and times of the treefs-meta of copies
+     * @param partSize size of the ranges objects over multipartSize are copied in
+     * @param multipartSize objects larger than this are copied in parts, capped at
+     *     {@link #MAX_COPY_SIZE}
+     * @param maxInFlight maximum number of objects being copied at once
+     * @param retries number of times a failed request is retried
+     * @param executor pool objects are copied on
+     */
+    S3CopyOp(AmazonS3 s3, S3MetadataCache metadataCache, String sourceBucket, String targetBucket,
+        S3DeleteOp sources, boolean retarget, long partSize, long multipartSize, int maxInFlight,
+        int retries, ExecutorService executor) {
+        this.s3 = s3;
+        this.metadataCache = metadataCache;
+        this.sourceBucket = sourceBucket;
+        this.targetBucket = targetBucket;
+        this.sources = sources;
+        this.retarget = retarget;
+        this.partSize = Math.max(partSize, S3MultipartUpload.MIN_PART_SIZE);
+        this.multipartSize = Math.min(Math.max(multipartSize, 0L), MAX_COPY_SIZE);
+        this.retries = Math.max(retries, 0);
+        this.executor = executor;
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.inFlight = new Semaphore(this.maxInFlight);
+    }
+
+    /**
+     * Copy an object, blocking while maxInFlight objects are being copied
+     * @param sourceKey key of the object in the source bucket
+     * @param targetKey key of the copy in the target bucket
+     * @param size size of the object as listed
+     * @throws StorageException if interrupted while waiting
+     */
+    void copy(String sourceKey, String targetKey, long size) throws StorageException {
+        copy(sourceKey, targetKey, size, null);
+    }
+
+    /**
+     * Copy an object with new metadata, blocking while maxInFlight objects are being copied
+     * @param sourceKey key of the object in the source bucket
+     * @param targetKey key of the copy in the target bucket
+     * @param size size of the object
+     * @param s3Metadata metadata of the copy, null to copy or retarget the source's
+     * @throws StorageException if interrupted while waiting
+     */
+    void copy(final String sourceKey, final String targetKey, final long size,
+        final ObjectMetadata s3Metadata) throws StorageException {
+        try {
+            inFlight.acquire();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("interrupted copying: " + sourceKey, ex);
+        }
+        submitted++;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        _copyObject(sourceKey, targetKey, size, s3Metadata);
+                        result.copied(size);
+                    } catch(Exception ex) {
+                        logger.warn("s3 failed copying: " + sourceKey + " to " + targetKey
+                            + " " + ex.getMessage());
+                        result.failed(sourceKey, ex.getMessage());
+                    } finally {
+                        inFlight.release();
+                        _progress();
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ex) {
+            inFlight.release();
+            result.failed(sourceKey, "copy pool is shut down");
+        }
+    }
+
+    /**
+     * Wait for every object handed over to be copied, and for the sources of a move to be
+     * deleted, a source that could not be deleted is a failure of the move
+     * @return the result of the copy
+     * @throws StorageException if interrupted while waiting, objects may still be copying
+     */
+    S3CopyResult await() throws StorageException {
+        try {
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("interrupted waiting for copy from: " + sourceBucket, ex);
+        }
+        if(!isNull(sources)) {
+            S3DeleteResult deleted = sources.await();
+            for(Map.Entry<String, String> failure : deleted.failures().entrySet()) {
+                result.failed(failure.getKey(), "copied but not removed: " + failure.getValue());
+            }
+        }
+        result.done();
+        logger.info("s3 copied " + result.copied() + " of " + submitted + " objects from: "
+            + sourceBucket + " to: " + targetBucket + " " + result);
+        return result;
+    }
+
+    /**
+     * Set the creation time, last accessed time, path and name of the treefs-meta of a copy
+     * @param treefsMetadata treefs-meta of the source, updated in place
+     * @param targetKey key of the copy
+     * @return treefsMetadata
+     */
+    static JsonObject retarget(JsonObject treefsMetadata, String targetKey) {
+        String now = ISO8601DateParser.toString(new Date());
+        return treefsMetadata.setString("creationTime", now)
+            .setString("lastAccessedTime", now)
+            .setString("path", targetKey)
+            .setString("name", name(targetKey));
+    }
+
+    /**
+     * Last name of a key, folder keys end with '/'
+     */
+    static String name(String key) {
+        if(isNullOrEmpty(key)) {
+            return null;
+        }
+        String[] names = key.split("/");
+        return names.length < 1 ? key : names[names.length - 1];
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    private void _progress() {
+        int done = result.copied() + result.failed();
+        if(done % PROGRESS_EVERY == 0) {
+            logger.info("s3 copying from: " + sourceBucket + " to: " + targetBucket + " "
+                + result);
+        }
+    }
+
+    /**
+     * Copy one object, then hand its source to the delete if this is a move
+     */
+    private void _copyObject(final String sourceKey, final String targetKey, long size,
+        ObjectMetadata newMetadata) throws InterruptedException, StorageException {
+        try {
+            if(size > multipartSize) {
+                _copyMultipart(sourceKey, targetKey, size, newMetadata);
+            } else {
+                final CopyObjectRequest request = new CopyObjectRequest(
+                    sourceBucket, sourceKey, targetBucket, targetKey);
+                ObjectMetadata s3Metadata = isNull(newMetadata)
+                    ? _knownMetadata(sourceKey, targetKey) : newMetadata;
+                if(!isNull(s3Metadata)) {
+                    request.withNewObjectMetadata(s3Metadata);
+                }
+                _retry(sourceKey, new Request() {
+                    @Override
+                    public void send() {
+                        s3.copyObject(request);
+                    }
+                });
+            }
+        } finally {
+            metadataCache.invalidate(targetBucket, targetKey);
+        }
+
+        if(!isNull(sources)) {
+            sources.delete(sourceKey);
+        }
+    }
+
+    /**
+     * Metadata for a copy from the treefs-meta the cache knows, or null to copy the source's
+     */
+    private ObjectMetadata _knownMetadata(String sourceKey, String targetKey) {
+        if(!retarget) {
+            return null;
+        }
+        S3MetadataCache.Lookup cached = metadataCache.peek(sourceBucket, sourceKey);
+        if(!cached.found || isNull(cached.treefsMeta)) {
+            return null;
+        }
+        ObjectMetadata s3Metadata = new ObjectMetadata();
+        s3Metadata.addUserMetadata("treefs-meta", retarget(cached.treefsMeta, targetKey).asString());
+        return s3Metadata;
+    }
+
+    /**
+     * Copy an object too large for CopyObject in ranges of partSize, one after another on this
+     * object's thread so one huge object can't take over the pool
+     */
+    private void _copyMultipart(String sourceKey, String targetKey, long size,
+        ObjectMetadata newMetadata) throws InterruptedException {
+
+        ObjectMetadata s3Metadata = isNull(newMetadata)
+            ? _sourceMetadata(sourceKey, targetKey) : newMetadata;
+        long rangeSize = Math.max(partSize, (size + S3MultipartUpload.MAX_PARTS - 1) / S3MultipartUpload.MAX_PARTS);
+        String uploadId = s3.initiateMultipartUpload(
+            new InitiateMultipartUploadRequest(targetBucket, targetKey, s3Metadata)).getUploadId();
+        logger.info("s3 started copy: " + sourceKey + " to: " + targetKey + " size=" + size);
+        try {
+            final List<PartETag> partETags = new ArrayList<>();
+            long first = 0L;
+            for(int partNumber = 1; first < size; partNumber++) {
+                long last = Math.min(first + rangeSize, size) - 1;
+                final CopyPartRequest request = new CopyPartRequest()
+                    .withSourceBucketName(sourceBucket)
+                    .withSourceKey(sourceKey)
+                    .withDestinationBucketName(targetBucket)
+                    .withDestinationKey(targetKey)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber)
+                    .withFirstByte(first)
+                    .withLastByte(last);
+                _retry(sourceKey, new Request() {
+                    @Override
+                    public void send() {
+                        partETags.add(s3.copyPart(request).getPartETag());
+                    }
+                });
+                first = last + 1;
+            }
+            s3.completeMultipartUpload(
+                new CompleteMultipartUploadRequest(targetBucket, targetKey, uploadId, partETags));
+            logger.info("s3 completed copy: " + sourceKey + " to: " + targetKey
+                + " parts=" + partETags.size());
+        } catch(AmazonClientException | InterruptedException ex) {
+            try {
+                s3.abortMultipartUpload(new AbortMultipartUploadRequest(targetBucket, targetKey, uploadId));
+                logger.info("s3 aborted copy: " + sourceKey + " to: " + targetKey);
+            } catch(AmazonClientException abortEx) {
+                logger.error("s3 failed aborting copy: " + sourceKey + " to: " + targetKey, abortEx);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Metadata of the source of a multipart copy, UploadPartCopy doesn't carry metadata so this
+     * is the one copy that reads it
+     */
+    private ObjectMetadata _sourceMetadata(String sourceKey, String targetKey) {
+        ObjectMetadata source = s3.getObjectMetadata(sourceBucket, sourceKey);
+        ObjectMetadata s3Metadata = new ObjectMetadata();
+        s3Metadata.setContentType(source.getContentType());
+        s3Metadata.setContentEncoding(source.getContentEncoding());
+        s3Metadata.setContentDisposition(source.getContentDisposition());
+        s3Metadata.setCacheControl(source.getCacheControl());
+        Map<String, String> userMetadata = new HashMap<>(source.getUserMetadata());
+        String treefsMeta = userMetadata.get("treefs-meta");
+        if(retarget && !isNullOrEmpty(treefsMeta)) {
+            userMetadata.put("treefs-meta", retarget(Json.asObject(treefsMeta), targetKey).asString());
+        }
+        s3Metadata.setUserMetadata(userMetadata);
+        return s3Metadata;
+    }
+
+    /**
+     * A request that can be sent again
+     */
+    private interface Request {
+        void send();
+    }
+
+    /**
+     * Send a request, retrying failures that may succeed on another attempt
+     */
+    private void _retry(String sourceKey, Request request) throws InterruptedException {
+        for(int attempt = 0; ; attempt++) {
+            try {
+                request.send();
+                return;
+            } catch(AmazonClientException ex) {
+                if(attempt >= retries || !_retryable(ex)) {
+                    throw ex;
+                }
+                logger.warn("s3 retrying copy of: " + sourceKey + " " + ex.getMessage());
+                Thread.sleep(RETRY_PAUSE << attempt);
+            }
+        }
+    }
+
+    private boolean _retryable(AmazonClientException ex) {
+        if(ex instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException)ex).getStatusCode();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,101 @@
+package cworks.treefs.awssp;
+
+import cworks.json.JsonObject;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcome of copying or moving a tree of objects, counts are updated as each object finishes so
+ * a result can be read while the copy is still running.  Objects that failed are listed by their
+ * source key with the reason, everything else was copied (and removed from the source if the
+ * copy was a move).
+ *
+ * @author comartin
+ */
+public final class S3CopyResult {
+
+    private final AtomicInteger copied = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final Map<String, String> failures = new ConcurrentSkipListMap<>();
+
+    private final long started = System.currentTimeMillis();
+
+    private volatile long elapsed = -1L;
+
+    /**
+     * Number of objects copied
+     */
+    public int copied() {
+        return copied.get();
+    }
+
+    /**
+     * Number of bytes copied
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Number of objects that could not be copied
+     */
+    public int failed() {
+        return failures.size();
+    }
+
+    /**
+     * Source key -> reason of each object that could not be copied, sorted by key
+     */
+    public Map<String, String> failures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * True if every object was copied
+     */
+    public boolean succeeded() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * Milliseconds the copy took, or has taken so far while it's running
+     */
+    public long elapsed() {
+        return elapsed < 0 ? System.currentTimeMillis() - started : elapsed;
+    }
+
+    /**
+     * Counts as json
+     */
+    public JsonObject stats() {
+        return new JsonObject()
+            .setNumber("copied", copied())
+            .setNumber("bytes", bytes())
+            .setNumber("failed", failed())
+            .setNumber("elapsed", elapsed());
+    }
+
+    @Override
+    public String toString() {
+        return stats().asString();
+    }
+
+    void copied(long size) {
+        copied.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    void failed(String sourceKey, String reason) {
+        failures.put(sourceKey, String.valueOf(reason));
+    }
+
+    void done() {
+        elapsed = System.currentTimeMillis() - started;
+    }
+}
@@ -0,0 +1,245 @@
+package cworks.treefs.awssp;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import cworks.treefs.spi.StorageException;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Delete of many objects of one bucket with DeleteObjects requests of up to
+ * {@link #MAX_BATCH} keys.  Keys are collected as the caller hands them over and each full batch
+ * is deleted on the provider's delete pool while the next one is collected.
+ *
+ * 1. at most maxInFlight batches are being deleted at once, handing over a key that fills a
+ *    batch blocks until one finishes
+ * 2. requests are quiet, S3 only answers with the keys it could not delete, keys that failed
+ *    with an error that may go away (InternalError, SlowDown) are sent again in a smaller batch
+ *    up to retries times, the others are recorded in the result with S3's reason
+ * 3. a request that failed as a whole is retried like the parts of an upload, client errors
+ *    (4xx) are not retried and fail every key of the batch
+ * 4. with a request rate batches are started at most that many times a second, so a purge
+ *    running in the background doesn't take the bucket's request rate from everything else
+ *
+ * Keys may be handed over from several threads, a single caller waits for the result.
+ *
+ * @author comartin
+ */
+final class S3DeleteOp {
+
+    private static final Logger logger = Logger.getLogger(S3DeleteOp.class);
+
+    /**
+     * S3 accepts at most this many keys per DeleteObjects request
+     */
+    static final int MAX_BATCH = 1000;
+
+    /**
+     * Pause before the first retry of a request, doubled for every further retry
+     */
+    private static final long RETRY_PAUSE = 200L;
+
+    private final AmazonS3 s3;
+
+    private final S3MetadataCache metadataCache;
+
+    private final String bucket;
+
+    private final int retries;
+
+    private final ExecutorService executor;
+
+    private final int maxInFlight;
+
+    private final Semaphore inFlight;
+
+    /**
+     * nanoseconds between the start of two batches, 0 for no limit
+     */
+    private final long interval;
+
+    private final S3DeleteResult result = new S3DeleteResult();
+
+    private List<String> batch = new ArrayList<>();
+
+    private long nextStart = 0L;
+
+    /**
+     * @param s3 client to delete with
+     * @param metadataCache cache deleted keys are invalidated in
+     * @param bucket bucket objects are deleted from
+     * @param maxInFlight maximum number of batches being deleted at once
+     * @param requestsPerSecond most batches started per second, 0 or less for no limit
+     * @param retries number of times a failed request is retried
+     * @param executor pool batches are deleted on
+     */
+    S3DeleteOp(AmazonS3 s3, S3MetadataCache metadataCache, String bucket, int maxInFlight,
+        double requestsPerSecond, int retries, ExecutorService executor) {
+        this.s3 = s3;
+        this.metadataCache = metadataCache;
+        this.bucket = bucket;
+        this.retries = Math.max(retries, 0);
+        this.executor = executor;
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.interval = requestsPerSecond > 0 ? (long)(1000000000L / requestsPerSecond) : 0L;
+    }
+
+    /**
+     * Delete an object, blocking while maxInFlight batches are being deleted once this key fills
+     * a batch
+     * @param key key of the object
+     * @throws StorageException if interrupted while waiting
+     */
+    synchronized void delete(String key) throws StorageException {
+        batch.add(key);
+        if(batch.size() == MAX_BATCH) {
+            _submit();
+        }
+    }
+
+    /**
+     * Delete what's left of the last batch and wait for every batch
+     * @return the result of the delete
+     * @throws StorageException if interrupted while waiting, batches may still be deleting
+     */
+    S3DeleteResult await() throws StorageException {
+        synchronized(this) {
+            if(!batch.isEmpty()) {
+                _submit();
+            }
+        }
+        try {
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("interrupted waiting for delete from: " + bucket, ex);
+        }
+        result.done();
+        logger.info("s3 deleted " + result.deleted() + " objects from: " + bucket + " " + result);
+        return result;
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Hand the current batch to the pool, waiting for the request rate and while maxInFlight
+     * batches are deleting
+     */
+    private void _submit() throws StorageException {
+        final List<String> keys = batch;
+        batch = new ArrayList<>();
+        try {
+            if(interval > 0) {
+                long now = System.nanoTime();
+                if(nextStart > now) {
+                    long pause = nextStart - now;
+                    Thread.sleep(pause / 1000000L, (int)(pause % 1000000L));
+                    now = nextStart;
+                }
+                nextStart = now + interval;
+            }
+            inFlight.acquire();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("interrupted deleting from: " + bucket, ex);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        _deleteBatch(keys);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ex) {
+            inFlight.release();
+            for(String key : keys) {
+                result.failed(key, "delete pool is shut down");
+            }
+        }
+    }
+
+    /**
+     * Delete one batch, sending the keys that may succeed on another attempt again
+     */
+    private void _deleteBatch(List<String> keys) {
+        for(int attempt = 0; !keys.isEmpty(); attempt++) {
+            if(attempt > 0) {
+                try {
+                    Thread.sleep(RETRY_PAUSE << (attempt - 1));
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    _fail(keys, "interrupted");
+                    return;
+                }
+            }
+            boolean lastAttempt = attempt >= retries;
+            List<String> again = new ArrayList<>();
+            try {
+                result.requested();
+                s3.deleteObjects(new DeleteObjectsRequest(bucket)
+                    .withKeys(keys.toArray(new String[keys.size()]))
+                    .withQuiet(true));
+                result.deleted(keys.size());
+            } catch(MultiObjectDeleteException ex) {
+                result.deleted(keys.size() - ex.getErrors().size());
+                for(MultiObjectDeleteException.DeleteError error : ex.getErrors()) {
+                    if(!lastAttempt && _retryable(error.getCode())) {
+                        again.add(error.getKey());
+                    } else {
+                        result.failed(error.getKey(), error.getCode() + ": " + error.getMessage());
+                    }
+                }
+            } catch(AmazonClientException ex) {
+                if(lastAttempt || !_retryable(ex)) {
+                    _fail(keys, ex.getMessage());
+                } else {
+                    again = keys;
+                }
+            } finally {
+                for(String key : keys) {
+                    metadataCache.invalidate(bucket, key);
+                }
+            }
+            if(!again.isEmpty()) {
+                logger.warn("s3 retrying delete of " + again.size() + " objects from: " + bucket);
+            }
+            keys = again;
+        }
+    }
+
+    private void _fail(List<String> keys, String reason) {
+        logger.warn("s3 failed deleting " + keys.size() + " objects from: " + bucket + " " + reason);
+        for(String key : keys) {
+            result.failed(key, reason);
+        }
+    }
+
+    private boolean _retryable(String code) {
+        return "InternalError".equals(code) || "SlowDown".equals(code)
+            || "ServiceUnavailable".equals(code);
+    }
+
+    private boolean _retryable(AmazonClientException ex) {
+        if(ex instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException)ex).getStatusCode();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return true;
+    }
+}
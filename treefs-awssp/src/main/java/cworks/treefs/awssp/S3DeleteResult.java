@@ -0,0 +1,102 @@
+package cworks.treefs.awssp;
+
+import cworks.json.JsonObject;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcome of deleting many objects, counts are updated as each batch finishes so a result can
+ * be read while the delete is still running.  Objects that could not be deleted are listed by
+ * key with the reason S3 gave.
+ *
+ * @author comartin
+ */
+public final class S3DeleteResult {
+
+    private final AtomicInteger deleted = new AtomicInteger();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final Map<String, String> failures = new ConcurrentSkipListMap<>();
+
+    private final long started = System.currentTimeMillis();
+
+    private volatile long elapsed = -1L;
+
+    /**
+     * Number of objects deleted
+     */
+    public int deleted() {
+        return deleted.get();
+    }
+
+    /**
+     * Number of DeleteObjects requests sent, retries included
+     */
+    public int requests() {
+        return requests.get();
+    }
+
+    /**
+     * Number of objects that could not be deleted
+     */
+    public int failed() {
+        return failures.size();
+    }
+
+    /**
+     * Key -> reason of each object that could not be deleted, sorted by key
+     */
+    public Map<String, String> failures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * True if every object was deleted
+     */
+    public boolean succeeded() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * Milliseconds the delete took, or has taken so far while it's running
+     */
+    public long elapsed() {
+        return elapsed < 0 ? System.currentTimeMillis() - started : elapsed;
+    }
+
+    /**
+     * Counts as json
+     */
+    public JsonObject stats() {
+        return new JsonObject()
+            .setNumber("deleted", deleted())
+            .setNumber("failed", failed())
+            .setNumber("requests", requests())
+            .setNumber("elapsed", elapsed());
+    }
+
+    @Override
+    public String toString() {
+        return stats().asString();
+    }
+
+    void deleted(int count) {
+        deleted.addAndGet(count);
+    }
+
+    void requested() {
+        requests.incrementAndGet();
+    }
+
+    void failed(String key, String reason) {
+        failures.put(key, String.valueOf(reason));
+    }
+
+    void done() {
+        elapsed = System.currentTimeMillis() - started;
+    }
+}
@@ -39,7 +39,7 @@ public class S3File extends S3Path implements TreeFile {
 
     @Override
     public TreePathContentType contentType() {
-        String ct = jsonObject.getString("contentType");
+        String ct = treefsMetadata().getString("contentType");
         return TreePathContentType.valueOf(ct);
     }
 }
@@ -0,0 +1,116 @@
+package cworks.treefs.awssp;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import cworks.treefs.spi.StorageException;
+import cworks.treefs.spi.TreeFile;
+import cworks.treefs.spi.TreeFileWriter;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * TreeFileWriter for the S3StorageProvider, content goes into an {@link S3MultipartUpload} which
+ * buffers a part of treefs.s3.partSize bytes (8MB unless it's set, never under S3's 5MB minimum).
+ *
+ * 1. content that fits in one part is put to its key with a single putObject on commit
+ * 2. larger content is sent as the parts of a multipart upload, staged under a .treefs-uploads/
+ *    key in the trash bucket so an unfinished upload is never visible (or clobbers an object) in
+ *    the tree, commit completes the upload and copies it server-side to its key, in ranges when
+ *    it's over the 5GB a single CopyObject allows
+ *
+ * Unfinished multipart uploads are aborted so S3 doesn't keep (and bill for) their parts.
+ *
+ * @author comartin
+ */
+final class S3FileWriter implements TreeFileWriter {
+
+    private static final Logger logger = Logger.getLogger(S3FileWriter.class);
+
+    private final S3StorageProvider provider;
+
+    private final AmazonS3 s3;
+
+    private final String bucket;
+
+    private final String stagedKey;
+
+    private final S3MultipartUpload upload;
+
+    private boolean completed = false;
+
+    private boolean done = false;
+
+    S3FileWriter(S3StorageProvider provider, AmazonS3 s3, String bucket) {
+        this.provider = provider;
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.stagedKey = S3StorageProvider.UPLOADS_PREFIX + UUID.randomUUID().toString();
+        this.upload = provider._s3NewUpload(bucket, stagedKey, null);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws StorageException {
+        if(done) {
+            throw new StorageException("writer is already committed or aborted");
+        }
+        upload.write(data, offset, length);
+    }
+
+    @Override
+    public long size() {
+        return upload.size();
+    }
+
+    @Override
+    public TreeFile commit(Path path, String description, Map<String, Object> metadata)
+        throws StorageException {
+
+        if(done) {
+            throw new StorageException("writer is already committed or aborted");
+        }
+
+        String fileKey = provider._s3PrepareFile(path, metadata);
+        TreeFile file;
+        if(!upload.multipart()) {
+            try {
+                provider._s3CreateFile(fileKey, new ByteArrayInputStream(
+                    upload.buffered(), 0, (int)upload.size()), upload.size(), metadata);
+            } catch(IOException | AmazonClientException ex) {
+                throw new StorageException("exception creating file: " + fileKey, ex);
+            }
+            file = provider._s3ReadFile(fileKey);
+        } else {
+            if(!completed) {
+                upload.complete();
+                completed = true;
+            }
+            file = provider._s3CommitUpload(bucket, stagedKey, upload.size(), fileKey, metadata);
+        }
+
+        done = true;
+        upload.abort();
+        return file;
+    }
+
+    @Override
+    public void abort() {
+        if(done) {
+            return;
+        }
+        done = true;
+        upload.abort();
+        if(completed) {
+            // completed but couldn't be copied into place
+            try {
+                s3.deleteObject(bucket, stagedKey);
+            } catch(AmazonClientException ex) {
+                logger.error("s3 failed removing upload: " + stagedKey, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package cworks.treefs.awssp;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import cworks.json.JsonObject;
+import cworks.treefs.spi.StorageException;
+import cworks.treefs.spi.TreeQuery;
+import cworks.treefs.spi.TreeSearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Find for the S3StorageProvider.  The folder searched is listed with a '/' delimiter, which
+ * splits the keys below it into one prefix per sub-folder, then each prefix is listed in full on
+ * the provider's find pool so the sub-folders are scanned in parallel.  When the query's
+ * maxLevels is within treefs.s3.delimiterLevels the sub-folders are listed a folder at a time
+ * with the delimiter too, so keys below the last level searched aren't listed at all.
+ *
+ * Keys are checked against the query's glob, type and level as they're listed, a HEAD is only
+ * made for matches and only when the query has metadata predicates.  Matches found without a
+ * HEAD read their treefs-meta on first use unless the provider lists with SUMMARY.
+ *
+ * @author comartin
+ */
+final class S3FindOp {
+
+    private final S3StorageProvider provider;
+
+    private final AmazonS3 s3;
+
+    private final String bucket;
+
+    private final String folderKey;
+
+    private final TreeSearch search;
+
+    S3FindOp(S3StorageProvider provider, AmazonS3 s3, String bucket, String folderKey,
+        TreeSearch search) {
+        this.provider = provider;
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.folderKey = folderKey;
+        this.search = search;
+    }
+
+    /**
+     * Search the folder, returns once every partition is done or the search is stopped
+     * @param pool pool the partitions are listed on
+     * @throws StorageException
+     */
+    void run(ExecutorService pool) throws StorageException {
+
+        final TreeQuery query = search.query();
+        List<String> partitions = new ArrayList<String>();
+        ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+            .withBucketName(bucket)
+            .withPrefix(folderKey)
+            .withDelimiter("/"));
+        while(!search.stopped()) {
+            for(S3ObjectSummary summary : listing.getObjectSummaries()) {
+                if(!folderKey.equals(summary.getKey())) {
+                    _consider(summary.getKey(), summary, 1);
+                }
+            }
+            for(String prefix : listing.getCommonPrefixes()) {
+                _consider(prefix, null, 1);
+                if(query.maxLevels() > 1) {
+                    partitions.add(prefix);
+                }
+            }
+            if(!listing.isTruncated()) {
+                break;
+            }
+            listing = s3.listNextBatchOfObjects(listing);
+        }
+
+        List<Future<Void>> scans = new ArrayList<Future<Void>>();
+        for(final String prefix : partitions) {
+            scans.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if(query.maxLevels() <= provider._delimiterLevels()) {
+                        _scanLevels(prefix, 2);
+                    } else {
+                        _scan(prefix);
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for(Future<Void> scan : scans) {
+                scan.get();
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("find interrupted in: " + folderKey, ex);
+        } catch(ExecutionException ex) {
+            throw new StorageException("exception finding in: " + folderKey, ex.getCause());
+        } finally {
+            search.stop();
+            for(Future<Void> scan : scans) {
+                scan.cancel(true);
+            }
+        }
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * List every key below a sub-folder's prefix, the sub-folder itself was already considered
+     */
+    private void _scan(String prefix) {
+        ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+            .withBucketName(bucket)
+            .withPrefix(prefix));
+        while(!search.stopped()) {
+            for(S3ObjectSummary summary : listing.getObjectSummaries()) {
+                if(search.stopped()) {
+                    return;
+                }
+                String key = summary.getKey();
+                if(!prefix.equals(key)) {
+                    _consider(key, key.endsWith("/") ? null : summary, _level(key));
+                }
+            }
+            if(!listing.isTruncated()) {
+                return;
+            }
+            listing = s3.listNextBatchOfObjects(listing);
+        }
+    }
+
+    /**
+     * List the items of a sub-folder with a delimiter then the folders among them down to the
+     * query's maxLevels, the sub-folder itself was already considered
+     * @param prefix prefix of the sub-folder
+     * @param level level of the sub-folder's items
+     */
+    private void _scanLevels(String prefix, int level) {
+        ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+            .withBucketName(bucket)
+            .withPrefix(prefix)
+            .withDelimiter("/"));
+        while(!search.stopped()) {
+            for(S3ObjectSummary summary : listing.getObjectSummaries()) {
+                if(!prefix.equals(summary.getKey())) {
+                    _consider(summary.getKey(), summary, level);
+                }
+            }
+            for(String folder : listing.getCommonPrefixes()) {
+                if(search.stopped()) {
+                    return;
+                }
+                _consider(folder, null, level);
+                if(level < search.query().maxLevels()) {
+                    _scanLevels(folder, level + 1);
+                }
+            }
+            if(!listing.isTruncated()) {
+                return;
+            }
+            listing = s3.listNextBatchOfObjects(listing);
+        }
+    }
+
+    /**
+     * Offer the key to the search if it matches, summary is null for folders
+     */
+    private void _consider(String key, S3ObjectSummary summary, int level) {
+        TreeQuery query = search.query();
+        boolean isFolder = isNull(summary);
+        if(level > query.maxLevels() || !query.matchesType(isFolder)) {
+            return;
+        }
+        String relative = key.substring(folderKey.length(), isFolder ? key.length() - 1 : key.length());
+        String name = relative.substring(relative.lastIndexOf('/') + 1);
+        if(!query.matchesName(name)) {
+            return;
+        }
+
+        S3Path path = isFolder
+            ? new S3Folder(S3StorageProvider._s3FolderSummary(key, name))
+            : new S3File(S3StorageProvider._s3FileSummary(summary, name));
+        if(query.hasMetadataPredicates()) {
+            JsonObject treefsMeta = provider._s3MetadataRequest(key, true);
+            if(isNull(treefsMeta)) {
+                // not managed by treefs
+                return;
+            }
+            path.resolved(treefsMeta);
+            if(!query.matchesMetadata(path)) {
+                return;
+            }
+        } else {
+            provider._s3ResolveLazily(key, path);
+        }
+        search.offer(path);
+    }
+
+    /**
+     * Level of a key below the folder searched, items of the folder are level 1
+     */
+    private int _level(String key) {
+        int level = 1;
+        int end = key.endsWith("/") ? key.length() - 1 : key.length();
+        for(int i = folderKey.length(); i < end; i++) {
+            if(key.charAt(i) == '/') {
+                level++;
+            }
+        }
+        return level;
+    }
+}
@@ -0,0 +1,191 @@
+package cworks.treefs.awssp;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import cworks.treefs.spi.TreeListing;
+import cworks.treefs.spi.TreePath;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+import static cworks.treefs.common.ObjectUtils.isNullOrEmpty;
+
+/**
+ * TreeListing for the S3StorageProvider.  The folder is listed with a '/' delimiter, a request of
+ * at most 1000 keys at a time as items are iterated, so only one S3 page is held in memory.  Each
+ * page's treefs-meta is read as the provider's {@link S3Listing} mode says.  The cursor is the key
+ * of the last item, used as the marker of the next listing.
+ *
+ * @author comartin
+ */
+final class S3FolderListing implements TreeListing {
+
+    /**
+     * Most keys S3 returns per listing
+     */
+    private static final int MAX_KEYS = 1000;
+
+    private final S3StorageProvider provider;
+
+    private final AmazonS3 s3;
+
+    private final String bucket;
+
+    private final String folderKey;
+
+    private final Deque<Map.Entry<String, S3Path>> page = new ArrayDeque<Map.Entry<String, S3Path>>();
+
+    /**
+     * Key the next listing starts after
+     */
+    private String marker;
+
+    /**
+     * Items left before the limit is reached, -1 for no limit
+     */
+    private int remaining;
+
+    private boolean exhausted = false;
+
+    private String last = null;
+
+    private boolean iterated = false;
+
+    S3FolderListing(S3StorageProvider provider, AmazonS3 s3, String bucket, String folderKey,
+        String marker, int limit) {
+        this.provider = provider;
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.folderKey = folderKey;
+        this.marker = marker;
+        this.remaining = limit > 0 ? limit : -1;
+    }
+
+    @Override
+    public Iterator<TreePath> iterator() {
+        if(iterated) {
+            throw new IllegalStateException("listing of " + folderKey + " was already iterated");
+        }
+        iterated = true;
+        return new Iterator<TreePath>() {
+            @Override
+            public boolean hasNext() {
+                if(remaining == 0) {
+                    return false;
+                }
+                while(page.isEmpty() && !exhausted) {
+                    _fetch();
+                }
+                return !page.isEmpty();
+            }
+
+            @Override
+            public TreePath next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, S3Path> item = page.poll();
+                last = item.getKey();
+                if(remaining > 0) {
+                    remaining--;
+                }
+                return item.getValue();
+            }
+        };
+    }
+
+    @Override
+    public String cursor() {
+        if(isNull(last) || (page.isEmpty() && exhausted)) {
+            return null;
+        }
+        return encode(last);
+    }
+
+    @Override
+    public void close() {
+        page.clear();
+    }
+
+    /**
+     * Cursor for the page after key
+     */
+    static String encode(String key) {
+        return Base64.getUrlEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Key a cursor continues after, null for no cursor
+     * @throws IllegalArgumentException if cursor wasn't made by encode
+     */
+    static String decode(String cursor) {
+        if(isNullOrEmpty(cursor)) {
+            return null;
+        }
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * List the next keys after marker, asking for one more than the limit needs so the folder's
+     * own object (or knowing there is nothing after the limit) doesn't cost another request
+     */
+    private void _fetch() {
+        int maxKeys = (remaining < 0) ? MAX_KEYS : Math.min(MAX_KEYS, remaining + 1);
+        ListObjectsRequest request = new ListObjectsRequest()
+            .withBucketName(bucket)
+            .withPrefix(folderKey)
+            .withDelimiter("/")
+            .withMaxKeys(maxKeys);
+        if(!isNull(marker)) {
+            request.withMarker(marker);
+        }
+        ObjectListing listing = s3.listObjects(request);
+
+        // files and sub-folders come back in separate lists, items are handed out in key order
+        TreeMap<String, S3Path> items = new TreeMap<String, S3Path>();
+        for(S3ObjectSummary summary : listing.getObjectSummaries()) {
+            String key = summary.getKey();
+            if(folderKey.equals(key) || _seen(key)) {
+                continue;
+            }
+            items.put(key, new S3File(
+                S3StorageProvider._s3FileSummary(summary, key.substring(folderKey.length()))));
+        }
+        for(String prefix : listing.getCommonPrefixes()) {
+            // a marker ending in a sub-folder's prefix rolls the sub-folder up again
+            if(_seen(prefix)) {
+                continue;
+            }
+            String name = prefix.substring(folderKey.length(), prefix.length() - 1);
+            items.put(prefix, new S3Folder(S3StorageProvider._s3FolderSummary(prefix, name)));
+        }
+        provider._s3ResolveMetadata(items);
+        page.addAll(items.entrySet());
+
+        String next = listing.getNextMarker();
+        if(isNull(next) && !items.isEmpty()) {
+            next = items.lastKey();
+        }
+        if(!listing.isTruncated() || isNull(next)) {
+            exhausted = true;
+        }
+        marker = next;
+    }
+
+    private boolean _seen(String key) {
+        return !isNull(marker) && key.compareTo(marker) <= 0;
+    }
+}
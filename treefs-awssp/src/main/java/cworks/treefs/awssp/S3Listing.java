@@ -0,0 +1,42 @@
+package cworks.treefs.awssp;
+
+/**
+ * How the S3StorageProvider fills in the items of a folder it lists.  Every mode builds the tree
+ * from the ListObjects summaries (key, size, etag and last modified), they differ only in how the
+ * treefs-meta (description, creationTime and user metadata) stored with each object is read.
+ *
+ * @author comartin
+ */
+public enum S3Listing {
+
+    /**
+     * Items carry only what the summaries have, no treefs-meta is read
+     */
+    SUMMARY,
+
+    /**
+     * treefs-meta of an item is read the first time description, creationTime or metadata is
+     * asked for, good for callers that mostly look at names and sizes
+     */
+    LAZY,
+
+    /**
+     * treefs-meta of every item is read before the folder is returned, with a bounded number of
+     * requests in flight on the provider's listing pool
+     */
+    PARALLEL;
+
+    /**
+     * The listing mode named by value, or PARALLEL if there is no such mode
+     */
+    static S3Listing of(String value) {
+        if(value != null) {
+            for(S3Listing listing : values()) {
+                if(listing.name().equalsIgnoreCase(value.trim())) {
+                    return listing;
+                }
+            }
+        }
+        return PARALLEL;
+    }
+}
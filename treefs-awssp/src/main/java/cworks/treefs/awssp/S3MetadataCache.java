@@ -0,0 +1,258 @@
+package cworks.treefs.awssp;
+
+import cworks.json.Json;
+import cworks.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Provider wide cache of the treefs-meta read from S3 with a HEAD request, shared by every
+ * request so exists, isFolder, isFile and friends don't HEAD the same keys over and over.
+ *
+ * 1. entries expire ttl millis after they were read, so changes made to the bucket by anything
+ *    but this provider are seen after at most ttl
+ * 2. keys that don't exist (or aren't managed by treefs) are cached too, for missTtl millis
+ * 3. the provider invalidates every key it writes, copies, trashes or deletes, a HEAD of a key
+ *    that was in flight while the key was written is not cached since it may have seen the old
+ *    object.  Writes are tracked with a version per key (striped over VERSION_STRIPES counters
+ *    so they take no memory per key), writes to other keys don't stop a HEAD being cached
+ * 4. once more than maxEntries are cached expired entries are dropped, then the least recently
+ *    used until a tenth of maxEntries is free
+ *
+ * Entries hold the treefs-meta as a String, for files with the object's size and
+ * lastModifiedTime folded in so a stat needs nothing else.  Every hit gets its own JsonObject so
+ * callers are free to change what they get.
+ *
+ * @author comartin
+ */
+final class S3MetadataCache {
+
+    /**
+     * Marks a key that has no treefs-meta
+     */
+    private static final String MISSING = "";
+
+    /**
+     * Number of write version counters keys are spread over, a power of 2
+     */
+    private static final int VERSION_STRIPES = 4096;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final int maxEntries;
+
+    private final long ttl;
+
+    private final long missTtl;
+
+    /**
+     * Bumped by an invalidation of any key in the stripe, a value read before the last
+     * invalidation of its key isn't cached
+     */
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Entry {
+        final String treefsMeta;
+        final long expires;
+        /**
+         * nanoTime of the last put or hit, eviction drops the oldest
+         */
+        volatile long used;
+        Entry(String treefsMeta, long expires) {
+            this.treefsMeta = treefsMeta;
+            this.expires = expires;
+            this.used = System.nanoTime();
+        }
+    }
+
+    /**
+     * Result of a lookup, found is false on a cache miss
+     */
+    static final class Lookup {
+        final boolean found;
+        final JsonObject treefsMeta;
+        final long version;
+        Lookup(boolean found, JsonObject treefsMeta, long version) {
+            this.found = found;
+            this.treefsMeta = treefsMeta;
+            this.version = version;
+        }
+    }
+
+    /**
+     * @param maxEntries number of keys cached, 0 turns the cache off
+     * @param ttl millis an entry is good for
+     * @param missTtl millis a missing key is remembered for
+     */
+    S3MetadataCache(int maxEntries, long ttl, long missTtl) {
+        this.maxEntries = Math.max(maxEntries, 0);
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(Math.max(ttl, 0L));
+        this.missTtl = TimeUnit.MILLISECONDS.toNanos(Math.max(missTtl, 0L));
+    }
+
+    /**
+     * Look up the treefs-meta of a key, on a miss pass the returned Lookup to {@link #put} along
+     * with what S3 said
+     */
+    Lookup get(String bucket, String key) {
+        String cacheKey = _key(bucket, key);
+        long current = versions.get(_stripe(cacheKey));
+        if(maxEntries == 0) {
+            return new Lookup(false, null, current);
+        }
+        Entry entry = entries.get(cacheKey);
+        long now = System.nanoTime();
+        if(!isNull(entry) && entry.expires - now > 0) {
+            entry.used = now;
+            hits.incrementAndGet();
+            JsonObject treefsMeta = (entry.treefsMeta == MISSING) ? null : Json.asObject(entry.treefsMeta);
+            return new Lookup(true, treefsMeta, current);
+        }
+        if(!isNull(entry)) {
+            entries.remove(cacheKey, entry);
+        }
+        misses.incrementAndGet();
+        return new Lookup(false, null, current);
+    }
+
+    /**
+     * Look up the treefs-meta of a key without counting a miss, for callers that only want to
+     * know if the cache can answer
+     */
+    Lookup peek(String bucket, String key) {
+        String cacheKey = _key(bucket, key);
+        long current = versions.get(_stripe(cacheKey));
+        Entry entry = (maxEntries == 0) ? null : entries.get(cacheKey);
+        long now = System.nanoTime();
+        if(isNull(entry) || entry.expires - now <= 0) {
+            return new Lookup(false, null, current);
+        }
+        entry.used = now;
+        hits.incrementAndGet();
+        JsonObject treefsMeta = (entry.treefsMeta == MISSING) ? null : Json.asObject(entry.treefsMeta);
+        return new Lookup(true, treefsMeta, current);
+    }
+
+    /**
+     * Cache the treefs-meta read from S3 for key
+     * @param lookup the miss that led to the read
+     * @param treefsMeta the treefs-meta String or null if the key doesn't exist or has none
+     */
+    void put(String bucket, String key, Lookup lookup, String treefsMeta) {
+        String cacheKey = _key(bucket, key);
+        int stripe = _stripe(cacheKey);
+        if(maxEntries == 0 || lookup.version != versions.get(stripe)) {
+            return;
+        }
+        long expires = System.nanoTime() + (isNull(treefsMeta) ? missTtl : ttl);
+        Entry entry = new Entry(isNull(treefsMeta) ? MISSING : treefsMeta, expires);
+        entries.put(cacheKey, entry);
+        if(lookup.version != versions.get(stripe)) {
+            // invalidated while it went in, invalidate may have removed the key before the put
+            entries.remove(cacheKey, entry);
+            return;
+        }
+        if(entries.size() > maxEntries) {
+            _evict();
+        }
+    }
+
+    /**
+     * Forget key, call after anything that changes it
+     */
+    void invalidate(String bucket, String key) {
+        String cacheKey = _key(bucket, key);
+        versions.incrementAndGet(_stripe(cacheKey));
+        entries.remove(cacheKey);
+    }
+
+    /**
+     * hits, misses, evictions and the number of entries
+     */
+    JsonObject stats() {
+        JsonObject stats = new JsonObject();
+        stats.setNumber("hits", hits.get());
+        stats.setNumber("misses", misses.get());
+        stats.setNumber("evictions", evictions.get());
+        stats.setNumber("size", entries.size());
+        return stats;
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Bucket names can't have a '/' so this is unique
+     */
+    private String _key(String bucket, String key) {
+        return bucket + "/" + key;
+    }
+
+    /**
+     * Write version counter of a cache key
+     */
+    private int _stripe(String cacheKey) {
+        int hash = cacheKey.hashCode();
+        return (hash ^ (hash >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    /**
+     * Drop expired entries, then the least recently used until there is room for a tenth of
+     * maxEntries
+     */
+    private synchronized void _evict() {
+        if(entries.size() <= maxEntries) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<Entry> values = entries.values().iterator();
+        while(values.hasNext()) {
+            if(values.next().expires - now <= 0) {
+                values.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        int target = maxEntries - maxEntries / 10;
+        if(entries.size() <= target) {
+            return;
+        }
+        List<Map.Entry<String, Entry>> byUse = new ArrayList<>(entries.entrySet());
+        final Map<String, Long> used = new HashMap<>();
+        for(Map.Entry<String, Entry> item : byUse) {
+            // read once, hits carry on while sorting
+            used.put(item.getKey(), item.getValue().used);
+        }
+        Collections.sort(byUse, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                return Long.signum(used.get(a.getKey()) - used.get(b.getKey()));
+            }
+        });
+        Iterator<Map.Entry<String, Entry>> oldest = byUse.iterator();
+        while(entries.size() > target && oldest.hasNext()) {
+            Map.Entry<String, Entry> item = oldest.next();
+            if(entries.remove(item.getKey(), item.getValue())) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package cworks.treefs.awssp;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import cworks.treefs.spi.StorageException;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Multipart upload of one object, content is cut into parts of partSize bytes as it is written
+ * and each full part is uploaded on the provider's upload pool while the next one is filled.
+ *
+ * 1. at most maxInFlight parts are being uploaded at once, writing the next part blocks until one
+ *    finishes, so memory is bounded by (maxInFlight + 1) * partSize whatever the object size
+ * 2. a failed part is retried up to retries times with a growing pause, client errors (4xx) are
+ *    not retried
+ * 3. if a part still fails, or the caller aborts, the multipart upload is aborted so S3 doesn't
+ *    keep the parts that were uploaded
+ * 4. the upload is only started once a part is full, content that fits in one part is left in
+ *    the buffer ({@link #multipart()} is false) so the caller can send it with a single put
+ *
+ * Not thread-safe, a single caller writes and completes the upload.
+ *
+ * @author comartin
+ */
+final class S3MultipartUpload {
+
+    private static final Logger logger = Logger.getLogger(S3MultipartUpload.class);
+
+    /**
+     * S3 requires every part but the last to be at least 5MB
+     */
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * S3 accepts at most this many parts per upload
+     */
+    static final int MAX_PARTS = 10000;
+
+    /**
+     * Pause before the first retry of a part, doubled for every further retry
+     */
+    private static final long RETRY_PAUSE = 200L;
+
+    private final AmazonS3 s3;
+
+    private final String bucket;
+
+    private final String key;
+
+    private final ObjectMetadata metadata;
+
+    private final int partSize;
+
+    private final int retries;
+
+    private final ExecutorService executor;
+
+    private final Semaphore inFlight;
+
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private byte[] part = null;
+
+    private int count = 0;
+
+    private long size = 0L;
+
+    private String uploadId = null;
+
+    private volatile Throwable failure = null;
+
+    private volatile boolean done = false;
+
+    /**
+     * @param s3 client to upload with
+     * @param bucket bucket of the object
+     * @param key key of the object
+     * @param metadata metadata of the object, may be null
+     * @param partSize size of a part, at least {@link #MIN_PART_SIZE}
+     * @param maxInFlight maximum number of parts uploading at once
+     * @param retries number of times a failed part is retried
+     * @param executor pool parts are uploaded on
+     */
+    S3MultipartUpload(AmazonS3 s3, String bucket, String key, ObjectMetadata metadata,
+        int partSize, int maxInFlight, int retries, ExecutorService executor) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.metadata = metadata;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.retries = Math.max(retries, 0);
+        this.executor = executor;
+        this.inFlight = new Semaphore(Math.max(maxInFlight, 1));
+    }
+
+    /**
+     * Append length bytes of data starting at offset
+     * @throws StorageException if a part could not be uploaded, the upload is aborted
+     */
+    void write(byte[] data, int offset, int length) throws StorageException {
+        _checkOpen();
+        while(length > 0) {
+            _fillable();
+            int n = Math.min(length, part.length - count);
+            System.arraycopy(data, offset, part, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+            size += n;
+        }
+    }
+
+    /**
+     * Append everything in stream, reading straight into the part buffers
+     * @throws StorageException if a part could not be uploaded, the upload is aborted
+     */
+    void write(InputStream stream) throws StorageException, IOException {
+        _checkOpen();
+        while(true) {
+            _fillable();
+            int n = stream.read(part, count, part.length - count);
+            if(n < 0) {
+                return;
+            }
+            count += n;
+            size += n;
+        }
+    }
+
+    /**
+     * True once content no longer fits in one part and the multipart upload was started
+     */
+    boolean multipart() {
+        return !isNull(uploadId);
+    }
+
+    /**
+     * Content written so far when it wasn't enough to start a multipart upload, bytes 0 to
+     * {@link #size()}
+     */
+    byte[] buffered() {
+        return isNull(part) ? new byte[0] : part;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Upload the last part and complete the multipart upload, waiting for every part
+     * @throws StorageException if a part could not be uploaded or S3 refused to complete, the
+     *     upload is aborted
+     */
+    void complete() throws StorageException {
+        _checkOpen();
+        if(!multipart()) {
+            throw new StorageException("upload of " + key + " fits in one part, put it instead");
+        }
+        if(count > 0) {
+            _submit();
+        }
+
+        List<PartETag> partETags = new ArrayList<>();
+        for(Future<PartETag> future : parts) {
+            try {
+                partETags.add(future.get());
+            } catch(ExecutionException ex) {
+                abort();
+                throw new StorageException("exception uploading part of: " + key, ex.getCause());
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                abort();
+                throw new StorageException("interrupted uploading: " + key, ex);
+            }
+        }
+
+        try {
+            s3.completeMultipartUpload(
+                new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+        } catch(AmazonClientException ex) {
+            abort();
+            throw new StorageException("exception completing upload: " + key, ex);
+        }
+        logger.info("s3 completed upload: " + key + " parts=" + partETags.size() + " size=" + size);
+        done = true;
+        part = null;
+    }
+
+    /**
+     * Stop uploading parts and abort the multipart upload, does nothing once completed or aborted
+     */
+    void abort() {
+        if(done) {
+            return;
+        }
+        done = true;
+        part = null;
+        for(Future<PartETag> future : parts) {
+            future.cancel(true);
+        }
+        if(!isNull(uploadId)) {
+            try {
+                s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+                logger.info("s3 aborted upload: " + key);
+            } catch(AmazonClientException ex) {
+                logger.error("s3 failed aborting upload: " + key, ex);
+            }
+        }
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    private void _checkOpen() throws StorageException {
+        if(done) {
+            throw new StorageException("upload of " + key + " is already completed or aborted");
+        }
+        if(!isNull(failure)) {
+            abort();
+            throw new StorageException("exception uploading part of: " + key, failure);
+        }
+    }
+
+    /**
+     * Make sure there is room in the current part, sending it when it's full
+     */
+    private void _fillable() throws StorageException {
+        if(isNull(part)) {
+            part = new byte[partSize];
+        } else if(count == part.length) {
+            _submit();
+            part = new byte[partSize];
+        }
+    }
+
+    /**
+     * Hand the current part to the pool, blocking while maxInFlight parts are uploading
+     */
+    private void _submit() throws StorageException {
+        if(parts.size() == MAX_PARTS) {
+            abort();
+            throw new StorageException("upload of " + key + " exceeds " + MAX_PARTS
+                + " parts of " + partSize + " bytes");
+        }
+        try {
+            if(isNull(uploadId)) {
+                InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucket, key);
+                if(!isNull(metadata)) {
+                    request.withObjectMetadata(metadata);
+                }
+                uploadId = s3.initiateMultipartUpload(request).getUploadId();
+                logger.info("s3 started upload: " + key);
+            }
+            inFlight.acquire();
+        } catch(AmazonClientException ex) {
+            abort();
+            throw new StorageException("exception starting upload: " + key, ex);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new StorageException("interrupted uploading: " + key, ex);
+        }
+        _checkOpen();
+
+        final byte[] data = part;
+        final int length = count;
+        final int partNumber = parts.size() + 1;
+        parts.add(executor.submit(new Callable<PartETag>() {
+            @Override
+            public PartETag call() throws Exception {
+                try {
+                    return _uploadPart(partNumber, data, length);
+                } catch(Exception ex) {
+                    failure = ex;
+                    throw ex;
+                } finally {
+                    inFlight.release();
+                }
+            }
+        }));
+        part = null;
+        count = 0;
+    }
+
+    /**
+     * Upload one part, retrying failures that may succeed on another attempt
+     */
+    private PartETag _uploadPart(int partNumber, byte[] data, int length)
+        throws InterruptedException {
+        for(int attempt = 0; ; attempt++) {
+            if(done) {
+                throw new InterruptedException("upload of " + key + " was aborted");
+            }
+            try {
+                UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucket)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber)
+                    .withInputStream(new ByteArrayInputStream(data, 0, length))
+                    .withPartSize(length);
+                return s3.uploadPart(request).getPartETag();
+            } catch(AmazonClientException ex) {
+                if(attempt >= retries || !_retryable(ex)) {
+                    throw ex;
+                }
+                logger.warn("s3 retrying part " + partNumber + " of: " + key + " " + ex.getMessage());
+                Thread.sleep(RETRY_PAUSE << attempt);
+            }
+        }
+    }
+
+    private boolean _retryable(AmazonClientException ex) {
+        if(ex instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException)ex).getStatusCode();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return true;
+    }
+}
@@ -10,7 +10,9 @@ import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.Map;
+import java.util.function.Supplier;
 
+import static cworks.treefs.common.ObjectUtils.isNull;
 import static cworks.treefs.common.ObjectUtils.isNullOrEmpty;
 
 public class S3Path implements TreePath {
@@ -25,6 +27,11 @@ public class S3Path implements TreePath {
      */
     protected JsonObject jsonObject = null;
 
+    /**
+     * Reads the treefs-meta of a path that was listed from its summary alone, null once read
+     */
+    private Supplier<JsonObject> resolver = null;
+
     /**
      * Must have a JsonObject to create a S3Path instance
      * @param data
@@ -33,9 +40,43 @@ public class S3Path implements TreePath {
         this.jsonObject = data;
     }
 
+    /**
+     * Read the treefs-meta of this path with resolver the first time it's needed
+     * @param resolver returns the treefs-meta, or null if there is none
+     */
+    void resolveWith(Supplier<JsonObject> resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Add treefs-meta to what this path already knows, fields already set (i.e. read from the
+     * listing) are kept
+     * @param treefsMetadata
+     */
+    void resolved(JsonObject treefsMetadata) {
+        if(!isNull(treefsMetadata)) {
+            this.jsonObject = treefsMetadata.merge(this.jsonObject);
+        }
+    }
+
+    /**
+     * The treefs-meta backed fields of this path, read first if they were left for later
+     */
+    protected JsonObject treefsMetadata() {
+        if(!isNull(resolver)) {
+            synchronized(this) {
+                if(!isNull(resolver)) {
+                    resolved(resolver.get());
+                    resolver = null;
+                }
+            }
+        }
+        return this.jsonObject;
+    }
+
     @Override
     public String description() {
-        String description = this.jsonObject.getString("description", "");
+        String description = treefsMetadata().getString("description", "");
         return description;
     }
 
@@ -53,6 +94,7 @@ public class S3Path implements TreePath {
 
     @Override
     public Date creationTime() {
+        treefsMetadata();
         Date creationTime = parseDateTime("creationTime");
         return creationTime;
     }
@@ -72,7 +114,7 @@ public class S3Path implements TreePath {
 
     @Override
     public boolean hasMetadata() {
-        JsonObject meta = this.jsonObject.getObject("metadata");
+        JsonObject meta = treefsMetadata().getObject("metadata");
         if(isNullOrEmpty(meta)) {
             return false;
         }
@@ -0,0 +1,436 @@
+package cworks.treefs.awssp;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import cworks.treefs.spi.StorageException;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import static cworks.treefs.common.IOUtils.closeQuietly;
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Download of one object as byte ranges of rangeSize fetched in parallel on the provider's
+ * download pool, so a large object isn't limited to what one connection can carry.
+ *
+ * 1. {@link #open()} returns the ranges in order as one InputStream, at most maxInFlight ranges
+ *    are fetched ahead of the reader so memory is bounded by (maxInFlight + 1) * rangeSize
+ * 2. {@link #download(Path)} writes each range straight to its position in a file as it
+ *    arrives, nothing is buffered but a small copy buffer per range
+ * 3. every range after the first is fetched only if the object still has the ETag the first
+ *    request saw, an object that's replaced part way through fails the read instead of mixing
+ *    two versions
+ * 4. a range that fails, including a connection reset part way through its content, is fetched
+ *    again up to retries times with a growing pause, client errors (4xx) are not retried
+ *
+ * @author comartin
+ */
+final class S3RangedRead {
+
+    private static final Logger logger = Logger.getLogger(S3RangedRead.class);
+
+    /**
+     * Pause before the first retry of a range, doubled for every further retry
+     */
+    private static final long RETRY_PAUSE = 200L;
+
+    /**
+     * Size of the buffer a range is copied into a file with
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 s3;
+
+    private final String bucket;
+
+    private final String key;
+
+    private final int rangeSize;
+
+    private final int maxInFlight;
+
+    private final int retries;
+
+    private final ExecutorService executor;
+
+    private long size = -1L;
+
+    private String etag = null;
+
+    /**
+     * @param s3 client to download with
+     * @param bucket bucket of the object
+     * @param key key of the object
+     * @param rangeSize size of a range
+     * @param maxInFlight maximum number of ranges fetched at once
+     * @param retries number of times a failed range is fetched again
+     * @param executor pool ranges are fetched on
+     */
+    S3RangedRead(AmazonS3 s3, String bucket, String key, int rangeSize, int maxInFlight,
+        int retries, ExecutorService executor) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.rangeSize = Math.max(rangeSize, 64 * 1024);
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.retries = Math.max(retries, 0);
+        this.executor = executor;
+    }
+
+    /**
+     * Open the object for reading, the first range is fetched before this returns so a missing
+     * object fails here like a plain GET does
+     * @return the content of the object in order
+     * @throws StorageException
+     * @throws AmazonServiceException with status 404 if the object doesn't exist
+     */
+    InputStream open() throws StorageException {
+        byte[] first;
+        try {
+            first = _fetch(0L);
+        } catch(AmazonServiceException ex) {
+            if(ex.getStatusCode() == 416) {
+                // the object is empty, there's no first byte to ask for
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            throw ex;
+        } catch(IOException ex) {
+            throw new StorageException("exception reading: " + key, ex);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("interrupted reading: " + key, ex);
+        }
+        return new RangeStream(first);
+    }
+
+    /**
+     * Write the object to a file, replacing what the file had
+     * @param file the file to write
+     * @return number of bytes written
+     * @throws StorageException if a range could not be fetched or written, the file is left
+     *     partly written
+     * @throws AmazonServiceException with status 404 if the object doesn't exist
+     */
+    long download(Path file) throws StorageException {
+        ObjectMetadata metadata = s3.getObjectMetadata(bucket, key);
+        size = metadata.getContentLength();
+        etag = metadata.getETag();
+
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        List<Future<Long>> ranges = new ArrayList<>();
+        try(final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for(long offset = 0L; offset < size; offset += rangeSize) {
+                inFlight.acquire();
+                _checkRanges(ranges);
+                final long position = offset;
+                ranges.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        try {
+                            return _write(channel, position);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }));
+            }
+            long written = 0L;
+            for(Future<Long> range : ranges) {
+                written += range.get();
+            }
+            logger.info("s3 downloaded: " + key + " ranges=" + ranges.size() + " size=" + written);
+            return written;
+        } catch(ExecutionException ex) {
+            _cancel(ranges);
+            throw new StorageException("exception downloading: " + key, ex.getCause());
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            _cancel(ranges);
+            throw new StorageException("interrupted downloading: " + key, ex);
+        } catch(IOException ex) {
+            _cancel(ranges);
+            throw new StorageException("exception writing: " + file, ex);
+        }
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Ranges already fetched in order, with the next ranges being fetched behind them
+     */
+    private final class RangeStream extends InputStream {
+
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+        private byte[] current;
+
+        private int position = 0;
+
+        private long next;
+
+        private boolean closed = false;
+
+        RangeStream(byte[] first) {
+            this.current = first;
+            this.next = first.length;
+            _fetchAhead();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!_readable()) {
+                return -1;
+            }
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!_readable()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return isNull(current) ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            current = null;
+            for(Future<byte[]> range : pending) {
+                range.cancel(true);
+            }
+            pending.clear();
+        }
+
+        /**
+         * Make sure there is something left in the current range, waiting for the next one
+         * when it's used up
+         * @return false at the end of the object
+         */
+        private boolean _readable() throws IOException {
+            if(closed) {
+                throw new IOException("stream of " + key + " is closed");
+            }
+            while(position == current.length) {
+                Future<byte[]> range = pending.poll();
+                if(isNull(range)) {
+                    return false;
+                }
+                try {
+                    current = range.get();
+                } catch(ExecutionException ex) {
+                    close();
+                    throw new IOException("exception reading: " + key, ex.getCause());
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new IOException("interrupted reading: " + key, ex);
+                }
+                position = 0;
+                _fetchAhead();
+            }
+            return true;
+        }
+
+        /**
+         * Keep maxInFlight ranges fetching ahead of the reader
+         */
+        private void _fetchAhead() {
+            while(pending.size() < maxInFlight && next < size) {
+                final long offset = next;
+                pending.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return _fetch(offset);
+                    }
+                }));
+                next += rangeSize;
+            }
+        }
+    }
+
+    /**
+     * Fetch the range starting at offset into memory, the first range learns the size and
+     * ETag of the object
+     */
+    private byte[] _fetch(long offset) throws InterruptedException, IOException {
+        for(int attempt = 0; ; attempt++) {
+            S3Object object = null;
+            try {
+                object = _get(offset);
+                if(offset == 0L) {
+                    size = object.getObjectMetadata().getInstanceLength();
+                    etag = object.getObjectMetadata().getETag();
+                }
+                int length = (int)Math.min(rangeSize, size - offset);
+                byte[] range = new byte[length];
+                InputStream in = object.getObjectContent();
+                int read = 0;
+                while(read < length) {
+                    int n = in.read(range, read, length - read);
+                    if(n < 0) {
+                        throw new IOException("range of " + key + " at " + offset + " ended after "
+                            + read + " of " + length + " bytes");
+                    }
+                    read += n;
+                }
+                return range;
+            } catch(AmazonClientException ex) {
+                _retryOrThrow(offset, attempt, ex);
+            } catch(IOException ex) {
+                _retryOrThrow(offset, attempt, ex);
+            } finally {
+                if(!isNull(object)) {
+                    closeQuietly(object.getObjectContent());
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetch the range starting at offset and write it to its position in a file
+     */
+    private long _write(FileChannel channel, long offset) throws InterruptedException, IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        for(int attempt = 0; ; attempt++) {
+            S3Object object = null;
+            try {
+                object = _get(offset);
+                long length = Math.min(rangeSize, size - offset);
+                // a retry writes the range again from its start
+                long position = offset;
+                InputStream in = object.getObjectContent();
+                while(position < offset + length) {
+                    int n = in.read(buffer.array(), 0,
+                        (int)Math.min(buffer.capacity(), offset + length - position));
+                    if(n < 0) {
+                        throw new IOException("range of " + key + " at " + offset + " ended after "
+                            + (position - offset) + " of " + length + " bytes");
+                    }
+                    buffer.limit(n).position(0);
+                    while(buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    buffer.clear();
+                }
+                return length;
+            } catch(AmazonClientException ex) {
+                _retryOrThrow(offset, attempt, ex);
+            } catch(IOException ex) {
+                if(!channel.isOpen()) {
+                    throw ex;
+                }
+                _retryOrThrow(offset, attempt, ex);
+            } finally {
+                if(!isNull(object)) {
+                    closeQuietly(object.getObjectContent());
+                }
+            }
+        }
+    }
+
+    /**
+     * GET the range starting at offset, of the version the first range was read from
+     */
+    private S3Object _get(long offset) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(bucket, key)
+            .withRange(offset, offset + rangeSize - 1);
+        if(!isNull(etag)) {
+            request.withMatchingETagConstraint(etag);
+        }
+        S3Object object = s3.getObject(request);
+        if(isNull(object)) {
+            // the SDK answers a failed ETag constraint with null
+            throw new ChangedException(key);
+        }
+        return object;
+    }
+
+    /**
+     * Pause before another attempt at a range or rethrow the failure if there's none left
+     */
+    private <T extends Exception> void _retryOrThrow(long offset, int attempt, T ex)
+        throws T, InterruptedException {
+        if(attempt >= retries || !_retryable(ex)) {
+            throw ex;
+        }
+        logger.warn("s3 retrying range at " + offset + " of: " + key + " " + ex.getMessage());
+        Thread.sleep(RETRY_PAUSE << attempt);
+    }
+
+    private boolean _retryable(Exception ex) {
+        if(ex instanceof ChangedException) {
+            return false;
+        }
+        if(ex instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException)ex).getStatusCode();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        // connection resets and other client side failures
+        return true;
+    }
+
+    /**
+     * Fail right away once a range of a download failed instead of fetching the rest
+     */
+    private void _checkRanges(List<Future<Long>> ranges)
+        throws ExecutionException, InterruptedException {
+        for(Future<Long> range : ranges) {
+            if(range.isDone()) {
+                range.get();
+            }
+        }
+    }
+
+    private void _cancel(List<Future<Long>> ranges) {
+        for(Future<Long> range : ranges) {
+            range.cancel(true);
+        }
+    }
+
+    /**
+     * The object was replaced since its first range was read
+     */
+    private static final class ChangedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        ChangedException(String key) {
+            super("object changed while reading: " + key);
+        }
+    }
+}
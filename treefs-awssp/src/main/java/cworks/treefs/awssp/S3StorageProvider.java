@@ -1,27 +1,39 @@
 package cworks.treefs.awssp;
 
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceClient;
 import com.amazonaws.auth.*;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
 import com.amazonaws.services.s3.iterable.S3Objects;
 import com.amazonaws.services.s3.model.*;
 import cworks.json.Json;
 import cworks.json.JsonObject;
 import cworks.treefs.common.dt.ISO8601DateParser;
 import cworks.treefs.spi.*;
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.log4j.Logger;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static cworks.treefs.common.IOUtils.closeQuietly;
 import static cworks.treefs.common.ObjectUtils.isNull;
@@ -40,7 +52,7 @@ import static cworks.treefs.common.ObjectUtils.isNullOrEmpty;
  *
  * @author comartin
  */
-public class S3StorageProvider implements StorageProvider {
+public class S3StorageProvider implements StorageProvider, Closeable {
 
     /**
      * Logger
@@ -67,6 +79,171 @@ public class S3StorageProvider implements StorageProvider {
      */
     private static final String TRASH_SUFFIX = "-trash";
 
+    /**
+     * Prefix of the keys S3FileWriter stages uploads under in the trash bucket, reserved for them
+     * so purgeTrash can tell staged uploads from trashed content
+     */
+    static final String UPLOADS_PREFIX = ".treefs-uploads/";
+
+    /**
+     * Staged uploads younger than this are left alone by purgeTrash, they may still be committed,
+     * older ones were abandoned by a writer that never committed or aborted
+     */
+    private long stagedUploadAge = Long.getLong("treefs.s3.stagedUploadAge", 24L * 60 * 60 * 1000);
+
+    /**
+     * Size of the parts content is uploaded in, files that fit in one part are a single put
+     */
+    private int partSize = Integer.getInteger("treefs.s3.partSize", 8 * 1024 * 1024);
+
+    /**
+     * Number of parts of one upload that are sent in parallel
+     */
+    private int uploadThreads = Integer.getInteger("treefs.s3.uploadThreads", 4);
+
+    /**
+     * Number of times a failed part is retried before the upload is aborted
+     */
+    private int partRetries = Integer.getInteger("treefs.s3.partRetries", 3);
+
+    /**
+     * Number of threads uploading parts across all uploads of this provider
+     */
+    private int uploadPoolSize = Integer.getInteger("treefs.s3.uploadPool", 16);
+
+    /**
+     * Pool parts are uploaded on, shared by every upload of this provider and created with the
+     * first multipart upload
+     */
+    private ExecutorService uploads = null;
+
+    /**
+     * How folder listings read the treefs-meta of their items
+     */
+    private S3Listing listing = S3Listing.of(System.getProperty("treefs.s3.listing"));
+
+    /**
+     * Number of threads reading treefs-meta for PARALLEL listings across this provider
+     */
+    private int listPoolSize = Integer.getInteger("treefs.s3.listPool", 8);
+
+    /**
+     * Pool treefs-meta of listed items is read on, created with the first PARALLEL listing
+     */
+    private ExecutorService lists = null;
+
+    /**
+     * Number of sub-folders a find lists at once across this provider
+     */
+    private int findPoolSize = Integer.getInteger("treefs.s3.findPool", 8);
+
+    /**
+     * Pool the sub-folders of a find are listed on, created with the first find
+     */
+    private ExecutorService finds = null;
+
+    /**
+     * Number of threads copying objects across all folder copies, moves and trashes of this
+     * provider
+     */
+    private int copyPoolSize = Integer.getInteger("treefs.s3.copyPool", 16);
+
+    /**
+     * Number of objects of one folder copy that are copied at once
+     */
+    private int copyInFlight = Integer.getInteger("treefs.s3.copyInFlight", 32);
+
+    /**
+     * Size of the ranges objects too large for a single CopyObject are copied in
+     */
+    private long copyPartSize = Long.getLong("treefs.s3.copyPartSize", 512L * 1024 * 1024);
+
+    /**
+     * Objects larger than this are copied in ranges instead of with one CopyObject, S3 refuses
+     * a CopyObject over 5GB so a larger value is capped at that
+     */
+    private long multipartCopySize = Long.getLong("treefs.s3.multipartCopySize",
+        S3CopyOp.MAX_COPY_SIZE);
+
+    /**
+     * Pool objects are copied on, created with the first folder copy
+     */
+    private ExecutorService copies = null;
+
+    /**
+     * Number of threads deleting batches of objects across this provider
+     */
+    private int deletePoolSize = Integer.getInteger("treefs.s3.deletePool", 8);
+
+    /**
+     * Number of batches of one delete that are deleted at once
+     */
+    private int deleteInFlight = Integer.getInteger("treefs.s3.deleteInFlight", 4);
+
+    /**
+     * Most DeleteObjects requests a second a trash purge sends
+     */
+    private double purgeRate = Double.parseDouble(System.getProperty("treefs.s3.purgeRate", "10"));
+
+    /**
+     * Pool batches of objects are deleted on, created with the first delete
+     */
+    private ExecutorService deletes = null;
+
+    /**
+     * Thread trash purges run on, created with the first purge
+     */
+    private ExecutorService purges = null;
+
+    /**
+     * Files at least this large are read as parallel ranges, 0 to always read with one GET
+     */
+    private long rangedReadSize = Long.getLong("treefs.s3.rangedReadSize", 64L * 1024 * 1024);
+
+    /**
+     * Size of the ranges large files are read in
+     */
+    private int rangeSize = Integer.getInteger("treefs.s3.rangeSize", 8 * 1024 * 1024);
+
+    /**
+     * Number of ranges of one read that are fetched at once
+     */
+    private int rangeThreads = Integer.getInteger("treefs.s3.rangeThreads", 4);
+
+    /**
+     * Number of threads fetching ranges across all reads of this provider
+     */
+    private int downloadPoolSize = Integer.getInteger("treefs.s3.downloadPool", 16);
+
+    /**
+     * Pool ranges are fetched on, created with the first ranged read
+     */
+    private ExecutorService downloads = null;
+
+    /**
+     * Number of threads running the requests of this provider's AsyncStorageProvider
+     */
+    private int requestPoolSize = Integer.getInteger("treefs.s3.requestPool", 16);
+
+    /**
+     * Non-blocking view of this provider, created with its request pool on the first call to
+     * async()
+     */
+    private S3AsyncStorageProvider async = null;
+
+    /**
+     * Folders listed this many levels deep or less are read a folder at a time with a delimiter
+     */
+    private int delimiterLevels = Integer.getInteger("treefs.s3.delimiterLevels", 2);
+
+    /**
+     * treefs-meta read with HEAD requests, shared by every request made to this provider
+     */
+    private final S3MetadataCache metadataCache = new S3MetadataCache(
+        Integer.getInteger("treefs.s3.cacheSize", 10000),
+        Long.getLong("treefs.s3.cacheTtl", 30000L),
+        Long.getLong("treefs.s3.cacheMissTtl", 5000L));
+
     /**
      * Default S3 Path Filter
      */
@@ -103,11 +280,25 @@ public class S3StorageProvider implements StorageProvider {
     }
 
     /**
-     * Use this to create instance with custom root
+     * Use this to create instance with custom root, requests go to the treefs.s3.endpoint system
+     * property when it's set and to AWS otherwise
      * @param storageRoot top-level bucket in S3 under which all content is stored
      * @return the S3 StorageProvider
      */
     public static S3StorageProvider create(String storageRoot) {
+        return create(storageRoot, System.getProperty("treefs.s3.endpoint"));
+    }
+
+    /**
+     * Use this to create instance with custom root that sends its requests to an S3 compatible
+     * service instead of AWS, i.e. a local stand-in for tests and benchmarks.  Buckets are
+     * addressed in the path (endpoint/bucket/key) since the endpoint's host name usually has no
+     * sub-domain per bucket.
+     * @param storageRoot top-level bucket in S3 under which all content is stored
+     * @param endpoint url of the service (http://localhost:9000) or null for AWS
+     * @return the S3 StorageProvider
+     */
+    public static S3StorageProvider create(String storageRoot, String endpoint) {
 
         // AWS_ACCESS_KEY, AWS_SECRET_KEY
         EnvironmentVariableCredentialsProvider envProvider
@@ -132,12 +323,49 @@ public class S3StorageProvider implements StorageProvider {
         );
 
         AmazonS3 s3 = new AmazonS3Client(chain);
+        if(!isNullOrEmpty(endpoint)) {
+            s3.setEndpoint(endpoint);
+            s3.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+            return new S3StorageProvider(s3, storageRoot);
+        }
         // TODO make region configurable
         Region usWest2 = Region.getRegion(Regions.US_WEST_2);
         s3.setRegion(usWest2);
         return new S3StorageProvider(s3, storageRoot);
     }
 
+    /**
+     * Non-blocking view of this provider.  The AWS SDK only has blocking S3 calls, so requests
+     * run on a pool of treefs.s3.requestPool threads (shut down by close()), exists and
+     * readMetadata complete right away when the metadata cache knows the answer.
+     * @return the AsyncStorageProvider for this provider
+     */
+    public synchronized AsyncStorageProvider async() {
+        if(isNull(async)) {
+            async = new S3AsyncStorageProvider(this, _newPool("treefs-s3-request-", requestPoolSize));
+        }
+        return async;
+    }
+
+    /**
+     * Hits, misses, evictions and size of the metadata cache
+     * @return stats as json
+     */
+    public JsonObject metadataCacheStats() {
+        return metadataCache.stats();
+    }
+
+    /**
+     * Set how folder listings read the treefs-meta of their items, defaults to the
+     * treefs.s3.listing system property or PARALLEL
+     * @param listing the listing mode
+     * @return this provider
+     */
+    public S3StorageProvider listing(S3Listing listing) {
+        this.listing = isNull(listing) ? S3Listing.PARALLEL : listing;
+        return this;
+    }
+
     /**
      * Creates a folder by creating all nonexistent parent folders first then creates the target
      * folder.  If parent folders already exist then no exception should be thrown and the
@@ -408,6 +636,33 @@ public class S3StorageProvider implements StorageProvider {
         return sFolder;
     }
 
+    /**
+     * Lists a page of the items directly in a folder with a '/' delimited listing that starts
+     * after the cursor's key, S3 is asked for at most 1000 keys at a time as items are iterated.
+     *
+     * @param folder A relative Path to the folder to list
+     * @param cursor the cursor of the previous page or null to start at the first item
+     * @param limit the maximum number of items in the page, 0 or less for every item
+     * @return the listing
+     * @throws StorageException
+     */
+    @Override
+    public TreeListing listFolder(Path folder, String cursor, int limit) throws StorageException {
+
+        if(!exists(folder)) {
+            throw new NoTreeFolderException(folder);
+        }
+
+        String marker;
+        try {
+            marker = S3FolderListing.decode(cursor);
+        } catch(IllegalArgumentException ex) {
+            throw new StorageException("invalid cursor: " + cursor, ex);
+        }
+
+        return new S3FolderListing(this, s3, storageRoot, _s3FolderKey(folder), marker, limit);
+    }
+
     /**
      * Moves a file or folder to the Trash.
      *
@@ -452,23 +707,29 @@ public class S3StorageProvider implements StorageProvider {
             logger.info("eating NotATreeFolderException because of why????, Don't remember why this is here.");
         }
 
+        S3CopyResult result;
         try {
             String pathKey = _s3PathKey(path);
-            for(S3ObjectSummary summary : S3Objects.withPrefix(s3, storageRoot, pathKey)) {
-                String trashPath = _s3ToTrash(summary.getKey());
-                if(isNullOrEmpty(trashPath)) {
-                    logger.warn("Move: " + summary.getBucketName() + ":" + summary.getKey()
-                        + " into Trash returned null.  Item might not of made it to trash.");
-                } else {
-                    logger.debug("Moved: " + summary.getBucketName() + ":" + summary.getKey()
-                        + " into Trash");
+            if(isNull(pathKey)) {
+                throw new NoTreePathException("path " + path + " does not exist.");
+            }
+            // objects keep their keys in the trash, each is deleted once its copy is there
+            S3CopyOp op = _s3NewCopy(storageRoot, trashRoot, true, false);
+            if(pathKey.endsWith("/")) {
+                for(S3ObjectSummary summary : S3Objects.withPrefix(s3, storageRoot, pathKey)) {
+                    op.copy(summary.getKey(), summary.getKey(), summary.getSize());
                 }
+            } else {
+                // a file key is also the prefix of any sibling whose name starts with it
+                op.copy(pathKey, pathKey, s3.getObjectMetadata(storageRoot, pathKey).getContentLength());
             }
-
-
+            result = op.await();
+        } catch(StorageException ex) {
+            throw ex;
         } catch(Exception ex) {
             throw new StorageException(ex);
         }
+        _s3CheckCopy("trash", path, result);
     }
 
     /**
@@ -509,20 +770,62 @@ public class S3StorageProvider implements StorageProvider {
             throw new NoTreePathException("path " + path.toString() + " not in trash.");
         }
 
+        S3DeleteResult result;
         try {
-            String pathKey = _s3PathKey(path);
-            for(S3ObjectSummary summary : S3Objects.withPrefix(s3, trashRoot, pathKey)) {
-                String deletedPath = _s3Delete(summary.getKey());
-                if(isNullOrEmpty(deletedPath)) {
-                    logger.warn("Delete: " + summary.getBucketName() + ":" + summary.getKey()
-                        + " might not of been deleted, null was returned from _s3Delete.");
-                } else {
-                    logger.debug("Deleted: " + summary.getBucketName() + ":" + summary.getKey());
+            // the path is only in the trash, its key is looked up there
+            String pathKey = _s3TrashKey(path);
+            S3DeleteOp op = _s3NewDelete(trashRoot, 0);
+            if(pathKey.endsWith("/")) {
+                for(S3ObjectSummary summary : S3Objects.withPrefix(s3, trashRoot, pathKey)) {
+                    op.delete(summary.getKey());
                 }
+            } else {
+                // a file key is also the prefix of any sibling whose name starts with it
+                op.delete(pathKey);
             }
+            result = op.await();
+        } catch(StorageException ex) {
+            throw ex;
         } catch(Exception ex) {
             throw new StorageException(ex);
         }
+        if(!result.succeeded()) {
+            throw new StorageException("delete of " + path + " failed for " + result.failed()
+                + " of " + (result.deleted() + result.failed()) + " objects, first: "
+                + result.failures().keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Permanently delete everything in the trash that was trashed at least olderThan
+     * milliseconds ago.  The purge runs in the background on its own thread, deleting in
+     * batches of 1000 keys at most treefs.s3.purgeRate requests a second so it doesn't compete
+     * with the requests of this provider, purges started while one is running wait for it.
+     *
+     * @param olderThan milliseconds an object has been in the trash before it's purged, 0 for
+     *     everything
+     * @return the result of the purge once it's done
+     */
+    public Future<S3DeleteResult> purgeTrash(long olderThan) {
+        // objects are copied into the trash, so their last modified time is when they were trashed
+        final Date cutoff = new Date(System.currentTimeMillis() - Math.max(olderThan, 0L));
+        final Date stagedCutoff = new Date(System.currentTimeMillis() - stagedUploadAge);
+        return _purges().submit(new Callable<S3DeleteResult>() {
+            @Override
+            public S3DeleteResult call() throws Exception {
+                S3DeleteOp op = _s3NewDelete(trashRoot, purgeRate);
+                for(S3ObjectSummary summary : S3Objects.inBucket(s3, trashRoot)) {
+                    // uploads staged in the trash aren't trash until they're abandoned
+                    Date trashed = summary.getKey().startsWith(UPLOADS_PREFIX) ? stagedCutoff : cutoff;
+                    if(!summary.getLastModified().after(trashed)) {
+                        op.delete(summary.getKey());
+                    }
+                }
+                S3DeleteResult result = op.await();
+                logger.info("s3 purged trash: " + trashRoot + " " + result);
+                return result;
+            }
+        });
     }
 
     /**
@@ -647,6 +950,38 @@ public class S3StorageProvider implements StorageProvider {
 
     }
 
+    /**
+     * Stat a path with the same (cached) HEAD requests exists makes, the folder key then the
+     * file key.  The size and lastModifiedTime of a file are those of the object.
+     *
+     * @param path A relative Path to the file or folder
+     * @return stat of path or TreeStat.NOT_FOUND
+     * @throws StorageException
+     */
+    @Override
+    public TreeStat stat(Path path) throws StorageException {
+
+        if(isNull(path)) {
+            return TreeStat.NOT_FOUND;
+        }
+
+        JsonObject object = _s3MetadataRequest(_s3FolderKey(path), true);
+        if(!isNull(object) && "folder".equalsIgnoreCase(object.getString("type"))) {
+            S3Folder folder = new S3Folder(object);
+            return TreeStat.folder(path, folder.creationTime(), folder.lastModifiedTime(),
+                folder.hasMetadata());
+        }
+
+        object = _s3MetadataRequest(_s3FileKey(path), true);
+        if(!isNull(object) && "file".equalsIgnoreCase(object.getString("type"))) {
+            S3File file = new S3File(object);
+            return TreeStat.file(path, isNull(file.size()) ? -1L : file.size(), file.creationTime(),
+                file.lastModifiedTime(), file.checksum(), file.hasMetadata());
+        }
+
+        return TreeStat.NOT_FOUND;
+    }
+
     /**
      * Copy a file or folder from source to a target.
      *
@@ -680,61 +1015,54 @@ public class S3StorageProvider implements StorageProvider {
      * @throws StorageException
      */
     public void copy(Path source, Path target, CopyOption... options) throws StorageException {
-        // 1) dir  to dir    cp -R source target,                     target/source
-        // 2) dir  to file   error
-        // 3) file to dir    cp someFile.txt target,                  target/someFile.txt
-        // 4) file to file   cp someFile.txt target/copySomeFile.txt, target/copySomeFile.txt
-
-        if(!exists(source)) {
-            throw new NoTreePathException("source " + source + " does not exist");
-        }
-
-        try {
-            String sourcePathKey = _s3PathKey(source);
-            String targetPathKey = _s3PathKey(target);
-            boolean recursive = _hasCopyRecursive(options);
-            boolean into      = _hasCopyIntoOption(options);
+        _s3CheckCopy("copy", source, copyTree(source, target, options));
+    }
 
-            if(isFolder(source)) {
-                if(isNull(targetPathKey)) {
-                    //throw new NoTreePathException("target " + target + " does not exist");
-                    createFolder(target);
-                    targetPathKey = _s3FolderKey(target);
-                }
-                if(recursive) {
-                    if(into) {
-                        // recursive-into
-                        // cp source target/source, copy source folder into target folder
-                        _s3CopyFolderToFolder(sourcePathKey, targetPathKey);
-                    } else {
-                        // recursive
-                        // cp source/* target, copies the content of source/* folder
-                        // within the target folder
-                        _s3CopyFolderContentToFolder(sourcePathKey, targetPathKey);
-                    }
-                }
-            } else if(isFile(source)) {
-                if(isNull(targetPathKey)) {
-                    createFolder(target.getParent());
-                    targetPathKey = _s3FolderKey(target.getParent());
-                }
-                if(target.getNameCount() == targetPathKey.split("/").length) {
-                    // copy File into Folder
-                    _s3CopyToFolder(sourcePathKey, targetPathKey);
-                } else if(target.getNameCount() == (targetPathKey.split("/").length + 1)){
-                    // copy File to File
-                    _s3CopyFileToFile(sourcePathKey, targetPathKey + target.getFileName());
-                }
-            }
-        } catch(Exception ex) {
-            throw new StorageException(ex);
-        }
+    /**
+     * Copy like {@link #copy(Path, Path, CopyOption...)} but return the result instead of
+     * failing when some of the objects of a folder could not be copied, the objects are copied
+     * server-side on the treefs.s3.copyPool pool, treefs.s3.copyInFlight at a time
+     *
+     * @param source the source file or folder to copy from
+     * @param target the target file or folder to copy to
+     * @param options options that affect the copy
+     * @return what was copied and what failed
+     * @throws StorageException if source doesn't exist or the copy could not be started
+     */
+    public S3CopyResult copyTree(Path source, Path target, CopyOption... options)
+        throws StorageException {
+        return _s3CopyTree(source, target, false, options);
     }
 
+    /**
+     * Move a file or folder by copying it server-side and deleting each source object once its
+     * copy is in place.  Folders are always moved with their content, TreeCopyOption.INTO moves
+     * the folder itself into target instead of its content.
+     *
+     * @param source the source file or folder to move
+     * @param target the target file or folder to move to
+     * @param options options that affect the move
+     * @throws StorageException if source doesn't exist or any object could not be moved, objects
+     *     that could not be moved are left at source
+     */
     @Override
     public void move(Path source, Path target, CopyOption... options) throws StorageException {
-        copy(source, target, options);
-        trash(source, true);
+        _s3CheckCopy("move", source, moveTree(source, target, options));
+    }
+
+    /**
+     * Move like {@link #move(Path, Path, CopyOption...)} but return the result instead of
+     * failing when some of the objects of a folder could not be moved
+     *
+     * @param source the source file or folder to move
+     * @param target the target file or folder to move to
+     * @param options options that affect the move
+     * @return what was moved and what failed
+     * @throws StorageException if source doesn't exist or the move could not be started
+     */
+    public S3CopyResult moveTree(Path source, Path target, CopyOption... options)
+        throws StorageException {
+        return _s3CopyTree(source, target, true, options);
     }
 
     @Override
@@ -824,7 +1152,7 @@ public class S3StorageProvider implements StorageProvider {
             // get fileKey used to identify this file in s3
             String fileKey = _s3FileKey(path);
             // create file in S3
-            _s3CreateFile(fileKey, stream, metadata);
+            _s3CreateFile(fileKey, stream, -1, metadata);
             // get an TreeFile instance to return
             file = _s3ReadFile(fileKey);
         } catch(AmazonServiceException ex) {
@@ -836,6 +1164,22 @@ public class S3StorageProvider implements StorageProvider {
         return file;
     }
 
+    /**
+     * Opens a writer that buffers content one part at a time, content larger than a part goes
+     * to S3 as a multipart upload while it is being written
+     *
+     * @param path the path and filename the file is expected to be committed to
+     * @return a writer that must be committed or aborted
+     * @throws StorageException
+     */
+    @Override
+    public TreeFileWriter openFileWriter(Path path) throws StorageException {
+        if(isNull(path)) {
+            throw new IllegalArgumentException("path is a required argument and cannot be null.");
+        }
+        return new S3FileWriter(this, s3, trashRoot);
+    }
+
     /**
      * Opens an existing file for reading and returns an InputStream to read the file content from
      *
@@ -853,6 +1197,10 @@ public class S3StorageProvider implements StorageProvider {
         InputStream in = null;
         try {
             String fileKey = _s3FileKey(path);
+            if(_s3Ranged(fileKey)) {
+                // large objects are read as ranges over several connections
+                return _s3NewRead(fileKey).open();
+            }
             S3Object fileObject = s3.getObject(new GetObjectRequest(storageRoot, fileKey));
             if(isNull(fileObject)) {
                 throw new StorageException("Unabled to get file: " + path);
@@ -872,18 +1220,93 @@ public class S3StorageProvider implements StorageProvider {
         return in;
     }
 
+    /**
+     * Opens an existing file for reading length bytes starting at offset using a ranged GET, so
+     * only the requested bytes are transferred from S3
+     *
+     * @param path the path to the file to read
+     * @param offset zero based position of the first byte to read
+     * @param length number of bytes to read
+     * @return a valid InputStream to read the range from
+     * @throws StorageException
+     */
     @Override
-    public Map<String, Object> readMetadata(Path path) throws StorageException {
+    public InputStream read(Path path, long offset, long length) throws StorageException {
 
-        JsonObject metadata = null;
-        if(isFolder(path)) {
-            metadata = _s3MetadataRequest(_s3FolderKey(path));
-        } else if(isFile(path)) {
-            metadata = _s3MetadataRequest(_s3FileKey(path));
-        }
+        InputStream in = null;
+        try {
+            String fileKey = _s3FileKey(path);
+            GetObjectRequest request = new GetObjectRequest(storageRoot, fileKey)
+                .withRange(offset, offset + length - 1);
+            S3Object fileObject = s3.getObject(request);
+            if(isNull(fileObject)) {
+                throw new StorageException("Unabled to get file: " + path);
+            }
 
-        if(isNull(metadata) || isNull(metadata.getObject("metadata"))) {
-            return null;
+            in = fileObject.getObjectContent();
+            if(isNull(in)) {
+                throw new StorageException("Unable to open file: " + path + " for reading.");
+            }
+        } catch(AmazonServiceException ex) {
+            if(ex.getStatusCode() == 404) {
+                throw new NoTreePathException("file path: " + path + " does not exist.");
+            }
+            _s3LogError(ex);
+            throw new StorageException(ex);
+        } catch(StorageException ex) {
+            throw ex;
+        } catch(Exception ex) {
+            throw new StorageException(ex);
+        }
+
+        return in;
+    }
+
+    /**
+     * Download a file into a local file, writing ranges of treefs.s3.rangeSize bytes to their
+     * position in the file as they arrive over treefs.s3.rangeThreads connections.  Use it
+     * instead of copying read(Path) into a file for large files.
+     *
+     * @param path the path to the file to download
+     * @param file the local file to write, replaced if it exists
+     * @return number of bytes written
+     * @throws StorageException if the file could not be downloaded, file is left partly written
+     */
+    public long download(Path path, Path file) throws StorageException {
+        try {
+            return _s3NewRead(_s3FileKey(path)).download(file);
+        } catch(AmazonServiceException ex) {
+            if(ex.getStatusCode() == 404) {
+                throw new NoTreePathException("file path: " + path + " does not exist.");
+            }
+            _s3LogError(ex);
+            throw new StorageException(ex);
+        }
+    }
+
+    /**
+     * Content lives in S3 and is never on the local file-system, callers stream it via read(Path)
+     * @param path the path to the file
+     * @return null
+     * @throws StorageException
+     */
+    @Override
+    public File localFile(Path path) throws StorageException {
+        return null;
+    }
+
+    @Override
+    public Map<String, Object> readMetadata(Path path) throws StorageException {
+
+        JsonObject metadata = null;
+        if(isFolder(path)) {
+            metadata = _s3MetadataRequest(_s3FolderKey(path));
+        } else if(isFile(path)) {
+            metadata = _s3MetadataRequest(_s3FileKey(path));
+        }
+
+        if(isNull(metadata) || isNull(metadata.getObject("metadata"))) {
+            return null;
         }
 
         // just return user's metadata
@@ -892,22 +1315,113 @@ public class S3StorageProvider implements StorageProvider {
 
     @Override
     public TreePath findFirst(Path path, String glob) throws StorageException {
-        return null;
+        return findFirst(path, glob, -1);
     }
 
     @Override
     public TreePath findFirst(Path path, String glob, int maxLevels) throws StorageException {
-        return null;
+        final TreePath[] first = new TreePath[1];
+        find(path, TreeQuery.newQuery().withGlob(glob).withMaxLevels(maxLevels).withLimit(1),
+            new TreeMatchHandler() {
+                @Override
+                public boolean handle(TreePath match) {
+                    first[0] = match;
+                    return false;
+                }
+            });
+        return first[0];
     }
 
     @Override
     public List<TreePath> find(Path path, String glob) throws StorageException {
-        return null;
+        return find(path, glob, -1);
     }
 
     @Override
     public List<TreePath> find(Path path, String glob, int maxLevels) throws StorageException {
-        return null;
+        final List<TreePath> matches = new ArrayList<TreePath>();
+        find(path, TreeQuery.newQuery().withGlob(glob).withMaxLevels(maxLevels),
+            new TreeMatchHandler() {
+                @Override
+                public boolean handle(TreePath match) {
+                    matches.add(match);
+                    return true;
+                }
+            });
+        return matches.isEmpty() ? null : matches;
+    }
+
+    /**
+     * Searches below path by listing each of its sub-folders' prefixes in parallel on the find
+     * pool, see {@link S3FindOp}
+     *
+     * @param path the folder to start searching from
+     * @param query what to search for
+     * @param handler receives each match
+     * @throws StorageException
+     */
+    @Override
+    public void find(Path path, TreeQuery query, TreeMatchHandler handler) throws StorageException {
+        TreeStat stat = stat(path);
+        if(!stat.exists()) {
+            throw new NoTreePathException(path);
+        }
+        if(!stat.isFolder()) {
+            throw new NotATreeFolderException("path " + path.toString() + " is not a folder");
+        }
+
+        TreeSearch search = new TreeSearch(query, handler);
+        try {
+            new S3FindOp(this, s3, storageRoot, _s3FolderKey(path), search).run(_finds());
+        } catch(AmazonServiceException ex) {
+            _s3LogError(ex);
+            throw new StorageException(ex);
+        }
+    }
+
+    /**
+     * Shutdown the AmazonS3 client, releasing its connection pool and idle connection reaper
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            if(!isNull(uploads)) {
+                uploads.shutdownNow();
+                uploads = null;
+            }
+            if(!isNull(lists)) {
+                lists.shutdownNow();
+                lists = null;
+            }
+            if(!isNull(finds)) {
+                finds.shutdownNow();
+                finds = null;
+            }
+            if(!isNull(copies)) {
+                copies.shutdownNow();
+                copies = null;
+            }
+            if(!isNull(deletes)) {
+                deletes.shutdownNow();
+                deletes = null;
+            }
+            if(!isNull(purges)) {
+                purges.shutdownNow();
+                purges = null;
+            }
+            if(!isNull(downloads)) {
+                downloads.shutdownNow();
+                downloads = null;
+            }
+            if(!isNull(async)) {
+                ((ExecutorService)async.executor()).shutdownNow();
+                async = null;
+            }
+        }
+        if(s3 instanceof AmazonWebServiceClient) {
+            ((AmazonWebServiceClient)s3).shutdown();
+        }
     }
 
     /**
@@ -1007,12 +1521,257 @@ public class S3StorageProvider implements StorageProvider {
     /**
      * Create a TreeFs file in S3.  This includes creating the Bucket and metadata file
      * @param fileKey file object to create
+     * @param length content length or -1 if unknown, an unknown length is buffered by the sdk
      * @param metadata apply to the file object
      * @throws IOException
      */
-    private void _s3CreateFile(String fileKey, InputStream stream, Map metadata) throws IOException {
+    void _s3CreateFile(String fileKey, InputStream stream, long length, Map<String, Object> metadata)
+        throws IOException {
         logger.info("s3 creating file: " + fileKey);
 
+        ObjectMetadata s3Metadata = _s3FileMetadata(fileKey, metadata);
+        if(length < 0 || length > partSize) {
+            // stream it up in parts, unless it turns out to fit in one
+            S3MultipartUpload upload = _s3NewUpload(storageRoot, fileKey, s3Metadata);
+            byte[] buffered;
+            try {
+                upload.write(stream);
+                if(upload.multipart()) {
+                    try {
+                        upload.complete();
+                    } finally {
+                        // exists() cached that there was no object before the upload
+                        metadataCache.invalidate(storageRoot, fileKey);
+                    }
+                    return;
+                }
+                // taken before abort, which drops the buffered part
+                buffered = upload.buffered();
+            } catch(StorageException ex) {
+                throw new IOException(ex.getMessage(), ex.getCause());
+            } finally {
+                upload.abort();
+            }
+            length = upload.size();
+            stream = new ByteArrayInputStream(buffered, 0, (int)length);
+        }
+        s3Metadata.setContentLength(length);
+
+        PutObjectResult result;
+        try {
+            result = s3.putObject(
+                new PutObjectRequest(
+                    storageRoot,
+                    fileKey,
+                    stream, s3Metadata));
+        } finally {
+            metadataCache.invalidate(storageRoot, fileKey);
+        }
+
+        _s3LogResult(result);
+    }
+
+    /**
+     * Start a multipart upload of an object, sent with this provider's part size, parallelism
+     * and retries
+     * @param bucket bucket of the object
+     * @param key key of the object
+     * @param s3Metadata metadata of the object, may be null
+     * @return the upload
+     */
+    S3MultipartUpload _s3NewUpload(String bucket, String key, ObjectMetadata s3Metadata) {
+        return new S3MultipartUpload(s3, bucket, key, s3Metadata,
+            partSize, uploadThreads, partRetries, _uploads());
+    }
+
+    /**
+     * Folders listed this many levels deep or less are read a folder at a time with a delimiter
+     */
+    int _delimiterLevels() {
+        return delimiterLevels;
+    }
+
+    private synchronized ExecutorService _uploads() {
+        if(isNull(uploads)) {
+            // the queue only holds parts that already passed their upload's in-flight limit
+            uploads = _newPool("treefs-s3-upload-", uploadPoolSize);
+        }
+        return uploads;
+    }
+
+    private synchronized ExecutorService _lists() {
+        if(isNull(lists)) {
+            lists = _newPool("treefs-s3-list-", listPoolSize);
+        }
+        return lists;
+    }
+
+    private synchronized ExecutorService _finds() {
+        if(isNull(finds)) {
+            finds = _newPool("treefs-s3-find-", findPoolSize);
+        }
+        return finds;
+    }
+
+    private synchronized ExecutorService _copies() {
+        if(isNull(copies)) {
+            // the queue only holds objects that already passed their copy's in-flight limit
+            copies = _newPool("treefs-s3-copy-", copyPoolSize);
+        }
+        return copies;
+    }
+
+    /**
+     * Start a server-side copy of many objects, run with this provider's copy pool, in-flight
+     * limit and retries
+     * @param sourceBucket bucket objects are copied from
+     * @param targetBucket bucket objects are copied to
+     * @param move true to delete each source object once it's copied
+     * @param retarget true to rewrite the treefs-meta of copies for their new keys
+     * @return the copy
+     */
+    S3CopyOp _s3NewCopy(String sourceBucket, String targetBucket, boolean move, boolean retarget) {
+        S3DeleteOp sources = move ? _s3NewDelete(sourceBucket, 0) : null;
+        return new S3CopyOp(s3, metadataCache, sourceBucket, targetBucket, sources, retarget,
+            copyPartSize, multipartCopySize, copyInFlight, partRetries, _copies());
+    }
+
+    private synchronized ExecutorService _downloads() {
+        if(isNull(downloads)) {
+            downloads = _newPool("treefs-s3-download-", downloadPoolSize);
+        }
+        return downloads;
+    }
+
+    /**
+     * Start a ranged read of a file, run with this provider's range size, parallelism and
+     * retries
+     * @param fileKey key of the file
+     * @return the read
+     */
+    S3RangedRead _s3NewRead(String fileKey) {
+        return new S3RangedRead(s3, storageRoot, fileKey, rangeSize, rangeThreads, partRetries,
+            _downloads());
+    }
+
+    /**
+     * True if a file is large enough to be read as ranges, the size comes from the metadata
+     * cache when it's there so a stat before the read saves the HEAD
+     * @param fileKey key of the file
+     * @return
+     */
+    private boolean _s3Ranged(String fileKey) {
+        if(rangedReadSize <= 0) {
+            return false;
+        }
+        JsonObject treefsMetadata = _s3MetadataRequest(fileKey, true);
+        return !isNull(treefsMetadata) && treefsMetadata.getLong("size", 0L) >= rangedReadSize;
+    }
+
+    private synchronized ExecutorService _deletes() {
+        if(isNull(deletes)) {
+            deletes = _newPool("treefs-s3-delete-", deletePoolSize);
+        }
+        return deletes;
+    }
+
+    private synchronized ExecutorService _purges() {
+        if(isNull(purges)) {
+            purges = _newPool("treefs-s3-purge-", 1);
+        }
+        return purges;
+    }
+
+    /**
+     * Start a delete of many objects in batches, run with this provider's delete pool,
+     * in-flight limit and retries
+     * @param bucket bucket objects are deleted from
+     * @param requestsPerSecond most requests a second, 0 for no limit
+     * @return the delete
+     */
+    S3DeleteOp _s3NewDelete(String bucket, double requestsPerSecond) {
+        return new S3DeleteOp(s3, metadataCache, bucket, deleteInFlight, requestsPerSecond,
+            partRetries, _deletes());
+    }
+
+    /**
+     * Fixed size pool of daemon threads that go away when idle
+     */
+    private ExecutorService _newPool(final String name, int size) {
+        final AtomicInteger threads = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Check that path can be created as a new file and create its parent folders
+     * @param path path of the new file
+     * @param metadata metadata applied to the parent folder, like createFile does
+     * @return fileKey of the new file
+     * @throws StorageException
+     */
+    String _s3PrepareFile(Path path, Map<String, Object> metadata) throws StorageException {
+        if(exists(path)) {
+            throw new TreeFileExistsException("file: " + path.toString() + " exists", path);
+        }
+        try {
+            _s3CreateFolders(_s3FolderKeyFromFile(path), metadata);
+        } catch(AmazonServiceException ex) {
+            _s3LogError(ex);
+            throw new StorageException(ex);
+        }
+        return _s3FileKey(path);
+    }
+
+    /**
+     * Move an object uploaded by an S3FileWriter into place with a server-side copy, in ranges
+     * when it's too large for a single CopyObject
+     * @param bucket bucket the upload was staged in
+     * @param stagedKey key the upload was staged under
+     * @param size size of the staged object
+     * @param fileKey key of the new file
+     * @param metadata apply to the file object
+     * @return the new file
+     * @throws StorageException
+     */
+    TreeFile _s3CommitUpload(String bucket, String stagedKey, long size, String fileKey,
+        Map<String, Object> metadata) throws StorageException {
+        logger.info("s3 creating file: " + fileKey + " from upload: " + stagedKey);
+        try {
+            S3CopyOp op = _s3NewCopy(bucket, storageRoot, false, false);
+            op.copy(stagedKey, fileKey, size, _s3FileMetadata(fileKey, metadata));
+            S3CopyResult result = op.await();
+            if(!result.succeeded()) {
+                throw new StorageException("failed creating file: " + fileKey + " from upload: "
+                    + stagedKey + " " + result.failures().get(stagedKey));
+            }
+            s3.deleteObject(bucket, stagedKey);
+        } catch(AmazonServiceException ex) {
+            _s3LogError(ex);
+            throw new StorageException(ex);
+        } finally {
+            metadataCache.invalidate(storageRoot, fileKey);
+        }
+        return _s3ReadFile(fileKey);
+    }
+
+    /**
+     * S3 metadata, with the treefs-meta tag, for a new file
+     * @param fileKey
+     * @param metadata
+     * @return
+     */
+    private ObjectMetadata _s3FileMetadata(String fileKey, Map<String, Object> metadata) {
         JsonObject treefsMetadata = _treefsNewMetadata(metadata);
 
         String[] parts = fileKey.split("/");
@@ -1024,14 +1783,7 @@ public class S3StorageProvider implements StorageProvider {
 
         ObjectMetadata s3Metadata = new ObjectMetadata();
         _treefsAddMetadata(treefsMetadata, s3Metadata);
-
-        PutObjectResult result = s3.putObject(
-            new PutObjectRequest(
-                storageRoot,
-                fileKey,
-                stream, s3Metadata));
-
-        _s3LogResult(result);
+        return s3Metadata;
     }
 
     /**
@@ -1061,7 +1813,12 @@ public class S3StorageProvider implements StorageProvider {
         s3Metadata.addUserMetadata("treefs-meta", treefsMetadata.asString());
         folderRequest.withMetadata(s3Metadata);
 
-        PutObjectResult result = s3.putObject(folderRequest);
+        PutObjectResult result;
+        try {
+            result = s3.putObject(folderRequest);
+        } finally {
+            metadataCache.invalidate(storageRoot, pathKey);
+        }
         _s3LogResult(result);
     }
 
@@ -1144,88 +1901,208 @@ public class S3StorageProvider implements StorageProvider {
      * (TreeFolder or TreeFile) in the target TreeFolder.  When maxLevels is > 0 the tree of TreeFolder(s) and TreeFile(s)
      * are hydrated and linked with the target TreeFolder items() list.
      *
+     * The tree is built from the ListObjects summaries alone, folders leading up to a key that
+     * have no object of their own are made up from the key.  The treefs-meta of the items is then
+     * read as the provider's {@link S3Listing} mode says, never more than once per object.
+     *
+     * Up to treefs.s3.delimiterLevels deep each folder is listed with a '/' delimiter so S3
+     * returns only the folder's own files and sub-folders, deeper trees are read with one listing
+     * of every key under folderKey.
+     *
      * @param folderKey
      * @param maxLevels
      * @return
      */
     TreeFolder _s3ReadFolder(String folderKey, int maxLevels) {
 
-        // Create local cache for this method
-        Map<String, JsonObject> cache = _newLruCache(100);
-
-        JsonObject folderMeta = _s3ObjectRequest(folderKey);
+        JsonObject folderMeta = _s3MetadataRequest(folderKey, true);
+        if(isNull(folderMeta)) {
+            folderMeta = _s3FolderSummary(folderKey, _pathName(folderKey));
+        }
         S3Folder topFolder = new S3Folder(folderMeta);
+        if(maxLevels <= 0) {
+            return topFolder;
+        }
 
-        if(maxLevels > 0) {
-            String[] targetPath = folderKey.split("/");
-            S3Folder currentPath = topFolder;
-            // folderKey is name of folder in S3 and we filter all s3 objects that don't start with it
-            for (S3ObjectSummary summary : S3Objects.withPrefix(s3, storageRoot, folderKey)) {
-                // don't include folder represented by folderKey
-                // in list of items this folder contains
-                if (folderKey.equals(summary.getKey())) {
-                    continue;
-                }
+        // items that may be an object in S3, only these have treefs-meta to read
+        Map<String, S3Path> objects = new LinkedHashMap<String, S3Path>();
+        if(maxLevels <= delimiterLevels) {
+            _s3ReadLevels(topFolder, folderKey, maxLevels, objects);
+        } else {
+            _s3ReadTree(topFolder, folderKey, maxLevels, objects);
+        }
+
+        _s3ResolveMetadata(objects);
+
+        return topFolder;
+    }
 
-                String[] path = summary.getKey().split("/");
-                // don't include sub-paths deeper than this path (targetPath) + maxLevels
-                if (path.length > (targetPath.length + maxLevels)) {
+    /**
+     * Read the items of a folder levels deep with a delimited listing per folder, so only keys
+     * that end up in the tree are listed
+     * @param folder folder the items are added to
+     * @param folderKey key of folder
+     * @param levels number of levels to read
+     * @param objects collects the items that may have treefs-meta
+     */
+    private void _s3ReadLevels(S3Folder folder, String folderKey, int levels,
+        Map<String, S3Path> objects) {
+
+        ListObjectsRequest request = new ListObjectsRequest()
+            .withBucketName(storageRoot)
+            .withPrefix(folderKey)
+            .withDelimiter("/");
+        ObjectListing listing = s3.listObjects(request);
+        while(true) {
+            for(S3ObjectSummary summary : listing.getObjectSummaries()) {
+                // the folder's own object
+                if(folderKey.equals(summary.getKey())) {
                     continue;
                 }
+                String name = summary.getKey().substring(folderKey.length());
+                S3File file = new S3File(_s3FileSummary(summary, name));
+                folder.child(file);
+                objects.put(summary.getKey(), file);
+            }
+            // every key with a '/' after folderKey is rolled up into its sub-folder's prefix
+            for(String prefix : listing.getCommonPrefixes()) {
+                String name = prefix.substring(folderKey.length(), prefix.length() - 1);
+                S3Folder child = new S3Folder(_s3FolderSummary(prefix, name));
+                folder.child(child);
+                objects.put(prefix, child);
+                if(levels > 1) {
+                    _s3ReadLevels(child, prefix, levels - 1, objects);
+                }
+            }
+            if(!listing.isTruncated()) {
+                return;
+            }
+            listing = s3.listNextBatchOfObjects(listing);
+        }
+    }
 
-                boolean isFolder = _s3IsFolder(summary);
-                // remove targetPath from beginning of path so that we get relative subpath
-                String[] subpath = (String[])ArrayUtils.subarray(
-                    path, // subarray
-                    targetPath.length, // array
-                    path.length);
-
-                S3Folder tempRoot  = currentPath;
-                // reset working pathKey to top folderKey
-                String pathKey = folderKey;
-                for(int i = 0; i < subpath.length; i++) {
-                    pathKey += subpath[i];
-                    if(isFolder) {
-                        pathKey += "/";
-                    } else {
-                        // is file
-                        if(i < subpath.length-1) {
-                            pathKey += "/";
-                        }
-                    }
+    /**
+     * Read the items of a folder maxLevels deep from one listing of every key under it, each
+     * page is added to the tree as it arrives
+     * @param topFolder folder the items are added to
+     * @param folderKey key of topFolder
+     * @param maxLevels number of levels to read
+     * @param objects collects the items that are an object in S3
+     */
+    private void _s3ReadTree(S3Folder topFolder, String folderKey, int maxLevels,
+        Map<String, S3Path> objects) {
+
+        S3TreeBuilder builder = new S3TreeBuilder(topFolder, folderKey, maxLevels, objects);
+        // folderKey is name of folder in S3 and we filter all s3 objects that don't start with it
+        ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+            .withBucketName(storageRoot)
+            .withPrefix(folderKey));
+        while(true) {
+            builder.addAll(listing.getObjectSummaries());
+            if(!listing.isTruncated()) {
+                break;
+            }
+            listing = s3.listNextBatchOfObjects(listing);
+        }
+        logger.debug("_s3ReadTree: " + folderKey + " keys=" + builder.keys() + " objects=" + objects.size());
+    }
 
-                    JsonObject treefsMetadata = null;
-                    if(cache.containsKey(pathKey)) {
-                        logger.debug("GETTING " + pathKey + " from cache.");
-                        // already made a request to AWS in this method call so reuse data
-                        // and forego making a request to AWS
-                        treefsMetadata = cache.get(pathKey);
-                    } else {
-                        logger.debug("MAKING AWS CALL FOR " + pathKey);
-                        // actually make the request to AWS and put into cache
-                        treefsMetadata = _s3MetadataRequest(pathKey);
-                        cache.put(pathKey, treefsMetadata);
-                    }
-                    // set the child item on the current folder
-                    if(isFolder) {
-                        currentPath = (S3Folder)currentPath.addItem(new S3Folder(treefsMetadata));
-                    } else {
-                        // is file
-                        if(i < subpath.length-1) {
-                            // this is a folder leading up to file at end of path
-                            currentPath = (S3Folder)currentPath.addItem(new S3Folder(treefsMetadata));
-                        } else {
-                            // this is file at end of path
-                            currentPath.addItem(new S3File(treefsMetadata));
-                        }
-                    }
+    /**
+     * Read the treefs-meta of listed objects as the listing mode says
+     * @param objects listed items by their key
+     */
+    void _s3ResolveMetadata(Map<String, S3Path> objects) {
+        if(objects.isEmpty() || listing == S3Listing.SUMMARY) {
+            return;
+        }
+
+        if(listing == S3Listing.LAZY) {
+            for(Map.Entry<String, S3Path> object : objects.entrySet()) {
+                _s3ResolveLazily(object.getKey(), object.getValue());
+            }
+            return;
+        }
+
+        // PARALLEL, the pool size bounds the number of requests in flight
+        ExecutorService pool = _lists();
+        Map<S3Path, Future<JsonObject>> requests = new LinkedHashMap<S3Path, Future<JsonObject>>();
+        for(final Map.Entry<String, S3Path> object : objects.entrySet()) {
+            requests.put(object.getValue(), pool.submit(new Callable<JsonObject>() {
+                @Override
+                public JsonObject call() {
+                    return _s3MetadataRequest(object.getKey(), true);
                 }
+            }));
+        }
+        try {
+            for(Map.Entry<S3Path, Future<JsonObject>> request : requests.entrySet()) {
+                request.getKey().resolved(request.getValue().get());
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            _cancel(requests.values());
+        } catch(ExecutionException ex) {
+            // items keep what the listing had, better than failing the whole folder
+            logger.error("s3 failed reading metadata of folder items", ex.getCause());
+            _cancel(requests.values());
+        }
+    }
 
-                currentPath = tempRoot;
+    /**
+     * Read the treefs-meta of an item the first time it's needed, unless listing is SUMMARY
+     */
+    void _s3ResolveLazily(final String key, S3Path object) {
+        if(listing == S3Listing.SUMMARY) {
+            return;
+        }
+        object.resolveWith(new Supplier<JsonObject>() {
+            @Override
+            public JsonObject get() {
+                return _s3MetadataRequest(key, true);
             }
+        });
+    }
+
+    private void _cancel(Collection<Future<JsonObject>> requests) {
+        for(Future<JsonObject> request : requests) {
+            request.cancel(true);
         }
+    }
 
-        return topFolder;
+    /**
+     * What a file listing says about a file
+     */
+    static JsonObject _s3FileSummary(S3ObjectSummary summary, String name) {
+        return _s3FileSummary(summary, name, _s3Time(summary.getLastModified()));
+    }
+
+    /**
+     * What a file listing says about a file, with its last modified time already formatted
+     */
+    static JsonObject _s3FileSummary(S3ObjectSummary summary, String name, String lastModifiedTime) {
+        JsonObject data = new JsonObject();
+        data.setString("path", summary.getKey());
+        data.setString("type", "file");
+        data.setString("name", name);
+        data.setNumber("size", summary.getSize());
+        data.setString("checksum", summary.getETag());
+        data.setString("lastModifiedTime", lastModifiedTime);
+        return data;
+    }
+
+    /**
+     * What a folder key says about a folder
+     */
+    static JsonObject _s3FolderSummary(String folderKey, String name) {
+        JsonObject data = new JsonObject();
+        data.setString("path", folderKey);
+        data.setString("type", "folder");
+        data.setString("name", name);
+        return data;
+    }
+
+    static String _s3Time(Date date) {
+        return isNull(date) ? null : ISO8601DateParser.toString(date);
     }
 
     /**
@@ -1244,7 +2121,7 @@ public class S3StorageProvider implements StorageProvider {
      * @param quiet don't log AWS errors if true
      * @return JsonObject containing metadata for pathKey
      */
-    private JsonObject _s3MetadataRequest(String pathKey, boolean quiet) {
+    JsonObject _s3MetadataRequest(String pathKey, boolean quiet) {
 
         JsonObject data = _s3MetadataRequest(storageRoot, pathKey, quiet);
         return data;
@@ -1259,6 +2136,11 @@ public class S3StorageProvider implements StorageProvider {
      */
     private JsonObject _s3MetadataRequest(String bucketName, String pathKey, boolean quiet) {
 
+        S3MetadataCache.Lookup cached = metadataCache.get(bucketName, pathKey);
+        if(cached.found) {
+            return cached.treefsMeta;
+        }
+
         JsonObject data = null;
         try {
             // actually make the request to AWS
@@ -1267,8 +2149,15 @@ public class S3StorageProvider implements StorageProvider {
                 pathKey);
 
             ObjectMetadata om = s3.getObjectMetadata(metadataRequest);
-            data = _toTreeFsMetadata(om);
+            String treefsMeta = _s3CachedMeta(pathKey, om);
+            metadataCache.put(bucketName, pathKey, cached, treefsMeta);
+            if(!isNull(treefsMeta)) {
+                data = Json.asObject(treefsMeta);
+            }
         } catch(AmazonServiceException ex) {
+            if(ex.getStatusCode() == 404) {
+                metadataCache.put(bucketName, pathKey, cached, null);
+            }
             if(!quiet) {
                 _s3LogError(ex);
             }
@@ -1277,96 +2166,158 @@ public class S3StorageProvider implements StorageProvider {
         return data;
     }
 
-    private JsonObject _s3ObjectRequest(String folderKey) {
-        S3Object s3o = null;
-        JsonObject data = null;
+    /**
+     * Copy or move a file or folder with one S3CopyOp, the objects of a folder are handed to the
+     * copy as the listing returns them
+     * @param source
+     * @param target
+     * @param move true to delete each source object once it's copied
+     * @param options
+     * @return what was copied and what failed
+     * @throws StorageException
+     */
+    private S3CopyResult _s3CopyTree(Path source, Path target, boolean move, CopyOption... options)
+        throws StorageException {
+        // 1) dir  to dir    cp -R source target,                     target/source
+        // 2) dir  to file   error
+        // 3) file to dir    cp someFile.txt target,                  target/someFile.txt
+        // 4) file to file   cp someFile.txt target/copySomeFile.txt, target/copySomeFile.txt
+
+        if(!exists(source)) {
+            throw new NoTreePathException("source " + source + " does not exist");
+        }
+
         try {
-            GetObjectRequest getRequest = new GetObjectRequest(
-                storageRoot,
-                folderKey);
+            String sourcePathKey = _s3PathKey(source);
+            String targetPathKey = _s3PathKey(target);
+            // a folder that's moved goes with its content
+            boolean recursive = move || _hasCopyRecursive(options);
+            boolean into      = _hasCopyIntoOption(options);
+            S3CopyOp op = _s3NewCopy(storageRoot, storageRoot, move, true);
 
-            s3o = s3.getObject(getRequest);
-            data = _toTreeFsMetadata(s3o.getObjectMetadata());
+            if(isFolder(source)) {
+                if(isNull(targetPathKey)) {
+                    //throw new NoTreePathException("target " + target + " does not exist");
+                    createFolder(target);
+                    targetPathKey = _s3FolderKey(target);
+                }
+                if(recursive) {
+                    if(into) {
+                        // recursive-into
+                        // cp source target/source, copy source folder into target folder
+                        _s3CopyFolderToFolder(op, sourcePathKey, targetPathKey);
+                    } else {
+                        // recursive
+                        // cp source/* target, copies the content of source/* folder
+                        // within the target folder
+                        _s3CopyFolderContentToFolder(op, sourcePathKey, targetPathKey);
+                    }
+                }
+                S3CopyResult result = op.await();
+                if(move && !into && result.succeeded()) {
+                    // the content was moved out from under the source folder, now remove it
+                    s3.deleteObject(storageRoot, sourcePathKey);
+                    metadataCache.invalidate(storageRoot, sourcePathKey);
+                }
+                return result;
+            } else if(isFile(source)) {
+                if(isNull(targetPathKey)) {
+                    createFolder(target.getParent());
+                    targetPathKey = _s3FolderKey(target.getParent());
+                }
+                String copyToKey = null;
+                if(target.getNameCount() == targetPathKey.split("/").length) {
+                    // copy File into Folder
+                    copyToKey = (targetPathKey.endsWith("/") ? targetPathKey : targetPathKey + "/")
+                        + _pathName(sourcePathKey);
+                } else if(target.getNameCount() == (targetPathKey.split("/").length + 1)){
+                    // copy File to File
+                    copyToKey = targetPathKey + target.getFileName();
+                }
+                if(!isNull(copyToKey)) {
+                    // exists() just read the treefs-meta, so the size comes from the cache
+                    JsonObject treefsMetadata = _s3MetadataRequest(sourcePathKey, true);
+                    long size = isNull(treefsMetadata) ? 0L : treefsMetadata.getLong("size", 0L);
+                    op.copy(sourcePathKey, copyToKey, size);
+                    logger.debug("_s3CopyTree: " + sourcePathKey + " " + copyToKey);
+                }
+            }
+            return op.await();
         } catch(AmazonServiceException ex) {
             _s3LogError(ex);
-        } finally {
-            closeQuietly(s3o);
+            throw new StorageException(ex);
+        } catch(StorageException ex) {
+            throw ex;
+        } catch(Exception ex) {
+            throw new StorageException(ex);
         }
+    }
 
-        return data;
+    /**
+     * Fail an operation that didn't copy every object it was meant to
+     * @param operation name of the operation for the message
+     * @param source the path that was copied
+     * @param result result of the copy
+     * @throws StorageException if any object failed, naming the first few
+     */
+    private void _s3CheckCopy(String operation, Path source, S3CopyResult result)
+        throws StorageException {
+        if(result.succeeded()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder(operation).append(" of ").append(source)
+            .append(" failed for ").append(result.failed()).append(" of ")
+            .append(result.copied() + result.failed()).append(" objects:");
+        int listed = 0;
+        for(Map.Entry<String, String> failure : result.failures().entrySet()) {
+            if(listed++ == 10) {
+                message.append(" ...");
+                break;
+            }
+            message.append(" ").append(failure.getKey()).append(" (").append(failure.getValue()).append(")");
+        }
+        throw new StorageException(message.toString());
     }
 
     /**
-     * Move the source into the target, such that mv source target ends up looking like
+     * Copy the source into the target, such that cp -R source target ends up looking like
      * target/source
      *
+     * @param op the copy the objects are handed to
      * @param sourceKey the sourceKey to copy
      * @param targetKey the targetKey to copy into
-     * @return
      */
-    private void _s3CopyFolderToFolder(String sourceKey, String targetKey)
+    private void _s3CopyFolderToFolder(S3CopyOp op, String sourceKey, String targetKey)
         throws StorageException {
         String folder = _pathName(sourceKey);
-        try {
-            for(S3ObjectSummary summary : S3Objects.withPrefix(s3, storageRoot, sourceKey)) {
-                String[] parts = summary.getKey().split(folder, 2);
-                String copyToKey;
-                if(parts.length == 1 || (parts.length == 2 && "/".equals(parts[1]))) {
-                    copyToKey = targetKey + folder + "/";
-                } else {
-                    copyToKey = targetKey + folder + parts[1];
-                }
-
-                JsonObject treefsMetadata = _s3MetadataRequest(summary.getKey(), true);
-                CopyObjectResult result = _s3Copy(sourceKey, copyToKey, treefsMetadata);
-
-                if(!isNull(result)) {
-                    logger.debug("copyFolder: " + summary.getKey() + " " + copyToKey);
-                    _s3LogResult(result);
-                }
-            }
-
-        } catch(AmazonServiceException ex) {
-            _s3LogError(ex);
-            throw new StorageException(ex);
+        if(!targetKey.endsWith("/")) {
+            targetKey = targetKey + "/";
+        }
+        for(S3ObjectSummary summary : S3Objects.withPrefix(s3, storageRoot, sourceKey)) {
+            // the source folder itself is the empty remainder and becomes targetKey/folder/
+            String copyToKey = targetKey + folder + "/" + summary.getKey().substring(sourceKey.length());
+            op.copy(summary.getKey(), copyToKey, summary.getSize());
         }
-
     }
 
     /**
      * Copy folder content to another folder
+     * @param op the copy the objects are handed to
      * @param sourceKey
      * @param targetKey
-     * @return
      * @throws StorageException
      */
-    private void _s3CopyFolderContentToFolder(String sourceKey, String targetKey)
+    private void _s3CopyFolderContentToFolder(S3CopyOp op, String sourceKey, String targetKey)
         throws StorageException {
-
-        try {
-            for(S3ObjectSummary summary : S3Objects.withPrefix(s3, storageRoot, sourceKey)) {
-
-                String source = summary.getKey().replace(sourceKey, "");
-                if(isNullOrEmpty(source)) {
-                    continue;
-                }
-
-                if(!targetKey.endsWith("/")) {
-                    targetKey = targetKey + "/";
-                }
-                String copyToKey = targetKey + source;
-                JsonObject treefsMetadata = _s3MetadataRequest(summary.getKey(), true);
-                CopyObjectResult result = _s3Copy(sourceKey, copyToKey, treefsMetadata);
-
-                if(!isNull(result)) {
-                    System.out.println("_s3CopyFolderContentToFolder: " + source + " " + copyToKey);
-                    logger.debug("_s3CopyFolderContentToFolder: " + source + " " + copyToKey);
-                    _s3LogResult(result);
-                }
+        if(!targetKey.endsWith("/")) {
+            targetKey = targetKey + "/";
+        }
+        for(S3ObjectSummary summary : S3Objects.withPrefix(s3, storageRoot, sourceKey)) {
+            String source = summary.getKey().substring(sourceKey.length());
+            if(isNullOrEmpty(source)) {
+                continue;
             }
-        } catch(AmazonServiceException ex) {
-            _s3LogError(ex);
-            throw new StorageException(ex);
+            op.copy(summary.getKey(), targetKey + source, summary.getSize());
         }
     }
 
@@ -1383,27 +2334,6 @@ public class S3StorageProvider implements StorageProvider {
         return pathKey.split("/")[pathKey.split("/").length-1];
     }
 
-    /**
-     * Move the path given into the Trash
-     * @param pathKey the pathKey to move into the Trash
-     * @return
-     */
-    private String _s3ToTrash(String pathKey) throws StorageException {
-
-        try {
-            CopyObjectResult result = s3.copyObject(storageRoot, pathKey, trashRoot, pathKey);
-            if(!isNull(result)) {
-                s3.deleteObject(storageRoot, pathKey);
-                return pathKey;
-            }
-        } catch(AmazonServiceException ex) {
-            _s3LogError(ex);
-            throw new StorageException(ex);
-        }
-
-        return null;
-    }
-
     /**
      * Returns true if path exists in trash bucket otherwise false
      * @param path path to see if its in the trash
@@ -1430,64 +2360,79 @@ public class S3StorageProvider implements StorageProvider {
     }
 
     /**
-     * Actually perform the delete operation in S3
-     * @param pathKey
-     * @return
+     * Key of a path in the trash bucket, its folder key if it was trashed as a folder
+     * @param path path in the trash
+     * @return the key or null if path is not in the trash
      */
-    String _s3Delete(String pathKey) {
-
-        try {
-            DeleteObjectRequest deleteRequest = new DeleteObjectRequest(trashRoot, pathKey);
-            s3.deleteObject(deleteRequest);
-            logger.debug("Permanently deleted: " + pathKey + " from trash.");
-        } catch(AmazonServiceException ex) {
-            _s3LogError(ex);
+    private String _s3TrashKey(Path path) {
+        String pathKey = _s3FolderKey(path);
+        if(!isNull(_s3MetadataRequest(trashRoot, pathKey, true))) {
+            return pathKey;
         }
-
-        return pathKey;
+        pathKey = _s3FileKey(path);
+        if(!isNull(_s3MetadataRequest(trashRoot, pathKey, true))) {
+            return pathKey;
+        }
+        return null;
     }
 
     /**
-     * Copy sourceKey to copyToKey and update with treefsMetadata
-     * @param sourceKey
-     * @param copyToKey
-     * @param treefsMetadata
+     * Get a TreeFs JsonObject which contains Metadata important to TreeFs from an S3 ObjectMetadata
+     * instance.
+     *
+     * @param s3Metadata
      * @return
      */
-    private CopyObjectResult _s3Copy(String sourceKey, String copyToKey, JsonObject treefsMetadata) {
-
-        Date now = new Date();
-        // update creationTime, lastAccessedTime and path
-        treefsMetadata.setString("creationTime", ISO8601DateParser.toString(now))
-            .setString("lastAccessedTime", ISO8601DateParser.toString(now))
-            .setString("path", copyToKey)
-            .setString("name", _pathName(copyToKey));
-        ObjectMetadata s3Metadata = new ObjectMetadata();
-        // brands the metadata in s3 as being from us
-        _treefsAddMetadata(treefsMetadata, s3Metadata);
-        CopyObjectRequest request = new CopyObjectRequest(storageRoot, sourceKey, storageRoot, copyToKey)
-            .withNewObjectMetadata(s3Metadata);
-        CopyObjectResult result = s3.copyObject(request);
+    private JsonObject _toTreeFsMetadata(ObjectMetadata s3Metadata) {
 
-        return result;
+        String treefsMeta = _treefsMeta(s3Metadata);
+        if(isNull(treefsMeta)) {
+            return null;
+        }
+        JsonObject jo = Json.asObject(treefsMeta);
+        return jo;
     }
 
     /**
-     * Get a TreeFs JsonObject which contains Metadata important to TreeFs from an S3 ObjectMetadata
-     * instance.
-     *
+     * The treefs-meta tag of an S3 ObjectMetadata as it is stored
      * @param s3Metadata
-     * @return
+     * @return treefs-meta or null if the object has none
      */
-    private JsonObject _toTreeFsMetadata(ObjectMetadata s3Metadata) {
+    private String _treefsMeta(ObjectMetadata s3Metadata) {
 
         Map map = s3Metadata.getUserMetadata();
         String treefsMeta = (String)map.get("treefs-meta");
         if(isNullOrEmpty(treefsMeta)) {
             return null;
         }
-        JsonObject jo = Json.asObject(treefsMeta);
-        return jo;
+        return treefsMeta;
+    }
+
+    /**
+     * What the metadata cache holds for a key, the treefs-meta of files gets the size and
+     * lastModifiedTime of the object like openFile so stat can be answered from the cache.  Path
+     * and name always come from the key, objects copied by S3CopyOp keep their source's.
+     * @param pathKey
+     * @param s3Metadata
+     * @return treefs-meta or null if the object has none
+     */
+    private String _s3CachedMeta(String pathKey, ObjectMetadata s3Metadata) {
+
+        String treefsMeta = _treefsMeta(s3Metadata);
+        if(isNull(treefsMeta)) {
+            return treefsMeta;
+        }
+        JsonObject data = Json.asObject(treefsMeta);
+        data.setString("path", pathKey);
+        data.setString("name", _pathName(pathKey));
+        if(pathKey.endsWith("/")) {
+            return data.asString();
+        }
+        data.setNumber("size", s3Metadata.getContentLength());
+        if(!isNull(s3Metadata.getLastModified())) {
+            data.setString("lastModifiedTime", ISO8601DateParser.toString(s3Metadata.getLastModified()));
+        }
+        return data.asString();
     }
 
     /**
@@ -1516,6 +2461,20 @@ public class S3StorageProvider implements StorageProvider {
         return exists;
     }
 
+    /**
+     * The treefs-meta of path if the metadata cache can tell without asking S3, looked up like
+     * exists does, the folder first and then the file
+     * @param path
+     * @return lookup that was found or not
+     */
+    S3MetadataCache.Lookup _s3CachedPath(Path path) {
+        S3MetadataCache.Lookup folder = metadataCache.peek(storageRoot, _s3FolderKey(path));
+        if(!folder.found || !isNull(folder.treefsMeta)) {
+            return folder;
+        }
+        return metadataCache.peek(storageRoot, _s3FileKey(path));
+    }
+
     /**
      * Does this summary item represent a folder?
      * @param summary
@@ -1551,23 +2510,6 @@ public class S3StorageProvider implements StorageProvider {
         return null;
     }
 
-    /**
-     * Utility for creating a LRU cache, used to cut down some on the number of
-     * AWS calls we make
-     * @param capacity
-     * @return
-     */
-    Map<String, JsonObject> _newLruCache(final int capacity) {
-        Map<String, JsonObject> s3Cache =
-            new LinkedHashMap<String, JsonObject>(capacity + 1, .75F, true) {
-                // This method is called just after a new entry has been added
-                public boolean removeEldestEntry(Map.Entry eldest) {
-                    return size() > capacity;
-                }
-            };
-        return s3Cache;
-    }
-
     /**
      * Returns true if one of the options is TreeCopyOption.RECURSIVE
      * @param options
@@ -1596,65 +2538,4 @@ public class S3StorageProvider implements StorageProvider {
         return false;
     }
 
-    /**
-     * Attempt to copy a file (sourcePath) into a directory (targetPath) and return true if
-     * operation is successful otherwise return false.
-     *
-     * Assumptions: sourcePath is a confirmed managed file
-     *
-     * @param sourceKey
-     * @param folderKey
-     * @return
-     */
-    private void _s3CopyToFolder(String sourceKey, String folderKey)
-        throws StorageException {
-
-        String filename = _pathName(sourceKey);
-        try {
-
-            if(!folderKey.endsWith("/")) {
-                folderKey = folderKey + "/";
-            }
-            String copyToKey = folderKey + filename;
-            JsonObject treefsMetadata = _s3MetadataRequest(sourceKey, true);
-            CopyObjectResult result = _s3Copy(sourceKey, copyToKey, treefsMetadata);
-
-            if(!isNull(result)) {
-                logger.debug("_s3CopyToFolder: " + sourceKey + " " + copyToKey);
-                _s3LogResult(result);
-            }
-
-        } catch(AmazonServiceException ex) {
-            _s3LogError(ex);
-            throw new StorageException(ex);
-        }
-    }
-
-    /**
-     * Attempt to copy a file (sourcePath) to a file with the same name but different path
-     * (targetPath)
-     *
-     * Assumptions: sourcePath is a confirmed managed file
-     *
-     * @param sourceFileKey
-     * @param targetFileKey
-     */
-    private void _s3CopyFileToFile(String sourceFileKey, String targetFileKey)
-        throws StorageException {
-
-        try {
-            JsonObject treefsMetadata = _s3MetadataRequest(sourceFileKey, true);
-            CopyObjectResult result = _s3Copy(sourceFileKey, targetFileKey, treefsMetadata);
-
-            if(!isNull(result)) {
-                logger.debug("_s3CopyFileToFile: " + sourceFileKey + " " + targetFileKey);
-                _s3LogResult(result);
-            }
-
-        } catch(AmazonServiceException ex) {
-            _s3LogError(ex);
-            throw new StorageException(ex);
-        }
-    }
-
 }
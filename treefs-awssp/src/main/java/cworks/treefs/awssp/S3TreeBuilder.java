@@ -0,0 +1,164 @@
+package cworks.treefs.awssp;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Builds the tree of a folder from a flat listing of every key under it, one summary at a time
+ * as the listing pages arrive.  Folders are indexed by key, so a key is attached by looking up
+ * its parent's key instead of walking down from the top folder one name at a time, and a
+ * listing of n keys is built in O(n) whatever the fan-out or depth of the folders.
+ *
+ * Folders leading up to a key that have no object of their own are made up from the key.  S3
+ * lists keys in order so a folder's own object always comes before the keys inside of it, a
+ * folder object is only ever new or already made up by an earlier object.
+ *
+ * Not thread-safe, a single caller feeds the listing.
+ *
+ * @author comartin
+ */
+final class S3TreeBuilder {
+
+    private final String folderKey;
+
+    private final int maxLevels;
+
+    /**
+     * every folder in the tree by its key, topFolder included
+     */
+    private final Map<String, S3Folder> folders = new HashMap<String, S3Folder>();
+
+    /**
+     * items that are an object in S3 by their key, only these have treefs-meta to read
+     */
+    private final Map<String, S3Path> objects;
+
+    private int keys = 0;
+
+    /**
+     * last time formatted and the second it was in, keys of a listing are mostly written in
+     * bursts and formatting a date costs more than the rest of adding a key
+     */
+    private long lastSecond = Long.MIN_VALUE;
+
+    private String lastTime = null;
+
+    /**
+     * @param topFolder folder the items are added to
+     * @param folderKey key of topFolder, ends with '/'
+     * @param maxLevels number of levels below topFolder to build, deeper keys are skipped
+     * @param objects collects the items that are an object in S3
+     */
+    S3TreeBuilder(S3Folder topFolder, String folderKey, int maxLevels, Map<String, S3Path> objects) {
+        this.folderKey = folderKey;
+        this.maxLevels = maxLevels;
+        this.objects = objects;
+        this.folders.put(folderKey, topFolder);
+    }
+
+    /**
+     * Add the keys of one listing page
+     * @param page summaries of the page
+     * @return this builder
+     */
+    S3TreeBuilder addAll(List<S3ObjectSummary> page) {
+        for(S3ObjectSummary summary : page) {
+            add(summary);
+        }
+        return this;
+    }
+
+    /**
+     * Add one listed key and the folders leading up to it
+     * @param summary summary of a key under folderKey
+     * @return this builder
+     */
+    S3TreeBuilder add(S3ObjectSummary summary) {
+        String key = summary.getKey();
+        // the folder represented by folderKey isn't one of its own items
+        if(key.length() <= folderKey.length()) {
+            return this;
+        }
+        keys++;
+
+        boolean isFolder = key.endsWith("/");
+        // end of the item's name, before the '/' of a folder key
+        int end = isFolder ? key.length() - 1 : key.length();
+        int levels = isFolder ? 0 : 1;
+        for(int i = folderKey.length(); i < key.length(); i++) {
+            if(key.charAt(i) == '/') {
+                levels++;
+            }
+        }
+        // don't include sub-paths deeper than folderKey + maxLevels
+        if(levels > maxLevels) {
+            return this;
+        }
+
+        int slash = key.lastIndexOf('/', end - 1);
+        S3Folder parent = _folder(key.substring(0, slash + 1));
+        String name = key.substring(slash + 1, end);
+        if(!isFolder) {
+            S3File file = new S3File(S3StorageProvider._s3FileSummary(summary, name,
+                _time(summary.getLastModified())));
+            parent.child(file);
+            objects.put(key, file);
+        } else if(!folders.containsKey(key)) {
+            S3Folder folder = new S3Folder(S3StorageProvider._s3FolderSummary(key, name)
+                .setString("lastModifiedTime", _time(summary.getLastModified())));
+            parent.child(folder);
+            folders.put(key, folder);
+            objects.put(key, folder);
+        }
+        return this;
+    }
+
+    /**
+     * Number of keys added so far, skipped ones included
+     */
+    int keys() {
+        return keys;
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * A listed time formatted like the provider does, times are stored to the second
+     */
+    private String _time(Date date) {
+        if(isNull(date)) {
+            return null;
+        }
+        long second = Math.floorDiv(date.getTime(), 1000L);
+        if(second != lastSecond) {
+            lastTime = S3StorageProvider._s3Time(date);
+            lastSecond = second;
+        }
+        return lastTime;
+    }
+
+    /**
+     * The folder with a key, made up along with any missing folders above it
+     */
+    private S3Folder _folder(String key) {
+        S3Folder folder = folders.get(key);
+        if(!isNull(folder)) {
+            return folder;
+        }
+        int slash = key.lastIndexOf('/', key.length() - 2);
+        S3Folder parent = _folder(key.substring(0, slash + 1));
+        folder = new S3Folder(S3StorageProvider._s3FolderSummary(key,
+            key.substring(slash + 1, key.length() - 1)));
+        parent.child(folder);
+        folders.put(key, folder);
+        return folder;
+    }
+}
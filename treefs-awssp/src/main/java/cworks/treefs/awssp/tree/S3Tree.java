@@ -1,12 +1,12 @@
 package cworks.treefs.awssp.tree;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class S3Tree<T> implements S3Visitable<T> {
 
-    // NB: LinkedHashSet preserves insertion order
-    private final Set<S3Tree> children = new LinkedHashSet<S3Tree>();
+    // NB: LinkedHashMap preserves insertion order, keyed by data so child(T) is a lookup
+    private final Map<T, S3Tree<T>> children = new LinkedHashMap<T, S3Tree<T>>();
     private final T data;
 
     public S3Tree(T data) {
@@ -15,27 +15,34 @@ public class S3Tree<T> implements S3Visitable<T> {
 
     public void accept(S3Visitor<T> visitor) {
         visitor.visitData(this, data);
-        for (S3Tree child : children) {
+        for (S3Tree<T> child : children.values()) {
             S3Visitor<T> childVisitor = visitor.visitTree(child);
             child.accept(childVisitor);
         }
     }
 
-    public S3Tree child(T data) {
-        for (S3Tree child: children ) {
-            if (child.data.equals(data)) {
-                return child;
-            }
+    public S3Tree<T> child(T data) {
+        S3Tree<T> child = children.get(data);
+        if (child != null) {
+            return child;
         }
 
-        return child(new S3Tree(data));
+        return child(new S3Tree<T>(data));
     }
 
-    S3Tree child(S3Tree<T> child) {
-        children.add(child);
+    S3Tree<T> child(S3Tree<T> child) {
+        S3Tree<T> existing = children.get(child.data);
+        if (existing != null) {
+            return existing;
+        }
+        children.put(child.data, child);
         return child;
     }
 
+    public int size() {
+        return children.size();
+    }
+
     public String toString() {
         return this.data.toString();
     }
@@ -1,10 +1,20 @@
 package cworks.treefs.awssp;
 
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import cworks.json.JsonObject;
 import cworks.treefs.awssp.tree.S3PrintVisitor;
 import cworks.treefs.awssp.tree.S3Tree;
+import cworks.treefs.spi.TreeFolder;
+import cworks.treefs.spi.TreePath;
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class S3FlatToTreeTest {
 
@@ -84,7 +94,61 @@ public class S3FlatToTreeTest {
         tree.accept(new S3PrintVisitor(2));
     }
 
-}
+    /**
+     * S3TreeBuilder builds the same tree from the flat listing whether or not folders have an
+     * object of their own
+     */
+    @Test
+    public void buildTree() {
+
+        Map<String, S3Path> objects = new LinkedHashMap<String, S3Path>();
+        S3Folder top = _build(Arrays.asList(S3StorageProviderTest.demoPaths), objects);
+        // every key but unittest/ itself is an object in the tree
+        Assert.assertEquals(S3StorageProviderTest.demoPaths.length - 1, objects.size());
+        _assertTree(top);
+
+        // the same listing without folder objects, folders are made up from the keys
+        List<String> files = new ArrayList<String>();
+        for(String key : S3StorageProviderTest.demoPaths) {
+            if(!key.endsWith("/")) {
+                files.add(key);
+            }
+        }
+        objects.clear();
+        top = _build(files, objects);
+        Assert.assertEquals(files.size(), objects.size());
+        Assert.assertFalse(objects.containsKey("unittest/n1_1/"));
+        _assertTree(top);
+    }
 
+    private static S3Folder _build(List<String> keys, Map<String, S3Path> objects) {
+        S3Folder top = new S3Folder(new JsonObject().setString("path", "unittest/").setString("name", "unittest"));
+        S3TreeBuilder builder = new S3TreeBuilder(top, "unittest/", 10, objects);
+        for(String key : keys) {
+            builder.add(_summary(key));
+        }
+        return top;
+    }
 
+    private static void _assertTree(S3Folder top) {
+        Assert.assertEquals("n1_1", top.items().get(0).name());
+        TreeFolder n11 = (TreeFolder)top.items().get(0);
+        TreeFolder n21 = (TreeFolder)n11.items().get(0);
+        Assert.assertEquals("n2_1", n21.name());
+        Assert.assertEquals("unittest/n1_1/n2_1/", n21.path().toString() + "/");
+        boolean corn = false;
+        for(TreePath item : n21.items()) {
+            corn |= "corn.txt".equals(item.name());
+        }
+        Assert.assertTrue(corn);
+    }
 
+    private static S3ObjectSummary _summary(String key) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName("unittest");
+        summary.setKey(key);
+        summary.setSize(key.endsWith("/") ? 0L : key.length());
+        summary.setLastModified(new Date());
+        return summary;
+    }
+}
@@ -0,0 +1,66 @@
+package cworks.treefs.awssp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class S3MetadataCacheTest {
+
+    private final S3MetadataCache cache = new S3MetadataCache(10, 60000L, 60000L);
+
+    @Test
+    public void missIsCachedAndHit() {
+        S3MetadataCache.Lookup miss = cache.get("bucket", "file.txt");
+        Assert.assertFalse(miss.found);
+        cache.put("bucket", "file.txt", miss, "{\"size\":1}");
+
+        S3MetadataCache.Lookup hit = cache.get("bucket", "file.txt");
+        Assert.assertTrue(hit.found);
+        Assert.assertEquals(1, hit.treefsMeta.getInteger("size", 0).intValue());
+
+        cache.put("bucket", "gone.txt", cache.get("bucket", "gone.txt"), null);
+        hit = cache.get("bucket", "gone.txt");
+        Assert.assertTrue(hit.found);
+        Assert.assertNull(hit.treefsMeta);
+    }
+
+    @Test
+    public void writeDuringReadIsNotCached() {
+        S3MetadataCache.Lookup miss = cache.get("bucket", "file.txt");
+        // the key was written while its HEAD was in flight
+        cache.invalidate("bucket", "file.txt");
+        cache.put("bucket", "file.txt", miss, "{\"size\":1}");
+        Assert.assertFalse(cache.get("bucket", "file.txt").found);
+    }
+
+    @Test
+    public void writesToOtherKeysDontStopCaching() {
+        S3MetadataCache.Lookup miss = cache.get("bucket", "a");
+        cache.invalidate("bucket", "b");
+        cache.invalidate("other", "a");
+        cache.put("bucket", "a", miss, "{\"size\":1}");
+        Assert.assertTrue(cache.get("bucket", "a").found);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() throws Exception {
+        for(int i = 0; i < 10; i++) {
+            _put("key" + i);
+            Thread.sleep(2);
+        }
+        // key0 is the oldest put but the most recently used
+        Assert.assertTrue(cache.get("bucket", "key0").found);
+        Thread.sleep(2);
+        _put("key10");
+
+        Assert.assertEquals(9, cache.stats().getInteger("size", 0).intValue());
+        Assert.assertTrue(cache.peek("bucket", "key0").found);
+        Assert.assertFalse(cache.peek("bucket", "key1").found);
+        Assert.assertFalse(cache.peek("bucket", "key2").found);
+        Assert.assertTrue(cache.peek("bucket", "key3").found);
+        Assert.assertTrue(cache.peek("bucket", "key10").found);
+    }
+
+    private void _put(String key) {
+        cache.put("bucket", key, cache.get("bucket", key), "{}");
+    }
+}
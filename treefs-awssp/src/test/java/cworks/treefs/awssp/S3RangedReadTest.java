@@ -0,0 +1,189 @@
+package cworks.treefs.awssp;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs S3RangedRead against an AmazonS3 that answers ranged GETs from memory and can cut a
+ * response off partway through its content, the way a reset connection looks to the reader.
+ */
+public class S3RangedReadTest {
+
+    private static final int RANGE_SIZE = 64 * 1024;
+
+    private final AtomicInteger gets = new AtomicInteger();
+
+    /**
+     * GETs, counted from 1, whose content is cut off halfway
+     */
+    private final Set<Integer> cutOff = new HashSet<>();
+
+    private ExecutorService executor;
+
+    private byte[] content;
+
+    private volatile String etag = "first";
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        content = new byte[RANGE_SIZE * 10 + 1234];
+        new Random(7L).nextBytes(content);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void rangesAreReadInOrder() throws Exception {
+        Assert.assertArrayEquals(content, _read(_rangedRead().open()));
+        Assert.assertEquals(11, gets.get());
+    }
+
+    @Test
+    public void cutOffRangesAreRetried() throws Exception {
+        cutOff.addAll(Arrays.asList(1, 4, 9));
+        Assert.assertArrayEquals(content, _read(_rangedRead().open()));
+        Assert.assertEquals(14, gets.get());
+    }
+
+    @Test
+    public void downloadRetriesCutOffRanges() throws Exception {
+        cutOff.addAll(Arrays.asList(2, 6));
+        Path file = Files.createTempFile("treefs-ranged", ".bin");
+        try {
+            Assert.assertEquals(content.length, _rangedRead().download(file));
+            Assert.assertArrayEquals(content, Files.readAllBytes(file));
+            Assert.assertEquals(13, gets.get());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void replacedObjectFailsTheRead() throws Exception {
+        InputStream input = _rangedRead().open();
+        // the ranges after the first must come from the same version
+        etag = "second";
+        try {
+            _read(input);
+            Assert.fail("a read can't mix versions of an object");
+        } catch(IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void emptyObjectReadsNothing() throws Exception {
+        content = new byte[0];
+        Assert.assertEquals(0, _read(_rangedRead().open()).length);
+    }
+
+    private S3RangedRead _rangedRead() {
+        return new S3RangedRead(_s3(), "bucket", "key", RANGE_SIZE, 3, 3, executor);
+    }
+
+    private AmazonS3 _s3() {
+        return (AmazonS3)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { AmazonS3.class }, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "getObject":
+                        return _get((GetObjectRequest)args[0]);
+                    case "getObjectMetadata":
+                        ObjectMetadata metadata = new ObjectMetadata();
+                        metadata.setContentLength(content.length);
+                        metadata.setHeader("ETag", etag);
+                        return metadata;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    private S3Object _get(GetObjectRequest request) {
+        int get = gets.incrementAndGet();
+        List<String> matching = request.getMatchingETagConstraints();
+        if(!matching.isEmpty() && !matching.contains(etag)) {
+            // what the SDK answers when an ETag constraint fails
+            return null;
+        }
+        long[] range = request.getRange();
+        if(range[0] >= content.length) {
+            AmazonServiceException ex = new AmazonServiceException("The requested range is not satisfiable");
+            ex.setStatusCode(416);
+            throw ex;
+        }
+        int first = (int)range[0];
+        int last = (int)Math.min(range[1], content.length - 1);
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+        metadata.setHeader("ETag", etag);
+        S3Object object = new S3Object();
+        object.setObjectMetadata(metadata);
+        byte[] data = Arrays.copyOfRange(content, first, last + 1);
+        object.setObjectContent(cutOff.contains(get) ? _cutOff(data) : new ByteArrayInputStream(data));
+        return object;
+    }
+
+    /**
+     * Half of data, then the connection goes away
+     */
+    private InputStream _cutOff(byte[] data) {
+        final InputStream half = new ByteArrayInputStream(data, 0, data.length / 2);
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = half.read(b, off, len);
+                if(n < 0) {
+                    throw new IOException("Connection reset");
+                }
+                return n;
+            }
+        };
+    }
+
+    private byte[] _read(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for(int n = input.read(buffer); n >= 0; n = input.read(buffer)) {
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
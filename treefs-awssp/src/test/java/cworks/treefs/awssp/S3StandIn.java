@@ -0,0 +1,1054 @@
+package cworks.treefs.awssp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for S3 so S3StorageProvider can be tested and benchmarked without AWS
+ * credentials or a network.  It speaks enough of the S3 REST api over http for everything the
+ * provider does: ListObjects, Get/Put/Head/Copy/Delete object, DeleteObjects and multipart
+ * uploads (UploadPart and UploadPartCopy).  Buckets are addressed in the path and made on first
+ * use, objects are kept in memory, requests are not authenticated.
+ *
+ * S3StandIn s3 = S3StandIn.start();
+ * S3StorageProvider provider = S3StorageProvider.create("bucket", s3.endpoint());
+ * ...
+ * Assert.assertEquals(1, s3.count(S3StandIn.LIST_OBJECTS));
+ *
+ * Every request is counted by api so a test can assert how many calls an operation makes, and a
+ * latency can be added to every request or to the requests of one api to see how an operation
+ * behaves when S3 is as far away as it really is.  GetObject responses can also be cut off
+ * partway through their content to see how a read recovers from a reset connection.
+ *
+ * The http is served straight off a socket, the JDK's HttpServer changes the case of response
+ * header names (ETag to Etag) and the AWS SDK matches ETag and x-amz-meta- with their case.
+ *
+ * @author comartin
+ */
+public final class S3StandIn implements Closeable {
+
+    public static final String LIST_OBJECTS = "ListObjects";
+    public static final String GET_OBJECT = "GetObject";
+    public static final String HEAD_OBJECT = "HeadObject";
+    public static final String PUT_OBJECT = "PutObject";
+    public static final String COPY_OBJECT = "CopyObject";
+    public static final String DELETE_OBJECT = "DeleteObject";
+    public static final String DELETE_OBJECTS = "DeleteObjects";
+    public static final String CREATE_MULTIPART_UPLOAD = "CreateMultipartUpload";
+    public static final String UPLOAD_PART = "UploadPart";
+    public static final String UPLOAD_PART_COPY = "UploadPartCopy";
+    public static final String COMPLETE_MULTIPART_UPLOAD = "CompleteMultipartUpload";
+    public static final String ABORT_MULTIPART_UPLOAD = "AbortMultipartUpload";
+    public static final String HEAD_BUCKET = "HeadBucket";
+    public static final String CREATE_BUCKET = "CreateBucket";
+
+    private static final List<String> APIS = Arrays.asList(LIST_OBJECTS, GET_OBJECT, HEAD_OBJECT,
+        PUT_OBJECT, COPY_OBJECT, DELETE_OBJECT, DELETE_OBJECTS, CREATE_MULTIPART_UPLOAD, UPLOAD_PART,
+        UPLOAD_PART_COPY, COMPLETE_MULTIPART_UPLOAD, ABORT_MULTIPART_UPLOAD, HEAD_BUCKET,
+        CREATE_BUCKET);
+
+    private static final String META_PREFIX = "x-amz-meta-";
+
+    /**
+     * Headers are bytes, kept as they are by reading and writing them as latin-1
+     */
+    private static final String HEADER_CHARSET = "ISO-8859-1";
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private static final Pattern PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+    private static final Pattern KEY = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService executor;
+
+    private final Set<Socket> connections
+        = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, StoredObject>> buckets
+        = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, StoredObject>>();
+
+    private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+
+    private final Map<String, AtomicInteger> counts = new LinkedHashMap<String, AtomicInteger>();
+
+    private final ConcurrentMap<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+
+    private volatile long latency = 0L;
+
+    private final AtomicInteger truncations = new AtomicInteger();
+
+    private volatile boolean closed = false;
+
+    private S3StandIn(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+        for(String api : APIS) {
+            counts.put(api, new AtomicInteger());
+        }
+        // a thread per connection, the provider copies and deletes over many connections at once
+        this.executor = Executors.newCachedThreadPool();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                _accept();
+            }
+        });
+    }
+
+    /**
+     * Start a stand-in on a free port of the loopback interface
+     * @return the running stand-in
+     * @throws IOException if no port could be bound
+     */
+    public static S3StandIn start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * Start a stand-in on a port of the loopback interface
+     * @param port port to listen on, 0 for any free port
+     * @return the running stand-in
+     * @throws IOException if the port could not be bound
+     */
+    public static S3StandIn start(int port) throws IOException {
+        return new S3StandIn(new ServerSocket(port, 128, InetAddress.getLoopbackAddress()));
+    }
+
+    /**
+     * Url to give S3StorageProvider.create or the treefs.s3.endpoint system property
+     */
+    public String endpoint() {
+        return "http://" + serverSocket.getInetAddress().getHostAddress() + ":"
+            + serverSocket.getLocalPort();
+    }
+
+    /**
+     * Add a latency to every request
+     * @param millis milliseconds to wait before answering a request, 0 for none
+     * @return this stand-in
+     */
+    public S3StandIn latency(long millis) {
+        this.latency = Math.max(millis, 0L);
+        return this;
+    }
+
+    /**
+     * Add a latency to the requests of one api, used instead of the latency of every request
+     * @param api one of the api names, i.e. LIST_OBJECTS
+     * @param millis milliseconds to wait before answering a request of the api
+     * @return this stand-in
+     */
+    public S3StandIn latency(String api, long millis) {
+        latencies.put(api, Math.max(millis, 0L));
+        return this;
+    }
+
+    /**
+     * Cut off the content of the next GetObject responses halfway and close their connections,
+     * the way a connection reset partway through a download looks to the client
+     * @param times number of responses to cut off
+     * @return this stand-in
+     */
+    public S3StandIn truncate(int times) {
+        truncations.set(Math.max(times, 0));
+        return this;
+    }
+
+    /**
+     * Number of requests made to an api since starting or the last reset
+     * @param api one of the api names, i.e. GET_OBJECT
+     */
+    public int count(String api) {
+        AtomicInteger count = counts.get(api);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Number of requests made to all apis since starting or the last reset
+     */
+    public int count() {
+        int total = 0;
+        for(AtomicInteger count : counts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * Requests made by api since starting or the last reset, apis without requests are left out
+     */
+    public Map<String, Integer> counts() {
+        Map<String, Integer> snapshot = new LinkedHashMap<String, Integer>();
+        for(Map.Entry<String, AtomicInteger> count : counts.entrySet()) {
+            if(count.getValue().get() > 0) {
+                snapshot.put(count.getKey(), count.getValue().get());
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Set every request count back to 0 and stop cutting off responses, objects are kept
+     * @return this stand-in
+     */
+    public S3StandIn reset() {
+        for(AtomicInteger count : counts.values()) {
+            count.set(0);
+        }
+        truncations.set(0);
+        return this;
+    }
+
+    /**
+     * Keys of a bucket in the order S3 lists them
+     */
+    public List<String> keys(String bucket) {
+        return new ArrayList<String>(_bucket(bucket).keySet());
+    }
+
+    /**
+     * Content of an object or null if there is no such object
+     */
+    public byte[] content(String bucket, String key) {
+        StoredObject object = _bucket(bucket).get(key);
+        return object == null ? null : object.data;
+    }
+
+    /**
+     * Store an object directly, without a request, i.e. to set up a large listing quickly
+     * @return this stand-in
+     */
+    public S3StandIn put(String bucket, String key, byte[] data) {
+        _bucket(bucket).put(key, new StoredObject(data, _md5(data), "binary/octet-stream",
+            new TreeMap<String, String>()));
+        return this;
+    }
+
+    /**
+     * Stop answering requests and drop every object
+     */
+    @Override
+    public void close() {
+        closed = true;
+        _closeQuietly(serverSocket);
+        for(Socket connection : connections) {
+            _closeQuietly(connection);
+        }
+        executor.shutdownNow();
+        buckets.clear();
+        uploads.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "S3StandIn " + endpoint() + " " + counts();
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * An object as it's stored, never changed once stored
+     */
+    private static final class StoredObject {
+        final byte[] data;
+        final String etag;
+        final String contentType;
+        final Map<String, String> metadata;
+        final Date lastModified = new Date();
+
+        StoredObject(byte[] data, String etag, String contentType, Map<String, String> metadata) {
+            this.data = data;
+            this.etag = etag;
+            this.contentType = contentType;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * A multipart upload that isn't completed yet
+     */
+    private static final class Upload {
+        final String bucket;
+        final String key;
+        final String contentType;
+        final Map<String, String> metadata;
+        final ConcurrentMap<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+
+        Upload(String bucket, String key, String contentType, Map<String, String> metadata) {
+            this.bucket = bucket;
+            this.key = key;
+            this.contentType = contentType;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * A request read off a connection, body included
+     */
+    private static final class Request {
+        final String method;
+        final String path;
+        final Map<String, String> query;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        Request(String method, String path, Map<String, String> query, Map<String, String> headers,
+            byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    /**
+     * A response, header names are sent as they're given
+     */
+    private static final class Response {
+        final int status;
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        byte[] body = new byte[0];
+        int offset = 0;
+        int length = 0;
+        boolean truncated = false;
+
+        Response(int status) {
+            this.status = status;
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        Response body(byte[] body, int offset, int length) {
+            this.body = body;
+            this.offset = offset;
+            this.length = length;
+            return this;
+        }
+    }
+
+    /**
+     * An S3 error response
+     */
+    private static final class S3Error extends Exception {
+        final int status;
+        final String code;
+
+        S3Error(int status, String code, String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    private void _accept() {
+        while(!closed) {
+            final Socket connection;
+            try {
+                connection = serverSocket.accept();
+            } catch(IOException ex) {
+                // closed
+                return;
+            }
+            connections.add(connection);
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        _serve(connection);
+                    }
+                });
+            } catch(RejectedExecutionException ex) {
+                connections.remove(connection);
+                _closeQuietly(connection);
+            }
+        }
+    }
+
+    /**
+     * Answer the requests of one keep-alive connection until the client closes it
+     */
+    private void _serve(Socket connection) {
+        try {
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+            while(!closed) {
+                String requestLine = _line(in);
+                if(requestLine == null) {
+                    return;
+                }
+                if(requestLine.isEmpty()) {
+                    continue;
+                }
+                String[] parts = requestLine.split(" ");
+                Map<String, String> headers
+                    = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+                for(String line = _line(in); line != null && !line.isEmpty(); line = _line(in)) {
+                    int colon = line.indexOf(':');
+                    if(colon > 0) {
+                        headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                    }
+                }
+                if("100-continue".equalsIgnoreCase(headers.get("Expect"))) {
+                    out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(HEADER_CHARSET));
+                    out.flush();
+                }
+                String target = parts[1];
+                int question = target.indexOf('?');
+                Request request = new Request(parts[0],
+                    question < 0 ? target : target.substring(0, question),
+                    _query(question < 0 ? null : target.substring(question + 1)),
+                    headers, _body(in, headers));
+                _write(out, request, _handle(request));
+                if("close".equalsIgnoreCase(headers.get("Connection"))) {
+                    return;
+                }
+            }
+        } catch(IOException ex) {
+            // the client went away
+        } finally {
+            connections.remove(connection);
+            _closeQuietly(connection);
+        }
+    }
+
+    private Response _handle(Request request) {
+        try {
+            int slash = request.path.indexOf('/', 1);
+            String bucket = _decode(slash < 0
+                ? request.path.substring(1) : request.path.substring(1, slash));
+            String key = slash < 0 ? "" : _decode(request.path.substring(slash + 1));
+            Map<String, String> query = request.query;
+            String method = request.method;
+
+            if("GET".equals(method) && key.isEmpty()) {
+                _count(LIST_OBJECTS);
+                return _listObjects(bucket, query);
+            } else if("GET".equals(method)) {
+                _count(GET_OBJECT);
+                return _getObject(request, bucket, key, false);
+            } else if("HEAD".equals(method) && key.isEmpty()) {
+                _count(HEAD_BUCKET);
+                _bucket(bucket);
+                return new Response(200);
+            } else if("HEAD".equals(method)) {
+                _count(HEAD_OBJECT);
+                return _getObject(request, bucket, key, true);
+            } else if("PUT".equals(method) && key.isEmpty()) {
+                _count(CREATE_BUCKET);
+                _bucket(bucket);
+                return new Response(200);
+            } else if("PUT".equals(method) && query.containsKey("uploadId")) {
+                boolean copy = request.header("x-amz-copy-source") != null;
+                _count(copy ? UPLOAD_PART_COPY : UPLOAD_PART);
+                return _uploadPart(request, copy);
+            } else if("PUT".equals(method) && request.header("x-amz-copy-source") != null) {
+                _count(COPY_OBJECT);
+                return _copyObject(request, bucket, key);
+            } else if("PUT".equals(method)) {
+                _count(PUT_OBJECT);
+                return _putObject(request, bucket, key);
+            } else if("POST".equals(method) && query.containsKey("delete")) {
+                _count(DELETE_OBJECTS);
+                return _deleteObjects(request, bucket);
+            } else if("POST".equals(method) && query.containsKey("uploads")) {
+                _count(CREATE_MULTIPART_UPLOAD);
+                String uploadId = UUID.randomUUID().toString();
+                // the sdk posts without a body, a form content type isn't the object's
+                String contentType = _contentType(request);
+                if(contentType.startsWith("application/x-www-form-urlencoded")) {
+                    contentType = "binary/octet-stream";
+                }
+                uploads.put(uploadId, new Upload(bucket, key, contentType, _metadata(request)));
+                return _xml(200, "<InitiateMultipartUploadResult>"
+                    + "<Bucket>" + _escape(bucket) + "</Bucket>"
+                    + "<Key>" + _escape(key) + "</Key>"
+                    + "<UploadId>" + uploadId + "</UploadId>"
+                    + "</InitiateMultipartUploadResult>");
+            } else if("POST".equals(method) && query.containsKey("uploadId")) {
+                _count(COMPLETE_MULTIPART_UPLOAD);
+                return _completeUpload(request, query.get("uploadId"));
+            } else if("DELETE".equals(method) && query.containsKey("uploadId")) {
+                _count(ABORT_MULTIPART_UPLOAD);
+                if(uploads.remove(query.get("uploadId")) == null) {
+                    throw new S3Error(404, "NoSuchUpload", "The specified upload does not exist.");
+                }
+                return new Response(204);
+            } else if("DELETE".equals(method)) {
+                _count(DELETE_OBJECT);
+                _bucket(bucket).remove(key);
+                return new Response(204);
+            }
+            throw new S3Error(501, "NotImplemented", method + " " + request.path
+                + " is not implemented");
+        } catch(S3Error error) {
+            return _xml(error.status, "<Error>"
+                + "<Code>" + error.code + "</Code>"
+                + "<Message>" + _escape(error.getMessage()) + "</Message>"
+                + "<RequestId>standin</RequestId>"
+                + "</Error>");
+        } catch(RuntimeException ex) {
+            return _xml(500, "<Error><Code>InternalError</Code>"
+                + "<Message>" + _escape(String.valueOf(ex)) + "</Message></Error>");
+        } catch(IOException ex) {
+            return _xml(500, "<Error><Code>InternalError</Code>"
+                + "<Message>" + _escape(String.valueOf(ex)) + "</Message></Error>");
+        }
+    }
+
+    /**
+     * Count a request and wait out the latency of its api
+     */
+    private void _count(String api) {
+        counts.get(api).incrementAndGet();
+        Long apiLatency = latencies.get(api);
+        long millis = apiLatency == null ? latency : apiLatency;
+        if(millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Response _listObjects(String bucket, Map<String, String> query) {
+        String prefix = _param(query, "prefix", "");
+        String marker = _param(query, "marker", "");
+        String delimiter = _param(query, "delimiter", "");
+        int maxKeys = Integer.parseInt(_param(query, "max-keys", "1000"));
+        boolean urlEncoded = "url".equals(query.get("encoding-type"));
+
+        StringBuilder contents = new StringBuilder();
+        List<String> prefixes = new ArrayList<String>();
+        String last = null;
+        boolean truncated = false;
+        int count = 0;
+
+        String from = prefix.compareTo(marker) > 0 ? prefix : marker;
+        NavigableMap<String, StoredObject> keys = _bucket(bucket).tailMap(from, !from.equals(marker));
+        for(Map.Entry<String, StoredObject> entry : keys.entrySet()) {
+            String key = entry.getKey();
+            if(!key.startsWith(prefix)) {
+                break;
+            }
+            String commonPrefix = null;
+            if(!delimiter.isEmpty()) {
+                int end = key.indexOf(delimiter, prefix.length());
+                if(end >= 0) {
+                    commonPrefix = key.substring(0, end + delimiter.length());
+                }
+            }
+            // keys rolled up into the last common prefix, the marker included, are listed as that
+            // prefix
+            if(commonPrefix != null && commonPrefix.equals(prefixes.isEmpty()
+                ? marker : prefixes.get(prefixes.size() - 1))) {
+                continue;
+            }
+            if(count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            count++;
+            if(commonPrefix != null) {
+                prefixes.add(commonPrefix);
+                last = commonPrefix;
+            } else {
+                StoredObject object = entry.getValue();
+                contents.append("<Contents>")
+                    .append("<Key>").append(_listKey(key, urlEncoded)).append("</Key>")
+                    .append("<LastModified>").append(_iso8601(object.lastModified))
+                    .append("</LastModified>")
+                    .append("<ETag>&quot;").append(object.etag).append("&quot;</ETag>")
+                    .append("<Size>").append(object.data.length).append("</Size>")
+                    .append("<StorageClass>STANDARD</StorageClass>")
+                    .append("</Contents>");
+                last = key;
+            }
+        }
+
+        StringBuilder xml = new StringBuilder("<ListBucketResult>")
+            .append("<Name>").append(_escape(bucket)).append("</Name>")
+            .append("<Prefix>").append(_listKey(prefix, urlEncoded)).append("</Prefix>")
+            .append("<Marker>").append(_listKey(marker, urlEncoded)).append("</Marker>")
+            .append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        if(!delimiter.isEmpty()) {
+            xml.append("<Delimiter>").append(_listKey(delimiter, urlEncoded)).append("</Delimiter>");
+        }
+        if(urlEncoded) {
+            xml.append("<EncodingType>url</EncodingType>");
+        }
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if(truncated) {
+            xml.append("<NextMarker>").append(_listKey(last, urlEncoded)).append("</NextMarker>");
+        }
+        xml.append(contents);
+        for(String commonPrefix : prefixes) {
+            xml.append("<CommonPrefixes><Prefix>").append(_listKey(commonPrefix, urlEncoded))
+                .append("</Prefix></CommonPrefixes>");
+        }
+        return _xml(200, xml.append("</ListBucketResult>").toString());
+    }
+
+    private Response _getObject(Request request, String bucket, String key, boolean head)
+        throws S3Error {
+        StoredObject object = _object(bucket, key);
+        String ifMatch = request.header("If-Match");
+        if(ifMatch != null && !_unquote(ifMatch).equals(object.etag)) {
+            throw new S3Error(412, "PreconditionFailed",
+                "At least one of the pre-conditions you specified did not hold");
+        }
+
+        Response response = new Response(200);
+        int first = 0;
+        int length = object.data.length;
+        String range = request.header("Range");
+        if(range != null) {
+            long[] bounds = _range(range, object.data.length);
+            first = (int)bounds[0];
+            length = (int)(bounds[1] - bounds[0] + 1);
+            response = new Response(206).header("Content-Range", "bytes " + bounds[0] + "-"
+                + bounds[1] + "/" + object.data.length);
+        }
+        response.header("ETag", "\"" + object.etag + "\"")
+            .header("Last-Modified", _rfc822(object.lastModified))
+            .header("Content-Type", object.contentType)
+            .header("Accept-Ranges", "bytes");
+        for(Map.Entry<String, String> meta : object.metadata.entrySet()) {
+            response.header(META_PREFIX + meta.getKey(), meta.getValue());
+        }
+        if(!head && length > 0 && _truncation()) {
+            response.truncated = true;
+        }
+        // a HEAD response has the length of the object but no body, _write leaves it out
+        return response.body(object.data, first, length);
+    }
+
+    private Response _putObject(Request request, String bucket, String key) {
+        StoredObject object = new StoredObject(request.body, _md5(request.body),
+            _contentType(request), _metadata(request));
+        _bucket(bucket).put(key, object);
+        return new Response(200).header("ETag", "\"" + object.etag + "\"");
+    }
+
+    private Response _copyObject(Request request, String bucket, String key) throws S3Error {
+        StoredObject source = _copySource(request);
+        StoredObject object;
+        if("REPLACE".equalsIgnoreCase(request.header("x-amz-metadata-directive"))) {
+            object = new StoredObject(source.data, source.etag, _contentType(request),
+                _metadata(request));
+        } else {
+            object = new StoredObject(source.data, source.etag, source.contentType,
+                source.metadata);
+        }
+        _bucket(bucket).put(key, object);
+        return _xml(200, "<CopyObjectResult>"
+            + "<LastModified>" + _iso8601(object.lastModified) + "</LastModified>"
+            + "<ETag>&quot;" + object.etag + "&quot;</ETag>"
+            + "</CopyObjectResult>");
+    }
+
+    private Response _uploadPart(Request request, boolean copy) throws S3Error {
+        Upload upload = uploads.get(request.query.get("uploadId"));
+        if(upload == null) {
+            throw new S3Error(404, "NoSuchUpload", "The specified upload does not exist.");
+        }
+        int partNumber = Integer.parseInt(request.query.get("partNumber"));
+        byte[] data = request.body;
+        if(copy) {
+            data = _copySource(request).data;
+            String range = request.header("x-amz-copy-source-range");
+            if(range != null) {
+                long[] bounds = _range(range, data.length);
+                data = Arrays.copyOfRange(data, (int)bounds[0], (int)bounds[1] + 1);
+            }
+        }
+        upload.parts.put(partNumber, data);
+        String etag = _md5(data);
+        if(copy) {
+            return _xml(200, "<CopyPartResult>"
+                + "<LastModified>" + _iso8601(new Date()) + "</LastModified>"
+                + "<ETag>&quot;" + etag + "&quot;</ETag>"
+                + "</CopyPartResult>");
+        }
+        return new Response(200).header("ETag", "\"" + etag + "\"");
+    }
+
+    private Response _completeUpload(Request request, String uploadId)
+        throws IOException, S3Error {
+        Upload upload = uploads.remove(uploadId);
+        if(upload == null) {
+            throw new S3Error(404, "NoSuchUpload", "The specified upload does not exist.");
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        int parts = 0;
+        Matcher part = PART.matcher(new String(request.body, "UTF-8"));
+        while(part.find()) {
+            byte[] bytes = upload.parts.get(Integer.parseInt(part.group(1)));
+            if(bytes == null) {
+                throw new S3Error(400, "InvalidPart", "part " + part.group(1) + " was not uploaded");
+            }
+            data.write(bytes);
+            digests.write(_digest(bytes));
+            parts++;
+        }
+        // like S3 the etag of a multipart object is the md5 of its parts' md5s and a part count
+        String etag = _hex(_digest(digests.toByteArray())) + "-" + parts;
+        _bucket(upload.bucket).put(upload.key, new StoredObject(data.toByteArray(), etag,
+            upload.contentType, upload.metadata));
+        return _xml(200, "<CompleteMultipartUploadResult>"
+            + "<Location>" + endpoint() + "/" + _escape(upload.bucket) + "/" + _escape(upload.key)
+            + "</Location>"
+            + "<Bucket>" + _escape(upload.bucket) + "</Bucket>"
+            + "<Key>" + _escape(upload.key) + "</Key>"
+            + "<ETag>&quot;" + etag + "&quot;</ETag>"
+            + "</CompleteMultipartUploadResult>");
+    }
+
+    private Response _deleteObjects(Request request, String bucket) throws IOException {
+        String body = new String(request.body, "UTF-8");
+        boolean quiet = body.contains("<Quiet>true</Quiet>");
+        StringBuilder xml = new StringBuilder("<DeleteResult>");
+        ConcurrentSkipListMap<String, StoredObject> objects = _bucket(bucket);
+        Matcher key = KEY.matcher(body);
+        while(key.find()) {
+            String deleted = _unescape(key.group(1));
+            objects.remove(deleted);
+            // quiet requests are only answered with the keys that failed
+            if(!quiet) {
+                xml.append("<Deleted><Key>").append(_escape(deleted)).append("</Key></Deleted>");
+            }
+        }
+        return _xml(200, xml.append("</DeleteResult>").toString());
+    }
+
+    private ConcurrentSkipListMap<String, StoredObject> _bucket(String bucket) {
+        ConcurrentSkipListMap<String, StoredObject> objects = buckets.get(bucket);
+        if(objects == null) {
+            buckets.putIfAbsent(bucket, new ConcurrentSkipListMap<String, StoredObject>());
+            objects = buckets.get(bucket);
+        }
+        return objects;
+    }
+
+    private StoredObject _object(String bucket, String key) throws S3Error {
+        StoredObject object = _bucket(bucket).get(key);
+        if(object == null) {
+            throw new S3Error(404, "NoSuchKey", "The specified key does not exist.");
+        }
+        return object;
+    }
+
+    /**
+     * Object named by x-amz-copy-source, /bucket/key url encoded
+     */
+    private StoredObject _copySource(Request request) throws S3Error {
+        String source = _decode(request.header("x-amz-copy-source"));
+        if(source.startsWith("/")) {
+            source = source.substring(1);
+        }
+        int slash = source.indexOf('/');
+        if(slash < 0) {
+            throw new S3Error(400, "InvalidArgument", "Copy Source must mention the source bucket "
+                + "and key: sourcebucket/sourcekey");
+        }
+        return _object(source.substring(0, slash), source.substring(slash + 1));
+    }
+
+    /**
+     * First and last byte of a bytes=first-last range, clipped to the length of an object
+     */
+    private long[] _range(String range, long length) throws S3Error {
+        Matcher matcher = RANGE.matcher(range.trim());
+        if(!matcher.matches()) {
+            throw new S3Error(400, "InvalidArgument", "bad range: " + range);
+        }
+        long first;
+        long last;
+        if(matcher.group(1).isEmpty()) {
+            // bytes=-n is the last n bytes
+            first = Math.max(length - Long.parseLong(matcher.group(2)), 0L);
+            last = length - 1;
+        } else {
+            first = Long.parseLong(matcher.group(1));
+            last = matcher.group(2).isEmpty()
+                ? length - 1 : Math.min(Long.parseLong(matcher.group(2)), length - 1);
+        }
+        if(first >= length || first > last) {
+            throw new S3Error(416, "InvalidRange", "The requested range is not satisfiable");
+        }
+        return new long[] { first, last };
+    }
+
+    private Map<String, String> _metadata(Request request) {
+        Map<String, String> metadata = new TreeMap<String, String>();
+        for(Map.Entry<String, String> header : request.headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ENGLISH);
+            if(name.startsWith(META_PREFIX)) {
+                metadata.put(name.substring(META_PREFIX.length()), header.getValue());
+            }
+        }
+        return metadata;
+    }
+
+    private String _contentType(Request request) {
+        String contentType = request.header("Content-Type");
+        return contentType == null ? "binary/octet-stream" : contentType;
+    }
+
+    private String _param(Map<String, String> query, String name, String defaultValue) {
+        String value = query.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private Map<String, String> _query(String rawQuery) {
+        Map<String, String> query = new LinkedHashMap<String, String>();
+        if(rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for(String param : rawQuery.split("&")) {
+            int equals = param.indexOf('=');
+            if(equals < 0) {
+                query.put(_decode(param), "");
+            } else {
+                query.put(_decode(param.substring(0, equals)), _decode(param.substring(equals + 1)));
+            }
+        }
+        return query;
+    }
+
+    private Response _xml(int status, String xml) {
+        byte[] body;
+        try {
+            body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes("UTF-8");
+        } catch(UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return new Response(status).header("Content-Type", "application/xml")
+            .body(body, 0, body.length);
+    }
+
+    private void _write(OutputStream out, Request request, Response response) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(response.status).append(' ')
+            .append(_reason(response.status)).append("\r\n")
+            .append("Date: ").append(_rfc822(new Date())).append("\r\n")
+            .append("x-amz-request-id: standin\r\n");
+        for(Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if(response.status != 204) {
+            head.append("Content-Length: ").append(response.length).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(HEADER_CHARSET));
+        if(response.truncated) {
+            out.write(response.body, response.offset, response.length / 2);
+            out.flush();
+            // _serve closes the connection
+            throw new IOException("response cut off");
+        }
+        if(!"HEAD".equals(request.method) && response.status != 204) {
+            out.write(response.body, response.offset, response.length);
+        }
+        out.flush();
+    }
+
+    /**
+     * Take one of the responses truncate asked to cut off, false if there are none left
+     */
+    private boolean _truncation() {
+        for(int left = truncations.get(); left > 0; left = truncations.get()) {
+            if(truncations.compareAndSet(left, left - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String _reason(int status) {
+        switch(status) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 412: return "Precondition Failed";
+            case 416: return "Requested Range Not Satisfiable";
+            case 501: return "Not Implemented";
+            default: return "Internal Server Error";
+        }
+    }
+
+    /**
+     * A line of the request line or headers without its CRLF, null at the end of the stream
+     */
+    private static String _line(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = in.read();
+        if(b < 0) {
+            return null;
+        }
+        for(; b >= 0 && b != '\n'; b = in.read()) {
+            if(b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(HEADER_CHARSET);
+    }
+
+    private static byte[] _body(InputStream in, Map<String, String> headers) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if("chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+            for(String size = _line(in); size != null; size = _line(in)) {
+                int semicolon = size.indexOf(';');
+                int length = Integer.parseInt(
+                    (semicolon < 0 ? size : size.substring(0, semicolon)).trim(), 16);
+                if(length == 0) {
+                    // trailers up to the empty line
+                    for(String line = _line(in); line != null && !line.isEmpty(); line = _line(in)) {
+                    }
+                    break;
+                }
+                _copy(in, body, length);
+                _line(in);
+            }
+        } else if(headers.containsKey("Content-Length")) {
+            _copy(in, body, Long.parseLong(headers.get("Content-Length")));
+        }
+        return body.toByteArray();
+    }
+
+    private static void _copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        while(length > 0) {
+            int read = in.read(buffer, 0, (int)Math.min(buffer.length, length));
+            if(read < 0) {
+                throw new EOFException("connection closed in the middle of a body");
+            }
+            out.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    private static void _closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch(IOException ex) {
+            // nothing left to do
+        }
+    }
+
+    private static String _listKey(String key, boolean urlEncoded) {
+        if(!urlEncoded) {
+            return _escape(key);
+        }
+        try {
+            return URLEncoder.encode(key, "UTF-8").replace("+", "%20");
+        } catch(UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String _decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch(UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String _escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+            .replace("\"", "&quot;").replace("'", "&apos;");
+    }
+
+    private static String _unescape(String value) {
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+            .replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    private static String _unquote(String etag) {
+        return etag.replace("\"", "").trim();
+    }
+
+    private static String _iso8601(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static String _rfc822(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(date);
+    }
+
+    private static byte[] _digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch(NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String _md5(byte[] data) {
+        return _hex(_digest(data));
+    }
+
+    private static String _hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,479 @@
+package cworks.treefs.awssp;
+
+import cworks.treefs.spi.AsyncStorageProvider;
+import cworks.treefs.spi.TreeCopyOption;
+import cworks.treefs.spi.TreeFile;
+import cworks.treefs.spi.TreeFileWriter;
+import cworks.treefs.spi.TreeFolder;
+import cworks.treefs.spi.TreeMatchHandler;
+import cworks.treefs.spi.TreePath;
+import cworks.treefs.spi.TreeQuery;
+import cworks.treefs.spi.TreeStat;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs S3StorageProvider against the in-process S3StandIn, so unlike S3StorageProviderTest it
+ * needs no AWS credentials, and asserts how many requests each operation makes.
+ */
+public class S3StandInTest {
+
+    private static final String BUCKET = "standin";
+
+    private static final int FILES = 50;
+
+    private static S3StandIn standIn;
+
+    private S3StorageProvider provider;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        // the stand-in doesn't check them but the credential chain needs something to sign with
+        System.setProperty("aws.accessKeyId", "standin");
+        System.setProperty("aws.secretKey", "standin");
+        // small enough that a few MB exercise multipart uploads and ranged reads
+        System.setProperty("treefs.s3.partSize", String.valueOf(S3MultipartUpload.MIN_PART_SIZE));
+        System.setProperty("treefs.s3.rangedReadSize", String.valueOf(1024 * 1024));
+        System.setProperty("treefs.s3.rangeSize", String.valueOf(256 * 1024));
+        // stand-ins for the 5GB a single CopyObject allows
+        System.setProperty("treefs.s3.multipartCopySize", String.valueOf(S3MultipartUpload.MIN_PART_SIZE));
+        System.setProperty("treefs.s3.copyPartSize", String.valueOf(S3MultipartUpload.MIN_PART_SIZE));
+        standIn = S3StandIn.start();
+    }
+
+    @AfterClass
+    public static void stop() {
+        standIn.close();
+        System.clearProperty("treefs.s3.partSize");
+        System.clearProperty("treefs.s3.rangedReadSize");
+        System.clearProperty("treefs.s3.rangeSize");
+        System.clearProperty("treefs.s3.multipartCopySize");
+        System.clearProperty("treefs.s3.copyPartSize");
+    }
+
+    @Before
+    public void setUp() {
+        provider = S3StorageProvider.create(BUCKET, standIn.endpoint());
+        standIn.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        provider.close();
+    }
+
+    @Test
+    public void createAndReadFile() throws Exception {
+        byte[] content = _content(1000);
+        provider.createFolder(Paths.get("createAndReadFile"));
+        standIn.reset();
+        provider.createFile(Paths.get("createAndReadFile/small.txt"),
+            new ByteArrayInputStream(content));
+        Assert.assertEquals(1, standIn.count(S3StandIn.PUT_OBJECT));
+        Assert.assertArrayEquals(content, _read(provider.read(Paths.get("createAndReadFile/small.txt"))));
+        Assert.assertEquals(1, standIn.count(S3StandIn.GET_OBJECT));
+    }
+
+    @Test
+    public void multipartUploadAndRangedRead() throws Exception {
+        byte[] content = _content(S3MultipartUpload.MIN_PART_SIZE * 2 + 1234);
+        provider.createFile(Paths.get("multipart/large.bin"), new ByteArrayInputStream(content));
+        Assert.assertEquals(1, standIn.count(S3StandIn.CREATE_MULTIPART_UPLOAD));
+        Assert.assertEquals(3, standIn.count(S3StandIn.UPLOAD_PART));
+        Assert.assertEquals(1, standIn.count(S3StandIn.COMPLETE_MULTIPART_UPLOAD));
+        Assert.assertArrayEquals(content, standIn.content(BUCKET, "multipart/large.bin"));
+
+        standIn.reset();
+        Assert.assertArrayEquals(content, _read(provider.read(Paths.get("multipart/large.bin"))));
+        // one GET per 256KB range
+        int ranges = (content.length + 256 * 1024 - 1) / (256 * 1024);
+        Assert.assertEquals(ranges, standIn.count(S3StandIn.GET_OBJECT));
+    }
+
+    @Test
+    public void rangedReadRetriesACutOffRange() throws Exception {
+        byte[] content = _content(3 * 1024 * 1024 + 1234);
+        provider.createFile(Paths.get("retry/large.bin"), new ByteArrayInputStream(content));
+        int ranges = (content.length + 256 * 1024 - 1) / (256 * 1024);
+
+        standIn.reset().truncate(2);
+        Assert.assertArrayEquals(content, _read(provider.read(Paths.get("retry/large.bin"))));
+        // each cut off range is fetched again, the others once
+        Assert.assertEquals(ranges + 2, standIn.count(S3StandIn.GET_OBJECT));
+
+        Path file = Files.createTempFile("treefs-standin", ".bin");
+        try {
+            standIn.reset().truncate(2);
+            Assert.assertEquals(content.length, provider.download(Paths.get("retry/large.bin"), file));
+            Assert.assertArrayEquals(content, Files.readAllBytes(file));
+            Assert.assertEquals(ranges + 2, standIn.count(S3StandIn.GET_OBJECT));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void existsAfterMultipartUpload() throws Exception {
+        Path path = Paths.get("exists/large.bin");
+        // caches that there's no object yet
+        Assert.assertFalse(provider.exists(path));
+        provider.createFile(path, new ByteArrayInputStream(_content(S3MultipartUpload.MIN_PART_SIZE + 1)));
+        Assert.assertTrue(provider.exists(path));
+    }
+
+    @Test
+    public void writerCommitsLargeUploadInParts() throws Exception {
+        byte[] content = _content(S3MultipartUpload.MIN_PART_SIZE * 2 + 1234);
+        int staged = _keys(BUCKET + "-trash", S3StorageProvider.UPLOADS_PREFIX).size();
+        TreeFileWriter writer = provider.openFileWriter(Paths.get("writer"));
+        writer.write(content, 0, content.length);
+        writer.commit(Paths.get("writer/large.bin"), null, null);
+        // over multipartCopySize, so the staged upload is copied into place in ranges
+        Assert.assertEquals(0, standIn.count(S3StandIn.COPY_OBJECT));
+        Assert.assertEquals(3, standIn.count(S3StandIn.UPLOAD_PART_COPY));
+        Assert.assertArrayEquals(content, standIn.content(BUCKET, "writer/large.bin"));
+        // the staged upload is gone once it's copied into place
+        Assert.assertEquals(staged, _keys(BUCKET + "-trash", S3StorageProvider.UPLOADS_PREFIX).size());
+    }
+
+    @Test
+    public void openFolderListsEachFolder() throws Exception {
+        _createFolder("openFolder", FILES);
+        standIn.reset();
+        TreeFolder folder = provider.openFolder(Paths.get("openFolder"), 2);
+        // the sub-folder and the files that aren't in it
+        Assert.assertEquals(FILES / 2 + 1, folder.items().size());
+        Assert.assertEquals(0, standIn.count(S3StandIn.PUT_OBJECT));
+        Assert.assertEquals(0, standIn.count(S3StandIn.COPY_OBJECT));
+        // a shallow open reads a delimited listing per folder, openFolder/ and openFolder/sub/
+        Assert.assertEquals(2, standIn.count(S3StandIn.LIST_OBJECTS));
+    }
+
+    @Test
+    public void listingModesReadTreefsMetaAsTheySay() throws Exception {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("owner", "listing");
+        provider.createFolder(Paths.get("listing/sub"));
+        for(int i = 0; i < 2; i++) {
+            provider.createFile(Paths.get("listing/file" + i + ".txt"),
+                new ByteArrayInputStream(_content(10)), metadata);
+        }
+
+        // a provider of its own for each mode, so nothing is cached yet
+        int heads = _heads(S3Listing.SUMMARY, folder -> {
+            Assert.assertEquals(Long.valueOf(10L), ((TreeFile)_item(folder, "file0.txt")).size());
+            Assert.assertNull(_item(folder, "file0.txt").metadata());
+        });
+        // the sub-folder and both files
+        Assert.assertEquals(heads + 3, _heads(S3Listing.PARALLEL, folder ->
+            Assert.assertEquals("listing", _item(folder, "file1.txt").metadata().get("owner"))));
+        Assert.assertEquals(heads + 1, _heads(S3Listing.LAZY, folder -> {
+            // nothing read past the folder itself until it's asked for
+            Assert.assertEquals(heads, standIn.count(S3StandIn.HEAD_OBJECT));
+            Assert.assertEquals("listing", _item(folder, "file0.txt").metadata().get("owner"));
+            // read once
+            Assert.assertEquals("listing", _item(folder, "file0.txt").metadata().get("owner"));
+        }));
+    }
+
+    @Test
+    public void depthOneOpenListsOnlyTheFolder() throws Exception {
+        provider.createFile(Paths.get("shallow/file.txt"), new ByteArrayInputStream(_content(10)));
+        // a sub-folder that's only a prefix of its keys
+        standIn.put(BUCKET, "shallow/prefix/deep/file.txt", new byte[0]);
+        // more keys below a sub-folder than one listing page holds
+        for(int i = 0; i < 1200; i++) {
+            standIn.put(BUCKET, String.format("shallow/many/file%04d.txt", i), new byte[0]);
+        }
+
+        standIn.reset();
+        TreeFolder folder = provider.openFolder(Paths.get("shallow"), 1);
+        List<String> names = new ArrayList<>();
+        for(TreePath item : folder.items()) {
+            names.add(item.name() + (item instanceof TreeFolder ? "/" : ""));
+        }
+        Collections.sort(names);
+        Assert.assertEquals(Arrays.asList("file.txt", "many/", "prefix/"), names);
+        // the sub-folders come back as common prefixes of one delimited listing
+        Assert.assertEquals(1, standIn.count(S3StandIn.LIST_OBJECTS));
+    }
+
+    @Test
+    public void copyFolderCopiesEachObjectOnce() throws Exception {
+        int objects = _createFolder("copySource", FILES);
+        standIn.reset();
+        S3CopyResult result = provider.copyTree(Paths.get("copySource"), Paths.get("copyTarget"),
+            TreeCopyOption.RECURSIVE);
+        Assert.assertTrue(result.succeeded());
+        // the content is copied, copyTarget/ is made by a put
+        Assert.assertEquals(objects - 1, result.copied());
+        Assert.assertEquals(objects - 1, standIn.count(S3StandIn.COPY_OBJECT));
+        Assert.assertEquals(1, standIn.count(S3StandIn.PUT_OBJECT));
+        Assert.assertEquals(0, standIn.count(S3StandIn.DELETE_OBJECTS));
+        Assert.assertTrue(provider.exists(Paths.get("copyTarget/sub/file0.txt")));
+    }
+
+    @Test
+    public void moveFolderDeletesInBatches() throws Exception {
+        int objects = _createFolder("moveSource", FILES);
+        standIn.reset();
+        S3CopyResult result = provider.moveTree(Paths.get("moveSource"), Paths.get("moveTarget"));
+        Assert.assertTrue(result.succeeded());
+        Assert.assertEquals(objects - 1, standIn.count(S3StandIn.COPY_OBJECT));
+        // the moved content in one batch, then moveSource/ itself
+        Assert.assertEquals(1, standIn.count(S3StandIn.DELETE_OBJECTS));
+        Assert.assertEquals(1, standIn.count(S3StandIn.DELETE_OBJECT));
+        for(String key : standIn.keys(BUCKET)) {
+            Assert.assertFalse(key, key.startsWith("moveSource/"));
+        }
+    }
+
+    @Test
+    public void trashAndDelete() throws Exception {
+        int objects = _createFolder("trash", FILES);
+        provider.trash(Paths.get("trash"), true);
+        Assert.assertFalse(provider.exists(Paths.get("trash")));
+        Assert.assertEquals(objects, _keys(BUCKET + "-trash", "trash/").size());
+
+        standIn.reset();
+        provider.delete(Paths.get("trash"));
+        Assert.assertEquals(1, standIn.count(S3StandIn.DELETE_OBJECTS));
+        Assert.assertEquals(0, _keys(BUCKET + "-trash", "trash/").size());
+    }
+
+    @Test
+    public void purgeKeepsStagedUploads() throws Exception {
+        provider.createFile(Paths.get("purge/file.txt"), new ByteArrayInputStream(_content(10)));
+        provider.trash(Paths.get("purge/file.txt"));
+        standIn.put(BUCKET + "-trash", S3StorageProvider.UPLOADS_PREFIX + "staged", _content(10));
+
+        S3DeleteResult result = provider.purgeTrash(0L).get();
+        Assert.assertTrue(result.succeeded());
+        Assert.assertEquals(0, _keys(BUCKET + "-trash", "purge/").size());
+        Assert.assertEquals(Arrays.asList(S3StorageProvider.UPLOADS_PREFIX + "staged"),
+            _keys(BUCKET + "-trash", S3StorageProvider.UPLOADS_PREFIX));
+    }
+
+    @Test
+    public void deleteFileKeepsSiblings() throws Exception {
+        provider.createFile(Paths.get("siblings/a.txt"), new ByteArrayInputStream(_content(10)));
+        provider.createFile(Paths.get("siblings/a.txt.bak"), new ByteArrayInputStream(_content(10)));
+        provider.trash(Paths.get("siblings/a.txt.bak"));
+        provider.trash(Paths.get("siblings/a.txt"));
+
+        provider.delete(Paths.get("siblings/a.txt"));
+        Assert.assertEquals(Arrays.asList("siblings/a.txt.bak"), _keys(BUCKET + "-trash", "siblings/"));
+    }
+
+    @Test
+    public void trashFileKeepsSiblings() throws Exception {
+        provider.createFile(Paths.get("trashFile/a.txt"), new ByteArrayInputStream(_content(10)));
+        provider.createFile(Paths.get("trashFile/a.txt.bak"), new ByteArrayInputStream(_content(10)));
+        provider.trash(Paths.get("trashFile/a.txt"));
+        Assert.assertFalse(provider.exists(Paths.get("trashFile/a.txt")));
+        Assert.assertTrue(provider.exists(Paths.get("trashFile/a.txt.bak")));
+        Assert.assertEquals(Arrays.asList("trashFile/a.txt"), _keys(BUCKET + "-trash", "trashFile/"));
+    }
+
+    @Test
+    public void statIsServedFromTheMetadataCache() throws Exception {
+        provider.createFolder(Paths.get("stat"));
+        provider.createFile(Paths.get("stat/file.txt"), new ByteArrayInputStream(_content(10)));
+        Assert.assertTrue(provider.stat(Paths.get("stat")).isFolder());
+        Assert.assertEquals(10L, provider.stat(Paths.get("stat/file.txt")).size());
+        Assert.assertFalse(provider.stat(Paths.get("stat/missing.txt")).exists());
+
+        standIn.reset();
+        TreeStat stat = provider.stat(Paths.get("stat/file.txt"));
+        Assert.assertTrue(stat.isFile());
+        Assert.assertEquals(10L, stat.size());
+        Assert.assertNotNull(stat.lastModifiedTime());
+        Assert.assertTrue(provider.stat(Paths.get("stat")).isFolder());
+        Assert.assertEquals(0, standIn.count());
+    }
+
+    @Test
+    public void asyncCacheHitsSkipTheRequestPool() throws Exception {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("owner", "async");
+        provider.createFile(Paths.get("async/file.txt"), new ByteArrayInputStream(_content(10)), metadata);
+        Assert.assertTrue(provider.exists(Paths.get("async/file.txt")));
+        AsyncStorageProvider async = provider.async();
+
+        standIn.reset();
+        CompletableFuture<Boolean> exists = async.exists(Paths.get("async/file.txt"));
+        CompletableFuture<Map<String, Object>> read = async.readMetadata(Paths.get("async/file.txt"));
+        // answered on this thread, before anything could run on the pool
+        Assert.assertTrue(exists.isDone());
+        Assert.assertTrue(read.isDone());
+        Assert.assertTrue(exists.get());
+        Assert.assertEquals("async", read.get().get("owner"));
+        Assert.assertEquals(0, standIn.count());
+
+        // a file the cache hasn't seen is looked up on the pool
+        S3StorageProvider other = S3StorageProvider.create(BUCKET, standIn.endpoint());
+        try {
+            other.createFile(Paths.get("async/uncached.txt"), new ByteArrayInputStream(_content(10)));
+        } finally {
+            other.close();
+        }
+        standIn.reset();
+        Assert.assertTrue(async.exists(Paths.get("async/uncached.txt")).get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(standIn.count() > 0);
+    }
+
+    @Test
+    public void shallowFindListsAFolderAtATime() throws Exception {
+        provider.createFolder(Paths.get("find"));
+        standIn.put(BUCKET, "find/a/file.txt", new byte[0]);
+        standIn.put(BUCKET, "find/b/file.txt", new byte[0]);
+        // more keys below the levels searched than one listing page holds
+        for(int i = 0; i < 1200; i++) {
+            standIn.put(BUCKET, String.format("find/a/deep/x/file%04d.txt", i), new byte[0]);
+        }
+
+        standIn.reset();
+        List<String> found = _find("find", TreeQuery.newQuery().withGlob("*.txt").withMaxLevels(2));
+        Assert.assertEquals(Arrays.asList("a/file.txt", "b/file.txt"), found);
+        // find/ then find/a/ and find/b/ a page each, nothing below find/a/deep/ is listed
+        Assert.assertEquals(3, standIn.count(S3StandIn.LIST_OBJECTS));
+
+        standIn.reset();
+        Assert.assertEquals(1202, _find("find", TreeQuery.newQuery().withGlob("*.txt")).size());
+    }
+
+    @Test
+    public void latencyIsAdded() throws Exception {
+        provider.createFile(Paths.get("latency/file.txt"), new ByteArrayInputStream(_content(10)));
+        standIn.latency(S3StandIn.GET_OBJECT, 200L);
+        try {
+            long start = System.nanoTime();
+            _read(provider.read(Paths.get("latency/file.txt")));
+            Assert.assertTrue(System.nanoTime() - start >= 200L * 1000000L);
+        } finally {
+            standIn.latency(S3StandIn.GET_OBJECT, 0L);
+        }
+    }
+
+    @Test
+    public void listingIsPaged() throws Exception {
+        provider.createFolder(Paths.get("paged"));
+        for(int i = 0; i < 2500; i++) {
+            standIn.put(BUCKET, String.format("paged/file%04d.txt", i), new byte[0]);
+        }
+        TreeFolder folder = provider.openFolder(Paths.get("paged"), 1);
+        Assert.assertEquals(2500, folder.items().size());
+        Assert.assertEquals(3, standIn.count(S3StandIn.LIST_OBJECTS));
+        TreePath last = folder.items().get(2499);
+        Assert.assertEquals("file2499.txt", last.name());
+    }
+
+    /**
+     * A folder with a sub-folder and files, returns the number of objects under it
+     */
+    private int _createFolder(String name, int files) throws Exception {
+        provider.createFolder(Paths.get(name));
+        provider.createFolder(Paths.get(name, "sub"));
+        for(int i = 0; i < files; i++) {
+            provider.createFile(Paths.get(name, i % 2 == 0 ? "sub" : "", "file" + i + ".txt"),
+                new ByteArrayInputStream(_content(100)));
+        }
+        int objects = 0;
+        for(String key : standIn.keys(BUCKET)) {
+            if(key.startsWith(name + "/")) {
+                objects++;
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * HEAD requests a fresh provider in listing mode makes to open listing/ a level deep and
+     * hand it to check
+     */
+    private int _heads(S3Listing listing, Consumer<TreeFolder> check) throws Exception {
+        S3StorageProvider lister = S3StorageProvider.create(BUCKET, standIn.endpoint()).listing(listing);
+        try {
+            standIn.reset();
+            TreeFolder folder = lister.openFolder(Paths.get("listing"), 1);
+            Assert.assertEquals(3, folder.items().size());
+            check.accept(folder);
+            return standIn.count(S3StandIn.HEAD_OBJECT);
+        } finally {
+            lister.close();
+        }
+    }
+
+    private TreePath _item(TreeFolder folder, String name) {
+        for(TreePath item : folder.items()) {
+            if(name.equals(item.name())) {
+                return item;
+            }
+        }
+        throw new AssertionError("no item: " + name);
+    }
+
+    /**
+     * Relative paths of the files a find matches, sorted
+     */
+    private List<String> _find(String folder, TreeQuery query) throws Exception {
+        final List<String> found = Collections.synchronizedList(new ArrayList<String>());
+        provider.find(Paths.get(folder), query, new TreeMatchHandler() {
+            @Override
+            public boolean handle(TreePath match) {
+                found.add(Paths.get(folder).relativize(match.path()).toString());
+                return true;
+            }
+        });
+        List<String> sorted = new ArrayList<>(found);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private List<String> _keys(String bucket, String prefix) {
+        List<String> keys = new ArrayList<>();
+        for(String key : standIn.keys(bucket)) {
+            if(key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private byte[] _content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private byte[] _read(InputStream input) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for(int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+            output.write(buffer, 0, read);
+        }
+        input.close();
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,159 @@
+package cworks.treefs.awssp;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import cworks.treefs.awssp.tree.S3Tree;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times building trees from synthetic flat listings of a million keys, fed a page of 1000 keys
+ * at a time like S3 returns them.  Not a unit test, run it with a large heap:
+ *
+ * java -Xmx4g cworks.treefs.awssp.S3TreeBuilderBenchmark [keys] [rounds]
+ *
+ * wide   - every key in one folder, the worst case for a child scan
+ * nested - 100 folders of 100 folders of 100 files, with folder objects
+ * deep   - files 10 folders down, without folder objects so every folder is made up
+ *
+ * @author comartin
+ */
+public class S3TreeBuilderBenchmark {
+
+    private static final int PAGE_SIZE = 1000;
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        for(int round = 1; round <= rounds; round++) {
+            System.out.println("round " + round);
+            _builder("wide", new Wide(keys));
+            _builder("nested", new Nested(keys));
+            _builder("deep", new Deep(keys));
+            _s3Tree("wide", new Wide(keys));
+            _s3Tree("nested", new Nested(keys));
+        }
+    }
+
+    /**
+     * Synthetic listing, keys are generated in the order S3 lists them
+     */
+    private static abstract class Listing {
+        final int keys;
+        Listing(int keys) {
+            this.keys = keys;
+        }
+        abstract String key(int i);
+        int size() {
+            return keys;
+        }
+    }
+
+    private static final class Wide extends Listing {
+        Wide(int keys) {
+            super(keys);
+        }
+        @Override
+        String key(int i) {
+            return String.format("bench/file%07d.txt", i);
+        }
+    }
+
+    private static final class Nested extends Listing {
+        Nested(int keys) {
+            // 101 keys per second level folder, its object and 100 files
+            super(keys);
+        }
+        @Override
+        String key(int i) {
+            int folder = i / 10101;
+            int rest = i % 10101;
+            if(rest == 0) {
+                return String.format("bench/f%03d/", folder);
+            }
+            rest--;
+            int sub = rest / 101;
+            int file = rest % 101;
+            if(file == 0) {
+                return String.format("bench/f%03d/s%03d/", folder, sub);
+            }
+            return String.format("bench/f%03d/s%03d/file%03d.txt", folder, sub, file - 1);
+        }
+    }
+
+    private static final class Deep extends Listing {
+        Deep(int keys) {
+            super(keys);
+        }
+        @Override
+        String key(int i) {
+            StringBuilder key = new StringBuilder("bench/");
+            int folders = i / 100;
+            for(int level = 0; level < 10; level++) {
+                key.append("d").append(level == 9 ? folders : folders % (level + 2)).append('/');
+            }
+            return key.append("file").append(i % 100).append(".txt").toString();
+        }
+    }
+
+    private static void _builder(String name, Listing listing) {
+        // the listing is made up front so only building the tree is timed
+        List<List<S3ObjectSummary>> pages = new ArrayList<List<S3ObjectSummary>>();
+        Date now = new Date();
+        for(int i = 0; i < listing.size(); i += PAGE_SIZE) {
+            List<S3ObjectSummary> page = new ArrayList<S3ObjectSummary>(PAGE_SIZE);
+            for(int j = i; j < Math.min(i + PAGE_SIZE, listing.size()); j++) {
+                page.add(_summary(listing.key(j), now));
+            }
+            pages.add(page);
+        }
+        System.gc();
+
+        Map<String, S3Path> objects = new HashMap<String, S3Path>();
+        S3Folder top = new S3Folder(S3StorageProvider._s3FolderSummary("bench/", "bench"));
+        S3TreeBuilder builder = new S3TreeBuilder(top, "bench/", Integer.MAX_VALUE, objects);
+        long start = System.nanoTime();
+        for(List<S3ObjectSummary> page : pages) {
+            builder.addAll(page);
+        }
+        _report("S3TreeBuilder " + name, listing.size(), start);
+    }
+
+    private static void _s3Tree(String name, Listing listing) {
+        String[] keys = new String[listing.size()];
+        for(int i = 0; i < keys.length; i++) {
+            keys[i] = listing.key(i);
+        }
+        System.gc();
+
+        S3Tree<String> tree = new S3Tree<String>("/");
+        long start = System.nanoTime();
+        for(String key : keys) {
+            S3Tree<String> current = tree;
+            for(String item : key.split("/")) {
+                current = current.child(item);
+            }
+        }
+        _report("S3Tree " + name, listing.size(), start);
+    }
+
+    private static S3ObjectSummary _summary(String key, Date lastModified) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName("bench");
+        summary.setKey(key);
+        summary.setSize(key.endsWith("/") ? 0L : 1024L);
+        summary.setETag("d41d8cd98f00b204e9800998ecf8427e");
+        summary.setLastModified(lastModified);
+        return summary;
+    }
+
+    private static void _report(String name, int keys, long start) {
+        long ms = (System.nanoTime() - start) / 1000000L;
+        System.out.println(String.format("  %-24s %8d keys %6d ms %10.0f keys/s", name, keys, ms,
+            keys * 1000.0 / Math.max(ms, 1L)));
+    }
+}
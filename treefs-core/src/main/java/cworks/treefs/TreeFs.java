@@ -1,11 +1,11 @@
 package cworks.treefs;
 
-import cworks.json.Json;
-import cworks.json.JsonArray;
 import cworks.json.JsonObject;
+import cworks.treefs.provider.StorageProviderRegistry;
 import cworks.treefs.provider.TreeFsStorageManager;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.Map;
 
 import static cworks.treefs.common.ObjectUtils.isNullOrEmpty;
@@ -148,13 +148,14 @@ public final class TreeFs {
     }
 
     /**
-     * Create a new TreeFsStorageManager for the given client to handle folder and file ops
+     * Return the TreeFsStorageManager for the given client to handle folder and file ops, managers
+     * and their StorageProvider are created once per client and reused across requests
      * @param client
      * @return
      */
     public static TreeFsStorageManager storageManager(final TreeFsClient client) {
 
-        TreeFsStorageManager manager = TreeFsStorageManager.create(client);
+        TreeFsStorageManager manager = TreeFsStorageManager.storageManager(client);
         if(manager == null) {
             throw new TreeFsException("No StorageManager configured for client: " + client.toString());
         }
@@ -163,7 +164,24 @@ public final class TreeFs {
     }
 
     /**
-     * Create a TreeFsClient if the given clientId is valid.
+     * Lease the TreeFsStorageManager for the given client, its StorageProvider stays open until
+     * the lease is closed even if the client is reloaded or evicted in the meantime
+     * @param client
+     * @return
+     */
+    public static StorageProviderRegistry.Lease lease(final TreeFsClient client) {
+
+        StorageProviderRegistry.Lease lease = StorageProviderRegistry.lease(client);
+        if(lease == null) {
+            throw new TreeFsException("No StorageManager configured for client: " + client.toString());
+        }
+
+        return lease;
+    }
+
+    /**
+     * Return the TreeFsClient if the given clientId is valid.  Clients are held in memory by
+     * {@link TreeFsClientRegistry} and reloaded when the treefs.clients file changes.
      * @param clientId
      * @return
      */
@@ -173,18 +191,32 @@ public final class TreeFs {
             throw new IllegalArgumentException("clientId cannot be null");
         }
 
-        JsonObject config = Json.asObject(new File(stringValue("treefs.clients")));
-        JsonArray clients = config.getArray("clients");
-        for(Object o : clients) {
-            JsonObject client = (JsonObject)o;
-            if(clientId.equals(client.getString("id"))) {
-                return new TreeFsClient(
-                    client.getString("id"),
-                    client.getBoolean("enabled"));
-            }
-        }
+        return TreeFsClientRegistry.client(stringValue("treefs.clients"), clientId);
+    }
 
-        return null;
+    /**
+     * All clients configured in the treefs.clients file
+     * @return
+     */
+    public static Collection<TreeFsClient> clients() {
+        return TreeFsClientRegistry.clients(stringValue("treefs.clients"));
+    }
+
+    /**
+     * Create the StorageProvider for every enabled client so the first request for a client
+     * doesn't pay for it
+     * @return number of clients warmed up
+     */
+    public static int warmUp() {
+        return StorageProviderRegistry.warmUp(clients());
+    }
+
+    /**
+     * Close every cached StorageProvider
+     */
+    public static void shutdown() {
+        StorageProviderRegistry.shutdown();
+        TreeFsClientRegistry.shutdown();
     }
 
     public static String clientHeader() {
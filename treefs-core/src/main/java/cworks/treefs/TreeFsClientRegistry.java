@@ -0,0 +1,262 @@
+package cworks.treefs;
+
+import cworks.json.Json;
+import cworks.json.JsonArray;
+import cworks.json.JsonObject;
+import cworks.treefs.provider.StorageProviderRegistry;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * In-memory registry of the clients configured in the treefs.clients file.
+ *
+ * The file is parsed once into an immutable client.id() to TreeFsClient map, lookups are a hash
+ * lookup against the current map and never touch the disk.  A daemon thread watches the file's
+ * folder with a WatchService and when the file changes a new map is parsed and swapped in as a
+ * whole, readers see either the old or the new map, never a partial one.  If the changed file
+ * can't be parsed (i.e. it is caught half written) the current map stays in place and the failure
+ * is counted, the next change event retries.
+ *
+ * Clients that are removed or disabled by a reload have their cached StorageProvider evicted.
+ *
+ * @author comartin
+ */
+public final class TreeFsClientRegistry {
+
+    /**
+     * Immutable view of one parse of the clients file
+     */
+    private static final class Snapshot {
+        final String source;
+        final Path file;
+        final Map<String, TreeFsClient> clients;
+        Snapshot(String source, Path file, Map<String, TreeFsClient> clients) {
+            this.source = source;
+            this.file = file;
+            this.clients = clients;
+        }
+    }
+
+    private static volatile Snapshot snapshot = null;
+
+    private static WatchService watcher = null;
+
+    private static final AtomicLong loads = new AtomicLong();
+
+    private static final AtomicLong swaps = new AtomicLong();
+
+    private static final AtomicLong failures = new AtomicLong();
+
+    private TreeFsClientRegistry() { }
+
+    /**
+     * Look up a client by id
+     * @param clientsFile path of the treefs.clients file
+     * @param clientId
+     * @return the client or null if clientId isn't configured
+     */
+    public static TreeFsClient client(String clientsFile, String clientId) {
+        return _snapshot(clientsFile).clients.get(clientId);
+    }
+
+    /**
+     * All configured clients, in file order
+     * @param clientsFile path of the treefs.clients file
+     * @return unmodifiable collection of clients
+     */
+    public static Collection<TreeFsClient> clients(String clientsFile) {
+        return _snapshot(clientsFile).clients.values();
+    }
+
+    /**
+     * Re-read the clients file now instead of waiting for the watcher
+     * @return true if the file was parsed and swapped in
+     */
+    public static boolean reload() {
+        Snapshot current = snapshot;
+        if(isNull(current)) {
+            return false;
+        }
+        return _reload(current.file);
+    }
+
+    /**
+     * Number of times the clients file was successfully parsed
+     */
+    public static long loads() {
+        return loads.get();
+    }
+
+    /**
+     * Number of times a reloaded client map replaced the current one
+     */
+    public static long swaps() {
+        return swaps.get();
+    }
+
+    /**
+     * Number of times the clients file could not be parsed
+     */
+    public static long failures() {
+        return failures.get();
+    }
+
+    /**
+     * Stop watching the clients file and forget the loaded clients
+     */
+    public static synchronized void shutdown() {
+        _unwatch();
+        snapshot = null;
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Current snapshot, loaded on first use and whenever the configured file changes
+     */
+    private static Snapshot _snapshot(String clientsFile) {
+        if(isNull(clientsFile)) {
+            throw new TreeFsException("treefs.clients is not configured");
+        }
+        Snapshot current = snapshot;
+        if(!isNull(current) && current.source.equals(clientsFile)) {
+            return current;
+        }
+        return _open(clientsFile);
+    }
+
+    private static synchronized Snapshot _open(String clientsFile) {
+        Snapshot current = snapshot;
+        if(!isNull(current) && current.source.equals(clientsFile)) {
+            return current;
+        }
+        // initial load or the configured file moved, failing here is fatal to the caller
+        Path file = Paths.get(clientsFile).toAbsolutePath();
+        snapshot = new Snapshot(clientsFile, file, _parse(file));
+        loads.incrementAndGet();
+        _watch(file);
+        return snapshot;
+    }
+
+    /**
+     * Parse and swap in the file, keeping the current clients if the file can't be parsed
+     */
+    private static synchronized boolean _reload(Path file) {
+        Snapshot current = snapshot;
+        if(isNull(current) || !current.file.equals(file)) {
+            return false;
+        }
+        Map<String, TreeFsClient> clients;
+        try {
+            clients = _parse(file);
+        } catch(Exception ex) {
+            failures.incrementAndGet();
+            System.out.println("TreeFsClientRegistry failed reloading: " + file + " " + ex.getMessage());
+            return false;
+        }
+        loads.incrementAndGet();
+        snapshot = new Snapshot(current.source, file, clients);
+        swaps.incrementAndGet();
+
+        for(TreeFsClient previous : current.clients.values()) {
+            TreeFsClient client = clients.get(previous.id());
+            if(isNull(client) || !client.enabled()) {
+                StorageProviderRegistry.evict(previous.id());
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, TreeFsClient> _parse(Path file) {
+        JsonObject config = Json.asObject(file.toFile());
+        JsonArray array = config.getArray("clients");
+        Map<String, TreeFsClient> clients = new LinkedHashMap<>();
+        for(Object o : array) {
+            JsonObject client = (JsonObject)o;
+            clients.put(client.getString("id"), new TreeFsClient(
+                client.getString("id"),
+                client.getBoolean("enabled")));
+        }
+        return Collections.unmodifiableMap(clients);
+    }
+
+    /**
+     * Start a daemon thread that reloads when the file changes, replacing any previous watcher
+     */
+    private static void _watch(final Path file) {
+        _unwatch();
+        Path folder = file.getParent();
+        if(isNull(folder)) {
+            return;
+        }
+        final WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            folder.register(service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch(IOException ex) {
+            // lookups still work, the file just won't be hot reloaded
+            System.out.println("TreeFsClientRegistry cannot watch: " + folder + " " + ex.getMessage());
+            return;
+        }
+        watcher = service;
+
+        Thread thread = new Thread("treefs-clients-watcher") {
+            @Override
+            public void run() {
+                try {
+                    while(true) {
+                        WatchKey key = service.take();
+                        boolean changed = false;
+                        for(WatchEvent<?> event : key.pollEvents()) {
+                            Object context = event.context();
+                            if(context instanceof Path
+                                && file.getFileName().equals(context)) {
+                                changed = true;
+                            }
+                        }
+                        if(changed) {
+                            _reload(file);
+                        }
+                        if(!key.reset()) {
+                            return;
+                        }
+                    }
+                } catch(InterruptedException | ClosedWatchServiceException ex) {
+                    // watcher replaced or shutdown
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void _unwatch() {
+        if(!isNull(watcher)) {
+            try {
+                watcher.close();
+            } catch(IOException ex) {
+                // ignore, the watcher thread exits either way
+            }
+            watcher = null;
+        }
+    }
+}
@@ -2,7 +2,9 @@ package cworks.treefs.provider;
 
 import cworks.treefs.TreeFs;
 import cworks.treefs.TreeFsClient;
+import cworks.treefs.TreeFsException;
 import cworks.treefs.awssp.S3StorageProvider;
+import cworks.treefs.spi.StorageException;
 import cworks.treefs.spi.StorageProvider;
 import cworks.treefs.syssp.SystemStorageProvider;
 
@@ -21,6 +23,15 @@ public class StorageProviderFactory {
      */
     static StorageProvider createProvider(TreeFsClient client) {
 
+        try {
+            return _createProvider(client);
+        } catch (StorageException ex) {
+            throw new TreeFsException(ex);
+        }
+    }
+
+    private static StorageProvider _createProvider(TreeFsClient client) throws StorageException {
+
         if("corbofett".equals(client.id())) {
             // TreeFs.home is a location on the file-system from which TreeFs has read/write access
             // and is used for a myriad of things like saving TreeFs file-system data.
@@ -0,0 +1,337 @@
+package cworks.treefs.provider;
+
+import cworks.treefs.TreeFsClient;
+import cworks.treefs.spi.StorageProvider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Thread-safe registry of client.id() to TreeFsStorageManager (and the StorageProvider it wraps).
+ *
+ * Creating a StorageProvider can be expensive, an S3StorageProvider builds a credentials chain
+ * and an AmazonS3Client with its own connection pool, so providers are created once per client
+ * and reused across requests instead of per request.
+ *
+ * Lifecycle
+ * 1. warmUp(clients) creates providers for known clients at boot so the first request for a
+ *    client doesn't pay for it
+ * 2. the registry holds at most capacity clients, the least recently used client is evicted
+ *    when a new one would exceed it, evict(clientId) drops a client explicitly
+ * 3. evicted providers that implement Closeable are closed, shutdown() closes everything and is
+ *    also registered as a JVM shutdown hook
+ * 4. work that outlives a single call, a request or a stream being sent, holds a lease on the
+ *    client with lease(client), a provider evicted while it has leases is closed when the last
+ *    one is closed instead of under the work still using it
+ *
+ * @author comartin
+ */
+public final class StorageProviderRegistry {
+
+    /**
+     * Default number of clients kept in the registry
+     */
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Registered client entry
+     */
+    private static class Entry {
+        final String clientId;
+        final TreeFsStorageManager manager;
+        volatile long lastAccess;
+        /**
+         * open leases, guarded by the entry
+         */
+        int leases = 0;
+        /**
+         * removed from the registry, closed once leases drops to 0, guarded by the entry
+         */
+        boolean evicted = false;
+        Entry(String clientId, TreeFsStorageManager manager) {
+            this.clientId = clientId;
+            this.manager = manager;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    /**
+     * A hold on a client's manager that keeps its StorageProvider open until the lease is closed,
+     * even if the client is evicted in the meantime
+     */
+    public static final class Lease implements Closeable {
+        private final Entry entry;
+        private final boolean bound;
+        private boolean closed = false;
+        private Lease(Entry entry, boolean bound) {
+            this.entry = entry;
+            this.bound = bound;
+        }
+
+        public TreeFsStorageManager manager() {
+            return entry.manager;
+        }
+
+        @Override
+        public void close() {
+            synchronized(entry) {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+            }
+            if(bound && current.get() == entry) {
+                current.remove();
+            }
+            _release(entry);
+        }
+    }
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static volatile int capacity = Integer.getInteger(
+        "treefs.providers.capacity", DEFAULT_CAPACITY);
+
+    private static final AtomicBoolean hooked = new AtomicBoolean(false);
+
+    /**
+     * Entry of the lease bound to the current thread, storageManager(client) answers with it so
+     * everything a leased request does uses the provider the lease holds open
+     */
+    private static final ThreadLocal<Entry> current = new ThreadLocal<>();
+
+    private StorageProviderRegistry() { }
+
+    /**
+     * Return the cached TreeFsStorageManager for a client, creating and caching it if this is
+     * the first request for the client.
+     * @param client
+     * @return the manager or null if no StorageProvider is configured for the client
+     */
+    public static TreeFsStorageManager storageManager(TreeFsClient client) {
+        if(isNull(client)) {
+            throw new IllegalArgumentException("TreeFsClient argument cannot be null silly monkey");
+        }
+
+        Entry entry = _entry(client);
+        return isNull(entry) ? null : entry.manager;
+    }
+
+    /**
+     * Lease the TreeFsStorageManager for a client, its StorageProvider isn't closed before the
+     * lease is
+     * @param client
+     * @return the lease or null if no StorageProvider is configured for the client
+     */
+    public static Lease lease(TreeFsClient client) {
+        return lease(client, false);
+    }
+
+    /**
+     * Lease the TreeFsStorageManager for a client, its StorageProvider isn't closed before the
+     * lease is
+     * @param client
+     * @param bind when the thread has no bound lease yet storageManager(client) on this thread
+     *     answers with the leased manager until the lease is closed, which must then be done on
+     *     this thread
+     * @return the lease or null if no StorageProvider is configured for the client
+     */
+    public static Lease lease(TreeFsClient client, boolean bind) {
+        if(isNull(client)) {
+            throw new IllegalArgumentException("TreeFsClient argument cannot be null silly monkey");
+        }
+
+        while(true) {
+            Entry entry = _entry(client);
+            if(isNull(entry)) {
+                return null;
+            }
+            synchronized(entry) {
+                if(entry.evicted && entry.leases == 0) {
+                    // lost a race with evict, the next lookup registers the client again
+                    continue;
+                }
+                entry.leases++;
+            }
+            boolean bound = bind && isNull(current.get());
+            if(bound) {
+                current.set(entry);
+            }
+            return new Lease(entry, bound);
+        }
+    }
+
+    /**
+     * Create providers for the given clients ahead of their first request, clients that fail to
+     * create are logged and skipped so one bad client doesn't stop boot.
+     * @param clients
+     * @return number of clients registered
+     */
+    public static int warmUp(Collection<TreeFsClient> clients) {
+        int warmed = 0;
+        for(TreeFsClient client : clients) {
+            if(!client.enabled()) {
+                continue;
+            }
+            try {
+                if(!isNull(storageManager(client))) {
+                    warmed++;
+                }
+            } catch(Exception ex) {
+                System.out.println("StorageProviderRegistry warm-up failed for client: "
+                    + client.id() + " " + ex.getMessage());
+            }
+        }
+        return warmed;
+    }
+
+    /**
+     * Remove a client from the registry and close its StorageProvider, right away if nothing
+     * holds a lease on it or else when the last lease is closed
+     * @param clientId
+     */
+    public static void evict(String clientId) {
+        Entry entry = entries.remove(clientId);
+        if(isNull(entry)) {
+            return;
+        }
+        boolean idle;
+        synchronized(entry) {
+            entry.evicted = true;
+            idle = entry.leases == 0;
+        }
+        if(idle) {
+            _close(entry);
+        }
+    }
+
+    /**
+     * Remove and close every registered StorageProvider
+     */
+    public static void shutdown() {
+        List<String> clientIds = new ArrayList<>(entries.keySet());
+        for(String clientId : clientIds) {
+            evict(clientId);
+        }
+    }
+
+    /**
+     * Set the maximum number of clients kept in the registry
+     * @param max
+     */
+    public static void capacity(int max) {
+        capacity = max;
+        _evictOverCapacity();
+    }
+
+    public static int size() {
+        return entries.size();
+    }
+
+    public static boolean contains(String clientId) {
+        return entries.containsKey(clientId);
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * The entry for a client, the one leased by this thread if there is one, registering the
+     * client if this is its first request
+     */
+    private static Entry _entry(TreeFsClient client) {
+        Entry entry = current.get();
+        if(isNull(entry) || !entry.clientId.equals(client.id())) {
+            entry = entries.get(client.id());
+        }
+        if(isNull(entry)) {
+            entry = _register(client);
+            if(isNull(entry)) {
+                return null;
+            }
+        }
+        entry.lastAccess = System.nanoTime();
+        return entry;
+    }
+
+    /**
+     * Create the manager for a client, only one thread creates the provider for a given client
+     * while lookups for other clients carry on
+     */
+    private static Entry _register(final TreeFsClient client) {
+        _hookShutdown();
+        Entry entry = entries.computeIfAbsent(client.id(), id -> {
+            StorageProvider provider = StorageProviderFactory.createProvider(client);
+            if(isNull(provider)) {
+                return null;
+            }
+            return new Entry(id, new TreeFsStorageManager(client, provider));
+        });
+        _evictOverCapacity();
+        return entry;
+    }
+
+    /**
+     * Evict least recently used clients until the registry is within capacity
+     */
+    private static void _evictOverCapacity() {
+        while(entries.size() > capacity) {
+            String eldest = null;
+            long oldest = Long.MAX_VALUE;
+            for(Map.Entry<String, Entry> item : entries.entrySet()) {
+                if(item.getValue().lastAccess < oldest) {
+                    oldest = item.getValue().lastAccess;
+                    eldest = item.getKey();
+                }
+            }
+            if(isNull(eldest)) {
+                return;
+            }
+            evict(eldest);
+        }
+    }
+
+    private static void _release(Entry entry) {
+        boolean idle;
+        synchronized(entry) {
+            entry.leases--;
+            idle = entry.evicted && entry.leases == 0;
+        }
+        if(idle) {
+            _close(entry);
+        }
+    }
+
+    private static void _close(Entry entry) {
+        StorageProvider provider = entry.manager.provider();
+        if(provider instanceof Closeable) {
+            try {
+                ((Closeable)provider).close();
+            } catch(IOException ex) {
+                System.out.println("StorageProviderRegistry failed closing provider for client: "
+                    + entry.clientId + " " + ex.getMessage());
+            }
+        }
+    }
+
+    private static void _hookShutdown() {
+        if(hooked.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(
+                new Thread("treefs-provider-shutdown") {
+                    @Override
+                    public void run() {
+                        shutdown();
+                    }
+                });
+        }
+    }
+}
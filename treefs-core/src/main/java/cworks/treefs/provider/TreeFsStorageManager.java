@@ -49,17 +49,21 @@ public class TreeFsStorageManager {
     private StorageProvider provider = null;
 
     /**
-     * create a cache of clients to StorageProvider(s)
+     * Callers should use {@link #create(cworks.treefs.TreeFsClient)}
+     * @param client
      */
-    private static Map<String, JsonObject> providerCache = _newStorageProviderCache(13);
+    private TreeFsStorageManager(TreeFsClient client) {
+        this(client, StorageProviderFactory.createProvider(client));
+    }
 
     /**
-     * Callers should use {@link #create(cworks.treefs.TreeFsClient)}
+     * Used by {@link StorageProviderRegistry} which creates the provider once per client
      * @param client
+     * @param provider
      */
-    private TreeFsStorageManager(TreeFsClient client) {
+    TreeFsStorageManager(TreeFsClient client, StorageProvider provider) {
         this.client = client;
-        this.provider = StorageProviderFactory.createProvider(this.client);
+        this.provider = provider;
     }
 
     /**
@@ -82,21 +86,42 @@ public class TreeFsStorageManager {
      */
     public TreeFsType typeOf(String path) {
 
-        try {
-            if(provider.isFolder(Paths.get(path))) {
-                return TreeFsType.FOLDER;
-            }
-            if(provider.isFile(Paths.get(path))) {
-                return TreeFsType.FILE;
-            }
-        } catch (StorageException ex) {
-            throw new TreeFsException(ex);
+        return typeOf(stat(path));
+    }
+
+    /**
+     * Return the type of TreeFs Object a stat is for.
+     * @param stat stat of a path
+     * @return TreeFsType of Folder, File or NaT (Not a Type)
+     */
+    public TreeFsType typeOf(TreeStat stat) {
+
+        if(stat.isFolder()) {
+            return TreeFsType.FOLDER;
+        }
+        if(stat.isFile()) {
+            return TreeFsType.FILE;
         }
 
         // at this point we don't know
         return TreeFsType.NaT;
     }
 
+    /**
+     * Look up everything a request needs to know about path with a single provider call, pass
+     * the stat along rather than testing the path again.
+     * @param path path to stat
+     * @return stat of path, TreeStat.NOT_FOUND if it doesn't exist
+     */
+    public TreeStat stat(String path) {
+
+        try {
+            return provider.stat(Paths.get(path));
+        } catch (StorageException ex) {
+            throw new TreeFsException(ex);
+        }
+    }
+
     /**
      * Create a folder in TreeFs from the one given as an argument
      * @param folder
@@ -180,6 +205,50 @@ public class TreeFsStorageManager {
         return treefsFile;
     }
 
+    /**
+     * Open a writer for content that is still arriving, i.e. an upload, the file is created by
+     * {@link #commitFile(TreeFileWriter, TreeFsFile, boolean)}
+     * @param path the path the file is expected to be created at
+     * @return a writer the caller must commit or abort
+     */
+    public TreeFileWriter openFileWriter(String path) {
+        try {
+            return provider.openFileWriter(Paths.get(TreeFs.convertPath(path)));
+        } catch (StorageException ex) {
+            throw new TreeFsException(ex);
+        }
+    }
+
+    /**
+     * Create a file in TreeFs from the content written to writer, overwriting one if it already
+     * exists.  If this throws the writer is still open and must be aborted.
+     * @param writer
+     * @param file
+     * @param overwrite
+     * @return
+     */
+    public TreeFsFile commitFile(final TreeFileWriter writer, final TreeFsFile file, boolean overwrite) {
+
+        TreeFsFile treefsFile = new TreeFsFile(file);
+        try {
+            TreeFsValidation.validateFile(file);
+            final Path target = resolveTargetFile(file);
+
+            if(overwrite) {
+                provider.trashIfExists(target);
+            }
+
+            writer.commit(target, file.description(), file.metadata());
+
+        } catch (TreePathExistsException ex) {
+            throw new TreeFsPathExistsException(ex, ex.path());
+        } catch (StorageException ex) {
+            throw new TreeFsException(ex);
+        }
+
+        return treefsFile;
+    }
+
     /**
      * Obtains the target folder (Path) for the given TreeFsFolder based on the rules below
      *
@@ -230,6 +299,57 @@ public class TreeFsStorageManager {
         return target;
     }
 
+    /**
+     * Return the local file holding the content of path, or null if the StorageProvider doesn't
+     * store content locally, in which case use {@link #openFile(String)}
+     * @param path
+     * @return
+     */
+    public File localFile(String path) {
+        try {
+            return provider.localFile(Paths.get(path));
+        } catch (StorageException ex) {
+            throw new TreeFsException(ex);
+        }
+    }
+
+    /**
+     * Open a stream to the content of path, the caller is responsible for closing it
+     * @param path
+     * @return
+     */
+    public InputStream openFile(String path) {
+        try {
+            InputStream in = provider.read(Paths.get(path));
+            if(TreeFsValidation.isNull(in)) {
+                throw new TreeFsException("cannot obtain stream to path: " + path);
+            }
+            return in;
+        } catch (StorageException ex) {
+            throw new TreeFsException(ex);
+        }
+    }
+
+    /**
+     * Open a stream to length bytes of the content of path starting at offset, the caller is
+     * responsible for closing it
+     * @param path
+     * @param offset
+     * @param length
+     * @return
+     */
+    public InputStream openFile(String path, long offset, long length) {
+        try {
+            InputStream in = provider.read(Paths.get(path), offset, length);
+            if(TreeFsValidation.isNull(in)) {
+                throw new TreeFsException("cannot obtain stream to path: " + path);
+            }
+            return in;
+        } catch (StorageException ex) {
+            throw new TreeFsException(ex);
+        }
+    }
+
     /**
      * Retrieve the absolute file path within TreeFs
      * @param path
@@ -315,6 +435,37 @@ public class TreeFsStorageManager {
         return folder;
     }
 
+    /**
+     * Open a page of the items directly in the folder at path, the caller must close the listing.
+     *
+     * @param path
+     * @param cursor cursor of a previous listing or null to start at the first item
+     * @param limit most items in the page
+     * @return
+     */
+    public TreeListing listFolder(String path, String cursor, int limit) {
+        try {
+            return provider.listFolder(Paths.get(path), cursor, limit);
+        } catch (StorageException ex) {
+            throw new TreeFsException(ex);
+        }
+    }
+
+    /**
+     * Search below the folder at path, handing each match to handler as it's found
+     *
+     * @param path folder to search
+     * @param query what to search for
+     * @param handler receives the matches, one at a time
+     */
+    public void find(String path, TreeQuery query, TreeMatchHandler handler) {
+        try {
+            provider.find(Paths.get(path), query, handler);
+        } catch (StorageException ex) {
+            throw new TreeFsException(ex);
+        }
+    }
+
     /**
      * payload.putNumber("depth", Integer.parseInt(depth));
      * payload.putString("filter", filter);
@@ -328,6 +479,22 @@ public class TreeFsStorageManager {
      */
     public TreeFsFolder retrieveFolder(String path, JsonObject options) {
 
+        TreeStat stat = stat(path);
+        if(!stat.exists()) {
+            throw new TreeFsException("path: " + path + " does not exist in TreeFs");
+        }
+
+        return retrieveFolder(stat, options);
+    }
+
+    /**
+     * Retrieve the folder a stat is for, the folder isn't tested for existence again
+     * @param stat stat of the folder
+     * @param options same as {@link #retrieveFolder(String, cworks.json.JsonObject)}
+     * @return
+     */
+    public TreeFsFolder retrieveFolder(TreeStat stat, JsonObject options) {
+
         Integer depth = options.getInteger("depth", -1);
         // TODO incorporate into pathFilter or use directly if both folderOnly and fileOnly are false
         String glob = options.getString("filter", null);
@@ -374,22 +541,18 @@ public class TreeFsStorageManager {
         }
 
         TreeFsFolder folder = null;
+        Path target = stat.path();
         try {
-            Path target = Paths.get(path);
-            if(!provider.exists(target)) {
-                throw new TreeFsException("path: " + path + " does not exist in TreeFs");
-            }
-
             TreeFolder sFolder = provider.openFolder(target, filters, depth);
             if(TreeFsValidation.isNull(sFolder)) {
-                throw new TreeFsException("unable to open folder: " + path);
+                throw new TreeFsException("unable to open folder: " + target);
             }
 
             folder = TreeFsFactory.folder(sFolder);
         } catch (StorageException ex) {
             throw new TreeFsException(ex);
         } catch (Exception ex) {
-            throw new TreeFsException("error retrieving path: " + path, ex);
+            throw new TreeFsException("error retrieving path: " + target, ex);
         }
 
         return folder;
@@ -614,35 +777,20 @@ public class TreeFsStorageManager {
     }
 
     /**
-     * Return the TreeFsStorageManager for the given client
+     * Return the cached TreeFsStorageManager for the given client, the StorageProvider behind it
+     * is shared across requests
      * @param client
-     * @return
+     * @return the manager or null if no StorageProvider is configured for the client
      */
     public static TreeFsStorageManager storageManager(TreeFsClient client) {
-
-        if(!providerCache.containsKey(client.id())) {
-            return null;
-        }
-
-
-        return null;
+        return StorageProviderRegistry.storageManager(client);
     }
 
     /**
-     * Create an LRU cache that will maintain a mapping of client => StorageProviders
-     * @param capacity
+     * StorageProvider this manager delegates to
      * @return
      */
-    static Map<String, JsonObject> _newStorageProviderCache(final int capacity) {
-        Map<String, JsonObject> spCache =
-            new LinkedHashMap<String, JsonObject>(capacity + 1, .75F, true) {
-                // This method is called just after a new entry has been added
-                public boolean removeEldestEntry(Map.Entry eldest) {
-                    return size() > capacity;
-                }
-            };
-
-        return spCache;
+    StorageProvider provider() {
+        return this.provider;
     }
 }
-
@@ -0,0 +1,98 @@
+package cworks.treefs;
+
+import cworks.treefs.provider.StorageProviderRegistry;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class TreeFsClientRegistryTest {
+
+    private Path home;
+
+    private String clientsFile;
+
+    @Before
+    public void setUp() throws Exception {
+        home = Files.createTempDirectory("treefs-clients");
+        Files.createDirectories(home.resolve("data"));
+        System.setProperty("treefs.home", home.toString());
+        System.setProperty("treefs.mount", "data");
+        clientsFile = home.resolve("treefsclients.json").toString();
+        _write("{ \"id\" : \"first\", \"enabled\" : true }, { \"id\" : \"second\", \"enabled\" : true }");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TreeFsClientRegistry.shutdown();
+        StorageProviderRegistry.shutdown();
+        System.clearProperty("treefs.home");
+        System.clearProperty("treefs.mount");
+        FileUtils.deleteDirectory(home.toFile());
+    }
+
+    @Test
+    public void fileIsParsedOnce() throws Exception {
+        long loads = TreeFsClientRegistry.loads();
+        Assert.assertTrue(TreeFsClientRegistry.client(clientsFile, "first").enabled());
+        Assert.assertNotNull(TreeFsClientRegistry.client(clientsFile, "second"));
+        Assert.assertNull(TreeFsClientRegistry.client(clientsFile, "third"));
+        Assert.assertEquals(2, TreeFsClientRegistry.clients(clientsFile).size());
+        Assert.assertEquals(loads + 1, TreeFsClientRegistry.loads());
+    }
+
+    @Test
+    public void reloadEvictsRemovedAndDisabledClients() throws Exception {
+        TreeFsClient first = TreeFsClientRegistry.client(clientsFile, "first");
+        TreeFsClient second = TreeFsClientRegistry.client(clientsFile, "second");
+        StorageProviderRegistry.storageManager(first);
+        StorageProviderRegistry.storageManager(second);
+
+        _write("{ \"id\" : \"second\", \"enabled\" : false }, { \"id\" : \"third\", \"enabled\" : true }");
+        Assert.assertTrue(TreeFsClientRegistry.reload());
+
+        Assert.assertNull(TreeFsClientRegistry.client(clientsFile, "first"));
+        Assert.assertFalse(TreeFsClientRegistry.client(clientsFile, "second").enabled());
+        Assert.assertNotNull(TreeFsClientRegistry.client(clientsFile, "third"));
+        Assert.assertFalse(StorageProviderRegistry.contains("first"));
+        Assert.assertFalse(StorageProviderRegistry.contains("second"));
+    }
+
+    @Test
+    public void unparseableReloadKeepsTheClients() throws Exception {
+        TreeFsClientRegistry.client(clientsFile, "first");
+        long failures = TreeFsClientRegistry.failures();
+
+        // what the watcher can see while the file is being written
+        Files.write(home.resolve("treefsclients.json"), "{ \"clients\" : [ { \"id\"".getBytes("UTF-8"));
+        Assert.assertFalse(TreeFsClientRegistry.reload());
+
+        // the watcher may have failed on it too
+        Assert.assertTrue(TreeFsClientRegistry.failures() > failures);
+        Assert.assertNotNull(TreeFsClientRegistry.client(clientsFile, "first"));
+        Assert.assertNotNull(TreeFsClientRegistry.client(clientsFile, "second"));
+    }
+
+    @Test
+    public void changedFileIsReloaded() throws Exception {
+        TreeFsClientRegistry.client(clientsFile, "first");
+
+        _write("{ \"id\" : \"third\", \"enabled\" : true }");
+        long deadline = System.currentTimeMillis() + 30000L;
+        while(TreeFsClientRegistry.client(clientsFile, "third") == null
+            && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+        Assert.assertNotNull(TreeFsClientRegistry.client(clientsFile, "third"));
+        Assert.assertNull(TreeFsClientRegistry.client(clientsFile, "first"));
+    }
+
+    private void _write(String clients) throws Exception {
+        Files.write(home.resolve("treefsclients.json"),
+            ("{ \"clients\" : [ " + clients + " ] }").getBytes("UTF-8"));
+    }
+}
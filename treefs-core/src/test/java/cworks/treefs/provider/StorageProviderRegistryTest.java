@@ -0,0 +1,69 @@
+package cworks.treefs.provider;
+
+import cworks.treefs.TreeFsClient;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class StorageProviderRegistryTest {
+
+    private final TreeFsClient client = new TreeFsClient("sysuser");
+
+    private Path home;
+
+    @Before
+    public void setUp() throws Exception {
+        home = Files.createTempDirectory("treefs-registry");
+        Files.createDirectories(home.resolve("data"));
+        System.setProperty("treefs.home", home.toString());
+        System.setProperty("treefs.mount", "data");
+        // a closed provider detaches its store and goes back to writing sidecars
+        System.setProperty("treefs-syssp.metadataStore", "true");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        StorageProviderRegistry.shutdown();
+        System.clearProperty("treefs.home");
+        System.clearProperty("treefs.mount");
+        System.clearProperty("treefs-syssp.metadataStore");
+        FileUtils.deleteDirectory(home.toFile());
+    }
+
+    @Test
+    public void evictWaitsForLeases() throws Exception {
+        StorageProviderRegistry.Lease lease = StorageProviderRegistry.lease(client);
+        TreeFsStorageManager leased = lease.manager();
+        StorageProviderRegistry.evict(client.id());
+        Assert.assertFalse(StorageProviderRegistry.contains(client.id()));
+
+        // still open, the file's metadata goes to the store
+        leased.provider().createFile(Paths.get("leased.txt"),
+            new ByteArrayInputStream("leased".getBytes("UTF-8")));
+        Assert.assertFalse(Files.exists(home.resolve("data/sysuser/leased.txt.f")));
+
+        // the next request gets a new provider
+        Assert.assertNotSame(leased, StorageProviderRegistry.storageManager(client));
+        lease.close();
+        lease.close();
+    }
+
+    @Test
+    public void boundLeaseAnswersStorageManager() throws Exception {
+        StorageProviderRegistry.Lease lease = StorageProviderRegistry.lease(client, true);
+        try {
+            StorageProviderRegistry.evict(client.id());
+            Assert.assertSame(lease.manager(), StorageProviderRegistry.storageManager(client));
+        } finally {
+            lease.close();
+        }
+        Assert.assertNotSame(lease.manager(), StorageProviderRegistry.storageManager(client));
+    }
+}
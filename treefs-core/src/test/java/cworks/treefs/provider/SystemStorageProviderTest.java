@@ -86,7 +86,7 @@ public class SystemStorageProviderTest {
     }
 
     @Test
-    public void testCopyFolder() throws IOException {
+    public void testCopyFolder() throws IOException, StorageException {
         SystemStorageProvider provider = _provider();
         Path sourceFolder = Paths.get("folderToFolderCopy/a1");
         Path targetFolder = Paths.get("folderToFolderCopy/a2");
@@ -115,7 +115,7 @@ public class SystemStorageProviderTest {
     }
 
     @Test
-    public void testCopyFolderIntoFolder() throws IOException {
+    public void testCopyFolderIntoFolder() throws IOException, StorageException {
         SystemStorageProvider provider = _provider();
         Path sourceFolder = Paths.get("folderToFolderCopy/a1");
         Path targetFolder = Paths.get("folderToFolderCopy/a3");
@@ -156,7 +156,7 @@ public class SystemStorageProviderTest {
      *
      */
     @Test
-    public void testFileToFolderCopy() throws IOException {
+    public void testFileToFolderCopy() throws IOException, StorageException {
         SystemStorageProvider provider = _provider();
         Path sourceFolder = Paths.get("fileToFolderCopy/a1/encarnacion.txt");
         Path targetFolder = Paths.get("n2");
@@ -181,7 +181,7 @@ public class SystemStorageProviderTest {
      * @throws IOException
      */
     @Test
-    public void testFileToFileNoRename() throws IOException {
+    public void testFileToFileNoRename() throws IOException, StorageException {
         SystemStorageProvider provider = _provider();
         Path sourceFile = Paths.get("fileToFolderCopy/a1/encarnacion.txt");
         Path targetFile = Paths.get("n1/n3/encarnacion.txt");
@@ -203,7 +203,7 @@ public class SystemStorageProviderTest {
         return sFolder;
     }
 
-    SystemStorageProvider _provider() {
+    SystemStorageProvider _provider() throws StorageException {
         String root = _root();
         TreeFsClient client = new TreeFsClient("corbofett");
         SystemStorageProvider provider = SystemStorageProvider.newProvider()
@@ -109,6 +109,29 @@ public class TreeFsFactory {
         return new TreeFsPathMaker();
     }
 
+    /**
+     * Convenience method for creating a file or folder from a TreePath, without the items of a
+     * folder
+     * @param source
+     * @return TreeFsFile or TreeFsFolder
+     */
+    public static TreeFsPath path(TreePath source) {
+        if(source instanceof TreeFile) {
+            TreeFile fitem = (TreeFile)source;
+            TreeFsFileMaker maker = file(fitem.path());
+            return maker
+                .withDescription(fitem.description())
+                .withCreatedAt(fitem.creationTime())
+                .withSize(fitem.size()).make();
+        }
+        TreeFsFolderMaker maker = TreeFsFactory.folder(
+                source.path().getFileName().toString(), source.path());
+        return maker
+            .withDescription(source.description())
+            .withCreatedAt(source.creationTime())
+            .make();
+    }
+
     public static TreeFsSerializer serializer() {
         return TreeFsSerializer.newSerializer();
     }
@@ -139,24 +162,12 @@ public class TreeFsFactory {
                 System.out.println("> " + item.path().toString());
 
                 if(item instanceof TreeFile) {
-                    TreeFile fitem = (TreeFile)item;
-                    TreeFsFileMaker maker = file(fitem.path());
-                    TreeFsFile f = maker
-                        .withDescription(fitem.description())
-                        .withCreatedAt(fitem.creationTime())
-                        .withSize(fitem.size()).make();
-                    folder.addFile(f);
+                    folder.addFile((TreeFsFile)path(item));
 
                 } else if(item instanceof TreeFolder) {
-                    TreeFolder fitem = (TreeFolder)item;
-                    TreeFsFolderMaker maker = TreeFsFactory.folder(
-                            fitem.path().getFileName().toString(), fitem.path());
-                    TreeFsFolder f = maker
-                        .withDescription(fitem.description())
-                        .withCreatedAt(fitem.creationTime())
-                        .make();
+                    TreeFsFolder f = (TreeFsFolder)path(item);
                     folder.addFolder(f);
-                    _mapping(fitem, f);
+                    _mapping((TreeFolder)item, f);
                 }
             }
         }
@@ -5,6 +5,7 @@ import cworks.treefs.server.core.*;
 import cworks.treefs.server.handler.AuthorizationService;
 import cworks.treefs.server.handler.FileSystemService;
 import cworks.treefs.server.handler.HttpServices;
+import cworks.treefs.server.handler.ProviderUploadTarget;
 import cworks.treefs.server.handler.UriService;
 import org.apache.log4j.Logger;
 import org.vertx.java.core.Handler;
@@ -84,6 +85,31 @@ public class TreeFsVerticle extends Verticle {
      */
     public static final String TREEFS_ROOT = "/";
 
+    /**
+     * Default number of threads storage backed services are dispatched onto
+     */
+    private static final Integer DEFAULT_DISPATCH_THREADS = 16;
+
+    /**
+     * Default number of requests that can wait for a dispatch thread
+     */
+    private static final Integer DEFAULT_DISPATCH_QUEUE = 256;
+
+    /**
+     * Default number of requests a single client can have queued or running
+     */
+    private static final Integer DEFAULT_DISPATCH_PER_CLIENT = 32;
+
+    /**
+     * Default seconds a client is asked to wait when the server is saturated
+     */
+    private static final Integer DEFAULT_DISPATCH_RETRY_AFTER = 1;
+
+    /**
+     * Runs storage backed services off the event loop
+     */
+    private HttpDispatcher dispatcher = null;
+
     /**
      * Startup TreeFsServer verticle which will handle IO to TreeFs
      * If treefs.home cannot be found this verticle will stop the container.
@@ -111,17 +137,29 @@ public class TreeFsVerticle extends Verticle {
             System.setProperty("treefs.home", home);
         }
 
+        // create storage providers for configured clients before taking requests
+        int warmed = TreeFs.warmUp();
+        logger.info("Warmed up StorageProviders for " + warmed + " clients");
+
         String  host = container.config().getString("host", DEFAULT_HOST);
         Integer port = container.config().getInteger("port", DEFAULT_PORT);
 
         HttpModule module = new HttpModule(this, TREEFS_ROOT);
 
+        // storage backed services block so they are dispatched off the event loop
+        JsonObject dispatch = container.config().getObject("dispatch", new JsonObject());
+        dispatcher = new HttpDispatcher(vertx,
+            dispatch.getInteger("threads", DEFAULT_DISPATCH_THREADS),
+            dispatch.getInteger("queue", DEFAULT_DISPATCH_QUEUE),
+            dispatch.getInteger("perClient", DEFAULT_DISPATCH_PER_CLIENT),
+            dispatch.getInteger("retryAfter", DEFAULT_DISPATCH_RETRY_AFTER));
+
         module.use(new ErrorHandler(false))
             .use(new UriService())
             .use(new AuthorizationService())
             .use(new HeaderParser())
             .use(new FileSystemService())
-            .use(new BodyParser(TreeFs.uploadDir()));
+            .use(new BodyParser(TreeFs.uploadDir(), new ProviderUploadTarget(dispatcher)));
 
         // setting resource used for controlling features of TreeFs
         module.use(new HttpRouter().post("/_settings",
@@ -146,23 +184,25 @@ public class TreeFsVerticle extends Verticle {
 
         // sub-resource need to come before actual resources so matching works...need to fix this
         module.use(new HttpRouter().get("/.*/meta$",
-            HttpServices.metadataService()));
+            dispatcher.dispatch(HttpServices.metadataService())));
         module.use(new HttpRouter().delete("/.*/trash$",
-            HttpServices.trashPathService()));
+            dispatcher.dispatch(HttpServices.trashPathService())));
         module.use(new HttpRouter().post("/.*/cp$",
-            HttpServices.copyService()));
+            dispatcher.dispatch(HttpServices.copyService())));
         module.use(new HttpRouter().put("/.*/mv$",
-            HttpServices.moveService()));
+            dispatcher.dispatch(HttpServices.moveService())));
+        module.use(new HttpRouter().get("/.*/_find$",
+            dispatcher.dispatch(HttpServices.findService())));
 
         // main resources
         module.use(new HttpRouter().post("/.*",
-            HttpServices.createPathService()));
+            dispatcher.dispatch(HttpServices.createPathService())));
         module.use(new HttpRouter().get("/.*",
-            HttpServices.readPathService()));
+            dispatcher.dispatch(HttpServices.readPathService())));
         module.use(new HttpRouter().put("/.*",
            HttpServices.placeHolderService()));
         module.use(new HttpRouter().delete("/.*",
-                HttpServices.deleteService()));
+                dispatcher.dispatch(HttpServices.deleteService())));
         
         // be slow to speak and quick to listen
         module.listen(port, host, new Handler<Boolean>() {
@@ -180,6 +220,14 @@ public class TreeFsVerticle extends Verticle {
         });
     }
 
+    @Override
+    public void stop() {
+        if(dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        TreeFs.shutdown();
+    }
+
     private void initTreeFs(JsonObject jsonConfig) throws IOException {
 
         Map config = jsonConfig.toMap();
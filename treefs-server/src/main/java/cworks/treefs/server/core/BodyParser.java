@@ -6,8 +6,11 @@ import org.vertx.java.core.MultiMap;
 import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.http.HttpServerFileUpload;
 import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.streams.Pump;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -15,7 +18,8 @@ import java.util.Map;
  * multipart/form-data) into the body property of the request.
  *
  * When the request is a multipath/form-data then uploaded files are mapped into the
- * files Map(String, HttpServerFileUpload) map.
+ * files Map(String, HttpServerFileUpload) map.  Uploaded files are saved into uploadDir unless
+ * an {@link UploadTarget} opens a stream for them, in which case they're pumped into that stream.
  *
  */
 public class BodyParser extends HttpService {
@@ -25,12 +29,28 @@ public class BodyParser extends HttpService {
      */
     private final String uploadDir;
 
+    /**
+     * Where uploaded files are streamed to instead of uploadDir, may be null
+     */
+    private final UploadTarget uploadTarget;
+
     /**
      * Create this BodyParser with the configured upload Directory
      * @param uploadDir location to save uploaded files
      */
     public BodyParser(String uploadDir) {
+        this(uploadDir, null);
+    }
+
+    /**
+     * Create this BodyParser with the configured upload Directory and a target that uploads are
+     * streamed into when it accepts them
+     * @param uploadDir location to save uploaded files the uploadTarget doesn't accept
+     * @param uploadTarget opens streams for uploaded files
+     */
+    public BodyParser(String uploadDir, UploadTarget uploadTarget) {
         this.uploadDir = uploadDir;
+        this.uploadTarget = uploadTarget;
     }
 
     /**
@@ -76,24 +96,59 @@ public class BodyParser extends HttpService {
             request.expectMultiPart(true);
 
             if(isMULTIPART) {
+                // parts still being pumped into the provider, one handler aborts them all if the
+                // client goes away
+                final List<UploadWriteStream> open = new ArrayList<>();
+                if (uploadTarget != null) {
+                    request.response().closeHandler(new Handler<Void>() {
+                        @Override
+                        public void handle(Void event) {
+                            for (UploadWriteStream stream : new ArrayList<>(open)) {
+                                stream.abort();
+                            }
+                            open.clear();
+                        }
+                    });
+                }
                 request.uploadHandler(new Handler<HttpServerFileUpload>() {
                     @Override
                     public void handle(final HttpServerFileUpload fileUpload) {
                         if (request.files() == null) {
                             request.setFiles(new HashMap<String, FileUpload>());
                         }
-                        FileUpload upload = new FileUpload(vertx, fileUpload, uploadDir);
+                        final UploadWriteStream stream = uploadTarget == null
+                            ? null : uploadTarget.open(request, fileUpload, mount);
+                        FileUpload upload = stream == null
+                            ? new FileUpload(vertx, fileUpload, uploadDir)
+                            : new FileUpload(vertx, fileUpload, stream);
 
                         // setup callbacks
                         fileUpload.exceptionHandler(new Handler<Throwable>() {
                             @Override
                             public void handle(Throwable throwable) {
+                                if (stream != null) {
+                                    open.remove(stream);
+                                    stream.abort();
+                                }
                                 next.handle(new ErrorHandler(throwable));
                             }
                         });
 
-                        // stream to the generated path
-                        fileUpload.streamToFileSystem(upload.path());
+                        if (stream == null) {
+                            // stream to the generated path
+                            fileUpload.streamToFileSystem(upload.path());
+                        } else {
+                            // pump into the provider, pausing the upload while its writes catch up
+                            open.add(stream);
+                            fileUpload.endHandler(new Handler<Void>() {
+                                @Override
+                                public void handle(Void event) {
+                                    open.remove(stream);
+                                    stream.end();
+                                }
+                            });
+                            Pump.createPump(fileUpload, stream).start();
+                        }
                         // store a reference in the request
                         request.files().put(fileUpload.name(), upload);
                     }
@@ -0,0 +1,119 @@
+package cworks.treefs.server.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A satisfiable byte range of a resource, parsed from a Range request header (RFC 7233)
+ *
+ * bytes=0-499      first 500 bytes
+ * bytes=500-       everything from byte 500
+ * bytes=-500       last 500 bytes
+ * bytes=0-0,-1     first and last byte
+ *
+ * @author comartin
+ */
+public final class ByteRange {
+
+    /**
+     * More ranges than this in one request is treated as abuse and the Range header is ignored
+     */
+    public static final int MAX_RANGES = 16;
+
+    private final long start;
+
+    private final long end;
+
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * First byte, zero based
+     */
+    public long start() {
+        return start;
+    }
+
+    /**
+     * Last byte, inclusive
+     */
+    public long end() {
+        return end;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Value for the Content-Range header of a 206 response
+     * @param size total size of the resource
+     * @return
+     */
+    public String contentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * Parse a Range header against a resource of size bytes
+     * @param header value of the Range header
+     * @param size total size of the resource
+     * @return null when the header is missing, malformed or has too many ranges (serve the whole
+     *     resource), an empty list when no range is satisfiable (416), otherwise the satisfiable
+     *     ranges in request order
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if(header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if(!value.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = value.substring("bytes=".length()).split(",");
+        if(specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for(String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if(dash < 0) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            try {
+                if(first.isEmpty()) {
+                    // suffix range, the last n bytes
+                    long suffix = Long.parseLong(last);
+                    if(suffix > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                    continue;
+                }
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                if(!last.isEmpty() && Long.parseLong(last) < start) {
+                    return null;
+                }
+                if(start < size) {
+                    ranges.add(new ByteRange(start, end));
+                }
+            } catch(NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        return Collections.unmodifiableList(ranges);
+    }
+
+    @Override
+    public String toString() {
+        return "bytes=" + start + "-" + end;
+    }
+}
@@ -0,0 +1,384 @@
+package cworks.treefs.server.core;
+
+import io.netty.handler.codec.http.Cookie;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.streams.ReadStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static cworks.treefs.TreeFsValidation.isNull;
+
+/**
+ * HttpResponse handed to an HttpService while it runs on a dispatch thread.  Vert.x responses
+ * must only be touched from the event loop that owns the connection so every mutating call is
+ * recorded here, in order, and replayed against the real HttpResponse once the dispatcher has
+ * handed the request back to the loop.
+ *
+ * Status code, status message and chunked state are tracked locally so services that read
+ * back what they set (i.e. ErrorHandler) see consistent values.  writeQueueFull() is always
+ * false because nothing is written until the replay.
+ *
+ * A service that writes a long response as it goes calls flush() to have what it recorded so
+ * far replayed on the loop right away.  At most one flush is in flight, the next one waits for
+ * it to be replayed and for the connection's write queue to drain, which holds the service back
+ * to the pace the client reads at.
+ *
+ * @author comartin
+ */
+class DeferredHttpResponse extends HttpResponse {
+
+    /**
+     * the real response, only touched from the event loop during replay
+     */
+    private final HttpResponse target;
+
+    /**
+     * recorded operations in the order the service made them
+     */
+    private final List<Runnable> ops = new ArrayList<>();
+
+    private int statusCode;
+
+    private String statusMessage;
+
+    private boolean chunked;
+
+    private boolean ended = false;
+
+    /**
+     * headers and trailers as the service set them, changes are recorded
+     */
+    private final DeferredMultiMap headers;
+
+    private final DeferredMultiMap trailers;
+
+    /**
+     * seconds a flush waits for the client to take the previous one before giving up
+     */
+    private static final long FLUSH_TIMEOUT = 60L;
+
+    /**
+     * runs flushed operations on the event loop
+     */
+    private final Executor loop;
+
+    /**
+     * counted down once the last flush is replayed and the connection can take more
+     */
+    private CountDownLatch flushed = null;
+
+    DeferredHttpResponse(HttpResponse target, Executor loop) {
+        super(target);
+        this.target = target;
+        this.loop = loop;
+        this.statusCode = target.getStatusCode();
+        this.statusMessage = target.getStatusMessage();
+        this.chunked = target.isChunked();
+        this.headers = new DeferredMultiMap(this, target.headers(), target::headers);
+        this.trailers = new DeferredMultiMap(this, target.trailers(), target::trailers);
+    }
+
+    /**
+     * Record an operation to be replayed on the event loop
+     * @param op
+     */
+    synchronized void record(Runnable op) {
+        ops.add(op);
+    }
+
+    /**
+     * Run all recorded operations against the real response, must be called from the event loop
+     */
+    void replay() {
+        List<Runnable> replay;
+        synchronized (this) {
+            replay = new ArrayList<>(ops);
+            ops.clear();
+        }
+        for(Runnable op : replay) {
+            op.run();
+        }
+    }
+
+    @Override
+    public boolean flush() {
+        final CountDownLatch sent = new CountDownLatch(1);
+        CountDownLatch previous;
+        synchronized (this) {
+            previous = flushed;
+            flushed = sent;
+        }
+        try {
+            if(!isNull(previous) && !previous.await(FLUSH_TIMEOUT, TimeUnit.SECONDS)) {
+                return false;
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+                if(!target.writeQueueFull()) {
+                    sent.countDown();
+                    return;
+                }
+                target.drainHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        sent.countDown();
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Has the service ended (or handed off) the response
+     * @return
+     */
+    boolean ended() {
+        return ended;
+    }
+
+    @Override
+    public void redirect(int status, String url) {
+        statusCode = status;
+        ended = true;
+        record(() -> target.redirect(status, url));
+    }
+
+    @Override
+    public HttpResponse addCookie(Cookie cookie) {
+        record(() -> target.addCookie(cookie));
+        return this;
+    }
+
+    @Override
+    public void headersHandler(Handler<Void> handler) {
+        record(() -> target.headersHandler(handler));
+    }
+
+    @Override
+    public void endHandler(Handler<Void> handler) {
+        record(() -> target.endHandler(handler));
+    }
+
+    @Override
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public HttpResponse setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+        record(() -> target.setStatusCode(statusCode));
+        return this;
+    }
+
+    @Override
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    @Override
+    public HttpResponse setStatusMessage(String statusMessage) {
+        this.statusMessage = statusMessage;
+        record(() -> target.setStatusMessage(statusMessage));
+        return this;
+    }
+
+    @Override
+    public HttpResponse setChunked(boolean chunked) {
+        this.chunked = chunked;
+        record(() -> target.setChunked(chunked));
+        return this;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    @Override
+    public MultiMap headers() {
+        return headers;
+    }
+
+    @Override
+    public HttpResponse putHeader(String name, String value) {
+        headers.local(name, Collections.singletonList(value));
+        record(() -> target.putHeader(name, value));
+        return this;
+    }
+
+    @Override
+    public HttpResponse putHeader(CharSequence name, CharSequence value) {
+        headers.local(name.toString(), Collections.singletonList(value));
+        record(() -> target.putHeader(name, value));
+        return this;
+    }
+
+    @Override
+    public HttpResponse putHeader(String name, Iterable<String> values) {
+        headers.local(name, values);
+        record(() -> target.putHeader(name, values));
+        return this;
+    }
+
+    @Override
+    public HttpResponse putHeader(CharSequence name, Iterable<CharSequence> values) {
+        headers.local(name.toString(), values);
+        record(() -> target.putHeader(name, values));
+        return this;
+    }
+
+    @Override
+    public MultiMap trailers() {
+        return trailers;
+    }
+
+    @Override
+    public HttpResponse putTrailer(String name, String value) {
+        trailers.local(name, Collections.singletonList(value));
+        record(() -> target.putTrailer(name, value));
+        return this;
+    }
+
+    @Override
+    public HttpResponse putTrailer(CharSequence name, CharSequence value) {
+        trailers.local(name.toString(), Collections.singletonList(value));
+        record(() -> target.putTrailer(name, value));
+        return this;
+    }
+
+    @Override
+    public HttpResponse putTrailer(String name, Iterable<String> values) {
+        trailers.local(name, values);
+        record(() -> target.putTrailer(name, values));
+        return this;
+    }
+
+    @Override
+    public HttpResponse putTrailer(CharSequence name, Iterable<CharSequence> value) {
+        trailers.local(name.toString(), value);
+        record(() -> target.putTrailer(name, value));
+        return this;
+    }
+
+    @Override
+    public HttpResponse closeHandler(Handler<Void> handler) {
+        record(() -> target.closeHandler(handler));
+        return this;
+    }
+
+    @Override
+    public HttpResponse write(Buffer chunk) {
+        record(() -> target.write(chunk));
+        return this;
+    }
+
+    @Override
+    public HttpResponse setWriteQueueMaxSize(int maxSize) {
+        record(() -> target.setWriteQueueMaxSize(maxSize));
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return false;
+    }
+
+    @Override
+    public HttpResponse drainHandler(Handler<Void> handler) {
+        record(() -> target.drainHandler(handler));
+        return this;
+    }
+
+    @Override
+    public HttpResponse write(String chunk, String enc) {
+        record(() -> target.write(chunk, enc));
+        return this;
+    }
+
+    @Override
+    public HttpResponse write(String chunk) {
+        record(() -> target.write(chunk));
+        return this;
+    }
+
+    @Override
+    public void end(String chunk) {
+        ended = true;
+        record(() -> target.end(chunk));
+    }
+
+    @Override
+    public void end(String chunk, String enc) {
+        ended = true;
+        record(() -> target.end(chunk, enc));
+    }
+
+    @Override
+    public void end(Object data) {
+        end(data.toString());
+    }
+
+    @Override
+    public void end(Object data, String enc) {
+        end(data.toString(), enc);
+    }
+
+    @Override
+    public void end(Buffer chunk) {
+        ended = true;
+        record(() -> target.end(chunk));
+    }
+
+    @Override
+    public void end(ReadStream<?> stream) {
+        ended = true;
+        record(() -> target.end(stream));
+    }
+
+    @Override
+    public void end() {
+        ended = true;
+        record(() -> target.end());
+    }
+
+    @Override
+    public HttpResponse sendFile(String filename,
+        String notFoundFile, Handler<AsyncResult<Void>> resultHandler) {
+        ended = true;
+        record(() -> target.sendFile(filename, notFoundFile, resultHandler));
+        return this;
+    }
+
+    @Override
+    public void close() {
+        ended = true;
+        record(() -> target.close());
+    }
+
+    @Override
+    public HttpResponse exceptionHandler(Handler<Throwable> handler) {
+        record(() -> target.exceptionHandler(handler));
+        return this;
+    }
+
+    @Override
+    void setFilter(WriterFilter filter) {
+        record(() -> target.setFilter(filter));
+    }
+}
@@ -0,0 +1,234 @@
+package cworks.treefs.server.core;
+
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Headers or trailers of a DeferredHttpResponse.  The real MultiMap belongs to the event loop so
+ * reads are answered from a copy taken when the response was deferred, and changes are made to
+ * the copy and recorded to be made to the real map when the response is replayed.
+ *
+ * @author comartin
+ */
+final class DeferredMultiMap implements MultiMap {
+
+    private final DeferredHttpResponse response;
+
+    /**
+     * the real map, only asked for on the event loop
+     */
+    private final Supplier<MultiMap> target;
+
+    private final MultiMap copy = new CaseInsensitiveMultiMap();
+
+    /**
+     * @param response the response that records changes
+     * @param initial the real map's entries, must be read on the event loop
+     * @param target gets the real map when a change is replayed
+     */
+    DeferredMultiMap(DeferredHttpResponse response, MultiMap initial, Supplier<MultiMap> target) {
+        this.response = response;
+        this.target = target;
+        this.copy.set(initial);
+    }
+
+    @Override
+    public synchronized String get(CharSequence name) {
+        return copy.get(name);
+    }
+
+    @Override
+    public synchronized String get(String name) {
+        return copy.get(name);
+    }
+
+    @Override
+    public synchronized List<String> getAll(String name) {
+        return copy.getAll(name);
+    }
+
+    @Override
+    public synchronized List<String> getAll(CharSequence name) {
+        return copy.getAll(name);
+    }
+
+    @Override
+    public synchronized List<Map.Entry<String, String>> entries() {
+        return copy.entries();
+    }
+
+    @Override
+    public synchronized boolean contains(String name) {
+        return copy.contains(name);
+    }
+
+    @Override
+    public synchronized boolean contains(CharSequence name) {
+        return copy.contains(name);
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return copy.isEmpty();
+    }
+
+    @Override
+    public synchronized Set<String> names() {
+        return copy.names();
+    }
+
+    @Override
+    public synchronized int size() {
+        return copy.size();
+    }
+
+    @Override
+    public synchronized Iterator<Map.Entry<String, String>> iterator() {
+        return copy.entries().iterator();
+    }
+
+    @Override
+    public synchronized MultiMap add(String name, String value) {
+        copy.add(name, value);
+        response.record(() -> target.get().add(name, value));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap add(CharSequence name, CharSequence value) {
+        copy.add(name, value);
+        response.record(() -> target.get().add(name, value));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap add(String name, Iterable<String> values) {
+        List<String> list = _list(values);
+        copy.add(name, list);
+        response.record(() -> target.get().add(name, list));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap add(CharSequence name, Iterable<CharSequence> values) {
+        List<CharSequence> list = _list(values);
+        copy.add(name, list);
+        response.record(() -> target.get().add(name, list));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap add(MultiMap map) {
+        MultiMap entries = new CaseInsensitiveMultiMap().set(map);
+        copy.add(entries);
+        response.record(() -> target.get().add(entries));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap add(Map<String, String> map) {
+        MultiMap entries = new CaseInsensitiveMultiMap().set(map);
+        copy.add(entries);
+        response.record(() -> target.get().add(entries));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap set(String name, String value) {
+        copy.set(name, value);
+        response.record(() -> target.get().set(name, value));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap set(CharSequence name, CharSequence value) {
+        copy.set(name, value);
+        response.record(() -> target.get().set(name, value));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap set(String name, Iterable<String> values) {
+        List<String> list = _list(values);
+        copy.set(name, list);
+        response.record(() -> target.get().set(name, list));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap set(CharSequence name, Iterable<CharSequence> values) {
+        List<CharSequence> list = _list(values);
+        copy.set(name, list);
+        response.record(() -> target.get().set(name, list));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap set(MultiMap map) {
+        MultiMap entries = new CaseInsensitiveMultiMap().set(map);
+        copy.set(entries);
+        response.record(() -> target.get().set(entries));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap set(Map<String, String> map) {
+        MultiMap entries = new CaseInsensitiveMultiMap().set(map);
+        copy.set(entries);
+        response.record(() -> target.get().set(entries));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap remove(String name) {
+        copy.remove(name);
+        response.record(() -> target.get().remove(name));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap remove(CharSequence name) {
+        copy.remove(name);
+        response.record(() -> target.get().remove(name));
+        return this;
+    }
+
+    @Override
+    public synchronized MultiMap clear() {
+        copy.clear();
+        response.record(() -> target.get().clear());
+        return this;
+    }
+
+    /**
+     * Change the copy only, for a put the response records itself
+     */
+    synchronized void local(String name, Iterable<? extends CharSequence> values) {
+        copy.remove(name);
+        for(CharSequence value : values) {
+            copy.add(name, value.toString());
+        }
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Copy values so a caller changing them later doesn't change what's replayed
+     */
+    private static <T> List<T> _list(Iterable<T> values) {
+        List<T> list = new ArrayList<>();
+        for(T value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -21,6 +21,7 @@ public class FileUpload {
     private final Charset charset;
     private final long size;
     private final String path;
+    private final UploadWriteStream stream;
 
     public FileUpload(Vertx vertx, HttpServerFileUpload fileUpload, String uploadDir) {
         this.fileSystem = vertx.fileSystem();
@@ -37,6 +38,24 @@ public class FileUpload {
         }
 
         this.path = uploadDir + UUID.randomUUID().toString();
+        this.stream = null;
+    }
+
+    /**
+     * Upload that is streamed into a StorageProvider instead of being saved into the upload
+     * directory, path() is null
+     */
+    public FileUpload(Vertx vertx, HttpServerFileUpload fileUpload, UploadWriteStream stream) {
+        this.fileSystem = vertx.fileSystem();
+
+        this.filename = fileUpload.filename();
+        this.name = fileUpload.name();
+        this.contentType = fileUpload.contentType();
+        this.contentTransferEncoding = fileUpload.contentTransferEncoding();
+        this.charset = fileUpload.charset();
+        this.size = fileUpload.size();
+        this.path = null;
+        this.stream = stream;
     }
 
     public FileUpload(FileSystem fileSystem, String filename, String name, String contentType,
@@ -49,6 +68,7 @@ public class FileUpload {
         this.charset = charset;
         this.size = size;
         this.path = path;
+        this.stream = null;
     }
 
     /**
@@ -100,7 +120,26 @@ public class FileUpload {
         return path;
     }
 
+    /**
+     * Returns the stream the upload is written into or null if it was saved to path()
+     */
+    public UploadWriteStream stream() {
+        return stream;
+    }
+
+    /**
+     * Returns true if the upload is streamed into a StorageProvider
+     */
+    public boolean streamed() {
+        return stream != null;
+    }
+
     public void delete(final Handler<Throwable> handler) {
+        if (streamed()) {
+            stream.abort();
+            handler.handle(null);
+            return;
+        }
         fileSystem.delete(path, new Handler<AsyncResult<Void>>() {
             @Override
             public void handle(AsyncResult<Void> result) {
@@ -0,0 +1,341 @@
+package cworks.treefs.server.core;
+
+import cworks.treefs.TreeFsClient;
+import cworks.treefs.provider.StorageProviderRegistry;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.logging.Logger;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static cworks.treefs.TreeFsValidation.isNull;
+
+/**
+ * Moves blocking HttpService work off the Vert.x event loop.  Storage providers walk file trees,
+ * parse JSON and make S3 SDK calls, none of which may run on the event loop without stalling
+ * every other connection bound to it.
+ *
+ * Services wrapped with {@link #dispatch(HttpService)} run on a bounded pool of dispatch threads.
+ * While a service runs its response is a {@link DeferredHttpResponse}, once it returns the
+ * recorded response operations and chain continuations are handed back to the event loop over
+ * a local event bus address and replayed there.
+ *
+ * A dispatched request for a client holds a lease on the client's storage manager while its
+ * service runs, so a hot reload of the client doesn't close the StorageProvider under it.
+ *
+ * Saturation is answered with 503 and a Retry-After header, either because the pool queue is
+ * full or because a single client already has perClientLimit requests queued or running.
+ *
+ * example use:
+ *
+ * HttpDispatcher dispatcher = new HttpDispatcher(vertx, 16, 256, 32, 1);
+ * module.use(new HttpRouter().get("/.*", dispatcher.dispatch(HttpServices.readPathService())));
+ *
+ * @author comartin
+ */
+public class HttpDispatcher {
+
+    /**
+     * Vert.x instance the dispatcher hands completed work back to
+     */
+    private final Vertx vertx;
+
+    /**
+     * Bounded pool that runs dispatched services
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * Pool that reads provider streams pumped into responses after the service has returned,
+     * each stream has at most one read queued so the queue is bounded by open streams
+     */
+    private final ThreadPoolExecutor streams;
+
+    /**
+     * Maximum requests a single client may have queued or running
+     */
+    private final int perClientLimit;
+
+    /**
+     * Seconds sent in the Retry-After header of a 503
+     */
+    private final int retryAfter;
+
+    /**
+     * Local event bus address completions are sent to, unique per dispatcher
+     */
+    private final String address;
+
+    /**
+     * Completions waiting to run on the event loop
+     */
+    private final Map<Long, Runnable> completions = new ConcurrentHashMap<>();
+
+    /**
+     * Runs completions sent to address, registered on the event loop that created the dispatcher
+     */
+    private final Handler<Message<Long>> completionHandler = new Handler<Message<Long>>() {
+        @Override
+        public void handle(Message<Long> message) {
+            Runnable completion = completions.remove(message.body());
+            if(!isNull(completion)) {
+                completion.run();
+            }
+        }
+    };
+
+    /**
+     * Requests queued or running per client id
+     */
+    private final Map<String, AtomicInteger> clients = new ConcurrentHashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Renders errors raised by dispatched services and 503 responses
+     */
+    private final ErrorHandler errorHandler = new ErrorHandler(false);
+
+    /**
+     * Create a dispatcher, must be called from the event loop the completions should run on
+     * (i.e. from Verticle.start)
+     *
+     * @param vertx the Vert.x instance
+     * @param threads number of dispatch threads
+     * @param queueSize requests that may wait for a dispatch thread before 503 is returned
+     * @param perClientLimit requests a single client may have queued or running
+     * @param retryAfter seconds a client is told to wait when a 503 is returned
+     */
+    public HttpDispatcher(Vertx vertx, int threads, int queueSize, int perClientLimit, int retryAfter) {
+        this.vertx = vertx;
+        this.perClientLimit = perClientLimit;
+        this.retryAfter = retryAfter;
+        this.address = "treefs.dispatcher." + UUID.randomUUID().toString();
+        this.pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), _threadFactory("treefs-dispatch-"));
+        this.streams = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), _threadFactory("treefs-stream-"));
+
+        // local handler runs on the context of the caller, which is the verticle's event loop
+        vertx.eventBus().registerLocalHandler(address, completionHandler);
+    }
+
+    /**
+     * Wrap a HttpService so that it runs on this dispatcher's pool
+     * @param service the blocking HttpService
+     * @return HttpService to register in the chain in place of service
+     */
+    public HttpService dispatch(HttpService service) {
+        return new DispatchedHttpService(service);
+    }
+
+    /**
+     * Executor for blocking reads that outlive a dispatched service, i.e. reading a provider
+     * stream that is being pumped into a response
+     * @return
+     */
+    public Executor blocking() {
+        return streams;
+    }
+
+    /**
+     * Executor that runs tasks on the event loop this dispatcher was created on
+     * @return
+     */
+    public Executor loop() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                _complete(task);
+            }
+        };
+    }
+
+    /**
+     * Number of requests queued or running
+     * @return
+     */
+    public int pending() {
+        return pool.getQueue().size() + pool.getActiveCount();
+    }
+
+    /**
+     * Stop accepting work and let in-flight requests finish
+     */
+    public void shutdown() {
+        pool.shutdown();
+        streams.shutdown();
+        vertx.eventBus().unregisterHandler(address, completionHandler);
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    private ThreadFactory _threadFactory(final String prefix) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Key used to account requests per client
+     */
+    private String _clientKey(HttpRequest request) {
+        Object client = request.get("client");
+        if(client instanceof TreeFsClient) {
+            return ((TreeFsClient)client).id();
+        }
+        return request.ip();
+    }
+
+    /**
+     * Count a request in for a client
+     * @return the client's count, already incremented
+     */
+    private AtomicInteger _enter(String clientKey) {
+        while(true) {
+            AtomicInteger count = clients.computeIfAbsent(clientKey, key -> new AtomicInteger());
+            int inFlight = count.get();
+            if(inFlight < 0) {
+                // the last request out retired this count, make sure it's gone and take a new one
+                clients.remove(clientKey, count);
+            } else if(count.compareAndSet(inFlight, inFlight + 1)) {
+                return count;
+            }
+        }
+    }
+
+    /**
+     * Count a request out for a client, the count is dropped from clients once nothing is in
+     * flight so idle clients don't pile up
+     */
+    private void _leave(String clientKey, AtomicInteger count) {
+        if(count.decrementAndGet() == 0 && count.compareAndSet(0, -1)) {
+            clients.remove(clientKey, count);
+        }
+    }
+
+    /**
+     * Lease the storage manager of the request's client for the dispatch thread, null if the
+     * request has no client or the client has no StorageProvider
+     */
+    private StorageProviderRegistry.Lease _lease(HttpRequest request) {
+        Object client = request.get("client");
+        if(client instanceof TreeFsClient) {
+            return StorageProviderRegistry.lease((TreeFsClient)client, true);
+        }
+        return null;
+    }
+
+    /**
+     * Hand a completion back to the event loop
+     */
+    private void _complete(Runnable completion) {
+        Long id = sequence.incrementAndGet();
+        completions.put(id, completion);
+        vertx.eventBus().send(address, id);
+    }
+
+    /**
+     * Answer a request with 503 and Retry-After, called on the event loop
+     */
+    private void _unavailable(HttpRequest request, Handler<HttpService> next, String message) {
+        request.response().setStatusCode(503);
+        request.response().putHeader("Retry-After", String.valueOf(retryAfter));
+        request.put("error", new HttpException(503, message));
+        errorHandler.handle(request, next);
+    }
+
+    /**
+     * HttpService that runs a wrapped service on the dispatch pool
+     */
+    private class DispatchedHttpService extends HttpService {
+
+        private final HttpService service;
+
+        DispatchedHttpService(HttpService service) {
+            this.service = service;
+        }
+
+        @Override
+        public HttpService init(Vertx vertx, Logger logger, String mount) {
+            super.init(vertx, logger, mount);
+            service.init(vertx, logger, mount);
+            return this;
+        }
+
+        @Override
+        public void handle(final HttpRequest request, final Handler<HttpService> next) {
+            final String clientKey = _clientKey(request);
+            final AtomicInteger inFlight = _enter(clientKey);
+            if(inFlight.get() > perClientLimit) {
+                _leave(clientKey, inFlight);
+                _unavailable(request, next, "too many requests in progress for client: " + clientKey);
+                return;
+            }
+
+            final DeferredHttpResponse deferred = new DeferredHttpResponse(request.response(), loop());
+            final HttpRequest dispatched = new HttpRequest(request, deferred);
+            // lets services hand blocking reads and loop work back to this dispatcher
+            dispatched.put("dispatcher", HttpDispatcher.this);
+            // the chain continuation is recorded along with the response so it runs after the
+            // response operations the service made before calling next
+            final Handler<HttpService> deferredNext = new Handler<HttpService>() {
+                @Override
+                public void handle(final HttpService service) {
+                    deferred.record(() -> next.handle(service));
+                }
+            };
+
+            try {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        StorageProviderRegistry.Lease lease = null;
+                        try {
+                            lease = _lease(request);
+                            service.handle(dispatched, deferredNext);
+                        } catch(final Throwable ex) {
+                            if(!deferred.ended()) {
+                                deferred.record(() -> {
+                                    request.put("error", ex);
+                                    errorHandler.handle(request, next);
+                                });
+                            } else {
+                                logger.error("error after response ended: " + request.id(), ex);
+                            }
+                        } finally {
+                            if(!isNull(lease)) {
+                                lease.close();
+                            }
+                            _leave(clientKey, inFlight);
+                            _complete(deferred::replay);
+                        }
+                    }
+                });
+            } catch(RejectedExecutionException ex) {
+                _leave(clientKey, inFlight);
+                _unavailable(request, next, "server busy, try again later");
+            }
+        }
+    }
+}
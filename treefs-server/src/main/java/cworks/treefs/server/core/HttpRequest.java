@@ -88,6 +88,21 @@ public class HttpRequest implements HttpServerRequest {
         this(request.request, request.response, request.secure, request.context);
     }
 
+    /**
+     * package-private copy of a request that answers through a different response, the
+     * parsed body, uploaded files and method carry over to the copy
+     * @param request request to copy
+     * @param response response the copy answers through
+     */
+    HttpRequest(HttpRequest request, HttpResponse response) {
+        this(request.request, response, request.secure, request.context);
+        this.method = request.method;
+        this.bodyLengthLimit = request.bodyLengthLimit;
+        this.body = request.body;
+        this.files = request.files;
+        this.expectMultiPartCalled = request.expectMultiPartCalled;
+    }
+
     /**
      * Getting properties from the context in a general way
      * @param name of property
@@ -402,6 +417,26 @@ public class HttpRequest implements HttpServerRequest {
         return value;
     }
 
+    /**
+     * Get a whole number parameter and return defaultValue if parameter does not exist
+     * @param name
+     * @param defaultValue
+     * @return
+     * @throws HttpException 400 if the parameter isn't a whole number
+     */
+    public int getIntParameter(String name, int defaultValue) {
+        String value = getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new HttpException(400, name + " must be a whole number: " + value);
+        }
+    }
+
     /**
      * Get all parameters for a given name
      * @param name
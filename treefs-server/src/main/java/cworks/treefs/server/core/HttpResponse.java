@@ -55,6 +55,11 @@ public class HttpResponse implements HttpServerResponse {
      */
     protected List<Handler<Void>> endHandler;
 
+    /**
+     * handlers called when the connection closes, shared with the responses wrapping this one
+     */
+    protected final List<Handler<Void>> closeHandler;
+
     /**
      * writer filter
      */
@@ -73,6 +78,7 @@ public class HttpResponse implements HttpServerResponse {
     public HttpResponse(HttpServerResponse response, Map<String, Object> context) {
         this.response = response;
         this.context = context;
+        this.closeHandler = new ArrayList<>();
     }
 
     /**
@@ -80,7 +86,9 @@ public class HttpResponse implements HttpServerResponse {
      * @param response http response
      */
     public HttpResponse(HttpResponse response) {
-        this(response.response, response.context);
+        this.response = response.response;
+        this.context = response.context;
+        this.closeHandler = response.closeHandler;
     }
 
     /**
@@ -333,12 +341,42 @@ public class HttpResponse implements HttpServerResponse {
         return this;
     }
 
+    /**
+     * Add a handler called if the connection closes before the response has ended.  Unlike the
+     * vertx response it doesn't replace the handlers added before, the service, each streamed
+     * upload and a file being sent all get to clean up after themselves.
+     * @param handler close handler
+     * @return response instance
+     */
     @Override
     public HttpResponse closeHandler(Handler<Void> handler) {
-        response.closeHandler(handler);
+        if (handler == null) {
+            return this;
+        }
+        synchronized (closeHandler) {
+            if (closeHandler.isEmpty()) {
+                response.closeHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        triggerCloseHandlers();
+                    }
+                });
+            }
+            closeHandler.add(handler);
+        }
         return this;
     }
 
+    private void triggerCloseHandlers() {
+        List<Handler<Void>> handlers;
+        synchronized (closeHandler) {
+            handlers = new ArrayList<>(closeHandler);
+        }
+        for (Handler<Void> handler : handlers) {
+            handler.handle(null);
+        }
+    }
+
     @Override
     public HttpResponse write(Buffer chunk) {
         hasBody = true;
@@ -436,8 +474,11 @@ public class HttpResponse implements HttpServerResponse {
         // TODO: filter stream?
         hasBody = true;
         filter = null;
+        // length of a stream isn't known up front unless the caller set it
+        if(!response.headers().contains("Content-Length")) {
+            response.setChunked(true);
+        }
         triggerHeadersHandlers();
-        Pump.createPump(stream, response).start();
         stream.endHandler(new Handler<Void>() {
             @Override
             public void handle(Void event) {
@@ -445,6 +486,15 @@ public class HttpResponse implements HttpServerResponse {
                 triggerEndHandlers();
             }
         });
+        // headers are already out, so a failed stream can only be reported by dropping the
+        // connection, the client then sees a truncated body instead of a complete one
+        stream.exceptionHandler(new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable ex) {
+                response.close();
+            }
+        });
+        Pump.createPump(stream, response).start();
     }
 
     @Override
@@ -454,6 +504,16 @@ public class HttpResponse implements HttpServerResponse {
         triggerEndHandlers();
     }
 
+    /**
+     * Send what has been written so far to the client before the response ends.  Writes already
+     * go straight out on the event loop so this is a no-op, a response written from a dispatch
+     * thread sends its recorded writes and waits for the connection to drain.
+     * @return false if the client stopped taking writes and the response should be given up on
+     */
+    public boolean flush() {
+        return true;
+    }
+
     /**
      * Tell vertx to stream a file as specified by {@code filename} directly from disk to the
      * outgoing connection, bypassing memory altogether (where supported by the underlying OS)
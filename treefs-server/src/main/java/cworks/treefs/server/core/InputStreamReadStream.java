@@ -0,0 +1,200 @@
+package cworks.treefs.server.core;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.streams.ReadStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import static cworks.treefs.TreeFsValidation.isNull;
+import static cworks.treefs.common.IOUtils.closeQuietly;
+
+/**
+ * Vert.x ReadStream over a blocking InputStream so provider content can be pumped into a response
+ * without staging it on disk first.
+ *
+ * Reads happen one chunk at a time on the reader Executor, each chunk is handed back to the event
+ * loop through the loop Executor and delivered to the dataHandler there.  The next chunk is only
+ * read once the previous one was delivered and the stream isn't paused, so a Pump that pauses
+ * while the response's write queue is full (writeQueueFull/drainHandler) stops the reads too and
+ * at most one chunk per stream is ever held in memory.
+ *
+ * The InputStream is closed when it is exhausted, when reading fails or when {@link #close()} is
+ * called.
+ *
+ * example use:
+ *
+ * response.setChunked(true);
+ * response.end(new InputStreamReadStream(in, dispatcher.blocking(), dispatcher.loop()));
+ *
+ * @author comartin
+ */
+public class InputStreamReadStream implements ReadStream<InputStreamReadStream> {
+
+    /**
+     * Default size of a chunk read from the InputStream
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final InputStream in;
+
+    private final Executor reader;
+
+    private final Executor loop;
+
+    private final int chunkSize;
+
+    private Handler<Buffer> dataHandler;
+
+    private Handler<Void> endHandler;
+
+    private Handler<Throwable> exceptionHandler;
+
+    /**
+     * the following are only touched from the event loop
+     */
+    private boolean paused = false;
+
+    private boolean reading = false;
+
+    private boolean closed = false;
+
+    public InputStreamReadStream(InputStream in, Executor reader, Executor loop) {
+        this(in, reader, loop, DEFAULT_CHUNK_SIZE);
+    }
+
+    public InputStreamReadStream(InputStream in, Executor reader, Executor loop, int chunkSize) {
+        this.in = in;
+        this.reader = reader;
+        this.loop = loop;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public InputStreamReadStream dataHandler(Handler<Buffer> handler) {
+        this.dataHandler = handler;
+        _readNext();
+        return this;
+    }
+
+    @Override
+    public InputStreamReadStream pause() {
+        this.paused = true;
+        return this;
+    }
+
+    @Override
+    public InputStreamReadStream resume() {
+        this.paused = false;
+        _readNext();
+        return this;
+    }
+
+    @Override
+    public InputStreamReadStream endHandler(Handler<Void> handler) {
+        this.endHandler = handler;
+        return this;
+    }
+
+    @Override
+    public InputStreamReadStream exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    /**
+     * Stop reading and close the InputStream, i.e. when the client connection goes away
+     */
+    public void close() {
+        closed = true;
+        closeQuietly(in);
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Read the next chunk on the reader if nothing is in flight and the consumer wants data
+     */
+    private void _readNext() {
+        if(paused || reading || closed || isNull(dataHandler)) {
+            return;
+        }
+        reading = true;
+        reader.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[chunkSize];
+                try {
+                    final int read = _fill(chunk);
+                    final byte[] data = read < chunkSize ? Arrays.copyOf(chunk, Math.max(read, 0)) : chunk;
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            _deliver(data, read < chunkSize);
+                        }
+                    });
+                } catch(final Exception ex) {
+                    // runtime exceptions too, i.e. a provider failing to open a later part
+                    closeQuietly(in);
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            _fail(ex);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Fill chunk from the InputStream, short only at end of stream
+     * @return number of bytes read, -1 when the stream was already exhausted
+     */
+    private int _fill(byte[] chunk) throws IOException {
+        int total = 0;
+        while(total < chunk.length) {
+            int read = in.read(chunk, total, chunk.length - total);
+            if(read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Hand a chunk to the dataHandler on the event loop and continue or finish
+     */
+    private void _deliver(byte[] data, boolean last) {
+        reading = false;
+        if(closed) {
+            return;
+        }
+        if(data.length > 0) {
+            dataHandler.handle(new Buffer(data));
+        }
+        if(last) {
+            closed = true;
+            closeQuietly(in);
+            if(!isNull(endHandler)) {
+                endHandler.handle(null);
+            }
+        } else {
+            _readNext();
+        }
+    }
+
+    private void _fail(Throwable ex) {
+        reading = false;
+        closed = true;
+        if(!isNull(exceptionHandler)) {
+            exceptionHandler.handle(ex);
+        }
+    }
+}
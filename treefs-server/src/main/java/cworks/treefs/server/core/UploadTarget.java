@@ -0,0 +1,22 @@
+package cworks.treefs.server.core;
+
+import org.vertx.java.core.http.HttpServerFileUpload;
+
+/**
+ * Decides where {@link BodyParser} sends an uploaded file.  A target that returns a stream has
+ * the upload pumped straight into it, otherwise the upload is saved into the upload directory.
+ *
+ * @author comartin
+ */
+public interface UploadTarget {
+
+    /**
+     * Open a stream for an upload that is about to be received, called on the event loop so it
+     * must not block
+     * @param request request carrying the upload
+     * @param fileUpload the upload
+     * @param mount the mount of the BodyParser receiving the upload
+     * @return the stream to write the upload into or null to save it into the upload directory
+     */
+    UploadWriteStream open(HttpRequest request, HttpServerFileUpload fileUpload, String mount);
+}
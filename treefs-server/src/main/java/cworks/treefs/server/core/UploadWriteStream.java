@@ -0,0 +1,270 @@
+package cworks.treefs.server.core;
+
+import cworks.treefs.TreeFsException;
+import cworks.treefs.spi.TreeFileWriter;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.streams.WriteStream;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static cworks.treefs.TreeFsValidation.isNull;
+
+/**
+ * Vert.x WriteStream into a StorageProvider's {@link TreeFileWriter} so an upload can be pumped
+ * straight into the provider instead of being staged on disk and copied in afterwards.
+ *
+ * Buffers written on the event loop are queued and written to the TreeFileWriter in order, one at
+ * a time, on the writer Executor.  The queue reports writeQueueFull once maxSize bytes are
+ * waiting, a Pump then pauses the upload (and with it the socket) and the drainHandler is called
+ * back on the event loop when the queue is down to half of maxSize.
+ *
+ * The service handling the request calls {@link #await()} from a dispatch thread, once it returns
+ * every buffer is in the TreeFileWriter and the writer can be committed.
+ *
+ * example use:
+ *
+ * UploadWriteStream stream = new UploadWriteStream(writer, dispatcher.blocking(), dispatcher.loop());
+ * fileUpload.endHandler(...stream.end()...);
+ * Pump.createPump(fileUpload, stream).start();
+ *
+ * @author comartin
+ */
+public class UploadWriteStream implements WriteStream<UploadWriteStream> {
+
+    /**
+     * Default number of queued bytes at which the queue is full
+     */
+    public static final int DEFAULT_WRITE_QUEUE_MAX_SIZE = 1024 * 1024;
+
+    private final TreeFileWriter writer;
+
+    private final Executor blocking;
+
+    private final Executor loop;
+
+    private final Object lock = new Object();
+
+    /**
+     * the following are guarded by lock
+     */
+    private final Queue<byte[]> queue = new ArrayDeque<>();
+
+    private long queued = 0L;
+
+    private int maxSize = DEFAULT_WRITE_QUEUE_MAX_SIZE;
+
+    private boolean writing = false;
+
+    private boolean waiting = false;
+
+    private boolean ended = false;
+
+    private boolean aborted = false;
+
+    private Throwable failure = null;
+
+    private Handler<Void> drainHandler;
+
+    private Handler<Throwable> exceptionHandler;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            _drain();
+        }
+    };
+
+    public UploadWriteStream(TreeFileWriter writer, Executor blocking, Executor loop) {
+        this.writer = writer;
+        this.blocking = blocking;
+        this.loop = loop;
+    }
+
+    /**
+     * The TreeFileWriter this stream writes into
+     */
+    public TreeFileWriter writer() {
+        return writer;
+    }
+
+    @Override
+    public UploadWriteStream write(Buffer data) {
+        byte[] bytes = data.getBytes();
+        synchronized(lock) {
+            if(ended || aborted || !isNull(failure)) {
+                return this;
+            }
+            queue.add(bytes);
+            queued += bytes.length;
+            if(!writing) {
+                writing = true;
+                blocking.execute(drain);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public UploadWriteStream setWriteQueueMaxSize(int maxSize) {
+        synchronized(lock) {
+            this.maxSize = maxSize;
+        }
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        synchronized(lock) {
+            if(aborted || !isNull(failure)) {
+                // let the rest of the upload through, it's discarded by write
+                return false;
+            }
+            if(queued >= maxSize) {
+                waiting = true;
+            }
+            return waiting;
+        }
+    }
+
+    @Override
+    public UploadWriteStream drainHandler(Handler<Void> handler) {
+        synchronized(lock) {
+            this.drainHandler = handler;
+            // the queue may have drained between writeQueueFull and setting the handler
+            _drained();
+        }
+        return this;
+    }
+
+    @Override
+    public UploadWriteStream exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    /**
+     * No more data will be written, called when the upload ends
+     */
+    public void end() {
+        synchronized(lock) {
+            ended = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Give up on the upload and discard what was written, i.e. when the client goes away or the
+     * file could not be committed.  Does nothing to a writer that was already committed.
+     */
+    public void abort() {
+        synchronized(lock) {
+            aborted = true;
+            queue.clear();
+            queued = 0L;
+            lock.notifyAll();
+            _drained();
+            if(writing) {
+                // the drain thread aborts the writer once the current write returns
+                return;
+            }
+        }
+        writer.abort();
+    }
+
+    /**
+     * Block until the upload has ended and every buffer is written to the TreeFileWriter
+     * @throws TreeFsException if a write failed or the stream was aborted
+     */
+    public void await() {
+        synchronized(lock) {
+            try {
+                while(isNull(failure) && !aborted && (!ended || writing)) {
+                    lock.wait();
+                }
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new TreeFsException("interrupted waiting for upload", ex);
+            }
+            if(!isNull(failure)) {
+                throw new TreeFsException("upload failed", failure);
+            }
+            if(aborted) {
+                throw new TreeFsException("upload was aborted");
+            }
+        }
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Write queued buffers until the queue is empty, runs on the blocking Executor
+     */
+    private void _drain() {
+        while(true) {
+            byte[] bytes;
+            synchronized(lock) {
+                bytes = queue.poll();
+                if(isNull(bytes) || aborted) {
+                    writing = false;
+                    lock.notifyAll();
+                    if(aborted) {
+                        break;
+                    }
+                    return;
+                }
+            }
+
+            try {
+                writer.write(bytes, 0, bytes.length);
+            } catch(final Exception ex) {
+                synchronized(lock) {
+                    failure = ex;
+                    queue.clear();
+                    queued = 0L;
+                    writing = false;
+                    lock.notifyAll();
+                    _drained();
+                }
+                final Handler<Throwable> handler = exceptionHandler;
+                if(!isNull(handler)) {
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            handler.handle(ex);
+                        }
+                    });
+                }
+                return;
+            }
+
+            synchronized(lock) {
+                queued -= bytes.length;
+                _drained();
+            }
+        }
+        writer.abort();
+    }
+
+    /**
+     * Call the drainHandler on the event loop if the Pump is waiting and the queue is down to
+     * half of maxSize, called holding lock
+     */
+    private void _drained() {
+        if(!waiting || isNull(drainHandler) || queued > maxSize / 2) {
+            return;
+        }
+        waiting = false;
+        final Handler<Void> handler = drainHandler;
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                handler.handle(null);
+            }
+        });
+    }
+}
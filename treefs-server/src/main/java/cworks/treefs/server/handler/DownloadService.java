@@ -6,6 +6,7 @@ import cworks.treefs.TreeFsValidation;
 import cworks.treefs.server.core.HttpRequest;
 import cworks.treefs.TreeFsClient;
 import cworks.treefs.server.core.HttpService;
+import cworks.treefs.spi.TreeStat;
 import org.vertx.java.core.Handler;
 
 /**
@@ -26,10 +27,15 @@ public class DownloadService extends HttpService {
             next.handle(null);
         }
 
+        TreeStat stat = TreeFs.storageManager(client).stat(payload.getString("path"));
+        if(!stat.isFile()) {
+            event.response().setStatusCode(404).end();
+            return;
+        }
+
         /*
          * send file to client...
          */
-        event.response().sendFile(TreeFs.storageManager(client)
-            .retrieveFile(payload.getString("path")));
+        FileSender.send(client, event, stat);
     }
 }
@@ -1,14 +1,21 @@
 package cworks.treefs.server.handler;
 
+import cworks.json.Json;
 import cworks.json.JsonObject;
 import cworks.treefs.TreeFs;
 import cworks.treefs.TreeFsClient;
 import cworks.treefs.TreeFsType;
 import cworks.treefs.TreeFsValidation;
+import cworks.treefs.domain.TreeFsFactory;
 import cworks.treefs.domain.TreeFsFolder;
 import cworks.treefs.domain.TreeFsPath;
+import cworks.treefs.provider.TreeFsStorageManager;
 import cworks.treefs.server.core.HttpRequest;
+import cworks.treefs.server.core.HttpResponse;
 import cworks.treefs.server.core.HttpService;
+import cworks.treefs.spi.TreeListing;
+import cworks.treefs.spi.TreePath;
+import cworks.treefs.spi.TreeStat;
 import org.vertx.java.core.Handler;
 
 /**
@@ -23,6 +30,21 @@ import org.vertx.java.core.Handler;
  */
 public class FetchPathService extends HttpService {
 
+    /**
+     * Items in a page of a folder listing when the request has a cursor but no limit
+     */
+    private static final int DEFAULT_LIMIT = 1000;
+
+    /**
+     * Most items a request can ask for in a page of a folder listing
+     */
+    private static final int MAX_LIMIT = 10000;
+
+    /**
+     * Items written between flushes of a folder listing
+     */
+    private static final int FLUSH_EVERY = 100;
+
     /**
      * Called by the HttpModule framework
      * @param request
@@ -40,17 +62,25 @@ public class FetchPathService extends HttpService {
             next.handle(null);
         }
 
-        TreeFsType treeFsType = TreeFs.storageManager(client).typeOf(data.getString("path"));
+        // one stat answers what the path is and everything sending it needs
+        TreeFsStorageManager manager = TreeFs.storageManager(client);
+        TreeStat stat = manager.stat(data.getString("path"));
+        TreeFsType treeFsType = manager.typeOf(stat);
         switch(treeFsType) {
             case FOLDER: {
-                TreeFsPath treefsPath = fetchFolder(client, request, data);
+                if(!TreeFsValidation.isNull(request.getParameter("limit", null))
+                    || !TreeFsValidation.isNull(request.getParameter("cursor", null))) {
+                    listFolder(client, request, data);
+                    break;
+                }
+                TreeFsPath treefsPath = fetchFolder(client, request, data, stat);
                 if(!TreeFsValidation.isNull(treefsPath)) {
                     request.response().end(treefsPath);
                 }
                 break;
             }
             case FILE: {
-                fetchFile(client, request, data);
+                fetchFile(client, request, stat);
                 break;
             }
             default: {
@@ -66,13 +96,11 @@ public class FetchPathService extends HttpService {
      * package-private method used to pull back a file for the given client
      * @param client treefs client
      * @param request api request for a file
-     * @param data parameters from the request
+     * @param stat stat of the file
      */
-    void fetchFile(TreeFsClient client, HttpRequest request, JsonObject data) {
+    void fetchFile(TreeFsClient client, HttpRequest request, TreeStat stat) {
 
-        request.response()
-            .sendFile(TreeFs.storageManager(client)
-            .retrieveFile(data.getString("path")));
+        FileSender.send(client, request, stat);
 
     }
 
@@ -81,25 +109,71 @@ public class FetchPathService extends HttpService {
      * @param client treefs client
      * @param request api request for a folder
      * @param data parameters from the request
+     * @param stat stat of the folder
      * @return TreeFsFolder instance
      */
-    TreeFsPath fetchFolder(TreeFsClient client, HttpRequest request, JsonObject data) {
+    TreeFsPath fetchFolder(TreeFsClient client, HttpRequest request, JsonObject data, TreeStat stat) {
 
-        String depth       = request.getParameter("depth", "-1");
+        int depth          = request.getIntParameter("depth", -1);
         String filter      = request.getParameter("filter", null);
         String foldersOnly = request.getParameter("foldersOnly", "false");
         String filesOnly   = request.getParameter("filesOnly", "false");
         String recursive   = request.getParameter("recursive", "false");
 
-        data.setNumber("depth", Integer.parseInt(depth));
+        data.setNumber("depth", depth);
         data.setString("filter", filter);
         data.setBoolean("foldersOnly", Boolean.parseBoolean(foldersOnly));
         data.setBoolean("filesOnly", Boolean.parseBoolean(filesOnly));
         data.setBoolean("recursive", Boolean.parseBoolean(recursive));
 
-        TreeFsFolder folder = TreeFs.storageManager(client).retrieveFolder(
-            data.getString("path"), data);
+        TreeFsFolder folder = TreeFs.storageManager(client).retrieveFolder(stat, data);
 
         return folder;
     }
+
+    /**
+     * package-private method used to stream one page of the items directly in a folder, so a
+     * folder with millions of items never has to be loaded at once.  The body is written as items
+     * are listed:
+     *
+     * {"path":"/folder","items":[{...},{...}],"cursor":"..."}
+     *
+     * pass cursor back as the cursor parameter to get the next page, it's null on the last page.
+     * A limit that isn't a whole number is a 400.
+     *
+     * @param client treefs client
+     * @param request api request for a folder with a limit and/or cursor parameter
+     * @param data parameters from the request
+     */
+    void listFolder(TreeFsClient client, HttpRequest request, JsonObject data) {
+
+        int limit     = request.getIntParameter("limit", DEFAULT_LIMIT);
+        String cursor = request.getParameter("cursor", null);
+
+        data.setNumber("limit", Math.max(1, Math.min(MAX_LIMIT, limit)));
+        data.setString("cursor", cursor);
+
+        try(TreeListing listing = TreeFs.storageManager(client).listFolder(
+            data.getString("path"), cursor, data.getInteger("limit", DEFAULT_LIMIT))) {
+
+            HttpResponse response = request.response();
+            response.setContentType("application/json", "UTF-8");
+            response.setChunked(true);
+            response.write("{\"path\":" + Json.asString(data.getString("path")) + ",\"items\":[");
+            int listed = 0;
+            for(TreePath item : listing) {
+                if(listed > 0) {
+                    response.write(",");
+                }
+                response.write(TreeFsFactory.path(item).toString());
+                listed++;
+                // send what's been listed so far, give up if the client went away
+                if(listed % FLUSH_EVERY == 0 && !response.flush()) {
+                    break;
+                }
+            }
+            String next = listing.cursor();
+            response.end("],\"cursor\":" + (TreeFsValidation.isNull(next) ? "null" : Json.asString(next)) + "}");
+        }
+    }
 }
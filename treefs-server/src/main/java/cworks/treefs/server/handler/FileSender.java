@@ -0,0 +1,327 @@
+package cworks.treefs.server.handler;
+
+import cworks.treefs.TreeFs;
+import cworks.treefs.TreeFsClient;
+import cworks.treefs.provider.StorageProviderRegistry;
+import cworks.treefs.provider.TreeFsStorageManager;
+import cworks.treefs.server.core.ByteRange;
+import cworks.treefs.server.core.HttpDispatcher;
+import cworks.treefs.server.core.HttpRequest;
+import cworks.treefs.server.core.HttpResponse;
+import cworks.treefs.server.core.InputStreamReadStream;
+import cworks.treefs.server.core.MimeType;
+import cworks.treefs.spi.TreeStat;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import static cworks.treefs.TreeFsValidation.isNull;
+import static cworks.treefs.TreeFsValidation.isNullOrEmpty;
+import static cworks.treefs.common.IOUtils.closeQuietly;
+
+/**
+ * Sends file content from a StorageProvider to the client without staging a copy on disk.
+ *
+ * 1. if the provider stores the file locally the file itself is handed to sendFile, which lets
+ *    the OS copy it straight to the socket
+ * 2. otherwise the provider's InputStream is pumped into the response, reads happen on the
+ *    dispatcher and pause while the response's write queue is full
+ *
+ * Every file response carries an ETag and Last-Modified, If-None-Match and If-Modified-Since are
+ * answered with 304.  Range requests are answered with 206 (single range or multipart/byteranges)
+ * or 416 and are read from the provider with ranged reads so only the requested bytes move.
+ *
+ * The ETag is the file's checksum when the provider has one, otherwise a weak ETag made from
+ * size and lastModifiedTime.
+ *
+ * @author comartin
+ */
+final class FileSender {
+
+    /**
+     * IMF-fixdate, RFC_1123_DATE_TIME alone would format single digit days without padding
+     */
+    private static final DateTimeFormatter HTTP_DATE =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static final String CRLF = "\r\n";
+
+    private FileSender() { }
+
+    /**
+     * Send the content of a file to the client, the headers come from the stat the caller
+     * already made so the file isn't looked up again
+     * @param client treefs client
+     * @param request request for the file
+     * @param info stat of the file
+     */
+    static void send(TreeFsClient client, HttpRequest request, TreeStat info) {
+
+        TreeFsStorageManager manager = TreeFs.storageManager(client);
+        HttpResponse response = request.response();
+
+        String path = info.path().toString();
+        long size = info.size();
+        Date lastModified = info.lastModifiedTime();
+        String etag = _etag(info, size);
+        if(!isNull(etag)) {
+            response.putHeader("ETag", etag);
+        }
+        if(!isNull(lastModified)) {
+            response.putHeader("Last-Modified", _formatDate(lastModified));
+        }
+
+        if(_notModified(request, etag, lastModified)) {
+            response.setStatusCode(304).end();
+            return;
+        }
+
+        String mime = MimeType.getMime(Paths.get(path).getFileName().toString());
+        List<ByteRange> ranges = null;
+        if(size >= 0) {
+            response.putHeader("Accept-Ranges", "bytes");
+            if(_ifRange(request, etag, lastModified)) {
+                ranges = ByteRange.parse(request.getHeader("Range"), size);
+            }
+        }
+
+        if(isNull(ranges)) {
+            _sendAll(manager, request, path, mime);
+        } else if(ranges.isEmpty()) {
+            response.putHeader("Content-Range", "bytes */" + size);
+            response.setStatusCode(416).end();
+        } else if(ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setStatusCode(206);
+            response.setContentType(mime, MimeType.getCharset(mime, null));
+            response.putHeader("Content-Range", range.contentRange(size));
+            response.putHeader("Content-Length", String.valueOf(range.length()));
+            _stream(request, manager.openFile(path, range.start(), range.length()));
+        } else {
+            _sendRanges(manager, request, path, mime, size, ranges);
+        }
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Send the whole file, straight from disk when the provider stores it locally
+     */
+    private static void _sendAll(TreeFsStorageManager manager,
+        HttpRequest request, String path, String mime) {
+
+        File local = manager.localFile(path);
+        if(!isNull(local)) {
+            request.response().sendFile(local.getPath());
+            return;
+        }
+
+        request.response().setContentType(mime, MimeType.getCharset(mime, null));
+        _stream(request, manager.openFile(path));
+    }
+
+    /**
+     * Send several ranges as one multipart/byteranges body, each part is read from the provider
+     * only when the previous part has been sent
+     */
+    private static void _sendRanges(final TreeFsStorageManager manager, HttpRequest request,
+        final String path, String mime, long size, final List<ByteRange> ranges) {
+
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        final byte[][] headers = new byte[ranges.size()][];
+        long length = 0;
+        for(int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            String header = (i == 0 ? "" : CRLF) + "--" + boundary + CRLF
+                + "Content-Type: " + mime + CRLF
+                + "Content-Range: " + range.contentRange(size) + CRLF + CRLF;
+            headers[i] = header.getBytes(StandardCharsets.US_ASCII);
+            length += headers[i].length + range.length();
+        }
+        final byte[] trailer = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+        length += trailer.length;
+
+        HttpResponse response = request.response();
+        response.setStatusCode(206);
+        response.putHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        response.putHeader("Content-Length", String.valueOf(length));
+
+        Enumeration<InputStream> parts = new Enumeration<InputStream>() {
+            private int next = 0;
+            @Override
+            public boolean hasMoreElements() {
+                return next <= ranges.size() * 2;
+            }
+            @Override
+            public InputStream nextElement() {
+                int part = next++;
+                if(part == ranges.size() * 2) {
+                    return new ByteArrayInputStream(trailer);
+                }
+                if(part % 2 == 0) {
+                    return new ByteArrayInputStream(headers[part / 2]);
+                }
+                ByteRange range = ranges.get(part / 2);
+                return manager.openFile(path, range.start(), range.length());
+            }
+        };
+        _stream(request, new SequenceInputStream(parts));
+    }
+
+    /**
+     * Pump in into the response, on the dispatcher when there is one
+     */
+    private static void _stream(HttpRequest request, InputStream in) {
+        HttpResponse response = request.response();
+        HttpDispatcher dispatcher = request.get("dispatcher");
+        if(isNull(dispatcher)) {
+            // not dispatched, so we're already blocking the caller, copy straight through
+            _copy(in, response);
+            return;
+        }
+
+        // keeps the provider open until the stream is exhausted or the client goes away, the
+        // dispatcher's own lease ends when the service returns
+        TreeFsClient client = request.get("client");
+        final StorageProviderRegistry.Lease lease = isNull(client) ? null : TreeFs.lease(client);
+        if(!isNull(lease)) {
+            in = new FilterInputStream(in) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        lease.close();
+                    }
+                }
+            };
+        }
+        final InputStreamReadStream stream =
+            new InputStreamReadStream(in, dispatcher.blocking(), dispatcher.loop());
+        response.closeHandler(new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                stream.close();
+            }
+        });
+        response.end(stream);
+    }
+
+    private static void _copy(InputStream in, HttpResponse response) {
+        try {
+            if(!response.headers().contains("Content-Length")) {
+                response.setChunked(true);
+            }
+            byte[] chunk = new byte[InputStreamReadStream.DEFAULT_CHUNK_SIZE];
+            int read;
+            while((read = in.read(chunk)) != -1) {
+                byte[] data = new byte[read];
+                System.arraycopy(chunk, 0, data, 0, read);
+                response.write(new Buffer(data));
+            }
+            response.end();
+        } catch(IOException ex) {
+            response.close();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Strong ETag from the checksum or a weak one from size and lastModifiedTime
+     */
+    private static String _etag(TreeStat info, long size) {
+        if(!isNullOrEmpty(info.checksum())) {
+            return "\"" + info.checksum() + "\"";
+        }
+        if(size < 0 || isNull(info.lastModifiedTime())) {
+            return null;
+        }
+        return "W/\"" + Long.toHexString(size) + "-"
+            + Long.toHexString(info.lastModifiedTime().getTime()) + "\"";
+    }
+
+    /**
+     * If-None-Match wins over If-Modified-Since when both are sent (RFC 7232)
+     */
+    private static boolean _notModified(HttpRequest request, String etag, Date lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(!isNullOrEmpty(ifNoneMatch)) {
+            if(isNull(etag)) {
+                return false;
+            }
+            for(String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if("*".equals(candidate) || _weakTag(candidate).equals(_weakTag(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if(isNullOrEmpty(ifModifiedSince) || isNull(lastModified)) {
+            return false;
+        }
+        Date since = _parseDate(ifModifiedSince);
+        // http dates only have second precision
+        return !isNull(since) && lastModified.getTime() / 1000 <= since.getTime() / 1000;
+    }
+
+    /**
+     * A Range is only honored if If-Range is absent or still matches, which needs a strong ETag or
+     * an exact Last-Modified
+     */
+    private static boolean _ifRange(HttpRequest request, String etag, Date lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if(isNullOrEmpty(ifRange)) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if(ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        if(ifRange.startsWith("W/")) {
+            return false;
+        }
+        Date date = _parseDate(ifRange);
+        return !isNull(date) && !isNull(lastModified)
+            && lastModified.getTime() / 1000 == date.getTime() / 1000;
+    }
+
+    private static String _weakTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static String _formatDate(Date date) {
+        return HTTP_DATE.format(date.toInstant());
+    }
+
+    private static Date _parseDate(String value) {
+        try {
+            return Date.from(ZonedDateTime.parse(value.trim(),
+                DateTimeFormatter.RFC_1123_DATE_TIME).toInstant());
+        } catch(DateTimeParseException ex) {
+            return null;
+        }
+    }
+}
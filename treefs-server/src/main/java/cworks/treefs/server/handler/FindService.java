@@ -0,0 +1,102 @@
+package cworks.treefs.server.handler;
+
+import cworks.json.Json;
+import cworks.treefs.TreeFs;
+import cworks.treefs.TreeFsClient;
+import cworks.treefs.TreeFsValidation;
+import cworks.treefs.domain.TreeFsFactory;
+import cworks.treefs.provider.TreeFsStorageManager;
+import cworks.treefs.server.core.BasicHttpService;
+import cworks.treefs.server.core.HttpRequest;
+import cworks.treefs.server.core.HttpResponse;
+import cworks.treefs.spi.TreeMatchHandler;
+import cworks.treefs.spi.TreePath;
+import cworks.treefs.spi.TreeQuery;
+import cworks.treefs.spi.TreeStat;
+
+import java.util.List;
+
+/**
+ * Search below a folder, matches are streamed as they are found
+ *
+ * GET /treefs/fileSys/folder/_find?glob=*.pdf&type=file&meta=owner:bob&maxLevels=5&limit=100
+ *
+ * 1. glob - glob the names of files and folders are matched against
+ * 2. type - file or folder, both when not given
+ * 3. meta - name:value a match's metadata must have, can be given more than once
+ * 4. maxLevels - levels below the folder to search, all when not given
+ * 5. limit - most matches to return, 1000 when not given
+ *
+ * {"path":"/folder","matches":[{...},{...}],"matched":2}
+ *
+ * Matches don't come in any particular order since the provider searches in parallel.  A bad
+ * maxLevels or limit is a 400.
+ *
+ * @author comartin
+ */
+public class FindService extends BasicHttpService {
+
+    private static final int DEFAULT_LIMIT = 1000;
+
+    private static final int MAX_LIMIT = 10000;
+
+    private static final int FLUSH_EVERY = 100;
+
+    @Override
+    public void handle(HttpRequest request) {
+
+        TreeFsClient client = request.get("client");
+        if(TreeFsValidation.isNull(request.path())) {
+            return;
+        }
+        String path = UriService.treefsPath(mount, request.path(), "/_find");
+        logger.debug("findService on path: " + path);
+
+        TreeFsStorageManager manager = TreeFs.storageManager(client);
+        TreeStat stat = manager.stat(path);
+        if(!stat.isFolder()) {
+            request.response().setStatusCode(404).end();
+            return;
+        }
+
+        TreeQuery query = TreeQuery.newQuery()
+            .withGlob(request.getParameter("glob", null))
+            .withMaxLevels(request.getIntParameter("maxLevels", -1))
+            .withLimit(Math.max(1, Math.min(MAX_LIMIT,
+                request.getIntParameter("limit", DEFAULT_LIMIT))));
+        String type = request.getParameter("type", null);
+        if("file".equalsIgnoreCase(type)) {
+            query.filesOnly();
+        } else if("folder".equalsIgnoreCase(type)) {
+            query.foldersOnly();
+        }
+        List<String> metadata = request.getParameterList("meta");
+        if(!TreeFsValidation.isNull(metadata)) {
+            for(String predicate : metadata) {
+                int colon = predicate.indexOf(':');
+                if(colon > 0) {
+                    query.withMetadata(predicate.substring(0, colon), predicate.substring(colon + 1));
+                }
+            }
+        }
+
+        final HttpResponse response = request.response();
+        response.setContentType("application/json", "UTF-8");
+        response.setChunked(true);
+        response.write("{\"path\":" + Json.asString(path) + ",\"matches\":[");
+        final int[] matched = new int[1];
+        manager.find(path, query, new TreeMatchHandler() {
+            @Override
+            public boolean handle(TreePath match) {
+                if(matched[0] > 0) {
+                    response.write(",");
+                }
+                response.write(TreeFsFactory.path(match).toString());
+                matched[0]++;
+                // send what's been found so far, stop searching if the client went away
+                return matched[0] % FLUSH_EVERY != 0 || response.flush();
+            }
+        });
+        response.end("],\"matched\":" + matched[0] + "}");
+    }
+}
@@ -49,6 +49,11 @@ public class HttpServices {
         return new MoveService();
     }
 
+    public static HttpService findService() {
+
+        return new FindService();
+    }
+
     public static HttpService siegeService() {
 
         return new SiegeService();
@@ -12,6 +12,7 @@ import cworks.treefs.domain.TreeFsPath;
 import cworks.treefs.server.core.BasicHttpService;
 import cworks.treefs.server.core.FileUpload;
 import cworks.treefs.server.core.HttpRequest;
+import cworks.treefs.server.core.UploadWriteStream;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -127,16 +128,35 @@ public class PathService extends BasicHttpService {
             data.merge(fileInfo);
         }
 
+        // check for overwrite option
+        boolean overwrite = Boolean.valueOf(request.params().get("overwrite"));
+        TreeFsFile treefsFile = null;
+
+        //
+        // upload was streamed into the StorageProvider as it arrived, wait for the last
+        // writes then commit it under its final name
+        //
+        if(upload.streamed()) {
+            UploadWriteStream stream = upload.stream();
+            try {
+                stream.await();
+                treefsFile = TreeFsFactory.deserializer().file(data.toString());
+                treefsFile = TreeFs.storageManager(client)
+                    .commitFile(stream.writer(), treefsFile, overwrite);
+            } finally {
+                // no-op once committed
+                stream.abort();
+            }
+            return treefsFile;
+        }
+
         //
         // path to source file that has been uploaded into a temp location
         // now we need to move it into TreeFs...
         //
         Path tempFile = Paths.get(upload.path());
-        TreeFsFile treefsFile = null;
         try {
             treefsFile = TreeFsFactory.deserializer().file(data.toString());
-            // check for overwrite option
-            boolean overwrite = Boolean.valueOf(request.params().get("overwrite"));
             treefsFile = TreeFs.storageManager(client).createFile(tempFile, treefsFile, overwrite);
         } finally {
             try { Files.deleteIfExists(tempFile); } catch (IOException e) { }
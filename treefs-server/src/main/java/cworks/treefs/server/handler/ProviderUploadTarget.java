@@ -0,0 +1,112 @@
+package cworks.treefs.server.handler;
+
+import cworks.treefs.TreeFsClient;
+import cworks.treefs.provider.StorageProviderRegistry;
+import cworks.treefs.server.core.HttpDispatcher;
+import cworks.treefs.server.core.HttpRequest;
+import cworks.treefs.server.core.UploadTarget;
+import cworks.treefs.server.core.UploadWriteStream;
+import cworks.treefs.spi.StorageException;
+import cworks.treefs.spi.TreeFile;
+import cworks.treefs.spi.TreeFileWriter;
+import org.vertx.java.core.http.HttpServerFileUpload;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import static cworks.treefs.TreeFsValidation.isNull;
+import static cworks.treefs.TreeFsValidation.isNullOrEmpty;
+
+/**
+ * Streams files uploaded to create a path ({@link PathService}) straight into the client's
+ * StorageProvider, writes run on the dispatcher's stream pool.  Uploads to anything else
+ * (_settings, _siege, cp...) are left to the BodyParser's upload directory.
+ *
+ * @author comartin
+ */
+public class ProviderUploadTarget implements UploadTarget {
+
+    private final HttpDispatcher dispatcher;
+
+    public ProviderUploadTarget(HttpDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public UploadWriteStream open(HttpRequest request, HttpServerFileUpload fileUpload, String mount) {
+        if(!"POST".equals(request.method()) || isNullOrEmpty(request.path())
+            || isNullOrEmpty(fileUpload.filename())) {
+            return null;
+        }
+        String path = UriService.treefsPath(mount, request.path());
+        if(path.startsWith("/_") || path.startsWith("_") || path.endsWith("/cp")) {
+            return null;
+        }
+
+        TreeFsClient client = request.get("client");
+        if(isNull(client)) {
+            return null;
+        }
+        // held until the writer is committed or aborted, uploads outlive the request's dispatch
+        StorageProviderRegistry.Lease lease = StorageProviderRegistry.lease(client);
+        if(isNull(lease)) {
+            return null;
+        }
+
+        // the form may still rename the file, the name given to the upload is only a hint
+        String hint = path.endsWith("/") ? path + fileUpload.filename() : path + "/" + fileUpload.filename();
+        TreeFileWriter writer;
+        try {
+            writer = lease.manager().openFileWriter(hint);
+        } catch(RuntimeException ex) {
+            lease.close();
+            throw ex;
+        }
+        return new UploadWriteStream(new LeasedFileWriter(writer, lease),
+            dispatcher.blocking(), dispatcher.loop());
+    }
+
+    /**
+     * TreeFileWriter that closes the lease on its provider once it's committed or aborted
+     */
+    private static final class LeasedFileWriter implements TreeFileWriter {
+
+        private final TreeFileWriter writer;
+
+        private final StorageProviderRegistry.Lease lease;
+
+        LeasedFileWriter(TreeFileWriter writer, StorageProviderRegistry.Lease lease) {
+            this.writer = writer;
+            this.lease = lease;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws StorageException {
+            writer.write(data, offset, length);
+        }
+
+        @Override
+        public long size() {
+            return writer.size();
+        }
+
+        @Override
+        public TreeFile commit(Path path, String description, Map<String, Object> metadata)
+            throws StorageException {
+            try {
+                return writer.commit(path, description, metadata);
+            } finally {
+                lease.close();
+            }
+        }
+
+        @Override
+        public void abort() {
+            try {
+                writer.abort();
+            } finally {
+                lease.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package cworks.treefs.server.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ByteRangeTest {
+
+    @Test
+    public void firstBytes() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-499", 1000);
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertEquals(0, ranges.get(0).start());
+        Assert.assertEquals(499, ranges.get(0).end());
+        Assert.assertEquals(500, ranges.get(0).length());
+        Assert.assertEquals("bytes 0-499/1000", ranges.get(0).contentRange(1000));
+    }
+
+    @Test
+    public void openEndAndSuffix() {
+        ByteRange from = ByteRange.parse("bytes=500-", 1000).get(0);
+        Assert.assertEquals(500, from.start());
+        Assert.assertEquals(999, from.end());
+
+        ByteRange suffix = ByteRange.parse("bytes=-200", 1000).get(0);
+        Assert.assertEquals(800, suffix.start());
+        Assert.assertEquals(999, suffix.end());
+
+        // a suffix longer than the resource is the whole resource
+        ByteRange all = ByteRange.parse("bytes=-5000", 1000).get(0);
+        Assert.assertEquals(0, all.start());
+        Assert.assertEquals(1000, all.length());
+    }
+
+    @Test
+    public void endIsClampedToTheSize() {
+        ByteRange range = ByteRange.parse("bytes=900-5000", 1000).get(0);
+        Assert.assertEquals(999, range.end());
+    }
+
+    @Test
+    public void severalRangesInRequestOrder() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-0, -1", 1000);
+        Assert.assertEquals(2, ranges.size());
+        Assert.assertEquals(0, ranges.get(0).end());
+        Assert.assertEquals(999, ranges.get(1).start());
+    }
+
+    @Test
+    public void unsatisfiableIsEmpty() {
+        Assert.assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+        Assert.assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+        Assert.assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+    }
+
+    @Test
+    public void malformedIsIgnored() {
+        Assert.assertNull(ByteRange.parse(null, 1000));
+        Assert.assertNull(ByteRange.parse("items=0-1", 1000));
+        Assert.assertNull(ByteRange.parse("bytes=10", 1000));
+        Assert.assertNull(ByteRange.parse("bytes=a-b", 1000));
+        Assert.assertNull(ByteRange.parse("bytes=10-5", 1000));
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for(int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+            many.append(",").append(i).append("-").append(i);
+        }
+        Assert.assertNull(ByteRange.parse(many.toString(), 1000));
+    }
+}
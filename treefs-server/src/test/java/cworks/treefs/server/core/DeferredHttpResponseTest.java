@@ -0,0 +1,195 @@
+package cworks.treefs.server.core;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class DeferredHttpResponseTest {
+
+    private ExecutorService loop;
+
+    private Target target;
+
+    private DeferredHttpResponse deferred;
+
+    @Before
+    public void setUp() {
+        // one thread like an event loop
+        loop = Executors.newSingleThreadExecutor();
+        target = new Target();
+        deferred = new DeferredHttpResponse(target, loop);
+    }
+
+    @After
+    public void tearDown() {
+        loop.shutdownNow();
+    }
+
+    @Test
+    public void nothingIsWrittenUntilReplay() throws Exception {
+        deferred.write("a");
+        deferred.end("b");
+        Assert.assertTrue(target.written().isEmpty());
+        Assert.assertTrue(deferred.ended());
+
+        loop.submit(deferred::replay).get();
+        Assert.assertEquals("[a, b, end]", target.written().toString());
+    }
+
+    @Test
+    public void flushSendsWhatWasWritten() throws Exception {
+        deferred.write("a");
+        Assert.assertTrue(deferred.flush());
+        deferred.write("b");
+        Assert.assertTrue(deferred.flush());
+        _drainLoop();
+        Assert.assertEquals("[a, b]", target.written().toString());
+    }
+
+    @Test
+    public void flushWaitsForTheConnectionToDrain() throws Exception {
+        target.full = true;
+        deferred.write("a");
+        Assert.assertTrue(deferred.flush());
+        _drainLoop();
+
+        final AtomicBoolean flushed = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            deferred.write("b");
+            flushed.set(deferred.flush());
+        });
+        writer.start();
+        writer.join(200);
+        Assert.assertTrue(writer.isAlive());
+        Assert.assertEquals("[a]", target.written().toString());
+
+        // the client caught up
+        target.full = false;
+        loop.submit(() -> target.drain.handle(null)).get();
+        writer.join(5000);
+        Assert.assertTrue(flushed.get());
+        _drainLoop();
+        Assert.assertEquals("[a, b]", target.written().toString());
+    }
+
+    @Test
+    public void headersAreSetOnReplay() throws Exception {
+        target.headers.set("Server", "treefs");
+        deferred = new DeferredHttpResponse(target, loop);
+
+        deferred.putHeader("Content-Type", "text/plain");
+        deferred.headers().add("X-Match", "a").add("X-Match", "b");
+        deferred.headers().remove("server");
+        deferred.trailers().set("X-Checksum", "1234");
+        // the service sees what it set
+        Assert.assertEquals("text/plain", deferred.headers().get("content-type"));
+        Assert.assertEquals(2, deferred.headers().getAll("x-match").size());
+        Assert.assertFalse(deferred.headers().contains("Server"));
+        // the connection's maps are left alone until the loop replays
+        Assert.assertEquals(1, target.headers.size());
+        Assert.assertTrue(target.trailers.isEmpty());
+
+        loop.submit(deferred::replay).get();
+        Assert.assertEquals("text/plain", target.headers.get("Content-Type"));
+        Assert.assertEquals(2, target.headers.getAll("X-Match").size());
+        Assert.assertFalse(target.headers.contains("Server"));
+        Assert.assertEquals("1234", target.trailers.get("X-Checksum"));
+    }
+
+    /**
+     * Wait for everything posted to the loop so far to run
+     */
+    private void _drainLoop() throws Exception {
+        loop.submit(() -> { }).get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stands in for the response of the connection, remembers what it's sent
+     */
+    private static class Target extends HttpResponse {
+
+        private final List<String> written = new ArrayList<>();
+
+        private volatile boolean full = false;
+
+        private Handler<Void> drain;
+
+        private final MultiMap headers = new CaseInsensitiveMultiMap();
+
+        private final MultiMap trailers = new CaseInsensitiveMultiMap();
+
+        Target() {
+            super(null, new HashMap<String, Object>());
+        }
+
+        synchronized List<String> written() {
+            return new ArrayList<>(written);
+        }
+
+        @Override
+        public synchronized HttpResponse write(String chunk) {
+            written.add(chunk);
+            return this;
+        }
+
+        @Override
+        public synchronized void end(String chunk) {
+            written.add(chunk);
+            written.add("end");
+        }
+
+        @Override
+        public MultiMap headers() {
+            return headers;
+        }
+
+        @Override
+        public HttpResponse putHeader(String name, String value) {
+            headers.set(name, value);
+            return this;
+        }
+
+        @Override
+        public MultiMap trailers() {
+            return trailers;
+        }
+
+        @Override
+        public boolean writeQueueFull() {
+            return full;
+        }
+
+        @Override
+        public HttpResponse drainHandler(Handler<Void> handler) {
+            drain = handler;
+            return this;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return 200;
+        }
+
+        @Override
+        public String getStatusMessage() {
+            return "OK";
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package cworks.treefs.server.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.http.HttpServerResponse;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class HttpResponseTest {
+
+    /**
+     * close handlers set on the vertx response, only the last one counts
+     */
+    private final List<Handler<Void>> set = new ArrayList<>();
+
+    @Test
+    public void closeHandlersDontReplaceEachOther() throws Exception {
+        List<String> closed = new ArrayList<>();
+        HttpResponse response = new HttpResponse(_response(), new HashMap<String, Object>());
+        response.closeHandler(event -> closed.add("service"));
+        response.closeHandler(event -> closed.add("first part"));
+        // a response wrapping it adds to the same handlers
+        new HttpResponse(response).closeHandler(event -> closed.add("second part"));
+
+        Assert.assertEquals(1, set.size());
+        set.get(set.size() - 1).handle(null);
+        Assert.assertEquals("[service, first part, second part]", closed.toString());
+    }
+
+    private HttpServerResponse _response() {
+        return (HttpServerResponse)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { HttpServerResponse.class }, (proxy, method, args) -> {
+                if("closeHandler".equals(method.getName())) {
+                    @SuppressWarnings("unchecked")
+                    Handler<Void> handler = (Handler<Void>)args[0];
+                    set.add(handler);
+                    return proxy;
+                }
+                return null;
+            });
+    }
+}
@@ -0,0 +1,162 @@
+package cworks.treefs.server.core;
+
+import cworks.treefs.TreeFsException;
+import cworks.treefs.spi.StorageException;
+import cworks.treefs.spi.TreeFile;
+import cworks.treefs.spi.TreeFileWriter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class UploadWriteStreamTest {
+
+    private ExecutorService blocking;
+
+    private ExecutorService loop;
+
+    private Writer writer;
+
+    private UploadWriteStream stream;
+
+    @Before
+    public void setUp() {
+        blocking = Executors.newSingleThreadExecutor();
+        loop = Executors.newSingleThreadExecutor();
+        writer = new Writer();
+        stream = new UploadWriteStream(writer, blocking, loop);
+    }
+
+    @After
+    public void tearDown() {
+        writer.gate.release(1000);
+        blocking.shutdownNow();
+        loop.shutdownNow();
+    }
+
+    @Test
+    public void writesInOrder() throws Exception {
+        writer.gate.release(1000);
+        stream.write(new Buffer("one,"));
+        stream.write(new Buffer("two,"));
+        stream.write(new Buffer("three"));
+        stream.end();
+        stream.await();
+        Assert.assertEquals("one,two,three", writer.content.toString("UTF-8"));
+        Assert.assertFalse(writer.aborted);
+    }
+
+    @Test
+    public void fullQueueDrainsAtHalf() throws Exception {
+        stream.setWriteQueueMaxSize(8);
+        stream.write(new Buffer("1234"));
+        Assert.assertFalse(stream.writeQueueFull());
+        stream.write(new Buffer("5678"));
+        stream.write(new Buffer("9012"));
+        Assert.assertTrue(stream.writeQueueFull());
+
+        final CountDownLatch drained = new CountDownLatch(1);
+        stream.drainHandler(event -> drained.countDown());
+        // one write leaves 8 queued, still over half
+        writer.gate.release(1);
+        Assert.assertFalse(drained.await(200, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(stream.writeQueueFull());
+
+        writer.gate.release(1);
+        Assert.assertTrue(drained.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(stream.writeQueueFull());
+
+        writer.gate.release(1);
+        stream.end();
+        stream.await();
+        Assert.assertEquals("123456789012", writer.content.toString("UTF-8"));
+    }
+
+    @Test
+    public void abortDiscardsTheUpload() throws Exception {
+        stream.write(new Buffer("1234"));
+        stream.write(new Buffer("5678"));
+        // the first write is held up in the writer
+        stream.abort();
+        stream.write(new Buffer("9012"));
+        Assert.assertFalse(stream.writeQueueFull());
+        writer.gate.release(1000);
+
+        try {
+            stream.await();
+            Assert.fail("an aborted upload can't be awaited");
+        } catch(TreeFsException ex) {
+            // expected
+        }
+        blocking.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(writer.aborted);
+        Assert.assertTrue(writer.content.size() <= 4);
+    }
+
+    @Test
+    public void failedWriteFailsTheUpload() throws Exception {
+        writer.fail = true;
+        writer.gate.release(1000);
+        final CountDownLatch failed = new CountDownLatch(1);
+        stream.exceptionHandler(ex -> failed.countDown());
+        stream.write(new Buffer("1234"));
+        stream.end();
+        try {
+            stream.await();
+            Assert.fail("a failed upload can't be awaited");
+        } catch(TreeFsException ex) {
+            Assert.assertTrue(ex.getCause() instanceof StorageException);
+        }
+        Assert.assertTrue(failed.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Writer whose writes wait for a permit so the test controls how fast the queue drains
+     */
+    private static class Writer implements TreeFileWriter {
+
+        private final Semaphore gate = new Semaphore(0);
+
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        private volatile boolean fail = false;
+
+        private volatile boolean aborted = false;
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws StorageException {
+            gate.acquireUninterruptibly();
+            if(fail) {
+                throw new StorageException("write failed");
+            }
+            synchronized(content) {
+                content.write(data, offset, length);
+            }
+        }
+
+        @Override
+        public long size() {
+            return content.size();
+        }
+
+        @Override
+        public TreeFile commit(Path path, String description, Map<String, Object> metadata) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+    }
+}
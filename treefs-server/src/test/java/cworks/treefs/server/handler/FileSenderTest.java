@@ -0,0 +1,215 @@
+package cworks.treefs.server.handler;
+
+import cworks.treefs.TreeFs;
+import cworks.treefs.TreeFsClient;
+import cworks.treefs.domain.TreeFsFactory;
+import cworks.treefs.provider.StorageProviderRegistry;
+import cworks.treefs.server.core.HttpRequest;
+import cworks.treefs.server.core.HttpResponse;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
+import org.vertx.java.core.http.HttpServerRequest;
+import org.vertx.java.core.http.HttpServerResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs FileSender against a request and response that record what would go to the client,
+ * nothing is dispatched so streamed content is copied straight into the response
+ */
+public class FileSenderTest {
+
+    private static final String CONTENT = "0123456789";
+
+    private final TreeFsClient client = new TreeFsClient("sysuser");
+
+    private Path home;
+
+    private MultiMap requestHeaders;
+
+    private int status;
+
+    private MultiMap responseHeaders;
+
+    private ByteArrayOutputStream body;
+
+    private String sentFile;
+
+    @Before
+    public void setUp() throws Exception {
+        home = Files.createTempDirectory("treefs-sender");
+        Files.createDirectories(home.resolve("data"));
+        System.setProperty("treefs.home", home.toString());
+        System.setProperty("treefs.mount", "data");
+        Path source = Files.write(home.resolve("file.txt"), CONTENT.getBytes("UTF-8"));
+        TreeFs.storageManager(client).createFile(source,
+            TreeFsFactory.file("file.txt", Paths.get("files")).make());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        StorageProviderRegistry.shutdown();
+        System.clearProperty("treefs.home");
+        System.clearProperty("treefs.mount");
+        FileUtils.deleteDirectory(home.toFile());
+    }
+
+    @Test
+    public void wholeFileIsSentFromDisk() throws Exception {
+        _send();
+        Assert.assertEquals(200, status);
+        Assert.assertTrue(sentFile.endsWith("file.txt"));
+        Assert.assertEquals("bytes", responseHeaders.get("Accept-Ranges"));
+        Assert.assertNotNull(responseHeaders.get("ETag"));
+        Assert.assertNotNull(responseHeaders.get("Last-Modified"));
+    }
+
+    @Test
+    public void matchingETagIsNotModified() throws Exception {
+        _send();
+        String etag = responseHeaders.get("ETag");
+
+        _send("If-None-Match", "\"other\", " + etag);
+        Assert.assertEquals(304, status);
+        Assert.assertEquals(0, body.size());
+        Assert.assertNull(sentFile);
+
+        _send("If-None-Match", "\"other\"");
+        Assert.assertEquals(200, status);
+    }
+
+    @Test
+    public void unchangedSinceIsNotModified() throws Exception {
+        _send();
+        String lastModified = responseHeaders.get("Last-Modified");
+
+        _send("If-Modified-Since", lastModified);
+        Assert.assertEquals(304, status);
+
+        _send("If-Modified-Since", "Mon, 01 Jan 2001 00:00:00 GMT");
+        Assert.assertEquals(200, status);
+    }
+
+    @Test
+    public void rangeIsPartialContent() throws Exception {
+        _send("Range", "bytes=2-5");
+        Assert.assertEquals(206, status);
+        Assert.assertEquals("bytes 2-5/10", responseHeaders.get("Content-Range"));
+        Assert.assertEquals("4", responseHeaders.get("Content-Length"));
+        Assert.assertEquals("2345", body.toString("UTF-8"));
+        Assert.assertNull(sentFile);
+    }
+
+    @Test
+    public void rangesAreMultipart() throws Exception {
+        _send("Range", "bytes=0-1,-2");
+        Assert.assertEquals(206, status);
+        String contentType = responseHeaders.get("Content-Type");
+        Assert.assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        String parts = body.toString("UTF-8");
+        Assert.assertEquals(String.valueOf(body.size()), responseHeaders.get("Content-Length"));
+        Assert.assertTrue(parts.contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n--" + boundary));
+        Assert.assertTrue(parts.contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n--" + boundary + "--"));
+    }
+
+    @Test
+    public void unsatisfiableRange() throws Exception {
+        _send("Range", "bytes=10-");
+        Assert.assertEquals(416, status);
+        Assert.assertEquals("bytes */10", responseHeaders.get("Content-Range"));
+    }
+
+    @Test
+    public void staleIfRangeGetsTheWholeFile() throws Exception {
+        _send();
+        String etag = responseHeaders.get("ETag");
+
+        _send("Range", "bytes=2-5", "If-Range", "\"stale\"");
+        Assert.assertEquals(200, status);
+        Assert.assertNotNull(sentFile);
+
+        if(etag.startsWith("\"")) {
+            _send("Range", "bytes=2-5", "If-Range", etag);
+            Assert.assertEquals(206, status);
+        }
+    }
+
+    /**
+     * Send file.txt for a request with headers given as name, value pairs
+     */
+    private void _send(String... headers) throws Exception {
+        requestHeaders = new CaseInsensitiveMultiMap();
+        for(int i = 0; i < headers.length; i += 2) {
+            requestHeaders.add(headers[i], headers[i + 1]);
+        }
+        status = 200;
+        responseHeaders = new CaseInsensitiveMultiMap();
+        body = new ByteArrayOutputStream();
+        sentFile = null;
+
+        Map<String, Object> context = new HashMap<>();
+        context.put("client", client);
+        HttpResponse response = new HttpResponse(_response(), context);
+        HttpRequest request = new HttpRequest(_request(), response, false, context);
+        FileSender.send(client, request, TreeFs.storageManager(client).stat("files/file.txt"));
+    }
+
+    private HttpServerRequest _request() {
+        return (HttpServerRequest)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { HttpServerRequest.class }, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "method":
+                        return "GET";
+                    case "headers":
+                        return requestHeaders;
+                    case "params":
+                        return new CaseInsensitiveMultiMap();
+                    default:
+                        return null;
+                }
+            });
+    }
+
+    private HttpServerResponse _response() {
+        return (HttpServerResponse)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { HttpServerResponse.class }, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "setStatusCode":
+                        status = (Integer)args[0];
+                        break;
+                    case "getStatusCode":
+                        return status;
+                    case "headers":
+                        return responseHeaders;
+                    case "putHeader":
+                        responseHeaders.set(args[0].toString(), args[1].toString());
+                        break;
+                    case "write":
+                        body.write(((Buffer)args[0]).getBytes());
+                        break;
+                    case "sendFile":
+                        sentFile = (String)args[0];
+                        break;
+                    case "isChunked":
+                    case "writeQueueFull":
+                        return false;
+                    default:
+                        break;
+                }
+                return HttpServerResponse.class.isAssignableFrom(method.getReturnType()) ? proxy : null;
+            });
+    }
+}
@@ -0,0 +1,87 @@
+package cworks.treefs.spi;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking companion of {@link StorageProvider}, every operation returns right away with a
+ * CompletableFuture that is completed once the operation is done, so callers running on an event
+ * loop don't have to block it or park a thread per operation in flight.
+ *
+ * Operations have the same semantics as their {@link StorageProvider} counterpart, a future is
+ * completed exceptionally with the {@link StorageException} (or subclass) the blocking call would
+ * have thrown.  Futures may be completed on a provider thread, callers that need to get back onto
+ * their own thread should use the *Async variants of CompletableFuture with their own Executor.
+ *
+ * Use {@link AsyncStorageProviderAdapter} to get an AsyncStorageProvider for any StorageProvider
+ * that doesn't have a native one.
+ *
+ * @author comartin
+ */
+public interface AsyncStorageProvider {
+
+    /**
+     * The blocking provider this provider works on
+     * @return
+     */
+    public StorageProvider provider();
+
+    /**
+     * @see StorageProvider#openFolder(Path, int)
+     */
+    public CompletableFuture<TreeFolder> openFolder(Path folder, int maxLevels);
+
+    /**
+     * @see StorageProvider#createFile(Path, InputStream, String, Map)
+     * @param stream the stream containing data for the file, it's read and closed by the provider
+     */
+    public CompletableFuture<TreeFile> createFile(Path path, InputStream stream, String description,
+        Map<String, Object> metadata);
+
+    /**
+     * @see StorageProvider#read(Path)
+     */
+    public CompletableFuture<InputStream> read(Path path);
+
+    /**
+     * Read at most length bytes of a file starting at offset into memory
+     *
+     * If the file path does not exist the future completes with {@link NoTreePathException}
+     *
+     * @param path the path to the file to read
+     * @param offset zero based position of the first byte to read
+     * @param length number of bytes to read
+     * @return buffer holding the bytes read, flipped for reading, it has fewer than length bytes
+     *     remaining if the file ends before offset + length
+     */
+    public CompletableFuture<ByteBuffer> read(Path path, long offset, int length);
+
+    /**
+     * @see StorageProvider#copy(Path, Path, CopyOption...)
+     */
+    public CompletableFuture<Void> copy(Path source, Path target, CopyOption...options);
+
+    /**
+     * @see StorageProvider#move(Path, Path, CopyOption...)
+     */
+    public CompletableFuture<Void> move(Path source, Path target, CopyOption...options);
+
+    /**
+     * @see StorageProvider#exists(Path)
+     */
+    public CompletableFuture<Boolean> exists(Path path);
+
+    /**
+     * @see StorageProvider#stat(Path)
+     */
+    public CompletableFuture<TreeStat> stat(Path path);
+
+    /**
+     * @see StorageProvider#readMetadata(Path)
+     */
+    public CompletableFuture<Map<String, Object>> readMetadata(Path path);
+}
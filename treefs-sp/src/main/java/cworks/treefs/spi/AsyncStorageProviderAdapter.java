@@ -0,0 +1,209 @@
+package cworks.treefs.spi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * AsyncStorageProvider for any blocking {@link StorageProvider}, each operation runs the blocking
+ * call on an Executor and completes its future with the result.  The Executor bounds how many
+ * operations are in flight, give it a bounded pool rather than one that makes a thread per task.
+ *
+ * Providers with a native AsyncStorageProvider extend this and override the operations they can
+ * do without blocking a thread.
+ *
+ * example use:
+ *
+ * AsyncStorageProvider async = new AsyncStorageProviderAdapter(provider, pool);
+ * async.exists(path).thenAccept(exists -> ...);
+ *
+ * @author comartin
+ */
+public class AsyncStorageProviderAdapter implements AsyncStorageProvider {
+
+    /**
+     * A blocking call into a StorageProvider
+     */
+    protected interface StorageCall<T> {
+        T call() throws StorageException;
+    }
+
+    private final StorageProvider provider;
+
+    private final Executor executor;
+
+    public AsyncStorageProviderAdapter(StorageProvider provider, Executor executor) {
+        if(provider == null || executor == null) {
+            throw new IllegalArgumentException("provider and executor are required arguments.");
+        }
+        this.provider = provider;
+        this.executor = executor;
+    }
+
+    @Override
+    public StorageProvider provider() {
+        return provider;
+    }
+
+    /**
+     * Executor the blocking calls run on
+     * @return
+     */
+    public Executor executor() {
+        return executor;
+    }
+
+    @Override
+    public CompletableFuture<TreeFolder> openFolder(final Path folder, final int maxLevels) {
+        return async(new StorageCall<TreeFolder>() {
+            @Override
+            public TreeFolder call() throws StorageException {
+                return provider.openFolder(folder, maxLevels);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<TreeFile> createFile(final Path path, final InputStream stream,
+        final String description, final Map<String, Object> metadata) {
+        return async(new StorageCall<TreeFile>() {
+            @Override
+            public TreeFile call() throws StorageException {
+                try {
+                    return provider.createFile(path, stream, description, metadata);
+                } finally {
+                    try {
+                        stream.close();
+                    } catch(IOException ex) {
+                        // content is already stored
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<InputStream> read(final Path path) {
+        return async(new StorageCall<InputStream>() {
+            @Override
+            public InputStream call() throws StorageException {
+                return provider.read(path);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> read(final Path path, final long offset, final int length) {
+        return async(new StorageCall<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws StorageException {
+                InputStream in = provider.read(path, offset, length);
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate(length);
+                    int n;
+                    while(buffer.hasRemaining()
+                        && (n = in.read(buffer.array(), buffer.position(), buffer.remaining())) >= 0) {
+                        buffer.position(buffer.position() + n);
+                    }
+                    buffer.flip();
+                    return buffer;
+                } catch(IOException ex) {
+                    throw new StorageException("exception reading: " + path, ex);
+                } finally {
+                    try {
+                        in.close();
+                    } catch(IOException ex) {
+                        // everything needed was read
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> copy(final Path source, final Path target,
+        final CopyOption... options) {
+        return async(new StorageCall<Void>() {
+            @Override
+            public Void call() throws StorageException {
+                provider.copy(source, target, options);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> move(final Path source, final Path target,
+        final CopyOption... options) {
+        return async(new StorageCall<Void>() {
+            @Override
+            public Void call() throws StorageException {
+                provider.move(source, target, options);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> exists(final Path path) {
+        return async(new StorageCall<Boolean>() {
+            @Override
+            public Boolean call() throws StorageException {
+                return provider.exists(path);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<TreeStat> stat(final Path path) {
+        return async(new StorageCall<TreeStat>() {
+            @Override
+            public TreeStat call() throws StorageException {
+                return provider.stat(path);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> readMetadata(final Path path) {
+        return async(new StorageCall<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> call() throws StorageException {
+                return provider.readMetadata(path);
+            }
+        });
+    }
+
+    /**
+     * Run call on the executor, the future completes with its result or with what it threw
+     * @param call the blocking call
+     * @return future of the call's result
+     */
+    protected <T> CompletableFuture<T> async(final StorageCall<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(future.isDone()) {
+                        return;
+                    }
+                    try {
+                        future.complete(call.call());
+                    } catch(Throwable ex) {
+                        future.completeExceptionally(ex);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ex) {
+            future.completeExceptionally(new StorageException("provider is too busy or closed", ex));
+        }
+        return future;
+    }
+}
@@ -176,6 +176,22 @@ public interface StorageProvider {
      */
     public TreeFolder openFolder(Path folder, String glob, int maxLevels) throws StorageException;
 
+    /**
+     * Lists the items directly in a folder in name order, a page of at most limit items at a
+     * time.  Unlike openFolder the items are handed out as they are read, so memory used by a
+     * listing depends on limit and not on the size of the folder.
+     *
+     * If folder does not exist then throw {@link NoTreeFolderException}
+     *
+     * @param folder A relative Path to the folder to list
+     * @param cursor the {@link TreeListing#cursor()} of the previous page or null to start at
+     *     the first item
+     * @param limit the maximum number of items in the page, 0 or less for every item
+     * @return the listing, it must be closed
+     * @throws StorageException
+     */
+    public TreeListing listFolder(Path folder, String cursor, int limit) throws StorageException;
+
     /**
      * Moves a file or folder to the Trash.
      *
@@ -326,6 +342,19 @@ public interface StorageProvider {
      */
     public boolean isFile(Path path) throws StorageException;
 
+    /**
+     * Look up whether a path is a file or a folder along with its size, times and checksum in
+     * a single read of its metadata, rather than calling exists, isFolder and isFile in turn.
+     *
+     * DO NOT throw {@link NoTreePathException} if path does not exist, return
+     * {@link TreeStat#NOT_FOUND}
+     *
+     * @param path A relative Path to the file or folder
+     * @return stat of path or TreeStat.NOT_FOUND
+     * @throws StorageException
+     */
+    public TreeStat stat(Path path) throws StorageException;
+
     /**
      * Copy a file or folder from source to a target.
      *
@@ -458,6 +487,20 @@ public interface StorageProvider {
     public TreeFile createFile(Path path, InputStream stream, String description,
         Map<String, Object> metadata) throws StorageException;
 
+    /**
+     * Opens a {@link TreeFileWriter} to write the content of a new file as it arrives, the file
+     * is created when the writer is committed.  Use this instead of createFile when the content
+     * would otherwise have to be staged somewhere first, i.e. an upload being received.
+     *
+     * Implementations should defer IO until content is written, opening a writer must be cheap.
+     *
+     * @param path the path and filename the file is expected to be committed to, the final path
+     *     is given to {@link TreeFileWriter#commit} and may differ
+     * @return a writer that must be committed or aborted
+     * @throws StorageException
+     */
+    public TreeFileWriter openFileWriter(Path path) throws StorageException;
+
     /**
      * Opens an existing file for reading and returns an InputStream to read the file content from
      *
@@ -471,6 +514,34 @@ public interface StorageProvider {
      */
     public InputStream read(Path path) throws StorageException;
 
+    /**
+     * Opens an existing file for reading length bytes starting at offset, used to serve byte
+     * ranges without reading the content before offset
+     *
+     * If the file path does not exist then {@link NoTreePathException} should be thrown
+     * If the range extends past the end of the file the stream ends at the end of the file
+     *
+     * @param path the path to the file to read
+     * @param offset zero based position of the first byte to read
+     * @param length number of bytes to read
+     * @return a valid InputStream positioned at offset that ends after at most length bytes
+     * @throws StorageException
+     */
+    public InputStream read(Path path, long offset, long length) throws StorageException;
+
+    /**
+     * Returns the file on the local file-system that holds the content of an existing file, so
+     * callers can hand it to the OS (i.e. sendfile) instead of copying it through read(Path).
+     *
+     * If the file path does not exist then {@link NoTreePathException} should be thrown
+     * Providers that don't keep content on the local file-system should return null
+     *
+     * @param path the path to the file
+     * @return the local file holding the content or null if the content isn't stored locally
+     * @throws StorageException
+     */
+    public File localFile(Path path) throws StorageException;
+
     /**
      * Returns application specific metadata for a given file or folder
      *
@@ -570,4 +641,23 @@ public interface StorageProvider {
      */
     public List<TreePath> find(Path path, String glob, int maxLevels) throws StorageException;
 
+    /**
+     * Search the files and folders below path for those that match query, handing each match to
+     * handler as it's found rather than collecting them.  The glob and type of the query should
+     * be checked before a path's metadata is read, and the search should stop as soon as the
+     * handler returns false or the query's limit is reached.
+     *
+     * Implementations may search in parallel so matches don't come in any particular order, but
+     * handler must only be called by one thread at a time, see {@link TreeSearch}.
+     *
+     * If the path does not exist then {@link NoTreePathException} should be thrown
+     * If path is not a folder then {@link NotATreeFolderException} should be thrown
+     *
+     * @param path the folder to start searching from
+     * @param query what to search for
+     * @param handler receives each match
+     * @throws StorageException
+     */
+    public void find(Path path, TreeQuery query, TreeMatchHandler handler) throws StorageException;
+
 }
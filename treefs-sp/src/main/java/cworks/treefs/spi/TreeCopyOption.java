@@ -15,5 +15,11 @@ public enum TreeCopyOption implements CopyOption {
      * Copy should copy source wholly into destination
      * cp source target, results in target/source
      */
-    INTO;
+    INTO,
+    /**
+     * Copy shares file content with the source instead of duplicating it where the provider can
+     * (hard links for the system provider), only metadata is written.  Content is never changed
+     * in place so the copies stay independent.
+     */
+    LINK;
 }
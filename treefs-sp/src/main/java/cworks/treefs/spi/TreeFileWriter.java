@@ -0,0 +1,58 @@
+package cworks.treefs.spi;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Writes the content of a new file into a StorageProvider as it arrives, i.e. while an upload is
+ * still being received, so the content doesn't have to be staged somewhere else first and copied
+ * in with createFile.
+ *
+ * Content written to a TreeFileWriter is not visible in the tree until {@link #commit} is called,
+ * commit places the file at its path in one step (a rename, a completed multipart upload...).
+ * A writer that isn't committed must be aborted so the provider can release what was staged.
+ *
+ * Calls on a writer are not thread-safe, callers must not call write, commit or abort
+ * concurrently.
+ *
+ * @author comartin
+ */
+public interface TreeFileWriter {
+
+    /**
+     * Append length bytes of data starting at offset to the file content
+     *
+     * @param data buffer holding the content
+     * @param offset position in data of the first byte to write
+     * @param length number of bytes to write
+     * @throws StorageException
+     */
+    public void write(byte[] data, int offset, int length) throws StorageException;
+
+    /**
+     * Number of bytes written so far
+     * @return
+     */
+    public long size();
+
+    /**
+     * Place the written content at path and associate the description and metadata with it.
+     *
+     * If the file path does not exist it should be created
+     * If the file already exists then throw {@link TreeFileExistsException}, the writer stays
+     * open and must still be aborted
+     *
+     * @param path the path and filename of the new file
+     * @param description the description to associate with the new file, may be null
+     * @param metadata the application specific metadata to associate with the new file, may be null
+     * @return the new file
+     * @throws StorageException
+     */
+    public TreeFile commit(Path path, String description, Map<String, Object> metadata)
+        throws StorageException;
+
+    /**
+     * Discard the written content, does nothing if the writer was already committed or aborted
+     */
+    public void abort();
+}
@@ -0,0 +1,40 @@
+package cworks.treefs.spi;
+
+import java.io.Closeable;
+
+/**
+ * The items directly in a folder, handed out one at a time so a listing of a huge folder never
+ * has to be held in memory.  Like a DirectoryStream a TreeListing can only be iterated once and
+ * must be closed.
+ *
+ * Items come in name order.  A listing opened with a limit stops after limit items, once it's
+ * iterated {@link #cursor()} returns the token that continues the listing after the last item,
+ * pass it to {@link StorageProvider#listFolder(java.nio.file.Path, String, int)} to get the next
+ * page.  Cursors are opaque, callers should not look into or build them.
+ *
+ * example use:
+ *
+ * try(TreeListing listing = provider.listFolder(folder, cursor, 1000)) {
+ *     for(TreePath item : listing) {
+ *         ...
+ *     }
+ *     cursor = listing.cursor();
+ * }
+ *
+ * @author comartin
+ */
+public interface TreeListing extends Iterable<TreePath>, Closeable {
+
+    /**
+     * The token that continues this listing after the last item iterated, only meaningful once
+     * the listing is iterated
+     * @return cursor of the next page or null if the folder has no more items
+     */
+    public String cursor();
+
+    /**
+     * Release what the listing holds, doesn't throw
+     */
+    @Override
+    public void close();
+}
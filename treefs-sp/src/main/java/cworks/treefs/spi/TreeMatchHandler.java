@@ -0,0 +1,18 @@
+package cworks.treefs.spi;
+
+/**
+ * Receives the matches of a {@link StorageProvider#find(java.nio.file.Path, TreeQuery, TreeMatchHandler)}
+ * as they are found.  Providers search in parallel but call the handler one match at a time, so
+ * a handler doesn't need to be thread-safe.
+ *
+ * @author comartin
+ */
+public interface TreeMatchHandler {
+
+    /**
+     * Called for each match
+     * @param match file or folder that matched the query
+     * @return true to keep searching, false to stop
+     */
+    public boolean handle(TreePath match);
+}
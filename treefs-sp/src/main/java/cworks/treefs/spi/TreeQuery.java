@@ -0,0 +1,188 @@
+package cworks.treefs.spi;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What {@link StorageProvider#find(java.nio.file.Path, TreeQuery, TreeMatchHandler)} searches
+ * for: a glob on the name, files and/or folders, metadata values and how deep to look.
+ *
+ * The checks are split so providers can push them down into their walk, the name and type are
+ * checked with {@link #matchesName(String)} and {@link #matchesType(boolean)} before a path's
+ * metadata is read, {@link #matchesMetadata(TreePath)} only once it has been.
+ *
+ * example use:
+ *
+ * TreeQuery query = TreeQuery.newQuery()
+ *     .withGlob("*.{pdf,docx}")
+ *     .withMetadata("owner", "bob")
+ *     .filesOnly()
+ *     .withMaxLevels(10)
+ *     .withLimit(100);
+ *
+ * @author comartin
+ */
+public final class TreeQuery {
+
+    private String glob = null;
+
+    private PathMatcher matcher = null;
+
+    private boolean files = true;
+
+    private boolean folders = true;
+
+    private final Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+
+    private int maxLevels = -1;
+
+    private int limit = -1;
+
+    private TreeQuery() { }
+
+    /**
+     * A query that matches every file and folder at any depth
+     * @return
+     */
+    public static TreeQuery newQuery() {
+        return new TreeQuery();
+    }
+
+    /**
+     * Match names against glob, see {@link StorageProvider#find(java.nio.file.Path, String)} for
+     * the glob syntax
+     * @param glob glob pattern or null to match any name
+     * @return
+     */
+    public TreeQuery withGlob(String glob) {
+        this.glob = glob;
+        this.matcher = (glob == null || glob.isEmpty()) ? null
+            : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        return this;
+    }
+
+    /**
+     * Only match paths whose metadata has name with a value equal to value
+     * @param name
+     * @param value
+     * @return
+     */
+    public TreeQuery withMetadata(String name, Object value) {
+        this.metadata.put(name, value);
+        return this;
+    }
+
+    /**
+     * Only consider maxLevels below the folder searched, less than 1 for no limit
+     * @param maxLevels
+     * @return
+     */
+    public TreeQuery withMaxLevels(int maxLevels) {
+        this.maxLevels = maxLevels;
+        return this;
+    }
+
+    /**
+     * Stop searching after limit matches, less than 1 for no limit
+     * @param limit
+     * @return
+     */
+    public TreeQuery withLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public TreeQuery filesOnly() {
+        this.files = true;
+        this.folders = false;
+        return this;
+    }
+
+    public TreeQuery foldersOnly() {
+        this.files = false;
+        this.folders = true;
+        return this;
+    }
+
+    public String glob() {
+        return glob;
+    }
+
+    public Map<String, Object> metadata() {
+        return Collections.unmodifiableMap(metadata);
+    }
+
+    /**
+     * @return levels to search or Integer.MAX_VALUE for no limit
+     */
+    public int maxLevels() {
+        return (maxLevels < 1) ? Integer.MAX_VALUE : maxLevels;
+    }
+
+    /**
+     * @return most matches or Integer.MAX_VALUE for no limit
+     */
+    public int limit() {
+        return (limit < 1) ? Integer.MAX_VALUE : limit;
+    }
+
+    /**
+     * True if {@link #matchesMetadata(TreePath)} needs a path's metadata, providers that list
+     * paths without it can skip reading it when this is false
+     * @return
+     */
+    public boolean hasMetadataPredicates() {
+        return !metadata.isEmpty();
+    }
+
+    /**
+     * Test the name of a file or folder against the glob
+     * @param name
+     * @return
+     */
+    public boolean matchesName(String name) {
+        return matcher == null || matcher.matches(Paths.get(name));
+    }
+
+    /**
+     * Test if files or folders are wanted
+     * @param folder true for a folder, false for a file
+     * @return
+     */
+    public boolean matchesType(boolean folder) {
+        return folder ? folders : files;
+    }
+
+    /**
+     * Test the metadata of a path against the metadata values of the query, values are compared
+     * as strings so a number stored in metadata matches the same number given as a string
+     * @param path
+     * @return
+     */
+    public boolean matchesMetadata(TreePath path) {
+        if(metadata.isEmpty()) {
+            return true;
+        }
+        Map<String, Object> actual = path.hasMetadata() ? path.metadata() : null;
+        if(actual == null) {
+            return false;
+        }
+        for(Map.Entry<String, Object> expected : metadata.entrySet()) {
+            Object value = actual.get(expected.getKey());
+            if(value == null || !String.valueOf(value).equals(String.valueOf(expected.getValue()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "TreeQuery{glob=" + glob + ", files=" + files + ", folders=" + folders
+            + ", metadata=" + metadata + ", maxLevels=" + maxLevels + ", limit=" + limit + "}";
+    }
+}
@@ -0,0 +1,68 @@
+package cworks.treefs.spi;
+
+/**
+ * A running find, shared by the threads a provider searches with.  Matches are passed to the
+ * handler one at a time, once the handler returns false or the query's limit is reached the
+ * search is stopped and the threads should check {@link #stopped()} to give up early.
+ *
+ * @author comartin
+ */
+public final class TreeSearch {
+
+    private final TreeQuery query;
+
+    private final TreeMatchHandler handler;
+
+    private volatile boolean stopped = false;
+
+    private int matched = 0;
+
+    public TreeSearch(TreeQuery query, TreeMatchHandler handler) {
+        if(query == null || handler == null) {
+            throw new IllegalArgumentException("query and handler are required arguments and cannot be null.");
+        }
+        this.query = query;
+        this.handler = handler;
+    }
+
+    public TreeQuery query() {
+        return query;
+    }
+
+    /**
+     * True once the search has all the matches it needs
+     * @return
+     */
+    public boolean stopped() {
+        return stopped;
+    }
+
+    /**
+     * Stop the search, matches found after this are dropped
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Hand a match to the handler unless the search is stopped
+     * @param match
+     */
+    public synchronized void offer(TreePath match) {
+        if(stopped) {
+            return;
+        }
+        matched++;
+        if(!handler.handle(match) || matched >= query.limit()) {
+            stopped = true;
+        }
+    }
+
+    /**
+     * Number of matches handed to the handler
+     * @return
+     */
+    public synchronized int matched() {
+        return matched;
+    }
+}
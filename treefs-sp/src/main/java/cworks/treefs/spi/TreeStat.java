@@ -0,0 +1,142 @@
+package cworks.treefs.spi;
+
+import java.nio.file.Path;
+import java.util.Date;
+
+/**
+ * What a StorageProvider knows about a path from a single lookup: whether it's a file or a
+ * folder, its size, times, checksum and whether it has metadata tags.  Callers that would test
+ * exists, isFolder and isFile one after the other should stat the path once instead.
+ *
+ * A TreeStat is immutable, paths that don't exist (or aren't managed by the provider) are
+ * {@link #NOT_FOUND}.
+ *
+ * @author comartin
+ */
+public final class TreeStat {
+
+    /**
+     * Returned by {@link StorageProvider#stat(Path)} when the path doesn't exist
+     */
+    public static final TreeStat NOT_FOUND = new TreeStat(null, false, false, -1L, null, null, null, false);
+
+    private final Path path;
+
+    private final boolean file;
+
+    private final boolean folder;
+
+    private final long size;
+
+    private final Long creationTime;
+
+    private final Long lastModifiedTime;
+
+    private final String checksum;
+
+    private final boolean hasMetadata;
+
+    private TreeStat(Path path, boolean file, boolean folder, long size, Date creationTime,
+        Date lastModifiedTime, String checksum, boolean hasMetadata) {
+        this.path = path;
+        this.file = file;
+        this.folder = folder;
+        this.size = size;
+        this.creationTime = (creationTime == null) ? null : creationTime.getTime();
+        this.lastModifiedTime = (lastModifiedTime == null) ? null : lastModifiedTime.getTime();
+        this.checksum = checksum;
+        this.hasMetadata = hasMetadata;
+    }
+
+    /**
+     * Stat of a file
+     * @param path relative path of the file
+     * @param size number of bytes in the file, -1 if unknown
+     * @param creationTime
+     * @param lastModifiedTime
+     * @param checksum checksum of the content or null
+     * @param hasMetadata true if the file has metadata tags
+     * @return
+     */
+    public static TreeStat file(Path path, long size, Date creationTime, Date lastModifiedTime,
+        String checksum, boolean hasMetadata) {
+        return new TreeStat(path, true, false, size, creationTime, lastModifiedTime, checksum, hasMetadata);
+    }
+
+    /**
+     * Stat of a folder
+     * @param path relative path of the folder
+     * @param creationTime
+     * @param lastModifiedTime
+     * @param hasMetadata true if the folder has metadata tags
+     * @return
+     */
+    public static TreeStat folder(Path path, Date creationTime, Date lastModifiedTime,
+        boolean hasMetadata) {
+        return new TreeStat(path, false, true, -1L, creationTime, lastModifiedTime, null, hasMetadata);
+    }
+
+    /**
+     * @return false for {@link #NOT_FOUND}
+     */
+    public boolean exists() {
+        return file || folder;
+    }
+
+    public boolean isFile() {
+        return file;
+    }
+
+    public boolean isFolder() {
+        return folder;
+    }
+
+    /**
+     * The relative path this stat is for, null for {@link #NOT_FOUND}
+     * @return
+     */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Number of bytes in a file, -1 for folders or if unknown
+     * @return
+     */
+    public long size() {
+        return size;
+    }
+
+    public Date creationTime() {
+        return (creationTime == null) ? null : new Date(creationTime);
+    }
+
+    public Date lastModifiedTime() {
+        return (lastModifiedTime == null) ? null : new Date(lastModifiedTime);
+    }
+
+    /**
+     * Checksum of a file's content or null if the provider doesn't have one
+     * @return
+     */
+    public String checksum() {
+        return checksum;
+    }
+
+    /**
+     * True when the path has metadata tags
+     * @return
+     */
+    public boolean hasMetadata() {
+        return hasMetadata;
+    }
+
+    @Override
+    public String toString() {
+        if(!exists()) {
+            return "TreeStat{NOT_FOUND}";
+        }
+        return "TreeStat{" + (file ? "file " : "folder ") + path
+            + (file ? ", size=" + size : "") + "}";
+    }
+}
@@ -0,0 +1,102 @@
+package cworks.treefs.spi;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AsyncStorageProviderAdapterTest {
+
+    private ExecutorService executor;
+
+    private AsyncStorageProvider async;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+        async = new AsyncStorageProviderAdapter(_provider(), executor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void resultIsPassedToTheHandler() throws Exception {
+        Assert.assertTrue(async.exists(Paths.get("file.txt")).get(5, TimeUnit.SECONDS));
+
+        ByteBuffer buffer = async.read(Paths.get("file.txt"), 2L, 3).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("nte", new String(buffer.array(), 0, buffer.remaining(), "UTF-8"));
+    }
+
+    @Test
+    public void storageExceptionIsPassedToTheHandler() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        CompletableFuture<Boolean> handled = async.stat(Paths.get("missing.txt"))
+            .handle((stat, ex) -> {
+                failure.set(ex);
+                return stat == null;
+            });
+
+        Assert.assertTrue(handled.get(5, TimeUnit.SECONDS));
+        // the provider's own exception, not a wrapper around it
+        Assert.assertTrue(failure.get() instanceof NoTreePathException);
+        Assert.assertEquals("missing.txt", failure.get().getMessage());
+    }
+
+    @Test
+    public void rejectedCallFailsWithAStorageException() throws Exception {
+        executor.shutdown();
+        CompletableFuture<Boolean> exists = async.exists(Paths.get("file.txt"));
+        Assert.assertTrue(exists.isCompletedExceptionally());
+        try {
+            exists.join();
+            Assert.fail("ran on a shut down executor");
+        } catch(Exception ex) {
+            Assert.assertTrue(ex.getCause() instanceof StorageException);
+        }
+    }
+
+    /**
+     * A provider with one file.txt, stat of anything else fails
+     */
+    private StorageProvider _provider() {
+        return (StorageProvider)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { StorageProvider.class },
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    Path path = (Path)args[0];
+                    boolean found = "file.txt".equals(path.toString());
+                    switch(method.getName()) {
+                        case "exists":
+                            return found;
+                        case "stat":
+                            if(!found) {
+                                throw new NoTreePathException(path.toString());
+                            }
+                            return null;
+                        case "read":
+                            return new ByteArrayInputStream("content".getBytes("UTF-8"),
+                                ((Long)args[1]).intValue(), ((Long)args[2]).intValue());
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+    }
+}
@@ -0,0 +1,211 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.AsyncStorageProviderAdapter;
+import cworks.treefs.spi.NoTreePathException;
+import cworks.treefs.spi.StorageException;
+import cworks.treefs.spi.TreeFile;
+import cworks.treefs.spi.TreeFileExistsException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static cworks.treefs.common.IOUtils.closeQuietly;
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * AsyncStorageProvider for the SystemStorageProvider, get one with
+ * {@link SystemStorageProvider#async()}.
+ *
+ * File content is read and written with an AsynchronousFileChannel bound to the provider's
+ * bounded I/O pool, so no thread waits on the disk while a read or write is in flight.  New files
+ * are staged under the uploads folder and committed with a rename like a SystemFileWriter, the
+ * source stream of createFile is read a buffer at a time on the I/O pool.  Everything else
+ * (folders, metadata, copy and move) has no non-blocking API in java.nio and runs on the same
+ * pool through {@link AsyncStorageProviderAdapter}.
+ *
+ * @author comartin
+ */
+public class SystemAsyncStorageProvider extends AsyncStorageProviderAdapter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SystemStorageProvider provider;
+
+    private final ExecutorService io;
+
+    SystemAsyncStorageProvider(SystemStorageProvider provider, ExecutorService io) {
+        super(provider, io);
+        this.provider = provider;
+        this.io = io;
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> read(final Path path, final long offset, final int length) {
+        final CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+        Path fullPath = SystemPathIO.contentOf(provider._root().resolve(path));
+        final AsynchronousFileChannel channel;
+        try {
+            if(!Files.isRegularFile(fullPath)) {
+                throw new NoTreePathException("file path: " + path + " does not exist.");
+            }
+            channel = AsynchronousFileChannel.open(fullPath,
+                EnumSet.of(StandardOpenOption.READ), io);
+        } catch(StorageException | IOException | RejectedExecutionException ex) {
+            future.completeExceptionally(_storageException(path, ex));
+            return future;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.read(buffer, offset, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer n, Void attachment) {
+                if(n < 0 || !buffer.hasRemaining()) {
+                    closeQuietly(channel);
+                    buffer.flip();
+                    future.complete(buffer);
+                    return;
+                }
+                channel.read(buffer, offset + buffer.position(), null, this);
+            }
+
+            @Override
+            public void failed(Throwable ex, Void attachment) {
+                closeQuietly(channel);
+                future.completeExceptionally(_storageException(path, ex));
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<TreeFile> createFile(final Path path, final InputStream stream,
+        final String description, final Map<String, Object> metadata) {
+
+        final CompletableFuture<TreeFile> future = new CompletableFuture<TreeFile>();
+        if(isNull(path) || isNull(stream)) {
+            future.completeExceptionally(new IllegalArgumentException(
+                "Both path and stream are required arguments and cannot be null."));
+            return future;
+        }
+
+        try {
+            io.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if(provider.exists(path)) {
+                            throw new TreeFileExistsException("file: " + path.toString() + " exists", path);
+                        }
+                        Path uploads = provider._uploadRoot();
+                        Files.createDirectories(uploads);
+                        Path staged = uploads.resolve(UUID.randomUUID().toString());
+                        AsynchronousFileChannel channel = AsynchronousFileChannel.open(staged,
+                            EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), io);
+                        new StagedWrite(path, stream, description, metadata, staged, channel, future)
+                            .next();
+                    } catch(Exception ex) {
+                        closeQuietly(stream);
+                        future.completeExceptionally(_storageException(path, ex));
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ex) {
+            closeQuietly(stream);
+            future.completeExceptionally(new StorageException("provider is too busy or closed", ex));
+        }
+        return future;
+    }
+
+    /**
+     * Copies the source stream of a createFile into its staged file a buffer at a time, reading
+     * the next buffer once the channel has written the last one, then commits the staged file
+     */
+    private final class StagedWrite implements CompletionHandler<Integer, Void> {
+
+        private final Path path;
+        private final InputStream stream;
+        private final String description;
+        private final Map<String, Object> metadata;
+        private final Path staged;
+        private final AsynchronousFileChannel channel;
+        private final CompletableFuture<TreeFile> future;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long position = 0L;
+
+        StagedWrite(Path path, InputStream stream, String description, Map<String, Object> metadata,
+            Path staged, AsynchronousFileChannel channel, CompletableFuture<TreeFile> future) {
+            this.path = path;
+            this.stream = stream;
+            this.description = description;
+            this.metadata = metadata;
+            this.staged = staged;
+            this.channel = channel;
+            this.future = future;
+        }
+
+        /**
+         * Read the next buffer from the stream and write it, or commit at the end of the stream
+         */
+        void next() {
+            try {
+                buffer.clear();
+                int n = stream.read(buffer.array());
+                if(n < 0) {
+                    closeQuietly(stream);
+                    channel.close();
+                    future.complete(provider._commitFile(staged, path, description, metadata));
+                    return;
+                }
+                buffer.limit(n);
+                channel.write(buffer, position, null, this);
+            } catch(Exception ex) {
+                failed(ex, null);
+            }
+        }
+
+        @Override
+        public void completed(Integer n, Void attachment) {
+            position += n;
+            if(buffer.hasRemaining()) {
+                channel.write(buffer, position, null, this);
+                return;
+            }
+            next();
+        }
+
+        @Override
+        public void failed(Throwable ex, Void attachment) {
+            closeQuietly(stream);
+            closeQuietly(channel);
+            try {
+                Files.deleteIfExists(staged);
+            } catch(IOException e) {
+                System.out.println("SystemAsyncStorageProvider failed removing: " + staged + " "
+                    + e.getMessage());
+            }
+            future.completeExceptionally(_storageException(path, ex));
+        }
+    }
+
+    /**
+     * StorageExceptions are passed on as they are, anything else is wrapped in one
+     */
+    private static Throwable _storageException(Path path, Throwable ex) {
+        if(ex instanceof StorageException || ex instanceof IllegalArgumentException) {
+            return ex;
+        }
+        return new StorageException("exception accessing: " + path, ex);
+    }
+}
@@ -45,6 +45,15 @@ public final class SystemConfig {
         return trash;
     }
 
+    /**
+     * Where intent records of moves into and out of a bucket are kept until the move is done
+     * @return
+     */
+    public static String intentDir() {
+        String intents = mount() + File.separator + "intents";
+        return intents;
+    }
+
     /**
      * Temp download dir for TreeFs
      * @return
@@ -53,4 +62,65 @@ public final class SystemConfig {
         String downloads = mount() + File.separator + "downloads";
         return downloads;
     }
+
+    /**
+     * Should providers keep metadata in the embedded metadata store instead of .d/.f sidecars
+     * @return
+     */
+    public static boolean metadataStore() {
+        return Boolean.parseBoolean(System.getProperty("treefs-syssp.metadataStore", "false"));
+    }
+
+    /**
+     * Should a put or remove on the metadata store wait until its record is forced to disk,
+     * concurrent writers share one force.  Set treefs-syssp.metadataStoreSync to false to leave
+     * forcing to the OS and lose the latest records on a crash in exchange for faster writes
+     * @return
+     */
+    public static boolean metadataStoreSync() {
+        return Boolean.parseBoolean(System.getProperty("treefs-syssp.metadataStoreSync", "true"));
+    }
+
+    /**
+     * Should providers keep files in a sharded object folder with name to id manifests in each
+     * folder instead of in the folders themselves, set treefs-syssp.layout to sharded
+     * @return
+     */
+    public static boolean shardedLayout() {
+        return "sharded".equals(System.getProperty("treefs-syssp.layout", "folders"));
+    }
+
+    /**
+     * Suffix of the metadata store log file, the log for a bucket lives at mount/bucket + suffix
+     * @return
+     */
+    public static String metadataStoreSuffix() {
+        return ".tfsmeta";
+    }
+
+    /**
+     * Number of threads in a provider's I/O pool, the pool bounds the async operations in flight
+     * @return
+     */
+    public static int ioThreads() {
+        return Integer.getInteger("treefs-syssp.ioThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Parallelism of a provider's fork/join pool, used to walk folders in parallel
+     * @return
+     */
+    public static int walkThreads() {
+        return Integer.getInteger("treefs-syssp.walkThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Most items an openFolder loads before it fails, bounds the memory of a deep open
+     * @return
+     */
+    public static int maxFolderItems() {
+        return Integer.getInteger("treefs-syssp.maxFolderItems", 1000000);
+    }
 }
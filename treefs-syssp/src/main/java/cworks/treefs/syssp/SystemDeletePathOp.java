@@ -8,10 +8,40 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 
+import static cworks.treefs.common.ObjectUtils.isNull;
+
 class SystemDeletePathOp implements FileVisitor<Path> {
 
+    /**
+     * delete the objects named by manifests of a sharded layout along with the manifests, false
+     * when the tree was copied somewhere else and the copy's manifests still name them
+     */
+    private final boolean releaseObjects;
+
+    SystemDeletePathOp() {
+        this(true);
+    }
+
+    SystemDeletePathOp(boolean releaseObjects) {
+        this.releaseObjects = releaseObjects;
+    }
+
     boolean delete(Path path) throws IOException {
 
+        SystemObjectLayout layout = SystemPathIO.layoutFor(path);
+        if(!isNull(layout)) {
+            if(releaseObjects && SystemObjectLayout.isManifest(path)) {
+                layout.releaseAll(path);
+            } else if(!isNull(layout.id(path))) {
+                // a file kept in the layout
+                String id = layout.unbind(path);
+                if(releaseObjects) {
+                    layout.release(id);
+                }
+                return true;
+            }
+        }
+
         boolean success = Files.deleteIfExists(path);
         String metadata = path.toString() + ".f";
         Files.deleteIfExists(Paths.get(metadata));
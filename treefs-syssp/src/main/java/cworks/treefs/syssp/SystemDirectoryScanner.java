@@ -0,0 +1,203 @@
+package cworks.treefs.syssp;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Reads the items of one folder in a single pass.  The folder is walked one level deep so every
+ * entry comes with the BasicFileAttributes the walk already read, then data files are paired
+ * with their .f sidecars by name from the same listing.  Nothing is stat'ed again, the only
+ * other filesystem call an item costs is reading its metadata.
+ *
+ * Per item that is one stat from the walk and one open/read of the metadata, a file's sidecar
+ * is already known to exist from the listing and a folder's .d, which lives inside the folder,
+ * is simply read and an item without one isn't managed.  Under a SystemMetadataStore the kind
+ * of each item comes from the store's in-memory index instead of the listing.
+ *
+ * The size and lastModifiedTime of a file are taken from the attributes, the same as stat.
+ *
+ * In a sharded SystemObjectLayout the files of the folder come from its manifest instead, each
+ * costs a stat of its object in place of the stat from the walk.
+ *
+ * A scan holds every item of the folder, it's for callers that load the whole folder anyway.
+ * listFolder pages through a folder with a DirectoryStream so it keeps a fixed amount.
+ *
+ * @author comartin
+ */
+final class SystemDirectoryScanner {
+
+    private static final String FOLDER_METADATA_SUFFIX = ".d";
+
+    private static final String FILE_METADATA_SUFFIX = ".f";
+
+    /**
+     * An item of the scanned folder and the attributes the walk read for it
+     */
+    static final class Entry {
+
+        private final Path path;
+
+        private final BasicFileAttributes attributes;
+
+        private final boolean folder;
+
+        private Entry(Path path, BasicFileAttributes attributes, boolean folder) {
+            this.path = path;
+            this.attributes = attributes;
+            this.folder = folder;
+        }
+
+        Path path() {
+            return this.path;
+        }
+
+        String name() {
+            return this.path.getFileName().toString();
+        }
+
+        BasicFileAttributes attributes() {
+            return this.attributes;
+        }
+
+        boolean isFolder() {
+            return this.folder;
+        }
+
+        /**
+         * Read the metadata of the item
+         * @return the folder or file or null if the provider doesn't manage the item
+         */
+        SystemPath read() {
+            try {
+                if(folder) {
+                    return SystemPathIO.readSystemFolder(path);
+                }
+                SystemFile file = SystemPathIO.readSystemFile(path);
+                file.size(attributes.size());
+                file.lastModifiedTime(new Date(attributes.lastModifiedTime().toMillis()));
+                return file;
+            } catch(IOException ex) {
+                // no metadata (or it can't be read) so it isn't managed
+                return null;
+            }
+        }
+
+        /**
+         * Test if the provider manages the item without reading its metadata, free for files
+         * and one existence check for a folder's .d
+         * @return
+         */
+        boolean isManaged() {
+            SystemMetadataStore store = SystemPathIO.storeFor(path);
+            if(!isNull(store) || !folder) {
+                // files only make it into a scan when their sidecar was listed or the store has them
+                return true;
+            }
+            return Files.isRegularFile(path.resolve(name() + FOLDER_METADATA_SUFFIX));
+        }
+    }
+
+    private SystemDirectoryScanner() { }
+
+    /**
+     * Scan a folder for the folders and files the provider may manage.  Files are only returned
+     * when they're managed, folders are returned when they're directories and Entry.read or
+     * Entry.isManaged tell whether they're managed.  Entries come in listing order.
+     *
+     * @param folder full path of the folder
+     * @return the entries
+     * @throws IOException if the folder can't be listed
+     */
+    static List<Entry> scan(final Path folder) throws IOException {
+
+        final Map<String, Path> paths = new HashMap<String, Path>();
+        final Map<String, BasicFileAttributes> listing = new LinkedHashMap<String, BasicFileAttributes>();
+        Files.walkFileTree(folder, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1,
+            new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path entry, BasicFileAttributes attrs) {
+                    String name = entry.getFileName().toString();
+                    paths.put(name, entry);
+                    listing.put(name, attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override
+                public FileVisitResult visitFileFailed(Path entry, IOException ex) throws IOException {
+                    if(entry.equals(folder)) {
+                        throw ex;
+                    }
+                    // gone or unreadable since it was listed, same as not being there
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+        List<Entry> entries = new ArrayList<Entry>(listing.size());
+        SystemObjectLayout layout = SystemPathIO.layoutFor(folder);
+        if(!isNull(layout)) {
+            _scanManifest(folder, layout, entries);
+        }
+        SystemMetadataStore store = SystemPathIO.storeFor(folder);
+        if(!isNull(store)) {
+            for(Map.Entry<String, BasicFileAttributes> item : listing.entrySet()) {
+                Path path = paths.get(item.getKey());
+                byte kind = store.kind(path);
+                if(kind == SystemMetadataStore.KIND_FOLDER || kind == SystemMetadataStore.KIND_FILE) {
+                    entries.add(new Entry(path, item.getValue(), kind == SystemMetadataStore.KIND_FOLDER));
+                }
+            }
+            return entries;
+        }
+
+        // a file is managed when its .f was listed next to it, that leaves out the sidecars
+        // themselves and the folder's own .d without looking at them
+        for(Map.Entry<String, BasicFileAttributes> item : listing.entrySet()) {
+            String name = item.getKey();
+            BasicFileAttributes attrs = item.getValue();
+            if(attrs.isDirectory()) {
+                entries.add(new Entry(paths.get(name), attrs, true));
+            } else if(attrs.isRegularFile() && _isRegularFile(listing.get(name + FILE_METADATA_SUFFIX))) {
+                entries.add(new Entry(paths.get(name), attrs, false));
+            }
+        }
+        return entries;
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Add an entry for each file in the folder's manifest whose object is there
+     */
+    private static void _scanManifest(Path folder, SystemObjectLayout layout, List<Entry> entries)
+        throws IOException {
+        for(Map.Entry<String, String> file : layout.entries(folder).entrySet()) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(layout.object(file.getValue()),
+                    BasicFileAttributes.class);
+                entries.add(new Entry(folder.resolve(file.getKey()), attrs, false));
+            } catch(NoSuchFileException ex) {
+                // named but its content is gone, same as not being there
+            }
+        }
+    }
+
+    private static boolean _isRegularFile(BasicFileAttributes attrs) {
+        return !isNull(attrs) && attrs.isRegularFile();
+    }
+}
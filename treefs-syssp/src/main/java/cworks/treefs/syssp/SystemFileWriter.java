@@ -0,0 +1,111 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.StorageException;
+import cworks.treefs.spi.TreeFile;
+import cworks.treefs.spi.TreeFileWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+
+import static cworks.treefs.common.IOUtils.closeQuietly;
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * TreeFileWriter for the SystemStorageProvider.  Content is written once, into a uniquely named
+ * file in the provider's upload folder, and commit renames that file into the bucket.  The staged
+ * file is created on the first write so opening a writer does no IO.
+ *
+ * @author comartin
+ */
+final class SystemFileWriter implements TreeFileWriter {
+
+    private final SystemStorageProvider provider;
+
+    private Path staged = null;
+
+    private OutputStream out = null;
+
+    private long size = 0L;
+
+    private boolean done = false;
+
+    SystemFileWriter(SystemStorageProvider provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws StorageException {
+        if(done) {
+            throw new StorageException("writer is already committed or aborted");
+        }
+        try {
+            _open();
+            out.write(data, offset, length);
+            size += length;
+        } catch(IOException ex) {
+            throw new StorageException("exception writing upload: " + staged, ex);
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public TreeFile commit(Path path, String description, Map<String, Object> metadata)
+        throws StorageException {
+
+        if(done) {
+            throw new StorageException("writer is already committed or aborted");
+        }
+        try {
+            // an empty upload still creates an (empty) file
+            _open();
+            out.close();
+        } catch(IOException ex) {
+            throw new StorageException("exception writing upload: " + staged, ex);
+        }
+
+        TreeFile file = provider._commitFile(staged, path, description, metadata);
+        done = true;
+        return file;
+    }
+
+    @Override
+    public void abort() {
+        if(done) {
+            return;
+        }
+        done = true;
+        closeQuietly(out);
+        if(!isNull(staged)) {
+            try {
+                Files.deleteIfExists(staged);
+            } catch(IOException ex) {
+                System.out.println("SystemFileWriter failed removing: " + staged + " " + ex.getMessage());
+            }
+        }
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    private void _open() throws IOException {
+        if(!isNull(out)) {
+            return;
+        }
+        Path uploads = provider._uploadRoot();
+        Files.createDirectories(uploads);
+        staged = uploads.resolve(UUID.randomUUID().toString());
+        out = Files.newOutputStream(staged,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,89 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.TreeQuery;
+import cworks.treefs.spi.TreeSearch;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Searches one folder for a find and forks a task for each of its sub-folders, so a wide tree
+ * is searched by every thread of the provider's fork/join pool.
+ *
+ * The name and type of each item are checked before its metadata is read, metadata is only
+ * read for items that can still match.  Every task gives up as soon as the search is stopped.
+ *
+ * @author comartin
+ */
+final class SystemFindOp extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TreeSearch search;
+
+    private final Path folder;
+
+    private final int level;
+
+    /**
+     * @param search the running find
+     * @param folder full path of the folder to search
+     * @param level level of the folder's items below the folder the find started from, from 1
+     */
+    SystemFindOp(TreeSearch search, Path folder, int level) {
+        this.search = search;
+        this.folder = folder;
+        this.level = level;
+    }
+
+    @Override
+    protected void compute() {
+        if(search.stopped()) {
+            return;
+        }
+
+        TreeQuery query = search.query();
+        List<SystemFindOp> subFolders = new ArrayList<SystemFindOp>();
+        try {
+            for(SystemDirectoryScanner.Entry entry : SystemDirectoryScanner.scan(folder)) {
+                if(search.stopped()) {
+                    return;
+                }
+                boolean isFolder = entry.isFolder();
+                boolean managed;
+                if(query.matchesType(isFolder) && query.matchesName(entry.name())) {
+                    managed = _match(entry);
+                } else {
+                    managed = !isFolder || entry.isManaged();
+                }
+                if(isFolder && managed && level < query.maxLevels()) {
+                    subFolders.add(new SystemFindOp(search, entry.path(), level + 1));
+                }
+            }
+        } catch(IOException ex) {
+            System.out.println("SystemFindOp failed reading: " + folder + " " + ex.getMessage());
+        }
+
+        if(!subFolders.isEmpty() && !search.stopped()) {
+            invokeAll(subFolders);
+        }
+    }
+
+    /**
+     * Read the item's metadata and offer it to the search if it matches
+     * @return false if the item has no metadata so it isn't managed
+     */
+    private boolean _match(SystemDirectoryScanner.Entry entry) {
+        SystemPath path = entry.read();
+        if(path == null) {
+            return false;
+        }
+        if(search.query().matchesMetadata(path)) {
+            search.offer(path);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,110 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.TreeListing;
+import cworks.treefs.spi.TreePath;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+import static cworks.treefs.common.ObjectUtils.isNullOrEmpty;
+
+/**
+ * TreeListing for the SystemStorageProvider, holds the names of one page of a folder's items and
+ * reads each item's SystemPath as it's iterated.  The cursor is the name of the last item.
+ *
+ * @author comartin
+ */
+final class SystemFolderListing implements TreeListing {
+
+    private final Path fullPath;
+
+    private final List<String> names;
+
+    private final boolean more;
+
+    private boolean iterated = false;
+
+    /**
+     * @param fullPath full path to the folder
+     * @param names names of the items in the page, in order
+     * @param more true if the folder has items after the page
+     */
+    SystemFolderListing(Path fullPath, List<String> names, boolean more) {
+        this.fullPath = fullPath;
+        this.names = names;
+        this.more = more;
+    }
+
+    @Override
+    public Iterator<TreePath> iterator() {
+        if(iterated) {
+            throw new IllegalStateException("listing of " + fullPath + " was already iterated");
+        }
+        iterated = true;
+        final Iterator<String> it = names.iterator();
+        return new Iterator<TreePath>() {
+            private TreePath next = null;
+
+            @Override
+            public boolean hasNext() {
+                while(isNull(next) && it.hasNext()) {
+                    Path path = fullPath.resolve(it.next());
+                    try {
+                        next = SystemPathIO.readSystemPath(path);
+                    } catch(IOException ex) {
+                        // removed since the page was read
+                        System.out.println("SystemFolderListing skipping: " + path + " " + ex.getMessage());
+                    }
+                }
+                return !isNull(next);
+            }
+
+            @Override
+            public TreePath next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                TreePath item = next;
+                next = null;
+                return item;
+            }
+        };
+    }
+
+    @Override
+    public String cursor() {
+        if(!more || names.isEmpty()) {
+            return null;
+        }
+        return encode(names.get(names.size() - 1));
+    }
+
+    @Override
+    public void close() {
+        // nothing is held open
+    }
+
+    /**
+     * Cursor for the page after the item with name
+     */
+    static String encode(String name) {
+        return Base64.getUrlEncoder().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Name of the item a cursor continues after, null for no cursor
+     * @throws IllegalArgumentException if cursor wasn't made by encode
+     */
+    static String decode(String cursor) {
+        if(isNullOrEmpty(cursor)) {
+            return null;
+        }
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,177 @@
+package cworks.treefs.syssp;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Copies a folder tree by hard-linking its content files and writing fresh copies of the .d and
+ * .f sidecars, so a copy costs directory and metadata I/O no matter how much content the tree
+ * holds.  Content is never written in place by the provider (see SystemStorageProvider
+ * _breakLink) so the source and the copy can't see each other's changes.
+ *
+ * A file that can't be linked (the target is on another file-system) is copied instead.
+ *
+ * Under a sharded SystemObjectLayout a folder's manifest isn't copied, each file it names gets a
+ * new object linked to the old one and is added to the copy's manifest.
+ *
+ * @author comartin
+ */
+class SystemLinkCopyOp implements FileVisitor<Path> {
+
+    private static final String FOLDER_METADATA_SUFFIX = ".d";
+
+    private static final String FILE_METADATA_SUFFIX = ".f";
+
+    private final Path from;
+
+    private final Path to;
+
+    private final boolean includeRoot;
+
+    private long linked = 0L;
+
+    private long copied = 0L;
+
+    /**
+     * @param from full path of the folder to copy
+     * @param to full path the folder is copied to
+     * @param includeRoot copy the .d of the folder itself, false when its items are copied
+     *                    into an existing folder
+     */
+    SystemLinkCopyOp(Path from, Path to, boolean includeRoot) {
+        this.from = from;
+        this.to = to;
+        this.includeRoot = includeRoot;
+    }
+
+    /**
+     * Link or copy one file
+     * @param file full path of the file
+     * @param target full path of the copy, replaced if it exists
+     * @return true if linked, false if copied
+     * @throws IOException
+     */
+    static boolean link(Path file, Path target) throws IOException {
+        // unlink rather than write through an existing name that may share content
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, file);
+            return true;
+        } catch(UnsupportedOperationException | FileSystemException ex) {
+            Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+            return false;
+        }
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path folder, BasicFileAttributes attrs)
+        throws IOException {
+        Files.createDirectories(to.resolve(from.relativize(folder).toString()));
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Path target = to.resolve(from.relativize(file).toString());
+        String name = file.getFileName().toString();
+        Path folder = file.getParent();
+        SystemObjectLayout layout = SystemPathIO.layoutFor(file);
+        if(!isNull(layout) && SystemObjectLayout.isManifest(file)) {
+            _linkObjects(layout, folder, target.getParent());
+        } else if(name.equals(folder.getFileName() + FOLDER_METADATA_SUFFIX)) {
+            if(includeRoot || !folder.equals(from)) {
+                Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } else if(name.endsWith(FILE_METADATA_SUFFIX)
+            && Files.isRegularFile(file.resolveSibling(
+                name.substring(0, name.length() - FILE_METADATA_SUFFIX.length())))) {
+            // sidecars are rewritten in place so each copy gets its own
+            Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+        } else if(link(file, target)) {
+            linked++;
+        } else {
+            copied++;
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path file, IOException ex) throws IOException {
+        throw ex;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path folder, IOException ex) throws IOException {
+        if(ex != null) {
+            throw ex;
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Give every file in a folder's manifest a linked object of its own in the copy's manifest
+     */
+    private void _linkObjects(SystemObjectLayout layout, Path folder, Path copy) throws IOException {
+        SystemObjectLayout targetLayout = SystemPathIO.layoutFor(copy);
+        if(isNull(targetLayout)) {
+            // copied out of the layout, the files go into the copy's folder
+            for(Map.Entry<String, String> entry : layout.entries(folder).entrySet()) {
+                Path object = layout.object(entry.getValue());
+                _count(link(object, copy.resolve(entry.getKey())));
+                _copySidecar(object, copy.resolve(entry.getKey()));
+            }
+            return;
+        }
+        for(Map.Entry<String, String> entry : layout.entries(folder).entrySet()) {
+            Path object = layout.object(entry.getValue());
+            String id = SystemObjectLayout.newId();
+            Path linked = targetLayout.object(id);
+            Files.createDirectories(linked.getParent());
+            _count(link(object, linked));
+            _copySidecar(object, linked);
+            String replaced = targetLayout.bind(copy.resolve(entry.getKey()), id);
+            if(!isNull(replaced)) {
+                targetLayout.release(replaced);
+            }
+        }
+    }
+
+    private void _copySidecar(Path file, Path target) throws IOException {
+        Path sidecar = file.resolveSibling(file.getFileName() + FILE_METADATA_SUFFIX);
+        if(Files.exists(sidecar)) {
+            Files.copy(sidecar, target.resolveSibling(target.getFileName() + FILE_METADATA_SUFFIX),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void _count(boolean wasLinked) {
+        if(wasLinked) {
+            linked++;
+        } else {
+            copied++;
+        }
+    }
+
+    /**
+     * Number of content files that were linked
+     */
+    long linked() {
+        return linked;
+    }
+
+    /**
+     * Number of content files that had to be copied
+     */
+    long copied() {
+        return copied;
+    }
+}
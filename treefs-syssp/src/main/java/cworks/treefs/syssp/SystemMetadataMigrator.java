@@ -0,0 +1,161 @@
+package cworks.treefs.syssp;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static cworks.treefs.common.ObjectUtils.isNullOrEmpty;
+
+/**
+ * One-shot migration of an existing bucket from .d/.f sidecar files into the embedded metadata
+ * store.  Every managed folder and file found under the bucket gets a record in the store, the
+ * sidecar files are optionally removed once their record has been written.
+ *
+ * Run while no provider is serving the bucket:
+ *
+ * java cworks.treefs.syssp.SystemMetadataMigrator mount bucket [--remove-sidecars]
+ *
+ * @author comartin
+ */
+public class SystemMetadataMigrator implements FileVisitor<Path> {
+
+    private static final String FOLDER_METADATA_SUFFIX = ".d";
+
+    private static final String FILE_METADATA_SUFFIX = ".f";
+
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    private final SystemMetadataStore store;
+
+    private final boolean removeSidecars;
+
+    private int folders = 0;
+
+    private int files = 0;
+
+    SystemMetadataMigrator(SystemMetadataStore store, boolean removeSidecars) {
+        this.store = store;
+        this.removeSidecars = removeSidecars;
+    }
+
+    /**
+     * Migrate a bucket into its metadata store
+     * @param mount the mount the bucket lives in
+     * @param bucket the bucket to migrate
+     * @param removeSidecars delete the .d/.f files once migrated
+     * @return the number of folders and files migrated
+     * @throws IOException
+     */
+    public static int migrate(String mount, String bucket, boolean removeSidecars)
+        throws IOException {
+
+        Path root = Paths.get(mount, bucket);
+        if(!Files.isDirectory(root)) {
+            throw new IOException("bucket does not exist: " + root);
+        }
+        SystemMetadataStore store = SystemMetadataStore.open(root,
+            SystemMetadataStore.logFile(mount, bucket));
+        try {
+            SystemMetadataMigrator migrator = new SystemMetadataMigrator(store, removeSidecars);
+            Files.walkFileTree(root, migrator);
+            // forces every record migrated
+            store.compact();
+            System.out.println("migrated " + migrator.folders + " folders and "
+                + migrator.files + " files from " + root);
+            return migrator.folders + migrator.files;
+        } finally {
+            store.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.out.println("usage: SystemMetadataMigrator mount bucket [--remove-sidecars]");
+            return;
+        }
+        boolean remove = args.length > 2 && "--remove-sidecars".equals(args[2]);
+        migrate(args[0], args[1], remove);
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+        throws IOException {
+
+        // the bucket itself is not a managed folder
+        if(dir.equals(store.root())) {
+            return FileVisitResult.CONTINUE;
+        }
+        File sidecar = new File(dir.toFile(), dir.getFileName().toString() + FOLDER_METADATA_SUFFIX);
+        if(_migrate(dir, sidecar, SystemMetadataStore.KIND_FOLDER)) {
+            folders++;
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if(_isSidecar(file)) {
+            return FileVisitResult.CONTINUE;
+        }
+        File sidecar = new File(file.toString() + FILE_METADATA_SUFFIX);
+        if(_migrate(file, sidecar, SystemMetadataStore.KIND_FILE)) {
+            files++;
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Is the file the .d of its folder or the .f of a file next to it, anything else with those
+     * suffixes is content that may have a sidecar of its own
+     */
+    private boolean _isSidecar(Path file) {
+        String name = file.getFileName().toString();
+        Path folder = file.getParent();
+        if(name.endsWith(FOLDER_METADATA_SUFFIX)) {
+            return name.equals(folder.getFileName() + FOLDER_METADATA_SUFFIX);
+        }
+        if(name.endsWith(FILE_METADATA_SUFFIX)) {
+            String content = name.substring(0, name.length() - FILE_METADATA_SUFFIX.length());
+            return !content.isEmpty() && Files.isRegularFile(folder.resolve(content));
+        }
+        return false;
+    }
+
+    /**
+     * Write the sidecar's content into the store and remove the sidecar if asked to
+     * @return true if the path was migrated, false if it had no sidecar
+     */
+    private boolean _migrate(Path fullPath, File sidecar, byte kind) throws IOException {
+        if(!sidecar.isFile()) {
+            return false;
+        }
+        String content = FileUtils.readFileToString(sidecar, DEFAULT_CHARSET);
+        if(isNullOrEmpty(content)) {
+            return false;
+        }
+        // compaction forces the lot once the walk is done
+        store.put(fullPath, kind, content, false);
+        if(removeSidecars) {
+            Files.delete(sidecar.toPath());
+        }
+        return true;
+    }
+}
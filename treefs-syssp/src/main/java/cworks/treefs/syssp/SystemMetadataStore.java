@@ -0,0 +1,600 @@
+package cworks.treefs.syssp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import static cworks.treefs.common.IOUtils.closeQuietly;
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Embedded, append-only metadata store used by SystemPathIO in place of the per-path
+ * .d and .f sidecar files.  There is one log file per bucket, every create or update appends
+ * a record and every removal appends a tombstone.  An in-memory index maps the relative path
+ * of each managed folder and file to the offset of its latest record, so existence and type
+ * checks never touch the disk and a metadata read is a single positional read.
+ *
+ * A put or remove returns once its record is forced to disk (see SystemConfig
+ * metadataStoreSync).  Forcing is a group commit, a writer whose record was appended while
+ * another writer was forcing shares the next force with every other writer waiting, so many
+ * concurrent writers cost a few forces rather than one each.
+ *
+ * The index is rebuilt by scanning the log when the store is opened, a torn record at the
+ * tail (crash during append) is truncated away.  Once enough of the log is dead records it is
+ * compacted in the background by rewriting the live records to a new file and atomically
+ * swapping it in.
+ *
+ * Record layout: op(1) kind(1) keyLength(4) valueLength(4) crc(8) key value
+ *
+ * @author comartin
+ */
+class SystemMetadataStore {
+
+    /**
+     * record op for a put
+     */
+    private static final byte OP_PUT = 1;
+
+    /**
+     * record op for a removal
+     */
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * kind of path a record describes
+     */
+    static final byte KIND_FOLDER = 1;
+
+    static final byte KIND_FILE = 2;
+
+    /**
+     * size of the fixed part of every record
+     */
+    private static final int HEADER_SIZE = 18;
+
+    /**
+     * logs smaller than this are never compacted
+     */
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+    /**
+     * compact once dead records account for more than this fraction of the log
+     */
+    private static final double COMPACT_DEAD_RATIO = 0.5;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Open stores keyed by their log file so every provider on the same bucket shares one index
+     */
+    private static final Map<Path, SystemMetadataStore> stores = new ConcurrentHashMap<>();
+
+    /**
+     * Single background thread shared by all stores for compaction
+     */
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "treefs-syssp-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Location in the index of the latest record for a path
+     */
+    private static class Entry {
+        final long offset;
+        final int length;
+        final byte kind;
+        Entry(long offset, int length, byte kind) {
+            this.offset = offset;
+            this.length = length;
+            this.kind = kind;
+        }
+        int size(int keyLength) {
+            return HEADER_SIZE + keyLength + length;
+        }
+    }
+
+    /**
+     * relative path -> latest record, sorted so a folder's sub-tree is a contiguous range
+     */
+    private final ConcurrentSkipListMap<String, Entry> index = new ConcurrentSkipListMap<>();
+
+    /**
+     * appends and compaction take the write lock, positional reads take the read lock
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+    private final Path root;
+
+    private final Path log;
+
+    private FileChannel channel;
+
+    /**
+     * total size of the log and the bytes held by live records
+     */
+    private volatile long logBytes = 0L;
+
+    private volatile long liveBytes = 0L;
+
+    /**
+     * providers that opened the store and haven't closed it yet, guarded by stores
+     */
+    private int opens = 0;
+
+    /**
+     * force records to disk before put and remove return
+     */
+    private final boolean sync;
+
+    /**
+     * bytes ever appended, unlike logBytes compaction doesn't take it back, guarded by lock
+     */
+    private long appended = 0L;
+
+    /**
+     * appended bytes known to be on disk, guarded by syncLock
+     */
+    private long synced = 0L;
+
+    private final Object syncLock = new Object();
+
+    private SystemMetadataStore(Path root, Path log) {
+        this.root = root;
+        this.log = log;
+        this.sync = SystemConfig.metadataStoreSync();
+    }
+
+    /**
+     * Open (or return the already open) store for a bucket, every open is matched by a close
+     * @param root full path of the bucket whose metadata is kept in the store
+     * @param log the log file backing the store
+     * @return the store
+     * @throws IOException
+     */
+    static SystemMetadataStore open(Path root, Path log) throws IOException {
+        Path key = log.toAbsolutePath().normalize();
+        synchronized (stores) {
+            SystemMetadataStore store = stores.get(key);
+            if(isNull(store)) {
+                store = new SystemMetadataStore(root, key);
+                store._load();
+                stores.put(key, store);
+            }
+            store.opens++;
+            return store;
+        }
+    }
+
+    /**
+     * Location of the log file for a bucket, kept in the mount next to the bucket so it is never
+     * listed as content of the bucket
+     * @param mount
+     * @param bucket
+     * @return
+     */
+    static Path logFile(String mount, String bucket) {
+        return Paths.get(mount, bucket + SystemConfig.metadataStoreSuffix());
+    }
+
+    Path root() {
+        return root;
+    }
+
+    /**
+     * Is the full path managed by this store?
+     * @param fullPath
+     * @return
+     */
+    boolean manages(Path fullPath) {
+        return fullPath.startsWith(root);
+    }
+
+    boolean contains(Path fullPath) {
+        return index.containsKey(_key(fullPath));
+    }
+
+    /**
+     * @param fullPath
+     * @return KIND_FOLDER, KIND_FILE or 0 if the path is not in the store
+     */
+    byte kind(Path fullPath) {
+        Entry entry = index.get(_key(fullPath));
+        return isNull(entry) ? 0 : entry.kind;
+    }
+
+    /**
+     * Read the metadata document for a path
+     * @param fullPath
+     * @return the document or null if path is not in the store
+     * @throws IOException
+     */
+    String read(Path fullPath) throws IOException {
+        lock.readLock().lock();
+        try {
+            Entry entry = index.get(_key(fullPath));
+            if(isNull(entry)) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+            long position = entry.offset;
+            while(buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if(n < 0) {
+                    throw new IOException("metadata store truncated: " + log);
+                }
+                position += n;
+            }
+            return new String(buffer.array(), UTF8);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Create or replace the metadata document for a path
+     * @param fullPath
+     * @param kind KIND_FOLDER or KIND_FILE
+     * @param document
+     * @throws IOException
+     */
+    void put(Path fullPath, byte kind, String document) throws IOException {
+        put(fullPath, kind, document, sync);
+    }
+
+    /**
+     * Create or replace the metadata document for a path
+     * @param fullPath
+     * @param kind KIND_FOLDER or KIND_FILE
+     * @param document
+     * @param force wait for the record to be forced to disk, when false it's forced by a later
+     *              put, a compaction or close
+     * @throws IOException
+     */
+    void put(Path fullPath, byte kind, String document, boolean force) throws IOException {
+        String key = _key(fullPath);
+        byte[] value = document.getBytes(UTF8);
+        long end;
+        lock.writeLock().lock();
+        try {
+            _append(OP_PUT, kind, key, value);
+            end = appended;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if(force) {
+            _force(end);
+        }
+        _maybeCompact();
+    }
+
+    /**
+     * Remove a path and, when it is a folder, every path beneath it
+     * @param fullPath
+     * @throws IOException
+     */
+    void remove(Path fullPath) throws IOException {
+        List<String> keys = keys(fullPath);
+        if(keys.isEmpty()) {
+            return;
+        }
+        long end;
+        lock.writeLock().lock();
+        try {
+            for(String key : keys) {
+                _append(OP_REMOVE, (byte)0, key, new byte[0]);
+            }
+            end = appended;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if(sync) {
+            _force(end);
+        }
+        _maybeCompact();
+    }
+
+    /**
+     * Relative keys of a path and all paths beneath it that are in the store
+     * @param fullPath
+     * @return
+     */
+    List<String> keys(Path fullPath) {
+        String key = _key(fullPath);
+        List<String> keys = new ArrayList<>();
+        if(index.containsKey(key)) {
+            keys.add(key);
+        }
+        String prefix = key.isEmpty() ? "" : key + "/";
+        NavigableMap<String, Entry> tree = index.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        for(String child : tree.keySet()) {
+            if(!child.equals(key)) {
+                keys.add(child);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Resolve a relative key back into a full path
+     * @param key
+     * @return
+     */
+    Path fullPath(String key) {
+        return key.isEmpty() ? root : root.resolve(key);
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * Close one open of the store, once every provider that opened it has closed it the store is
+     * detached from SystemPathIO, the log flushed to disk and the store forgotten
+     * @return true if this was the last open and the store is closed
+     */
+    boolean close() throws IOException {
+        synchronized (stores) {
+            if(--opens > 0) {
+                return false;
+            }
+            stores.remove(log);
+        }
+        SystemPathIO.detach(this);
+        lock.writeLock().lock();
+        try {
+            if(!isNull(channel) && channel.isOpen()) {
+                channel.force(true);
+                channel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Rewrite the log so it only contains live records
+     * @throws IOException
+     */
+    void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            Path compacted = Paths.get(log.toString() + ".compact");
+            FileChannel out = FileChannel.open(compacted,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+            Map<String, Entry> moved = new ConcurrentHashMap<>();
+            long position = 0L;
+            try {
+                for(Map.Entry<String, Entry> item : index.entrySet()) {
+                    String key = item.getKey();
+                    Entry entry = item.getValue();
+                    byte[] keyBytes = key.getBytes(UTF8);
+                    ByteBuffer record = ByteBuffer.allocate(entry.size(keyBytes.length));
+                    long from = entry.offset - HEADER_SIZE - keyBytes.length;
+                    while(record.hasRemaining()) {
+                        from += channel.read(record, from);
+                    }
+                    record.flip();
+                    while(record.hasRemaining()) {
+                        out.write(record);
+                    }
+                    moved.put(key, new Entry(position + HEADER_SIZE + keyBytes.length,
+                        entry.length, entry.kind));
+                    position += entry.size(keyBytes.length);
+                }
+                out.force(true);
+            } finally {
+                closeQuietly(out);
+            }
+            // closed first, some filesystems won't replace a file that's open
+            closeQuietly(channel);
+            boolean replaced = false;
+            try {
+                Files.move(compacted, log,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+                replaced = true;
+            } finally {
+                // the original log if the move failed, which is what the index still points into
+                channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                if(!replaced) {
+                    Files.deleteIfExists(compacted);
+                }
+            }
+            index.putAll(moved);
+            logBytes = position;
+            liveBytes = position;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Convert a full path into the relative, forward slash separated key used by the index
+     * @param fullPath
+     * @return
+     */
+    private String _key(Path fullPath) {
+        return root.relativize(fullPath).toString().replace("\\", "/");
+    }
+
+    /**
+     * Scan the log and rebuild the index, truncating any torn record at the tail
+     * @throws IOException
+     */
+    private void _load() throws IOException {
+        if(!isNull(log.getParent())) {
+            Files.createDirectories(log.getParent());
+        }
+        channel = FileChannel.open(log,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        long size = channel.size();
+        long position = 0L;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while(position + HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            byte op = header.get();
+            byte kind = header.get();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            long crc = header.getLong();
+            if(keyLength < 0 || valueLength < 0
+                || position + HEADER_SIZE + keyLength + valueLength > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(keyLength + valueLength);
+            channel.read(body, position + HEADER_SIZE);
+            if(_crc(body.array()) != crc) {
+                break;
+            }
+            String key = new String(body.array(), 0, keyLength, UTF8);
+            _index(op, kind, key, position + HEADER_SIZE + keyLength, valueLength);
+            position += HEADER_SIZE + keyLength + valueLength;
+        }
+        if(position < size) {
+            System.out.println("metadata store " + log + " truncated torn tail at " + position);
+            channel.truncate(position);
+        }
+        logBytes = position;
+    }
+
+    /**
+     * Append a record to the log and apply it to the index, caller holds the write lock
+     */
+    private void _append(byte op, byte kind, String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF8);
+        byte[] body = new byte[keyBytes.length + value.length];
+        System.arraycopy(keyBytes, 0, body, 0, keyBytes.length);
+        System.arraycopy(value, 0, body, keyBytes.length, value.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        record.put(op)
+            .put(kind)
+            .putInt(keyBytes.length)
+            .putInt(value.length)
+            .putLong(_crc(body))
+            .put(body);
+        record.flip();
+        long position = logBytes;
+        while(record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        _index(op, kind, key, logBytes + HEADER_SIZE + keyBytes.length, value.length);
+        appended += position - logBytes;
+        logBytes = position;
+    }
+
+    /**
+     * Wait until the log is forced to disk up to end bytes appended.  The first writer in forces
+     * everything appended so far, writers that come in meanwhile wait for it and force once more
+     * between them if their records came after its force started.
+     * @param end bytes appended once the caller's records were
+     * @throws IOException
+     */
+    private void _force(long end) throws IOException {
+        synchronized(syncLock) {
+            if(synced >= end) {
+                return;
+            }
+            FileChannel forcing;
+            long covered;
+            lock.readLock().lock();
+            try {
+                forcing = channel;
+                covered = appended;
+            } finally {
+                lock.readLock().unlock();
+            }
+            try {
+                // appends carry on while forcing, only the read of where the log is holds them
+                forcing.force(false);
+            } catch(ClosedChannelException ex) {
+                // compacted or closed meanwhile, both force every record they keep
+            }
+            synced = covered;
+        }
+    }
+
+    private void _index(byte op, byte kind, String key, long offset, int length) {
+        int keyLength = key.getBytes(UTF8).length;
+        Entry previous;
+        if(op == OP_PUT) {
+            Entry entry = new Entry(offset, length, kind);
+            previous = index.put(key, entry);
+            liveBytes += entry.size(keyLength);
+        } else {
+            previous = index.remove(key);
+        }
+        if(!isNull(previous)) {
+            liveBytes -= previous.size(keyLength);
+        }
+    }
+
+    private long _crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Schedule a background compaction when enough of the log is dead records
+     */
+    private void _maybeCompact() {
+        long total = logBytes;
+        if(total < COMPACT_MIN_BYTES || (total - liveBytes) < total * COMPACT_DEAD_RATIO) {
+            return;
+        }
+        if(!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch(IOException ex) {
+                    System.out.println("metadata store compaction failed for " + log);
+                    ex.printStackTrace();
+                } finally {
+                    compacting.set(false);
+                }
+            }
+        });
+    }
+}
@@ -10,6 +10,9 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
 
 /**
  * Utility class to move a Path tree.  By default the Files.move method is not recursive.
@@ -34,11 +37,11 @@ class SystemMovePathOp implements FileVisitor<Path> {
         throws IOException {
         Path newFolder = to.resolve(from.relativize(folder));
         try {
+            time = Files.getLastModifiedTime(folder);
             Files.createDirectories(newFolder);
             Files.copy(folder, newFolder,
                 StandardCopyOption.REPLACE_EXISTING,
                 StandardCopyOption.COPY_ATTRIBUTES);
-            time = Files.getLastModifiedTime(folder);
         } catch(DirectoryNotEmptyException ex) {
             // continue if newFolder directory is not empty
             return FileVisitResult.CONTINUE;
@@ -52,6 +55,20 @@ class SystemMovePathOp implements FileVisitor<Path> {
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        SystemObjectLayout layout = SystemPathIO.layoutFor(file);
+        if(!isNull(layout) && SystemObjectLayout.isManifest(file)) {
+            // merge into the target folder's manifest, a file already there is replaced
+            Path folder = to.resolve(from.relativize(file.getParent()));
+            for(Map.Entry<String, String> entry : layout.entries(file.getParent()).entrySet()) {
+                String replaced = layout.bind(folder.resolve(entry.getKey()), entry.getValue());
+                if(!isNull(replaced) && !replaced.equals(entry.getValue())) {
+                    layout.release(replaced);
+                }
+            }
+            Files.delete(file);
+            layout.forget(file.getParent());
+            return FileVisitResult.CONTINUE;
+        }
         move(file, to.resolve(from.relativize(file)));
         return FileVisitResult.CONTINUE;
     }
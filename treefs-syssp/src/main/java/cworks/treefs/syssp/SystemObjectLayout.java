@@ -0,0 +1,566 @@
+package cworks.treefs.syssp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Sharded layout for buckets with very large folders.  The content of a file isn't kept in its
+ * folder, it's kept in the layout's object folder under an id, fanned out two levels of 256 by
+ * the first four hex digits of the id (objects/ab/cd/abcd...), with the file's .f sidecar next
+ * to it.  A logical folder is still a real directory with its .d but the only other thing in it
+ * is a manifest naming each file in the folder and the id of its content, so a folder of two
+ * million files is one manifest instead of four million directory entries.
+ *
+ * A manifest lives in its folder as folder.m and is an append-only log of "+name id" and
+ * "-name" lines, it's read into a map the first time the folder is used and rewritten once
+ * most of its lines are dead.  Because it's inside the folder it goes along when the folder is
+ * renamed, and moving a file between folders is a manifest update, the content never moves.
+ *
+ * Objects are only ever written under a new id, a write to an existing name binds the name to
+ * the new id and drops the old object, so objects can be shared with hard links by copies and
+ * snapshots without copy-on-write checks.
+ *
+ * Existing buckets are converted with SystemObjectMigrator.
+ *
+ * @author comartin
+ */
+final class SystemObjectLayout {
+
+    static final String MANIFEST_SUFFIX = ".m";
+
+    private static final String FILE_METADATA_SUFFIX = ".f";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * most manifests kept in memory, the least recently used idle one is dropped past this
+     */
+    private static final int MAX_MANIFESTS = 256;
+
+    /**
+     * manifests with fewer dead lines than this are never rewritten
+     */
+    private static final int COMPACT_MIN_DEAD = 1024;
+
+    /**
+     * length of an object id
+     */
+    private static final int ID_LENGTH = 32;
+
+    /**
+     * Open layouts keyed by their object folder so every provider on the same bucket shares one
+     * set of manifests
+     */
+    private static final Map<Path, SystemObjectLayout> layouts = new ConcurrentHashMap<>();
+
+    /**
+     * Folder the objects are kept in
+     */
+    private final Path objects;
+
+    /**
+     * Roots whose folders keep their files in this layout (bucket, trash and snapshots)
+     */
+    private final List<Path> roots;
+
+    /**
+     * folder -> manifest, least recently used first.  A manifest that's in use is never dropped
+     * so there's only ever one instance appending to and compacting a folder's log.
+     */
+    private final LinkedHashMap<Path, Manifest> manifests =
+        new LinkedHashMap<Path, Manifest>(16, 0.75f, true);
+
+    /**
+     * providers that opened the layout and haven't closed it yet, guarded by layouts
+     */
+    private int opens = 0;
+
+    /**
+     * @param objects full path of the folder objects are kept in
+     * @param roots full paths of the roots whose folders use this layout
+     */
+    private SystemObjectLayout(Path objects, List<Path> roots) {
+        this.objects = objects;
+        this.roots = new CopyOnWriteArrayList<Path>(roots);
+    }
+
+    /**
+     * Open the layout kept in an object folder, or the one already open for it
+     * @param objects full path of the folder objects are kept in
+     * @param roots full paths of the roots whose folders use this layout
+     * @return
+     */
+    static SystemObjectLayout open(Path objects, List<Path> roots) {
+        Path key = objects.toAbsolutePath().normalize();
+        synchronized(layouts) {
+            SystemObjectLayout layout = layouts.get(key);
+            if(isNull(layout)) {
+                layout = new SystemObjectLayout(key, roots);
+                layouts.put(key, layout);
+            } else {
+                for(Path root : roots) {
+                    ((CopyOnWriteArrayList<Path>)layout.roots).addIfAbsent(root);
+                }
+            }
+            layout.opens++;
+            return layout;
+        }
+    }
+
+    /**
+     * Location of the object folder for a bucket, kept in the mount next to the bucket so it's on
+     * the same file-system and never listed as content of the bucket
+     * @param mount
+     * @param bucket
+     * @return
+     */
+    static Path objectFolder(String mount, String bucket) {
+        return Paths.get(mount, "objects", bucket);
+    }
+
+    /**
+     * Close one open of the layout, it's only dropped once every provider that opened it has
+     * closed it
+     * @return true if this was the last open and the layout should be detached
+     */
+    boolean close() {
+        synchronized(layouts) {
+            if(--opens > 0) {
+                return false;
+            }
+            layouts.remove(objects);
+        }
+        synchronized(manifests) {
+            manifests.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Test if a full path is under one of the layout's roots
+     * @param fullPath
+     * @return
+     */
+    boolean manages(Path fullPath) {
+        for(Path root : roots) {
+            if(fullPath.startsWith(root)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Path objects() {
+        return this.objects;
+    }
+
+    /**
+     * Full path of the object with an id
+     * @param id
+     * @return
+     */
+    Path object(String id) {
+        return objects.resolve(id.substring(0, 2)).resolve(id.substring(2, 4)).resolve(id);
+    }
+
+    /**
+     * A new object id, 32 hex digits so the fan-out is even
+     * @return
+     */
+    static String newId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * Full path of a folder's manifest
+     * @param folder
+     * @return
+     */
+    static Path manifestOf(Path folder) {
+        return folder.resolve(folder.getFileName().toString() + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * Id of the content of a file or null if its folder has no such file
+     * @param fullPath logical full path of the file
+     * @return
+     */
+    String id(Path fullPath) {
+        Path folder = fullPath.getParent();
+        if(isNull(folder) || isNull(fullPath.getFileName())) {
+            return null;
+        }
+        Manifest manifest = null;
+        try {
+            manifest = _acquire(folder);
+            return manifest.get(fullPath.getFileName().toString());
+        } catch(IOException ex) {
+            return null;
+        } finally {
+            _release(manifest);
+        }
+    }
+
+    /**
+     * Full path of the object holding a file's content or null if its folder has no such file
+     * @param fullPath logical full path of the file
+     * @return
+     */
+    Path content(Path fullPath) {
+        String id = id(fullPath);
+        return isNull(id) ? null : object(id);
+    }
+
+    /**
+     * Name a file's content in its folder's manifest, the folder must exist
+     * @param fullPath logical full path of the file
+     * @param id id of the content
+     * @return the id the name had before or null
+     * @throws IOException
+     */
+    String bind(Path fullPath, String id) throws IOException {
+        Manifest manifest = _acquire(fullPath.getParent());
+        try {
+            return manifest.put(fullPath.getFileName().toString(), id);
+        } finally {
+            _release(manifest);
+        }
+    }
+
+    /**
+     * Remove a file from its folder's manifest, the object is left alone
+     * @param fullPath logical full path of the file
+     * @return the id the name had or null
+     * @throws IOException
+     */
+    String unbind(Path fullPath) throws IOException {
+        Manifest manifest = _acquire(fullPath.getParent());
+        try {
+            return manifest.remove(fullPath.getFileName().toString());
+        } finally {
+            _release(manifest);
+        }
+    }
+
+    /**
+     * The files of a folder and the ids of their content, sorted by name
+     * @param folder logical full path of the folder
+     * @return
+     * @throws IOException
+     */
+    Map<String, String> entries(Path folder) throws IOException {
+        Manifest manifest = _acquire(folder);
+        try {
+            return manifest.entries();
+        } finally {
+            _release(manifest);
+        }
+    }
+
+    /**
+     * Up to count files of a folder that are named after a name and the ids of their content,
+     * sorted by name
+     * @param folder logical full path of the folder
+     * @param after the name to start after or null to start at the first file
+     * @param count the most files to answer, 0 or less for every file after the name
+     * @return
+     * @throws IOException
+     */
+    Map<String, String> entries(Path folder, String after, int count) throws IOException {
+        Manifest manifest = _acquire(folder);
+        try {
+            return manifest.entries(after, count);
+        } finally {
+            _release(manifest);
+        }
+    }
+
+    /**
+     * Drop the in-memory manifests of a folder and every folder beneath it, after it was moved
+     * or deleted out from under them
+     * @param folder
+     */
+    void forget(Path folder) {
+        synchronized(manifests) {
+            Iterator<Map.Entry<Path, Manifest>> it = manifests.entrySet().iterator();
+            while(it.hasNext()) {
+                Map.Entry<Path, Manifest> entry = it.next();
+                if(!entry.getKey().startsWith(folder)) {
+                    continue;
+                }
+                if(entry.getValue().users == 0) {
+                    it.remove();
+                } else {
+                    // dropped once the last user is done so it can't be opened twice
+                    entry.getValue().forgotten = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete an object and its sidecar
+     * @param id
+     * @throws IOException
+     */
+    void release(String id) throws IOException {
+        Path object = object(id);
+        Files.deleteIfExists(object);
+        Files.deleteIfExists(object.resolveSibling(id + FILE_METADATA_SUFFIX));
+    }
+
+    /**
+     * Delete every object a manifest names, used when the manifest's folder is deleted
+     * @param manifest full path of the manifest
+     * @throws IOException
+     */
+    void releaseAll(Path manifest) throws IOException {
+        for(String id : Manifest.read(manifest).values()) {
+            release(id);
+        }
+        forget(manifest.getParent());
+    }
+
+    /**
+     * Test if a path is the manifest of the folder it is in
+     * @param file
+     * @return
+     */
+    static boolean isManifest(Path file) {
+        Path folder = file.getParent();
+        return !isNull(folder) && !isNull(folder.getFileName())
+            && file.getFileName().toString().equals(folder.getFileName() + MANIFEST_SUFFIX);
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * The manifest of a folder, loaded if it isn't in memory, must be given back with _release
+     */
+    private Manifest _acquire(Path folder) throws IOException {
+        synchronized(manifests) {
+            Manifest manifest = manifests.get(folder);
+            while(!isNull(manifest) && manifest.forgotten) {
+                // a folder made where one was just moved or deleted waits for the old manifest
+                try {
+                    manifests.wait();
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted opening manifest of: " + folder);
+                }
+                manifest = manifests.get(folder);
+            }
+            if(isNull(manifest)) {
+                manifest = new Manifest(manifestOf(folder));
+                manifests.put(folder, manifest);
+                _evict();
+            }
+            manifest.users++;
+            return manifest;
+        }
+    }
+
+    private void _release(Manifest manifest) {
+        if(isNull(manifest)) {
+            return;
+        }
+        synchronized(manifests) {
+            manifest.users--;
+            if(manifest.users == 0 && manifest.forgotten) {
+                Path folder = manifest.log.getParent();
+                if(manifests.get(folder) == manifest) {
+                    manifests.remove(folder);
+                }
+                manifests.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Drop the least recently used idle manifests past MAX_MANIFESTS, caller holds manifests
+     */
+    private void _evict() {
+        Iterator<Manifest> it = manifests.values().iterator();
+        while(manifests.size() > MAX_MANIFESTS && it.hasNext()) {
+            if(it.next().users == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * One folder's name -> id map and the log it's kept in
+     */
+    private static final class Manifest {
+
+        private final Path log;
+
+        private final TreeMap<String, String> names;
+
+        private int dead = 0;
+
+        /**
+         * callers between _acquire and _release, guarded by the layout's manifests
+         */
+        private int users = 0;
+
+        /**
+         * the folder was moved or deleted while in use, dropped on the last _release
+         */
+        private boolean forgotten = false;
+
+        Manifest(Path log) throws IOException {
+            this.log = log;
+            this.names = new TreeMap<String, String>();
+            this.dead = _load(log, names, true);
+        }
+
+        static Map<String, String> read(Path log) throws IOException {
+            Map<String, String> names = new TreeMap<String, String>();
+            _load(log, names, false);
+            return names;
+        }
+
+        synchronized String get(String name) {
+            return names.get(name);
+        }
+
+        synchronized Map<String, String> entries() {
+            return new TreeMap<String, String>(names);
+        }
+
+        synchronized Map<String, String> entries(String after, int count) {
+            Map<String, String> tail = isNull(after) ? names : names.tailMap(after, false);
+            Map<String, String> entries = new TreeMap<String, String>();
+            for(Map.Entry<String, String> entry : tail.entrySet()) {
+                if(count > 0 && entries.size() >= count) {
+                    break;
+                }
+                entries.put(entry.getKey(), entry.getValue());
+            }
+            return entries;
+        }
+
+        synchronized String put(String name, String id) throws IOException {
+            if(name.indexOf('\n') >= 0) {
+                throw new IOException("file name can't contain a line break: " + name);
+            }
+            _append("+" + name + "\t" + id + "\n");
+            String previous = names.put(name, id);
+            if(!isNull(previous)) {
+                _dead();
+            }
+            return previous;
+        }
+
+        synchronized String remove(String name) throws IOException {
+            if(!names.containsKey(name)) {
+                return null;
+            }
+            _append("-" + name + "\n");
+            String previous = names.remove(name);
+            // the put and the removal
+            _dead();
+            _dead();
+            return previous;
+        }
+
+        private void _append(String line) throws IOException {
+            try(FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap(line.getBytes(UTF8)));
+                // the caller goes on to write or drop objects the line names
+                channel.force(false);
+            }
+        }
+
+        /**
+         * Count a dead line and rewrite the log once more than half of it is dead, called holding
+         * the manifest so a log is only ever compacted by its one instance
+         */
+        private void _dead() throws IOException {
+            dead++;
+            if(dead < COMPACT_MIN_DEAD || dead < names.size()) {
+                return;
+            }
+            StringBuilder content = new StringBuilder();
+            for(Map.Entry<String, String> entry : names.entrySet()) {
+                content.append('+').append(entry.getKey()).append('\t')
+                    .append(entry.getValue()).append('\n');
+            }
+            Path temp = log.resolveSibling(log.getFileName() + ".tmp");
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(content.toString().getBytes(UTF8)));
+                channel.force(true);
+            }
+            Files.move(temp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dead = 0;
+        }
+
+        /**
+         * Replay a log into names, a last line without its line break was torn by a crash and is
+         * skipped, and cut off the log when repair is set so the next append starts a clean line
+         * @return the number of dead lines
+         */
+        private static int _load(Path log, Map<String, String> names, boolean repair)
+            throws IOException {
+            byte[] content;
+            try {
+                content = Files.readAllBytes(log);
+            } catch(NoSuchFileException ex) {
+                return 0;
+            }
+            int end = content.length;
+            while(end > 0 && content[end - 1] != '\n') {
+                end--;
+            }
+            if(end < content.length && repair) {
+                try(FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                    channel.truncate(end);
+                    channel.force(true);
+                }
+            }
+            String[] lines = new String(content, 0, end, UTF8).split("\n");
+            int dead = 0;
+            for(String line : lines) {
+                if(line.startsWith("+")) {
+                    // ids never have a tab, names might
+                    int tab = line.lastIndexOf('\t');
+                    if(tab < 1 || line.length() - tab - 1 != ID_LENGTH) {
+                        continue;
+                    }
+                    if(!isNull(names.put(line.substring(1, tab), line.substring(tab + 1)))) {
+                        dead++;
+                    }
+                } else if(line.startsWith("-")) {
+                    if(!isNull(names.remove(line.substring(1)))) {
+                        dead += 2;
+                    }
+                }
+            }
+            return dead;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package cworks.treefs.syssp;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * One-shot migration of an existing bucket into the sharded SystemObjectLayout.  Every managed
+ * file found under the bucket is renamed into the object folder, its .f sidecar along with it,
+ * and named in its folder's manifest.  Folders and their .d stay where they are.  Metadata kept
+ * in a SystemMetadataStore isn't touched, it's keyed by the file's path which doesn't change.
+ *
+ * A file is named in the manifest before it's moved so a migration that was interrupted can
+ * simply be run again, files that were already moved are skipped and a half moved file is
+ * finished with the id it was given.
+ *
+ * Run while no provider is serving the bucket:
+ *
+ * java cworks.treefs.syssp.SystemObjectMigrator mount bucket
+ *
+ * @author comartin
+ */
+public class SystemObjectMigrator extends SimpleFileVisitor<Path> {
+
+    private static final String FOLDER_METADATA_SUFFIX = ".d";
+
+    private static final String FILE_METADATA_SUFFIX = ".f";
+
+    private final SystemObjectLayout layout;
+
+    private final SystemMetadataStore store;
+
+    private int files = 0;
+
+    SystemObjectMigrator(SystemObjectLayout layout, SystemMetadataStore store) {
+        this.layout = layout;
+        this.store = store;
+    }
+
+    /**
+     * Migrate the files of a bucket into its object folder
+     * @param mount the mount the bucket lives in
+     * @param bucket the bucket to migrate
+     * @return the number of files migrated
+     * @throws IOException
+     */
+    public static int migrate(String mount, String bucket) throws IOException {
+
+        Path root = Paths.get(mount, bucket);
+        if(!Files.isDirectory(root)) {
+            throw new IOException("bucket does not exist: " + root);
+        }
+        SystemObjectLayout layout = SystemObjectLayout.open(
+            SystemObjectLayout.objectFolder(mount, bucket), Arrays.asList(root));
+        // a bucket on the metadata store knows its files from the store, not from sidecars
+        SystemMetadataStore store = null;
+        Path log = SystemMetadataStore.logFile(mount, bucket);
+        if(Files.exists(log)) {
+            store = SystemMetadataStore.open(root, log);
+        }
+        SystemObjectMigrator migrator = new SystemObjectMigrator(layout, store);
+        try {
+            Files.walkFileTree(root, migrator);
+        } finally {
+            layout.close();
+            if(!isNull(store)) {
+                store.close();
+            }
+        }
+        System.out.println("migrated " + migrator.files + " files from " + root
+            + " to " + layout.objects());
+        return migrator.files;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.out.println("usage: SystemObjectMigrator mount bucket");
+            return;
+        }
+        migrate(args[0], args[1]);
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        String name = file.getFileName().toString();
+        if(name.endsWith(FOLDER_METADATA_SUFFIX) || name.endsWith(FILE_METADATA_SUFFIX)
+            || SystemObjectLayout.isManifest(file) || !attrs.isRegularFile()) {
+            return FileVisitResult.CONTINUE;
+        }
+        Path sidecar = file.resolveSibling(name + FILE_METADATA_SUFFIX);
+        String id = layout.id(file);
+        // already named means an earlier run stopped part way through this file
+        boolean managed = !isNull(id) || (isNull(store)
+            ? Files.isRegularFile(sidecar)
+            : store.kind(file) == SystemMetadataStore.KIND_FILE);
+        if(!managed) {
+            return FileVisitResult.CONTINUE;
+        }
+
+        if(isNull(id)) {
+            id = SystemObjectLayout.newId();
+            layout.bind(file, id);
+        }
+        Path object = layout.object(id);
+        Files.createDirectories(object.getParent());
+        if(Files.exists(sidecar)) {
+            Files.move(sidecar, object.resolveSibling(id + FILE_METADATA_SUFFIX),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(file, object, StandardCopyOption.REPLACE_EXISTING);
+        files++;
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+        return FileVisitResult.CONTINUE;
+    }
+}
@@ -1,119 +1,150 @@
 package cworks.treefs.syssp;
 
+import cworks.treefs.spi.StorageException;
+
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Stack;
-
-class SystemOpenFolderOp implements FileVisitor<Path> {
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Loads a folder and maxLevels of its items into a SystemFolder, one fork/join task per
+ * sub-folder so a deep tree is read and parsed by every thread of the provider's walk pool
+ * instead of a single walkFileTree.
+ *
+ * Like the walk it replaces folders are always loaded and files only when the filter accepts
+ * them, items that have no metadata aren't managed by the provider and are skipped.  Each task
+ * only adds items to its own folder so no locking is needed, the folders are complete once the
+ * top task returns.
+ *
+ * Every open has a budget of items, once it's spent the tasks stop and the open fails rather
+ * than holding an unbounded tree in memory.
+ */
+class SystemOpenFolderOp extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
 
-    private DirectoryStream.Filter<Path> filter = null;
-    private SystemStorageProvider provider;
-    private Stack<SystemFolder> stack = null;
-    private SystemFolder topFolder = null;
     /**
-     * Create with a full path to the folder to open, this is the top-level folder
-     * and with a filter that determines what folder and/or files this OpenOp loads
-     * into memory.
-     *
-     * @param filter
-     * @param storageProvider
+     * What every task of one open shares
      */
-    SystemOpenFolderOp(DirectoryStream.Filter<Path> filter, SystemStorageProvider storageProvider) {
-        this.filter = filter;
-        this.provider = storageProvider;
-        stack = new Stack<>();
+    private static final class Walk {
+        private final DirectoryStream.Filter<Path> filter;
+        private final int maxLevels;
+        private final int budget;
+        private final AtomicInteger items = new AtomicInteger();
+        private volatile boolean exceeded = false;
+
+        Walk(DirectoryStream.Filter<Path> filter, int maxLevels, int budget) {
+            this.filter = filter;
+            this.maxLevels = maxLevels;
+            this.budget = budget;
+        }
     }
 
-    /**
-     * pre-visit this directory before visiting files inside it and before going deeper
-     * @param folder
-     * @param attrs
-     * @return
-     * @throws IOException
-     */
-    @Override
-    public FileVisitResult preVisitDirectory(Path folder, BasicFileAttributes attrs)
-        throws IOException {
-        //System.out.println("preVisitDirectory: " + folder);
+    private final Walk walk;
 
-        if(!provider._isManagedFolder(folder)) {
-            return FileVisitResult.SKIP_SUBTREE;
-        }
+    private final SystemFolder folder;
+
+    private final Path fullPath;
 
-        SystemFolder systemFolder = SystemPathIO.readSystemFolder(folder);
-        stack.push(systemFolder);
+    private final int level;
 
-        return FileVisitResult.CONTINUE;
+    private SystemOpenFolderOp(Walk walk, SystemFolder folder, Path fullPath, int level) {
+        this.walk = walk;
+        this.folder = folder;
+        this.fullPath = fullPath;
+        this.level = level;
     }
 
     /**
-     * Visit a folder or file
-     * @param path
-     * @param attrs
-     * @return
-     * @throws IOException
+     * Load the folder at fullPath with maxLevels of items
+     *
+     * @param pool pool the sub-folders are loaded on
+     * @param fullPath full path to the folder
+     * @param filter filter files must pass, already known to be managed, null for all files
+     * @param maxLevels the number of sub-directory levels to load
+     * @param budget most items to load
+     * @return the folder
+     * @throws IOException if the folder can't be read
+     * @throws StorageException if the folder has more than budget items within maxLevels
      */
-    @Override
-    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
-
-        //System.out.println("visitFile: " + path);
-        if(provider._isManagedFolder(path)) {
-            SystemFolder systemFolder = SystemPathIO.readSystemFolder(path);
-            // maxDepth was 0, meaning first visit was to the folder/file
-            if(stack.size() == 0) {
-                stack.push(systemFolder);
-                return FileVisitResult.CONTINUE;
-            }
+    static SystemFolder open(ForkJoinPool pool, Path fullPath, DirectoryStream.Filter<Path> filter,
+        int maxLevels, int budget) throws IOException, StorageException {
 
-            SystemFolder top = stack.peek();
-            top.addItem(systemFolder);
-        } else if(provider._isManagedFile(path)) {
-            if(filter != null && filter.accept(path)) {
-                SystemFile systemFile = SystemPathIO.readSystemFile(path);
-                SystemFolder top = stack.peek();
-                top.addItem(systemFile);
-            }
+        SystemFolder folder = SystemPathIO.readSystemFolder(fullPath);
+        if(maxLevels < 1) {
+            return folder;
         }
 
-        return FileVisitResult.CONTINUE;
-    }
-
-    @Override
-    public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-        //System.out.println("visitFileFailed: " + file);
-        return FileVisitResult.CONTINUE;
+        Walk walk = new Walk(filter, maxLevels, budget);
+        pool.invoke(new SystemOpenFolderOp(walk, folder, fullPath, 0));
+        if(walk.exceeded) {
+            throw new StorageException("folder: " + fullPath + " has more than " + budget
+                + " items within " + maxLevels + " levels, open fewer levels or list it a page at a time");
+        }
+        return folder;
     }
 
     @Override
-    public FileVisitResult postVisitDirectory(Path folder, IOException exc) throws IOException {
-        //System.out.println("postVisitDirectory: " + folder);
+    protected void compute() {
+        if(walk.exceeded) {
+            return;
+        }
 
-        topFolder = stack.pop();
-        if(stack.size() > 0) {
-            stack.peek().addItem(topFolder);
+        List<SystemOpenFolderOp> subFolders = new ArrayList<SystemOpenFolderOp>();
+        try {
+            for(SystemDirectoryScanner.Entry entry : SystemDirectoryScanner.scan(fullPath)) {
+                if(entry.isFolder()) {
+                    SystemFolder child = (SystemFolder)entry.read();
+                    if(isNull(child)) {
+                        continue;
+                    }
+                    if(!_spend()) {
+                        return;
+                    }
+                    folder.addItem(child);
+                    if(level + 1 < walk.maxLevels) {
+                        subFolders.add(new SystemOpenFolderOp(walk, child, entry.path(), level + 1));
+                    }
+                } else {
+                    // the scan only returns managed files so filter before reading
+                    if(!isNull(walk.filter) && !walk.filter.accept(entry.path())) {
+                        continue;
+                    }
+                    SystemPath file = entry.read();
+                    if(isNull(file)) {
+                        continue;
+                    }
+                    if(!_spend()) {
+                        return;
+                    }
+                    folder.addItem(file);
+                }
+            }
+        } catch(IOException ex) {
+            // same as the walk, a folder that can't be read is left out
+            System.out.println("SystemOpenFolderOp failed reading: " + fullPath + " " + ex.getMessage());
         }
 
-        return FileVisitResult.CONTINUE;
+        if(!subFolders.isEmpty()) {
+            invokeAll(subFolders);
+        }
     }
 
     /**
-     * After this walk is complete this will return the top-level SystemFolder that
-     * is representing the fullPath argument of the constructor
-     *
-     * @return
+     * Take an item from the budget, false once the budget is spent
      */
-    public SystemFolder folder() {
-        SystemFolder top = null;
-        if(stack.size() == 0) {
-            top = topFolder;
-        } else if(stack.size() == 1) {
-            top = stack.pop();
+    private boolean _spend() {
+        if(walk.items.incrementAndGet() > walk.budget) {
+            walk.exceeded = true;
+            return false;
         }
-
-        return top;
+        return true;
     }
 }
@@ -10,8 +10,11 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static cworks.treefs.common.ObjectUtils.isNull;
 import static cworks.treefs.common.ObjectUtils.isNullOrEmpty;
@@ -37,6 +40,120 @@ public class SystemPathIO {
      */
     private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
 
+    /**
+     * Attached metadata stores, a full path under the root of one of these stores has its
+     * metadata in that store, every other path uses the .d and .f sidecar files
+     */
+    private static final List<SystemMetadataStore> stores = new CopyOnWriteArrayList<>();
+
+    /**
+     * Keep metadata for all paths under the store's root in the store
+     * @param store
+     */
+    static void attach(SystemMetadataStore store) {
+        ((CopyOnWriteArrayList<SystemMetadataStore>)stores).addIfAbsent(store);
+    }
+
+    /**
+     * Go back to sidecar files for paths under the store's root
+     * @param store
+     */
+    static void detach(SystemMetadataStore store) {
+        stores.remove(store);
+    }
+
+    /**
+     * Attached sharded layouts, a file under one of the roots of these layouts has its content
+     * and .f sidecar in the layout's object folder
+     */
+    private static final List<SystemObjectLayout> layouts = new CopyOnWriteArrayList<>();
+
+    /**
+     * Keep the files of folders under the layout's roots in the layout
+     * @param layout
+     */
+    static void attach(SystemObjectLayout layout) {
+        ((CopyOnWriteArrayList<SystemObjectLayout>)layouts).addIfAbsent(layout);
+    }
+
+    /**
+     * Go back to keeping files in their folders for paths under the layout's roots
+     * @param layout
+     */
+    static void detach(SystemObjectLayout layout) {
+        layouts.remove(layout);
+    }
+
+    /**
+     * Provider roots (bucket and trash folders), the relative path of a sidecar read under one
+     * of these is taken from where the sidecar is rather than the path stored in it so a folder
+     * renamed in one move doesn't need every sidecar beneath it rewritten
+     */
+    private static final List<Path> roots = new CopyOnWriteArrayList<>();
+
+    /**
+     * Take the relative paths of sidecars under root from their location
+     * @param root
+     */
+    static void addRoot(Path root) {
+        roots.add(root);
+    }
+
+    /**
+     * Undo one addRoot
+     * @param root
+     */
+    static void removeRoot(Path root) {
+        roots.remove(root);
+    }
+
+    /**
+     * Return the metadata store managing a full path or null if the path uses sidecar files
+     * @param fullPath
+     * @return
+     */
+    static SystemMetadataStore storeFor(Path fullPath) {
+        for(SystemMetadataStore store : stores) {
+            if(store.manages(fullPath)) {
+                return store;
+            }
+        }
+        return null;
+    }
+
+    static boolean isStoreManaged(Path fullPath) {
+        return !isNull(storeFor(fullPath));
+    }
+
+    /**
+     * Return the sharded layout a full path is under or null if files are kept in their folders
+     * @param fullPath
+     * @return
+     */
+    static SystemObjectLayout layoutFor(Path fullPath) {
+        for(SystemObjectLayout layout : layouts) {
+            if(layout.manages(fullPath)) {
+                return layout;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Full path of where the content of a path is, the object of a file kept in a sharded layout
+     * otherwise the path itself
+     * @param fullPath logical full path of a folder or file
+     * @return
+     */
+    static Path contentOf(Path fullPath) {
+        SystemObjectLayout layout = layoutFor(fullPath);
+        if(isNull(layout)) {
+            return fullPath;
+        }
+        Path object = layout.content(fullPath);
+        return isNull(object) ? fullPath : object;
+    }
+
     /**
      * Read a metadata file into a Map instance
      * @param path
@@ -54,9 +171,18 @@ public class SystemPathIO {
 
     static SystemPath readSystemPath(Path path) throws IOException {
         SystemPath systemPath = null;
-        if(Files.isDirectory(path)) {
+        SystemMetadataStore store = storeFor(path);
+        if(!isNull(store)) {
+            // the store knows what kind of path this is so don't stat it
+            byte kind = store.kind(path);
+            if(kind == SystemMetadataStore.KIND_FOLDER) {
+                systemPath = readSystemFolder(path);
+            } else if(kind == SystemMetadataStore.KIND_FILE) {
+                systemPath = readSystemFile(path);
+            }
+        } else if(Files.isDirectory(path)) {
             systemPath = readSystemFolder(path);
-        } else if(Files.isRegularFile(path)) {
+        } else if(Files.isRegularFile(contentOf(path))) {
             systemPath = readSystemFile(path);
         }
         if(isNull(systemPath)) {
@@ -66,29 +192,82 @@ public class SystemPathIO {
     }
 
     static SystemFolder readSystemFolder(Path path) throws IOException {
-        String content = FileUtils.readFileToString(
-            new File(path.toFile(), path.getFileName().toString() + FOLDER_METADATA_SUFFIX),
-            DEFAULT_CHARSET);
+        SystemMetadataStore store = storeFor(path);
+        if(!isNull(store)) {
+            if(store.kind(path) != SystemMetadataStore.KIND_FOLDER) {
+                throw new IOException("Don't be crazy there is no content for folder: " + path);
+            }
+            return Json.asObject(store.read(path), SystemFolder.class);
+        }
+        String content = _readSidecar(path.resolve(path.getFileName().toString()
+            + FOLDER_METADATA_SUFFIX));
         if(isNullOrEmpty(content)) {
             throw new IOException("Don't be crazy there is no content for folder: " + path);
         }
         SystemFolder sf = Json.asObject(content, SystemFolder.class);
-        return sf;
+        return _locate(sf, path);
     }
 
     static SystemFile readSystemFile(Path path) throws IOException {
-        String content = FileUtils.readFileToString(
-            new File(path.getParent().toFile(), path.getFileName().toString() + FILE_METADATA_SUFFIX),
-            DEFAULT_CHARSET);
+        SystemMetadataStore store = storeFor(path);
+        if(!isNull(store)) {
+            if(store.kind(path) != SystemMetadataStore.KIND_FILE) {
+                throw new IOException("Don't be crazy there is no content for file: " + path);
+            }
+            return Json.asObject(store.read(path), SystemFile.class);
+        }
+        Path data = contentOf(path);
+        String content = _readSidecar(data.resolveSibling(data.getFileName().toString()
+            + FILE_METADATA_SUFFIX));
         if(isNullOrEmpty(content)) {
             throw new IOException("Don't be crazy there is no content for folder: " + path);
         }
         SystemFile sf = Json.asObject(content, SystemFile.class);
-        return sf;
+        if(!data.equals(path)) {
+            // a moved object keeps the name it was written with
+            sf.name(path.getFileName().toString());
+        }
+        return _locate(sf, path);
+    }
+
+    /**
+     * Point a path read from a sidecar at where it was read from when that's under a known root,
+     * store records are rewritten when they move so they're left alone
+     */
+    private static <T extends SystemPath> T _locate(T systemPath, Path fullPath) {
+        Path root = null;
+        for(Path candidate : roots) {
+            if(fullPath.startsWith(candidate)
+                && (isNull(root) || candidate.getNameCount() > root.getNameCount())) {
+                root = candidate;
+            }
+        }
+        if(!isNull(root) && !fullPath.equals(root)) {
+            systemPath.root(root);
+            systemPath.fullPath(fullPath);
+        }
+        return systemPath;
+    }
+
+    /**
+     * Read a sidecar in one open and read, FileUtils.readFileToString checks that the file
+     * exists, isn't a directory and is readable first which is three stats per read.  A missing
+     * sidecar still ends up an IOException (NoSuchFileException).
+     * @param sidecar
+     * @return
+     * @throws IOException
+     */
+    private static String _readSidecar(Path sidecar) throws IOException {
+        return new String(Files.readAllBytes(sidecar), DEFAULT_CHARSET);
     }
 
     static void createSystemFolder(SystemFolder systemFolder) throws IOException {
         String encoded = Json.asString(systemFolder);
+        SystemMetadataStore store = storeFor(systemFolder.fullPath());
+        if(!isNull(store)) {
+            store.put(systemFolder.fullPath(), SystemMetadataStore.KIND_FOLDER, encoded);
+            return;
+        }
         Path metadataFile = Paths.get(systemFolder.fullPath().toString()
                 + File.separator
                 + systemFolder.fullPath().getFileName().toString() + FOLDER_METADATA_SUFFIX);
@@ -100,7 +279,12 @@ public class SystemPathIO {
 
     public static void createMetadata(SystemFile systemFile) throws IOException {
         String encoded = Json.asString(systemFile);
-        Path metadataFile  = Paths.get(systemFile.fullPath().toString() + FILE_METADATA_SUFFIX);
+        SystemMetadataStore store = storeFor(systemFile.fullPath());
+        if(!isNull(store)) {
+            store.put(systemFile.fullPath(), SystemMetadataStore.KIND_FILE, encoded);
+            return;
+        }
+        Path metadataFile  = Paths.get(contentOf(systemFile.fullPath()).toString() + FILE_METADATA_SUFFIX);
         Files.write(metadataFile, encoded.getBytes(),
             StandardOpenOption.CREATE,
             StandardOpenOption.TRUNCATE_EXISTING,
@@ -114,14 +298,18 @@ public class SystemPathIO {
      */
     public static boolean hasMetadata(Path path) {
         boolean exists = false;
+        SystemMetadataStore store = storeFor(path);
+        if(!isNull(store)) {
+            return store.contains(path);
+        }
         try {
             Path target = null;
             if(Files.isDirectory(path)) {
                 target = Paths.get(path.toString() + File.separator
                     + path.getFileName().toString()
                     + FOLDER_METADATA_SUFFIX);
-            } else if(Files.isRegularFile(path)) {
-                target = Paths.get(path.toString() + FILE_METADATA_SUFFIX);
+            } else if(Files.isRegularFile(contentOf(path))) {
+                target = Paths.get(contentOf(path).toString() + FILE_METADATA_SUFFIX);
             }
             if(target == null) {
                 return exists;
@@ -133,6 +321,152 @@ public class SystemPathIO {
         return exists;
     }
 
+    /**
+     * Copy the metadata of a file to another file, the path property of the copy is
+     * rewritten to point at the target
+     * @param source full path of the source file
+     * @param target full path of the target file
+     * @throws IOException
+     */
+    static void copyFileMetadata(Path source, Path target) throws IOException {
+        SystemMetadataStore store = storeFor(source);
+        if(isNull(store)) {
+            Files.copy(
+                Paths.get(contentOf(source).toString() + FILE_METADATA_SUFFIX),
+                Paths.get(contentOf(target).toString() + FILE_METADATA_SUFFIX),
+                StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        _copyRecord(store, source, target, SystemMetadataStore.KIND_FILE);
+    }
+
+    /**
+     * Move the metadata of a file along with the file.  When the target is not under a store
+     * (i.e. the trash) store managed metadata is written to a sidecar next to the target.
+     * @param source full path of the source file
+     * @param target full path of the target file
+     * @throws IOException
+     */
+    static void moveFileMetadata(Path source, Path target) throws IOException {
+        SystemMetadataStore store = storeFor(source);
+        if(isNull(store)) {
+            Files.move(
+                Paths.get(source.toString() + FILE_METADATA_SUFFIX),
+                Paths.get(target.toString() + FILE_METADATA_SUFFIX),
+                StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        _copyRecord(store, source, target, SystemMetadataStore.KIND_FILE);
+        store.remove(source);
+    }
+
+    /**
+     * Bring metadata along after a folder or file was moved from source to target.  Sidecars
+     * already moved with the content, they only need the name fixed when the move renamed the
+     * path.  Store records are moved to the target's store, or to sidecars when the target
+     * isn't under one (i.e. the trash).  Safe to call again for a move that was already finished.
+     * @param source full path the folder or file was moved from
+     * @param target full path it was moved to
+     * @throws IOException
+     */
+    static void relocateMetadata(Path source, Path target) throws IOException {
+        SystemObjectLayout layout = layoutFor(source);
+        if(!isNull(layout)) {
+            layout.forget(source);
+        }
+        SystemMetadataStore store = storeFor(source);
+        if(!isNull(store)) {
+            copyMetadata(source, target, true);
+            store.remove(source);
+            return;
+        }
+
+        String name = target.getFileName().toString();
+        if(name.equals(source.getFileName().toString())) {
+            return;
+        }
+        Path sidecar;
+        if(Files.isDirectory(target)) {
+            sidecar = target.resolve(name + FOLDER_METADATA_SUFFIX);
+            Path moved = target.resolve(source.getFileName().toString() + FOLDER_METADATA_SUFFIX);
+            if(Files.exists(moved)) {
+                Files.move(moved, sidecar, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } else {
+            sidecar = Paths.get(contentOf(target).toString() + FILE_METADATA_SUFFIX);
+        }
+        if(Files.exists(sidecar)) {
+            JsonObject object = readJson(sidecar);
+            object.setString(SystemPath.PROPERTY_NAME, name);
+            writeJson(sidecar, object);
+        }
+    }
+
+    /**
+     * Copy the metadata of every path beneath a source folder to the same relative location
+     * beneath the target folder.  Sidecar files are copied along with the content so this only
+     * has work to do for store managed paths.
+     * @param source full path of the source folder
+     * @param target full path of the target folder
+     * @param includeSource also copy the metadata of the source folder itself onto target
+     * @throws IOException
+     */
+    static void copyMetadata(Path source, Path target, boolean includeSource) throws IOException {
+        SystemMetadataStore store = storeFor(source);
+        if(isNull(store)) {
+            return;
+        }
+        for(String key : store.keys(source)) {
+            Path from = store.fullPath(key);
+            if(from.equals(source) && !includeSource) {
+                continue;
+            }
+            _copyRecord(store, from, target.resolve(source.relativize(from)), store.kind(from));
+        }
+    }
+
+    /**
+     * Forget the metadata of a path and everything beneath it.  Sidecar files travel with the
+     * content they describe so this only has work to do for store managed paths.
+     * @param fullPath
+     * @throws IOException
+     */
+    static void removeMetadata(Path fullPath) throws IOException {
+        SystemObjectLayout layout = layoutFor(fullPath);
+        if(!isNull(layout)) {
+            layout.forget(fullPath);
+        }
+        SystemMetadataStore store = storeFor(fullPath);
+        if(!isNull(store)) {
+            store.remove(fullPath);
+        }
+    }
+
+    /**
+     * Copy one metadata record out of a store to a target path, into the target's store if it
+     * has one otherwise into a sidecar file
+     */
+    private static void _copyRecord(SystemMetadataStore store, Path from, Path to, byte kind)
+        throws IOException {
+        String content = store.read(from);
+        if(isNullOrEmpty(content)) {
+            return;
+        }
+        JsonObject object = new JsonObject(content);
+        object.setString(SystemPath.PROPERTY_NAME, to.getFileName().toString());
+        SystemMetadataStore targetStore = storeFor(to);
+        if(isNull(targetStore)) {
+            Path sidecar = (kind == SystemMetadataStore.KIND_FOLDER)
+                ? to.resolve(to.getFileName().toString() + FOLDER_METADATA_SUFFIX)
+                : Paths.get(contentOf(to).toString() + FILE_METADATA_SUFFIX);
+            writeJson(sidecar, object);
+            return;
+        }
+        object.setString(SystemPath.PROPERTY_PATH,
+            targetStore.root().relativize(to).toString().replace("\\", "/"));
+        targetStore.put(to, kind, object.asString());
+    }
+
     static JsonObject readJson(Path path) throws IOException {
         String content = FileUtils.readFileToString(path.toFile());
         if(isNullOrEmpty(content)) {
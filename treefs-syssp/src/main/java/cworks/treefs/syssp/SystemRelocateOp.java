@@ -0,0 +1,344 @@
+package cworks.treefs.syssp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static cworks.treefs.common.ObjectUtils.isNull;
+
+/**
+ * Moves a folder or file, and its metadata, to a new location with a single rename when the
+ * source and target are on the same filesystem.  A folder's .d is inside the folder so it goes
+ * along with the rename, a file's .f is renamed next to it and store records are moved in the
+ * store.  Sidecars keep the path they were written with, SystemPathIO takes the relative path
+ * from where a sidecar is read so nothing beneath a renamed folder has to be rewritten.
+ *
+ * When the rename isn't possible because the target is on another device the tree is copied on
+ * the provider's walk pool, one task per folder, and then the source is deleted.
+ *
+ * Before anything is touched an intent record naming every source and target, one per line, is
+ * written to the intent folder and it's removed once the relocation is complete.  An intent
+ * left behind by a crash is replayed by resume(), a rename that already happened is skipped and
+ * a copy skips the files that already made it to the target whole, so a half-finished fallback
+ * picks up where it stopped.  The relocation holds a lock on its intent record until it's done,
+ * so resume() in another provider on the same bucket, in this process or another, skips the
+ * relocations that are still running.
+ *
+ * A file kept in a sharded SystemObjectLayout isn't in its folder so it's moved by naming its
+ * object in the target folder's manifest and then dropping it from the source's, the object
+ * itself stays where it is.  A folder's manifest goes along with the folder.
+ *
+ * @author comartin
+ */
+final class SystemRelocateOp {
+
+    private static final String INTENT_SUFFIX = ".intent";
+
+    private static final String FILE_METADATA_SUFFIX = ".f";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Pool a cross-device copy runs on
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Folder intent records are kept in
+     */
+    private final Path intents;
+
+    SystemRelocateOp(ForkJoinPool pool, Path intents) {
+        this.pool = pool;
+        this.intents = intents;
+    }
+
+    /**
+     * Move the folder or file at source to target, the target's parent must exist and the target
+     * must not
+     *
+     * @param source full path of the folder or file
+     * @param target full path it's moved to
+     * @return true if it was renamed, false if it had to be copied
+     * @throws IOException
+     */
+    boolean relocate(Path source, Path target) throws IOException {
+        SystemObjectLayout layout = SystemPathIO.layoutFor(source);
+        if(!isNull(layout) && !isNull(layout.id(source))) {
+            _rebind(layout, source, target);
+            SystemPathIO.relocateMetadata(source, target);
+            return true;
+        }
+
+        List<Path[]> moves = new ArrayList<Path[]>();
+        moves.add(new Path[] { source, target });
+        if(!Files.isDirectory(source) && !SystemPathIO.isStoreManaged(source)) {
+            moves.add(new Path[] { _sidecar(source), _sidecar(target) });
+        }
+
+        Path intent = intents.resolve(UUID.randomUUID().toString() + INTENT_SUFFIX);
+        FileChannel lock = _begin(moves, intent);
+        try {
+            boolean renamed = _run(moves);
+            SystemPathIO.relocateMetadata(source, target);
+            // deleted before the lock goes with the channel
+            Files.deleteIfExists(intent);
+            return renamed;
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Finish every relocation an earlier process left an intent record for
+     * @return the number of relocations finished
+     */
+    int resume() {
+        if(!Files.isDirectory(intents)) {
+            return 0;
+        }
+        int resumed = 0;
+        try(DirectoryStream<Path> records = Files.newDirectoryStream(intents, "*" + INTENT_SUFFIX)) {
+            for(Path record : records) {
+                try(FileChannel channel = FileChannel.open(record, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                    if(!_tryLock(channel)) {
+                        // still being relocated
+                        continue;
+                    }
+                    if(!Files.exists(record)) {
+                        // finished between the listing and the lock
+                        continue;
+                    }
+                    List<Path[]> moves = _read(record);
+                    _run(moves);
+                    SystemPathIO.relocateMetadata(moves.get(0)[0], moves.get(0)[1]);
+                    Files.deleteIfExists(record);
+                    resumed++;
+                } catch(NoSuchFileException ex) {
+                    // finished between the listing and the open
+                } catch(IOException ex) {
+                    // leave the record for the next attempt
+                    System.out.println("SystemRelocateOp failed resuming: " + record + " " + ex.getMessage());
+                }
+            }
+        } catch(IOException ex) {
+            System.out.println("SystemRelocateOp failed reading intents: " + intents + " " + ex.getMessage());
+        }
+        return resumed;
+    }
+
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+    // internal methods
+    // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+
+    /**
+     * Move each source to its target, sources that are already gone were moved before a crash
+     */
+    private boolean _run(List<Path[]> moves) throws IOException {
+        boolean renamed = true;
+        for(Path[] move : moves) {
+            if(!Files.exists(move[0])) {
+                continue;
+            }
+            Files.createDirectories(move[1].getParent());
+            if(!Files.exists(move[1]) && _rename(move[0], move[1])) {
+                continue;
+            }
+            renamed = false;
+            _transfer(move[0], move[1]);
+        }
+        return renamed;
+    }
+
+    /**
+     * Rename in one step, false when source and target are on different filesystems
+     */
+    private boolean _rename(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch(AtomicMoveNotSupportedException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Copy source to target in parallel and then delete source
+     */
+    private void _transfer(Path source, Path target) throws IOException {
+        if(Files.isDirectory(source)) {
+            try {
+                pool.invoke(new CopyFolder(source, target));
+            } catch(RuntimeException ex) {
+                // fork/join may hand back a copy of the exception with the original as its cause
+                for(Throwable cause = ex; cause != null; cause = cause.getCause()) {
+                    if(cause instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException)cause).getCause();
+                    }
+                }
+                throw ex;
+            }
+            // the copied manifests name the same objects so they stay
+            Files.walkFileTree(source, new SystemDeletePathOp(false));
+        } else {
+            _copyFile(source, target, Files.readAttributes(source, BasicFileAttributes.class));
+            Files.deleteIfExists(source);
+        }
+    }
+
+    /**
+     * Copy a file unless an earlier attempt already copied all of it
+     */
+    private static void _copyFile(Path source, Path target, BasicFileAttributes attrs) throws IOException {
+        try {
+            BasicFileAttributes copied = Files.readAttributes(target, BasicFileAttributes.class);
+            if(copied.isRegularFile() && copied.size() == attrs.size()
+                && copied.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+                return;
+            }
+        } catch(NoSuchFileException ex) {
+            // not copied yet
+        }
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.COPY_ATTRIBUTES);
+    }
+
+    /**
+     * Write the intent record and force it to disk before anything moves, the record is locked
+     * before it's written and stays locked until the returned channel is closed
+     */
+    private FileChannel _begin(List<Path[]> moves, Path intent) throws IOException {
+        StringBuilder record = new StringBuilder();
+        for(Path[] move : moves) {
+            record.append(move[0]).append('\n').append(move[1]).append('\n');
+        }
+        byte[] content = record.toString().getBytes(UTF8);
+
+        Files.createDirectories(intents);
+        Path temp = intent.resolveSibling(intent.getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE);
+        try {
+            // the lock is on the file, not its name, so it holds across the rename
+            channel.lock();
+            channel.write(ByteBuffer.wrap(content));
+            channel.force(true);
+            Files.move(temp, intent, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException | RuntimeException ex) {
+            channel.close();
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        return channel;
+    }
+
+    /**
+     * Lock an intent record, false if a running relocation holds it
+     */
+    private static boolean _tryLock(FileChannel channel) throws IOException {
+        try {
+            return !isNull(channel.tryLock());
+        } catch(OverlappingFileLockException ex) {
+            // held by this process
+            return false;
+        }
+    }
+
+    /**
+     * Name a file's object in the target's manifest before dropping it from the source's so a
+     * crash in between can't lose it
+     */
+    private static void _rebind(SystemObjectLayout layout, Path source, Path target)
+        throws IOException {
+        String id = layout.id(source);
+        SystemObjectLayout targetLayout = SystemPathIO.layoutFor(target);
+        if(isNull(targetLayout)) {
+            // leaving the layout, the object becomes the file
+            Path object = layout.object(id);
+            Files.move(object, target, StandardCopyOption.REPLACE_EXISTING);
+            if(Files.exists(_sidecar(object))) {
+                Files.move(_sidecar(object), _sidecar(target), StandardCopyOption.REPLACE_EXISTING);
+            }
+            layout.unbind(source);
+            return;
+        }
+        String replaced = targetLayout.bind(target, id);
+        layout.unbind(source);
+        if(!isNull(replaced) && !replaced.equals(id)) {
+            targetLayout.release(replaced);
+        }
+    }
+
+    private static List<Path[]> _read(Path record) throws IOException {
+        List<String> lines = Files.readAllLines(record, UTF8);
+        if(lines.size() < 2) {
+            throw new IOException("intent record has no moves: " + record);
+        }
+        List<Path[]> moves = new ArrayList<Path[]>();
+        for(int i = 0; i + 1 < lines.size(); i += 2) {
+            moves.add(new Path[] { Paths.get(lines.get(i)), Paths.get(lines.get(i + 1)) });
+        }
+        return moves;
+    }
+
+    private static Path _sidecar(Path file) {
+        return file.resolveSibling(file.getFileName().toString() + FILE_METADATA_SUFFIX);
+    }
+
+    /**
+     * Copies one folder and forks a task for each sub-folder
+     */
+    private static final class CopyFolder extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path source;
+
+        private final Path target;
+
+        CopyFolder(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            List<CopyFolder> subFolders = new ArrayList<CopyFolder>();
+            try {
+                Files.createDirectories(target);
+                try(DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+                    for(Path entry : entries) {
+                        Path copy = target.resolve(entry.getFileName().toString());
+                        BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                        if(attrs.isDirectory()) {
+                            subFolders.add(new CopyFolder(entry, copy));
+                        } else {
+                            _copyFile(entry, copy, attrs);
+                        }
+                    }
+                }
+            } catch(IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            invokeAll(subFolders);
+        }
+    }
+}
@@ -1,34 +1,48 @@
 package cworks.treefs.syssp;
 
+import cworks.treefs.spi.AsyncStorageProvider;
 import cworks.treefs.spi.NoTreeFolderException;
 import cworks.treefs.spi.NoTreePathException;
 import cworks.treefs.spi.NotATreeFolderException;
 import cworks.treefs.spi.TreeCopyOption;
 import cworks.treefs.spi.TreeFile;
 import cworks.treefs.spi.TreeFileExistsException;
+import cworks.treefs.spi.TreeFileWriter;
 import cworks.treefs.spi.TreeFolder;
 import cworks.treefs.spi.TreeFolderExistsException;
 import cworks.treefs.spi.TreeFolderNotEmptyException;
+import cworks.treefs.spi.TreeListing;
 import cworks.treefs.spi.TreePath;
+import cworks.treefs.spi.TreeMatchHandler;
 import cworks.treefs.spi.TreePathExistsException;
+import cworks.treefs.spi.TreeQuery;
+import cworks.treefs.spi.TreeSearch;
+import cworks.treefs.spi.TreeStat;
 import cworks.treefs.spi.StorageException;
 import cworks.treefs.spi.StorageProvider;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.commons.io.input.BoundedInputStream;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
-import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -40,7 +54,14 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static cworks.treefs.common.IOUtils.closeQuietly;
 import static cworks.treefs.common.ObjectUtils.isNull;
@@ -58,7 +79,7 @@ import static cworks.treefs.common.ObjectUtils.isNullOrEmpty;
  *
  * @author comartin
  */
-public class SystemStorageProvider implements StorageProvider {
+public class SystemStorageProvider implements StorageProvider, Closeable {
 
     /**
      * default file-IO buffer size for read and write ops
@@ -135,6 +156,38 @@ public class SystemStorageProvider implements StorageProvider {
      */
     private Path root = Paths.get(mount, bucket);
 
+    /**
+     * Embedded metadata store for this provider's bucket, null when metadata is kept in
+     * .d and .f sidecar files
+     */
+    private SystemMetadataStore metadataStore = null;
+
+    /**
+     * Sharded layout files of this provider's bucket are kept in, null when files are kept in
+     * their folders
+     */
+    private SystemObjectLayout layout = null;
+
+    /**
+     * Non-blocking view of this provider, created with its I/O pool on the first call to async()
+     */
+    private SystemAsyncStorageProvider async = null;
+
+    /**
+     * Pool folders are walked in parallel on, created on first use
+     */
+    private ForkJoinPool walkers = null;
+
+    /**
+     * Most items a single openFolder loads
+     */
+    private int maxFolderItems = SystemConfig.maxFolderItems();
+
+    /**
+     * Moves folders and files by renaming them, created on first use
+     */
+    private SystemRelocateOp relocator = null;
+
     /**
      * Package-private constructor, used from SystemStorageProviderBuilder
      * This constructor creates a SystemStorageProvider with the default mount and bucket
@@ -174,6 +227,33 @@ public class SystemStorageProvider implements StorageProvider {
         return new SystemStorageProviderBuilder();
     }
 
+    /**
+     * Non-blocking view of this provider, file content is read and written with an
+     * AsynchronousFileChannel and everything runs on a pool of SystemConfig.ioThreads() threads
+     * that is shut down by close()
+     * @return the AsyncStorageProvider for this provider
+     */
+    public synchronized AsyncStorageProvider async() {
+        if(isNull(async)) {
+            final AtomicInteger threads = new AtomicInteger();
+            int size = SystemConfig.ioThreads();
+            ThreadPoolExecutor io = new ThreadPoolExecutor(size, size,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                            "treefs-syssp-io-" + threads.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            io.allowCoreThreadTimeOut(true);
+            async = new SystemAsyncStorageProvider(this, io);
+        }
+        return async;
+    }
+
     /**
      * Creates a folder by creating all nonexistent parent folders first then creates the target
      * folder.  If parent folders already exist then no exception should be thrown and the
@@ -342,29 +422,20 @@ public class SystemStorageProvider implements StorageProvider {
 
         SystemFolder systemFolder = null;
         Path fullPath = _prependRoot(folder);
-        DirectoryStream<Path> ds = null;
         if(!exists(folder)) {
             throw new NoTreeFolderException(folder);
         }
         try {
-            DirectoryStream.Filter theFilter = null;
-            if(isNull(filter)) {
-                theFilter = new SystemPathFilter();
-            } else if(filter instanceof SystemPathFilter) {
-                theFilter = filter;
-            } else {
-                theFilter = new SystemPathFilter(filter);
-            }
-            ds = Files.newDirectoryStream(fullPath, theFilter);
-            if(isNull(ds)) {
-                throw new StorageException("unable to open folder: " + folder);
+            // the scanner only returns items that can be managed so a SystemPathFilter has
+            // nothing left to check
+            DirectoryStream.Filter<Path> theFilter = filter;
+            if(filter instanceof SystemPathFilter) {
+                theFilter = ((SystemPathFilter)filter).delegate;
             }
             systemFolder = SystemPathIO.readSystemFolder(fullPath);
-            _loadFolderItems(ds, systemFolder);
+            _loadFolderItems(SystemDirectoryScanner.scan(fullPath), theFilter, systemFolder);
         } catch(Exception ex) {
             throw new StorageException(ex);
-        } finally {
-            closeQuietly(ds);
         }
         return systemFolder;
     }
@@ -395,22 +466,24 @@ public class SystemStorageProvider implements StorageProvider {
             throw new NoTreeFolderException(folder);
         }
 
+        if(!Files.isDirectory(fullPath)) {
+            throw new NotATreeFolderException("folder " + folder.toString() + " is not a folder");
+        }
+
         try {
-            DirectoryStream.Filter theFilter = null;
-            if(isNull(filter)) {
-                theFilter = new SystemPathFilter();
-            } else if(filter instanceof SystemPathFilter) {
-                theFilter = filter;
-            } else {
-                theFilter = new SystemPathFilter(filter);
+            // the loader only hands managed files to the filter so the managed check of a
+            // SystemPathFilter would be made twice
+            DirectoryStream.Filter<Path> theFilter = filter;
+            if(filter instanceof SystemPathFilter) {
+                theFilter = ((SystemPathFilter)filter).delegate;
             }
-            Set<FileVisitOption> opts = Collections.emptySet();
-            SystemOpenFolderOp openOp = new SystemOpenFolderOp(theFilter, this);
             if(maxLevels < 0) {
                 maxLevels = 0;
             }
-            Files.walkFileTree(fullPath, opts, maxLevels, openOp);
-            systemFolder = openOp.folder();
+            systemFolder = SystemOpenFolderOp.open(_walkers(), fullPath, theFilter, maxLevels,
+                maxFolderItems);
+        } catch(StorageException ex) {
+            throw ex;
         } catch(Exception ex) {
             throw new StorageException(ex);
         }
@@ -495,6 +568,72 @@ public class SystemStorageProvider implements StorageProvider {
         return sFolder;
     }
 
+    /**
+     * Lists a page of the items directly in a folder.  The folder is read with a DirectoryStream
+     * keeping only the limit smallest names after the cursor, so a page costs one pass over the
+     * folder and memory for limit names whatever the size of the folder.  Names are compared
+     * before anything else so an item's metadata is only checked when it would make the page.
+     *
+     * In a sharded SystemObjectLayout the files come from the folder's manifest, which is kept
+     * sorted, so it's read from the cursor on and only until a name can't make the page.
+     *
+     * @param folder A relative Path to the folder to list
+     * @param cursor the cursor of the previous page or null to start at the first item
+     * @param limit the maximum number of items in the page, 0 or less for every item
+     * @return the listing
+     * @throws StorageException
+     */
+    @Override
+    public TreeListing listFolder(Path folder, String cursor, int limit) throws StorageException {
+
+        Path fullPath = _prependRoot(folder);
+        if(!exists(folder) || !Files.isDirectory(fullPath)) {
+            throw new NoTreeFolderException(folder);
+        }
+
+        String after;
+        try {
+            after = SystemFolderListing.decode(cursor);
+        } catch(IllegalArgumentException ex) {
+            throw new StorageException("invalid cursor: " + cursor, ex);
+        }
+
+        // largest name on top so it's the one dropped when the page is over limit
+        PriorityQueue<String> page = new PriorityQueue<String>(11, Collections.reverseOrder());
+        boolean more = false;
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(fullPath)) {
+            for(Path entry : ds) {
+                String name = entry.getFileName().toString();
+                if(!isNull(after) && name.compareTo(after) <= 0) {
+                    continue;
+                }
+                if(!_fits(page, name, limit)) {
+                    // can't make the page, only worth a check until a next page is known
+                    if(!more && SystemPathIO.hasMetadata(entry)) {
+                        more = true;
+                    }
+                    continue;
+                }
+                // only paths this provider knows about
+                if(!SystemPathIO.hasMetadata(entry)) {
+                    continue;
+                }
+                more = _add(page, name, limit) || more;
+            }
+
+            SystemObjectLayout layout = SystemPathIO.layoutFor(fullPath);
+            if(!isNull(layout)) {
+                more = _listManifest(layout, fullPath, after, limit, page) || more;
+            }
+        } catch(IOException ex) {
+            throw new StorageException(ex);
+        }
+
+        List<String> names = new ArrayList<String>(page);
+        Collections.sort(names);
+        return new SystemFolderListing(fullPath, names, more);
+    }
+
     /**
      * Moves a file or folder to the Trash.
      *
@@ -528,19 +667,27 @@ public class SystemStorageProvider implements StorageProvider {
         try {
             Path fullPath  = _prependRoot(path);
             Path trashPath = _toTrashPath(path);
-            if(Files.isDirectory(fullPath)) {
+            boolean isFile = Files.isRegularFile(SystemPathIO.contentOf(fullPath));
+            if(isFile && Files.isRegularFile(SystemPathIO.contentOf(trashPath))) {
+                // the newer file replaces the one already in the trash
+                new SystemDeletePathOp().delete(trashPath);
+            }
+            if(!Files.exists(SystemPathIO.contentOf(trashPath))) {
+                // one rename, or a copy when the trash is on another device
+                Files.createDirectories(trashPath.getParent());
+                _relocator().relocate(fullPath, trashPath);
+            } else if(Files.isDirectory(fullPath)) {
+                // merge into the folder already in the trash
                 SystemMovePathOp movePathOp = new SystemMovePathOp(fullPath, trashPath);
                 Files.walkFileTree(fullPath, movePathOp);
-            } else if(Files.isRegularFile(fullPath)) {
+                SystemPathIO.relocateMetadata(fullPath, trashPath);
+            } else if(isFile) {
                 Files.createDirectories(trashPath.getParent());
                 // move file
                 Files.move(fullPath, trashPath,
                         StandardCopyOption.REPLACE_EXISTING);
-                // move metadata file
-                Files.move(
-                        Paths.get(fullPath.toString() + FILE_METADATA_SUFFIX),
-                        Paths.get(trashPath.toString() + FILE_METADATA_SUFFIX),
-                        StandardCopyOption.REPLACE_EXISTING);
+                // move metadata
+                SystemPathIO.moveFileMetadata(fullPath, trashPath);
             }
         } catch(Exception ex) {
             throw new StorageException(ex);
@@ -587,7 +734,11 @@ public class SystemStorageProvider implements StorageProvider {
         try {
             Path trashPath = _prependTrashRoot(path);
             SystemDeletePathOp deletePathOp = new SystemDeletePathOp();
-            Files.walkFileTree(trashPath, deletePathOp);
+            if(Files.isDirectory(trashPath)) {
+                Files.walkFileTree(trashPath, deletePathOp);
+            } else {
+                deletePathOp.delete(trashPath);
+            }
         } catch(Exception ex) {
             throw new StorageException(
                 "error deleting path: " + path.toString(), ex);
@@ -682,7 +833,7 @@ public class SystemStorageProvider implements StorageProvider {
         Path fullPath = _prependRoot(path);
         boolean exists = false;
         try {
-            exists = Files.exists(fullPath);
+            exists = Files.exists(SystemPathIO.contentOf(fullPath));
             // now test if the path contains the required metadata file
             // if not then this provider doesn't know anything about the path
             // ...its just a wayward path
@@ -767,6 +918,47 @@ public class SystemStorageProvider implements StorageProvider {
         return isFile;
     }
 
+    /**
+     * Stat a path with one read of its attributes and one read of its metadata.  Size and
+     * lastModifiedTime of a file come from the file itself like openFile.
+     *
+     * @param path A relative Path to the file or folder
+     * @return stat of path or TreeStat.NOT_FOUND
+     * @throws StorageException
+     */
+    @Override
+    public TreeStat stat(Path path) throws StorageException {
+        if(isNull(path)) {
+            return TreeStat.NOT_FOUND;
+        }
+        Path fullPath = _prependRoot(path);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(SystemPathIO.contentOf(fullPath), BasicFileAttributes.class);
+        } catch(NoSuchFileException ex) {
+            return TreeStat.NOT_FOUND;
+        } catch(IOException ex) {
+            throw new StorageException("exception performing stat for path: " + path, ex);
+        }
+
+        try {
+            if(attributes.isDirectory()) {
+                SystemFolder folder = SystemPathIO.readSystemFolder(fullPath);
+                return TreeStat.folder(path, folder.creationTime(), folder.lastModifiedTime(),
+                    folder.hasMetadata());
+            }
+            if(attributes.isRegularFile()) {
+                SystemFile file = SystemPathIO.readSystemFile(fullPath);
+                return TreeStat.file(path, attributes.size(), file.creationTime(),
+                    new Date(attributes.lastModifiedTime().toMillis()), file.checksum(),
+                    file.hasMetadata());
+            }
+        } catch(IOException ex) {
+            // no metadata so this provider doesn't know anything about the path
+        }
+        return TreeStat.NOT_FOUND;
+    }
+
     /**
      * Copy a file or folder from source to a target.
      *
@@ -821,20 +1013,34 @@ public class SystemStorageProvider implements StorageProvider {
             final Path targetPath = _prependRoot(target);
             boolean recursive = _hasCopyRecursive(options);
             boolean into      = _hasCopyIntoOption(options);
+            boolean link      = _hasCopyLinkOption(options);
+            // objects of a sharded layout are never written in place so they're always linked
+            boolean sharded   = !isNull(SystemPathIO.layoutFor(sourcePath));
             // copying folder to...
             if(Files.isDirectory(sourcePath)) {
                 if(!exists(target)) {
                     throw new NoTreePathException("target " + target + " does not exist");
                 }
                 if(recursive) {
-                    if(into) {
+                    if(into && (link || sharded)) {
+                        // ln source target/source, content is linked and sidecars copied
+                        Path copy = targetPath.resolve(sourcePath.getFileName().toString());
+                        Files.walkFileTree(sourcePath, new SystemLinkCopyOp(sourcePath, copy, true));
+                        SystemPathIO.copyMetadata(sourcePath, copy, true);
+                    } else if(link || sharded) {
+                        // ln source/* target
+                        Files.walkFileTree(sourcePath, new SystemLinkCopyOp(sourcePath, targetPath, false));
+                        SystemPathIO.copyMetadata(sourcePath, targetPath, false);
+                    } else if(into) {
                         // cp source target/source
+                        _breakLinks(sourcePath, targetPath.resolve(sourcePath.getFileName().toString()));
                         FileUtils.copyDirectoryToDirectory(
                                 sourcePath.toFile(),
                                 targetPath.toFile());
                         _indexPaths(sourcePath, targetPath, options);
                     } else {
                         // cp source/* target
+                        _breakLinks(sourcePath, targetPath);
                         FileUtils.copyDirectory(
                                 sourcePath.toFile(),
                                 targetPath.toFile(),
@@ -851,7 +1057,7 @@ public class SystemStorageProvider implements StorageProvider {
                     }
                 }
             // copying file to ...
-            } else if(Files.isRegularFile(sourcePath)) {
+            } else if(Files.isRegularFile(SystemPathIO.contentOf(sourcePath))) {
                 boolean success = _tryCopyToFolder(sourcePath, targetPath, options);
                 if(success) {
                     return;
@@ -901,10 +1107,122 @@ public class SystemStorageProvider implements StorageProvider {
      */
     @Override
     public void move(Path source, Path target, CopyOption... options) throws StorageException {
+        if(_tryRelocate(source, target, options)) {
+            return;
+        }
         copy(source, target, options);
         trash(source, true);
     }
 
+    /**
+     * Takes a named, point-in-time copy of a folder and everything beneath it.  The snapshot is
+     * a LINK copy kept under the mount's snapshots folder, content is shared with the bucket
+     * and only metadata is written, later changes to the folder don't show in the snapshot.
+     *
+     * If folder does not exist then throw {@link cworks.treefs.spi.NoTreeFolderException}
+     * If a snapshot with the name exists then throw {@link cworks.treefs.spi.TreePathExistsException}
+     *
+     * @param folder A relative Path to the folder to snapshot
+     * @param name name of the snapshot, a single path segment
+     * @return the snapshot's copy of the folder
+     * @throws StorageException
+     */
+    public TreeFolder snapshot(Path folder, String name) throws StorageException {
+        Path snapshotRoot = _snapshotRoot(name);
+        if(Files.exists(snapshotRoot)) {
+            throw new TreePathExistsException("snapshot " + name + " exists", Paths.get(name));
+        }
+        Path fullPath = _prependRoot(folder);
+        if(!_isManagedFolder(fullPath)) {
+            throw new NoTreeFolderException(folder);
+        }
+
+        Path copy = snapshotRoot.resolve(folder.toString());
+        try {
+            Files.walkFileTree(fullPath, new SystemLinkCopyOp(fullPath, copy, true));
+            SystemPathIO.copyMetadata(fullPath, copy, true);
+            return _inSnapshot(SystemPathIO.readSystemFolder(copy), snapshotRoot, copy);
+        } catch(IOException ex) {
+            throw new StorageException("exception taking snapshot: " + name + " of " + folder, ex);
+        }
+    }
+
+    /**
+     * Opens a folder in a snapshot with ONE level of children, paths are the paths the folder
+     * and its items had when the snapshot was taken
+     *
+     * If the folder is not in the snapshot then throw {@link cworks.treefs.spi.NoTreeFolderException}
+     *
+     * @param name name of the snapshot
+     * @param folder A relative Path to the folder to open
+     * @return the folder as it was when the snapshot was taken
+     * @throws StorageException
+     */
+    public TreeFolder openSnapshot(String name, Path folder) throws StorageException {
+        Path snapshotRoot = _snapshotRoot(name);
+        Path fullPath = snapshotRoot.resolve(folder.toString());
+        try {
+            SystemFolder systemFolder = _inSnapshot(SystemPathIO.readSystemFolder(fullPath),
+                snapshotRoot, fullPath);
+            List<TreePath> items = new ArrayList<>();
+            for(SystemDirectoryScanner.Entry entry : SystemDirectoryScanner.scan(fullPath)) {
+                SystemPath item = entry.read();
+                if(!isNull(item)) {
+                    items.add(_inSnapshot(item, snapshotRoot, entry.path()));
+                }
+            }
+            if(items.size() > 0) {
+                systemFolder.items(items);
+            }
+            return systemFolder;
+        } catch(IOException ex) {
+            throw new NoTreeFolderException(folder);
+        }
+    }
+
+    /**
+     * Names of the snapshots of this provider's bucket
+     * @return
+     * @throws StorageException
+     */
+    public List<String> snapshots() throws StorageException {
+        List<String> names = new ArrayList<>();
+        Path snapshots = _snapshotsRoot();
+        if(!Files.isDirectory(snapshots)) {
+            return names;
+        }
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(snapshots)) {
+            for(Path snapshot : ds) {
+                names.add(snapshot.getFileName().toString());
+            }
+        } catch(IOException ex) {
+            throw new StorageException("exception listing snapshots", ex);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Permanently deletes a snapshot, only its links are removed so content still in the
+     * bucket or in other snapshots is untouched
+     *
+     * If the snapshot does not exist then throw {@link cworks.treefs.spi.NoTreePathException}
+     *
+     * @param name name of the snapshot
+     * @throws StorageException
+     */
+    public void deleteSnapshot(String name) throws StorageException {
+        Path snapshotRoot = _snapshotRoot(name);
+        if(!Files.exists(snapshotRoot)) {
+            throw new NoTreePathException("snapshot " + name + " does not exist");
+        }
+        try {
+            Files.walkFileTree(snapshotRoot, new SystemDeletePathOp());
+        } catch(IOException ex) {
+            throw new StorageException("error deleting snapshot: " + name, ex);
+        }
+    }
+
     /**
      * Creates a new file on the path and with the name of the given path argument and writes data
      * into the new file from stream.
@@ -1032,9 +1350,12 @@ public class SystemStorageProvider implements StorageProvider {
 
         Path fullPath = _prependRoot(path);
         OutputStream out = null;
+        Path content = fullPath;
         try {
             _createDirectoriesForFile(path);
-            out = Files.newOutputStream(fullPath,
+            content = _newContent(fullPath);
+            _breakLink(content);
+            out = Files.newOutputStream(content,
                 StandardOpenOption.CREATE,
                 StandardOpenOption.TRUNCATE_EXISTING,
                 StandardOpenOption.WRITE);
@@ -1045,6 +1366,8 @@ public class SystemStorageProvider implements StorageProvider {
                 out.write(buffer, 0, n);
                 nread += n;
             }
+            out.close();
+            _placeContent(fullPath, content);
             System.out.println("createFile: " + fullPath.toFile() + " size=" + nread + " bytes");
         } catch(Exception ex) {
             throw new StorageException("exception creating file: "
@@ -1053,25 +1376,24 @@ public class SystemStorageProvider implements StorageProvider {
             closeQuietly(out);
         }
 
-        SystemFile systemFile = null;
-        try {
-            SystemFileMaker maker = SystemFileMaker.newFile().withRoot(root);
-            _loadFileAttributes(fullPath, maker);
-            if(!isNullOrEmpty(description)) {
-                maker.withDescription(description);
-            }
-            if(!isNullOrEmpty(metadata)) {
-                maker.withMetadata(metadata);
-            }
-            systemFile = maker.make();
-            SystemPathIO.createMetadata(systemFile);
-        } catch(Exception ex) {
-            throw new StorageException("exception creating metadata for file: "
-                + fullPath.getFileName().toString(), ex);
-        }
-
         // TODO fix me!
-        return systemFile;
+        return _createFileMetadata(fullPath, description, metadata);
+    }
+
+    /**
+     * Opens a writer that stages content under the mount's uploads folder, on the same
+     * file-system as the bucket, commit renames the staged file into place
+     *
+     * @param path the path and filename the file is expected to be committed to
+     * @return a writer that must be committed or aborted
+     * @throws StorageException
+     */
+    @Override
+    public TreeFileWriter openFileWriter(Path path) throws StorageException {
+        if(isNull(path)) {
+            throw new IllegalArgumentException("path is a required argument and cannot be null.");
+        }
+        return new SystemFileWriter(this);
     }
 
     /**
@@ -1092,7 +1414,7 @@ public class SystemStorageProvider implements StorageProvider {
         Path fullPath = _prependRoot(path);
 
         try {
-            in = Files.newInputStream(fullPath, StandardOpenOption.READ);
+            in = Files.newInputStream(SystemPathIO.contentOf(fullPath), StandardOpenOption.READ);
             if(isNull(in)) {
                 throw new StorageException("unable to open path: " + path + " for reading.");
             }
@@ -1103,6 +1425,54 @@ public class SystemStorageProvider implements StorageProvider {
         return in;
     }
 
+    /**
+     * Opens an existing file for reading length bytes starting at offset, the file channel is
+     * positioned at offset so nothing before it is read
+     *
+     * @param path the path to the file to read
+     * @param offset zero based position of the first byte to read
+     * @param length number of bytes to read
+     * @return a valid InputStream positioned at offset that ends after at most length bytes
+     * @throws StorageException
+     */
+    @Override
+    public InputStream read(Path path, long offset, long length) throws StorageException {
+
+        Path fullPath = SystemPathIO.contentOf(_prependRoot(path));
+        if(!Files.isRegularFile(fullPath)) {
+            throw new NoTreePathException("file path: " + path + " does not exist.");
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(fullPath, StandardOpenOption.READ);
+            channel.position(offset);
+            return new BoundedInputStream(Channels.newInputStream(channel), length);
+        } catch(IOException ex) {
+            closeQuietly(channel);
+            throw new StorageException(ex);
+        }
+    }
+
+    /**
+     * Returns the managed file itself, content is stored as-is under the bucket so it can be sent
+     * straight from disk
+     *
+     * @param path the path to the file
+     * @return the managed file
+     * @throws StorageException
+     */
+    @Override
+    public File localFile(Path path) throws StorageException {
+
+        Path fullPath = _prependRoot(path);
+        if(!_isManagedFile(fullPath)) {
+            throw new NoTreePathException("file path: " + path + " does not exist.");
+        }
+
+        return SystemPathIO.contentOf(fullPath).toFile();
+    }
+
     /**
      * Returns application specific metadata for a given file or folder
      *
@@ -1153,7 +1523,7 @@ public class SystemStorageProvider implements StorageProvider {
      */
     @Override
     public TreePath findFirst(Path path, String glob) throws StorageException {
-        return null;
+        return findFirst(path, glob, -1);
     }
 
     /**
@@ -1178,7 +1548,16 @@ public class SystemStorageProvider implements StorageProvider {
      */
     @Override
     public TreePath findFirst(Path path, String glob, int maxLevels) throws StorageException {
-        return null;
+        final TreePath[] first = new TreePath[1];
+        find(path, TreeQuery.newQuery().withGlob(glob).withMaxLevels(maxLevels).withLimit(1),
+            new TreeMatchHandler() {
+                @Override
+                public boolean handle(TreePath match) {
+                    first[0] = match;
+                    return false;
+                }
+            });
+        return first[0];
     }
 
     /**
@@ -1202,7 +1581,7 @@ public class SystemStorageProvider implements StorageProvider {
      */
     @Override
     public List<TreePath> find(Path path, String glob) throws StorageException {
-        return null;
+        return find(path, glob, -1);
     }
 
     /**
@@ -1227,7 +1606,79 @@ public class SystemStorageProvider implements StorageProvider {
      */
     @Override
     public List<TreePath> find(Path path, String glob, int maxLevels) throws StorageException {
-        return null;
+        final List<TreePath> matches = new ArrayList<TreePath>();
+        find(path, TreeQuery.newQuery().withGlob(glob).withMaxLevels(maxLevels),
+            new TreeMatchHandler() {
+                @Override
+                public boolean handle(TreePath match) {
+                    matches.add(match);
+                    return true;
+                }
+            });
+        return matches.isEmpty() ? null : matches;
+    }
+
+    /**
+     * Searches below path with a fork/join task per folder on this provider's walk pool, so
+     * sub-folders are searched in parallel and a findFirst stops every task once it has a match.
+     *
+     * @param path the folder to start searching from
+     * @param query what to search for
+     * @param handler receives each match
+     * @throws StorageException
+     */
+    @Override
+    public void find(Path path, TreeQuery query, TreeMatchHandler handler) throws StorageException {
+        if(!exists(path)) {
+            throw new NoTreePathException(path);
+        }
+        Path fullPath = _prependRoot(path);
+        if(!Files.isDirectory(fullPath)) {
+            throw new NotATreeFolderException("path " + path.toString() + " is not a folder");
+        }
+
+        TreeSearch search = new TreeSearch(query, handler);
+        try {
+            _walkers().invoke(new SystemFindOp(search, fullPath, 1));
+        } catch(RuntimeException ex) {
+            throw new StorageException("exception finding in path: " + path, ex);
+        }
+    }
+
+    /**
+     * Release the bucket's metadata store if this provider opened one, the store is shared per
+     * bucket so close should only be called by whoever owns the provider for the bucket
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            if(!isNull(async)) {
+                ((ExecutorService)async.executor()).shutdownNow();
+                async = null;
+            }
+            if(!isNull(walkers)) {
+                walkers.shutdownNow();
+                walkers = null;
+            }
+        }
+        SystemPathIO.removeRoot(_root());
+        SystemPathIO.removeRoot(_trashRoot());
+        SystemObjectLayout objectLayout = _layout();
+        if(!isNull(objectLayout)) {
+            _layout(null);
+            // other providers on the bucket share the layout
+            if(objectLayout.close()) {
+                SystemPathIO.detach(objectLayout);
+            }
+        }
+        SystemMetadataStore store = _metadataStore();
+        if(isNull(store)) {
+            return;
+        }
+        _metadataStore(null);
+        // other providers on the bucket share the store, it's detached by its last close
+        store.close();
     }
 
     //
@@ -1238,6 +1689,81 @@ public class SystemStorageProvider implements StorageProvider {
     // * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
     //
 
+    /**
+     * Fork/join pool for walking folders in parallel, its threads are daemons
+     */
+    synchronized ForkJoinPool _walkers() {
+        if(isNull(walkers)) {
+            walkers = new ForkJoinPool(SystemConfig.walkThreads());
+        }
+        return walkers;
+    }
+
+    /**
+     * Relocates on the walk pool with intent records in the bucket's intent folder
+     */
+    synchronized SystemRelocateOp _relocator() {
+        if(isNull(relocator)) {
+            relocator = new SystemRelocateOp(_walkers(), Paths.get(SystemConfig.intentDir(), bucket));
+        }
+        return relocator;
+    }
+
+    /**
+     * Full path of the bucket's trash
+     */
+    Path _trashRoot() {
+        return Paths.get(SystemConfig.trashDir(), bucket);
+    }
+
+    /**
+     * Add the files of a sharded folder's manifest to a page of listFolder, the manifest is
+     * sorted so once a file can't make the page none of the ones after it can
+     * @return true if there are files past the page
+     */
+    private static boolean _listManifest(SystemObjectLayout layout, Path folder, String after,
+        int limit, PriorityQueue<String> page) throws IOException {
+        int count = limit > 0 ? limit + 1 : 0;
+        boolean more = false;
+        Map<String, String> files;
+        do {
+            files = layout.entries(folder, after, count);
+            for(Map.Entry<String, String> file : files.entrySet()) {
+                after = file.getKey();
+                boolean fits = _fits(page, after, limit);
+                // named but its content is gone, same as not being there
+                if(!Files.exists(layout.object(file.getValue()))) {
+                    continue;
+                }
+                if(!fits) {
+                    return true;
+                }
+                more = _add(page, after, limit) || more;
+            }
+        } while(count > 0 && files.size() == count);
+        return more;
+    }
+
+    /**
+     * Test if a name would make a page of listFolder that's holding limit names at most
+     */
+    private static boolean _fits(PriorityQueue<String> page, String name, int limit) {
+        return limit <= 0 || page.size() < limit || name.compareTo(page.peek()) < 0;
+    }
+
+    /**
+     * Add a name to a page of listFolder, dropping the largest name if it's over limit
+     * @return true if a name was dropped
+     */
+    private static boolean _add(PriorityQueue<String> page, String name, int limit) {
+        page.add(name);
+        if(limit > 0 && page.size() > limit) {
+            page.poll();
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Root path as a String
      * @return
@@ -1263,11 +1789,100 @@ public class SystemStorageProvider implements StorageProvider {
         return this.bucket;
     }
 
+    SystemMetadataStore _metadataStore() {
+        return this.metadataStore;
+    }
+
+    void _metadataStore(SystemMetadataStore metadataStore) {
+        this.metadataStore = metadataStore;
+    }
+
+    SystemObjectLayout _layout() {
+        return this.layout;
+    }
+
+    void _layout(SystemObjectLayout layout) {
+        this.layout = layout;
+    }
+
     void _bucket(String bucket) {
         this.bucket = bucket;
         this.root = Paths.get(_mount(), _bucket());
     }
 
+    /**
+     * Folder the bucket's snapshots are kept in, under the mount so content can be hard-linked
+     * @return
+     */
+    Path _snapshotsRoot() {
+        return Paths.get(_mount(), "snapshots", _bucket());
+    }
+
+    /**
+     * Folder a named snapshot is kept in
+     * @param name
+     * @return
+     */
+    private Path _snapshotRoot(String name) {
+        if(isNullOrEmpty(name) || name.startsWith(".") || name.contains("/") || name.contains("\\")) {
+            throw new IllegalArgumentException("snapshot name must be a single path segment: " + name);
+        }
+        return _snapshotsRoot().resolve(name);
+    }
+
+    /**
+     * Paths read from a snapshot are relative to the snapshot
+     */
+    private <T extends SystemPath> T _inSnapshot(T systemPath, Path snapshotRoot, Path fullPath) {
+        systemPath.root(snapshotRoot);
+        systemPath.fullPath(fullPath);
+        return systemPath;
+    }
+
+    /**
+     * Folder that SystemFileWriters stage content in, kept under the mount so a commit is a
+     * rename within one file-system
+     * @return
+     */
+    Path _uploadRoot() {
+        return Paths.get(_mount(), "uploads", _bucket());
+    }
+
+    /**
+     * Move a file staged by a SystemFileWriter to path and create its metadata
+     * @param staged full path of the staged content
+     * @param path relative path and filename of the new file
+     * @param description
+     * @param metadata
+     * @return the new file
+     * @throws StorageException
+     */
+    SystemFile _commitFile(Path staged, Path path, String description, Map<String, Object> metadata)
+        throws StorageException {
+
+        if(exists(path)) {
+            throw new TreeFileExistsException("file: " + path.toString() + " exists", path);
+        }
+
+        Path fullPath = _prependRoot(path);
+        _createDirectoriesForFile(path);
+        try {
+            Path content = _newContent(fullPath);
+            try {
+                Files.move(staged, content, StandardCopyOption.ATOMIC_MOVE);
+            } catch(AtomicMoveNotSupportedException ex) {
+                // mount spans file-systems, a plain move still never exposes a partial file name
+                Files.move(staged, content);
+            }
+            _placeContent(fullPath, content);
+        } catch(IOException ex) {
+            throw new StorageException("exception creating file: "
+                + fullPath.getFileName().toString(), ex);
+        }
+
+        return _createFileMetadata(fullPath, description, metadata);
+    }
+
     /**
      * Prepend root on relative path
      * @param relative
@@ -1295,7 +1910,7 @@ public class SystemStorageProvider implements StorageProvider {
      */
     private boolean _existsInTrash(Path relative) {
         Path trashPath = _prependTrashRoot(relative);
-        return Files.exists(trashPath);
+        return Files.exists(SystemPathIO.contentOf(trashPath));
     }
 
     /**
@@ -1377,7 +1992,8 @@ public class SystemStorageProvider implements StorageProvider {
         maker.withFullPath(fullPath)
             .withName(fullPath.getFileName().toString());
         // like file attributes
-        BasicFileAttributes attributes = Files.readAttributes(fullPath, BasicFileAttributes.class);
+        BasicFileAttributes attributes = Files.readAttributes(SystemPathIO.contentOf(fullPath),
+            BasicFileAttributes.class);
         if(!isNull(attributes)) {
             maker.withCreationTime(new Date(attributes.creationTime().toMillis()))
                 .withLastAccessedTime(new Date(attributes.lastAccessTime().toMillis()))
@@ -1386,25 +2002,54 @@ public class SystemStorageProvider implements StorageProvider {
         }
     }
 
+    /**
+     * Create and save the metadata for a file whose content is already in place
+     * @param fullPath
+     * @param description
+     * @param metadata
+     * @return
+     * @throws StorageException
+     */
+    private SystemFile _createFileMetadata(Path fullPath, String description,
+        Map<String, Object> metadata) throws StorageException {
+
+        SystemFile systemFile = null;
+        try {
+            SystemFileMaker maker = SystemFileMaker.newFile().withRoot(root);
+            _loadFileAttributes(fullPath, maker);
+            if(!isNullOrEmpty(description)) {
+                maker.withDescription(description);
+            }
+            if(!isNullOrEmpty(metadata)) {
+                maker.withMetadata(metadata);
+            }
+            systemFile = maker.make();
+            SystemPathIO.createMetadata(systemFile);
+        } catch(Exception ex) {
+            throw new StorageException("exception creating metadata for file: "
+                + fullPath.getFileName().toString(), ex);
+        }
+
+        return systemFile;
+    }
+
     /**
      * Load valid SystemPath instances that are inside the given SystemFolder
-     * @param ds
+     * @param entries the scanned items of the folder
+     * @param filter filter items must pass, null for all items
      * @param systemFolder
-     * @throws StorageException
      * @throws IOException
      */
-    private void _loadFolderItems(DirectoryStream<Path> ds, SystemFolder systemFolder)
-        throws StorageException, IOException {
+    private void _loadFolderItems(List<SystemDirectoryScanner.Entry> entries,
+        DirectoryStream.Filter<Path> filter, SystemFolder systemFolder) throws IOException {
         List<TreePath> items = new ArrayList<>();
         // set the sub-paths in this folder (i.e. 1 level deep only)
-        Iterator<Path> it = ds.iterator();
-        while(it.hasNext()) {
-            Path path = it.next();
-            // verify path is known by SystemStorageProvider
-            if(!exists(path)) {
-                break;
+        for(SystemDirectoryScanner.Entry entry : entries) {
+            if(!isNull(filter) && !filter.accept(entry.path())) {
+                continue;
             }
-            SystemPath systemPath = SystemPathIO.readSystemPath(path);
+            // null when the item isn't known by SystemStorageProvider
+            SystemPath systemPath = entry.read();
             if(systemPath != null) {
                 items.add(systemPath);
             }
@@ -1414,6 +2059,70 @@ public class SystemStorageProvider implements StorageProvider {
         }
     }
 
+    /**
+     * Move by renaming source into place when nothing is in the way.  Returns false to leave the
+     * move to copy and trash when the target already exists (copy's replace and collision rules
+     * apply then) or the move isn't a plain relocation.
+     */
+    private boolean _tryRelocate(Path source, Path target, CopyOption... options)
+        throws StorageException {
+
+        if(!exists(source)) {
+            throw new NoTreePathException("source " + source + " does not exist");
+        }
+
+        Path sourcePath = _prependRoot(source);
+        Path targetPath = _prependRoot(target);
+        try {
+            if(Files.isDirectory(sourcePath)) {
+                if(!_hasCopyRecursive(options) || !_isManagedFolder(targetPath)
+                    || targetPath.startsWith(sourcePath)) {
+                    return false;
+                }
+                if(_hasCopyIntoOption(options)) {
+                    Path moved = targetPath.resolve(sourcePath.getFileName().toString());
+                    if(Files.exists(moved)) {
+                        return false;
+                    }
+                    _relocator().relocate(sourcePath, moved);
+                    return true;
+                }
+
+                // the items of source go into target and the emptied source goes to the trash
+                List<Path> items = new ArrayList<>();
+                for(SystemDirectoryScanner.Entry entry : SystemDirectoryScanner.scan(sourcePath)) {
+                    if(Files.exists(SystemPathIO.contentOf(targetPath.resolve(entry.name())))) {
+                        return false;
+                    }
+                    if(entry.isManaged()) {
+                        items.add(entry.path());
+                    }
+                }
+                for(Path item : items) {
+                    _relocator().relocate(item, targetPath.resolve(item.getFileName().toString()));
+                }
+                trash(source, true);
+                return true;
+            }
+
+            Path moved;
+            if(_isManagedFolder(targetPath)) {
+                moved = targetPath.resolve(sourcePath.getFileName().toString());
+            } else if(_isManagedFolder(targetPath.getParent())) {
+                moved = targetPath;
+            } else {
+                return false;
+            }
+            if(Files.exists(SystemPathIO.contentOf(moved))) {
+                return false;
+            }
+            _relocator().relocate(sourcePath, moved);
+            return true;
+        } catch(IOException ex) {
+            throw new StorageException("exception moving: " + source + " to: " + target, ex);
+        }
+    }
+
     /**
      * Tests if a full path contains any files or folders
      * @param fullPath
@@ -1467,6 +2176,10 @@ public class SystemStorageProvider implements StorageProvider {
     }
 
     boolean _isManagedFolder(Path fullPath) {
+        SystemMetadataStore store = SystemPathIO.storeFor(fullPath);
+        if(!isNull(store)) {
+            return store.kind(fullPath) == SystemMetadataStore.KIND_FOLDER;
+        }
         SystemFolder folder = null;
         try {
             folder = SystemPathIO.readSystemFolder(fullPath);
@@ -1480,6 +2193,10 @@ public class SystemStorageProvider implements StorageProvider {
     }
 
     boolean _isManagedFile(Path fullPath) {
+        SystemMetadataStore store = SystemPathIO.storeFor(fullPath);
+        if(!isNull(store)) {
+            return store.kind(fullPath) == SystemMetadataStore.KIND_FILE;
+        }
         SystemFile file = null;
         try {
             file = SystemPathIO.readSystemFile(fullPath);
@@ -1492,6 +2209,62 @@ public class SystemStorageProvider implements StorageProvider {
         return true;
     }
 
+    /**
+     * Where new content for a file is written, a new object when the file is kept in a sharded
+     * layout otherwise the file itself
+     * @param fullPath full path of the file
+     * @return
+     * @throws IOException
+     */
+    private Path _newContent(Path fullPath) throws IOException {
+        SystemObjectLayout objectLayout = SystemPathIO.layoutFor(fullPath);
+        if(isNull(objectLayout)) {
+            return fullPath;
+        }
+        Path object = objectLayout.object(SystemObjectLayout.newId());
+        Files.createDirectories(object.getParent());
+        return object;
+    }
+
+    /**
+     * Name content written to a _newContent object in the file's folder manifest, the object the
+     * file had before is deleted
+     * @param fullPath full path of the file
+     * @param content what _newContent returned
+     * @throws IOException
+     */
+    private void _placeContent(Path fullPath, Path content) throws IOException {
+        if(content.equals(fullPath)) {
+            return;
+        }
+        SystemObjectLayout objectLayout = SystemPathIO.layoutFor(fullPath);
+        String replaced = objectLayout.bind(fullPath, content.getFileName().toString());
+        if(!isNull(replaced)) {
+            objectLayout.release(replaced);
+        }
+    }
+
+    /**
+     * Copy, or link, the content of a file to another file.  A copy into a sharded layout is
+     * always a link to a new object since objects are never written in place.
+     * @param sourcePath full path of the file
+     * @param targetPath full path of the copy, replaced if it exists
+     * @param link link rather than copy
+     * @throws IOException
+     */
+    private void _copyContent(Path sourcePath, Path targetPath, boolean link) throws IOException {
+        Path source = SystemPathIO.contentOf(sourcePath);
+        Path target = _newContent(targetPath);
+        if(link || !target.equals(targetPath)) {
+            SystemLinkCopyOp.link(source, target);
+        } else {
+            // replacing unlinks the target so content it shares isn't touched
+            _breakLink(target);
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        _placeContent(targetPath, target);
+    }
+
     /**
      * Check if path ends in the wildcard '*'
      * @param path
@@ -1516,6 +2289,62 @@ public class SystemStorageProvider implements StorageProvider {
         return false;
     }
 
+    /**
+     * Check if LINK is set in the options
+     * @param options
+     * @return
+     */
+    private boolean _hasCopyLinkOption(CopyOption[] options) {
+        for(CopyOption option : options) {
+            if(option == TreeCopyOption.LINK) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy-on-write for content shared by a LINK copy or a snapshot.  Content is only ever
+     * written in place when it's about to be replaced, so a file with more than one link is
+     * unlinked first and the write that follows creates a new file, the other links keep the
+     * old content.
+     * @param fullPath full path of a file that's about to be overwritten
+     * @throws IOException
+     */
+    private void _breakLink(Path fullPath) throws IOException {
+        if(!Files.isRegularFile(fullPath)) {
+            return;
+        }
+        int links = 1;
+        try {
+            links = (Integer)Files.getAttribute(fullPath, "unix:nlink");
+        } catch(UnsupportedOperationException | IllegalArgumentException ex) {
+            // no unix attributes so no hard links made by this provider either
+        }
+        if(links > 1) {
+            Files.delete(fullPath);
+        }
+    }
+
+    /**
+     * Break the links of every file a folder copy is about to overwrite in target
+     * @param sourcePath full path of the folder being copied
+     * @param targetPath full path of the folder it's copied to
+     * @throws IOException
+     */
+    private void _breakLinks(final Path sourcePath, final Path targetPath) throws IOException {
+        if(!Files.isDirectory(targetPath)) {
+            return;
+        }
+        Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                _breakLink(targetPath.resolve(sourcePath.relativize(file).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
     /**
      * Check if COPY_INTO is set in the options
      * @param options
@@ -1552,6 +2381,23 @@ public class SystemStorageProvider implements StorageProvider {
      * @param targetPath
      */
     private void _indexPaths(Path sourcePath, Path targetPath, CopyOption... options) throws IOException {
+        if(!isNull(SystemPathIO.layoutFor(targetPath))) {
+            // the files aren't in the target folder, their paths are taken from their manifest
+            return;
+        }
+        if(SystemPathIO.isStoreManaged(targetPath)) {
+            // no sidecars were copied along with the content so copy the store records instead,
+            // file metadata has already been copied by copyFileMetadata
+            if(Files.isDirectory(sourcePath)) {
+                if(_hasCopyIntoOption(options)) {
+                    SystemPathIO.copyMetadata(sourcePath,
+                        targetPath.resolve(sourcePath.getFileName().toString()), true);
+                } else {
+                    SystemPathIO.copyMetadata(sourcePath, targetPath, false);
+                }
+            }
+            return;
+        }
         SystemIndexOp indexOp = new SystemIndexOp(this, Files.isRegularFile(sourcePath));
         if(_hasCopyIntoOption(options)) {
             Files.walkFileTree(
@@ -1592,10 +2438,19 @@ public class SystemStorageProvider implements StorageProvider {
                     }
                 }
             }
-            FileUtils.copyFileToDirectory(sourcePath.toFile(), targetPath.toFile());
-            FileUtils.copyFileToDirectory(
-                    new File(sourcePath.toString() + FILE_METADATA_SUFFIX),
-                    targetPath.toFile());
+            Path copy = targetPath.resolve(sourcePath.getFileName().toString());
+            if(!SystemPathIO.contentOf(copy).equals(copy) && !_hasReplaceOption(options)) {
+                // in the target's manifest
+                throw new TreePathExistsException("target file exist", _removeRoot(targetPath));
+            }
+            if(_hasCopyLinkOption(options) || !isNull(SystemPathIO.layoutFor(copy))) {
+                _copyContent(sourcePath, copy, true);
+            } else {
+                _breakLink(copy);
+                FileUtils.copyFileToDirectory(sourcePath.toFile(), targetPath.toFile());
+            }
+            SystemPathIO.copyFileMetadata(sourcePath,
+                    targetPath.resolve(sourcePath.getFileName().toString()));
             _indexPaths(sourcePath, targetPath, options);
             success = true;
         } else {
@@ -1649,12 +2504,9 @@ public class SystemStorageProvider implements StorageProvider {
 //                }
 //            }
 //        }
-        // perform file copy
-        Files.copy(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
-        Files.copy(
-            Paths.get(sourcePath.toString() + FILE_METADATA_SUFFIX),
-            Paths.get(targetPath.toString() + FILE_METADATA_SUFFIX),
-                StandardCopyOption.REPLACE_EXISTING);
+        // perform file copy, replacing unlinks the target so content it shares isn't touched
+        _copyContent(sourcePath, targetPath, _hasCopyLinkOption(options));
+        SystemPathIO.copyFileMetadata(sourcePath, targetPath);
         _indexPaths(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
 
         return true;
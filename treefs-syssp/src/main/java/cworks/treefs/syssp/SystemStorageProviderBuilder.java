@@ -1,9 +1,12 @@
 package cworks.treefs.syssp;
 
+import cworks.treefs.spi.StorageException;
+
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 
 import static cworks.treefs.common.ObjectUtils.isNullOrEmpty;
 
@@ -13,6 +16,10 @@ public class SystemStorageProviderBuilder {
 
     private String bucket = null;
 
+    private boolean metadataStore = SystemConfig.metadataStore();
+
+    private boolean shardedLayout = SystemConfig.shardedLayout();
+
     private SystemStorageProvider provider = null;
 
     public SystemStorageProviderBuilder withMount(String mount) {
@@ -25,7 +32,35 @@ public class SystemStorageProviderBuilder {
         return this;
     }
 
-    public SystemStorageProvider create() {
+    /**
+     * Keep metadata in the embedded metadata store instead of .d/.f sidecar files, existing
+     * sidecar trees need to be migrated with SystemMetadataMigrator first
+     * @param metadataStore
+     * @return
+     */
+    public SystemStorageProviderBuilder withMetadataStore(boolean metadataStore) {
+        this.metadataStore = metadataStore;
+        return this;
+    }
+
+    /**
+     * Keep files in a sharded object folder and only name to id manifests in their folders, for
+     * buckets with folders of millions of files.  Existing buckets need to be migrated with
+     * SystemObjectMigrator first.
+     * @param shardedLayout
+     * @return
+     */
+    public SystemStorageProviderBuilder withShardedLayout(boolean shardedLayout) {
+        this.shardedLayout = shardedLayout;
+        return this;
+    }
+
+    /**
+     * Create the provider
+     * @return
+     * @throws StorageException if the metadata store was asked for and can't be opened
+     */
+    public SystemStorageProvider create() throws StorageException {
 
         provider = new SystemStorageProvider();
 
@@ -44,6 +79,16 @@ public class SystemStorageProviderBuilder {
         if(validMount()) {
             // if the bucket does not exist within the mount then we go ahead and create it
             checkBucket();
+            if(metadataStore) {
+                openMetadataStore();
+            }
+            if(shardedLayout) {
+                openLayout();
+            }
+            SystemPathIO.addRoot(provider._root());
+            SystemPathIO.addRoot(provider._trashRoot());
+            // finish any move a crash interrupted
+            provider._relocator().resume();
         }
 
         return provider;
@@ -80,4 +125,26 @@ public class SystemStorageProviderBuilder {
 
     }
 
+    private void openLayout() {
+
+        SystemObjectLayout layout = SystemObjectLayout.open(
+            SystemObjectLayout.objectFolder(provider._mount(), provider._bucket()),
+            Arrays.asList(provider._root(), provider._trashRoot(), provider._snapshotsRoot()));
+        SystemPathIO.attach(layout);
+        provider._layout(layout);
+    }
+
+    private void openMetadataStore() throws StorageException {
+
+        Path log = SystemMetadataStore.logFile(provider._mount(), provider._bucket());
+        try {
+            SystemMetadataStore store = SystemMetadataStore.open(provider._root(), log);
+            SystemPathIO.attach(store);
+            provider._metadataStore(store);
+        } catch (IOException ex) {
+            // running on sidecars would leave metadata behind the store's back
+            throw new StorageException("unable to open metadata store: " + log, ex);
+        }
+    }
+
 }
@@ -0,0 +1,69 @@
+package cworks.treefs.syssp;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A SystemStorageProvider on a bucket of its own temporary mount, the mount is deleted after
+ * each test
+ */
+public abstract class BaseProviderTest {
+
+    private final String bucket;
+
+    protected Path mount;
+
+    protected SystemStorageProvider provider;
+
+    protected BaseProviderTest(String bucket) {
+        this.bucket = bucket;
+    }
+
+    @Before
+    public void setUpProvider() throws Exception {
+        mount = Files.createTempDirectory("treefs-" + bucket);
+        provider = newProvider().create();
+    }
+
+    @After
+    public void tearDownProvider() throws Exception {
+        if(provider != null) {
+            provider.close();
+        }
+        FileUtils.deleteDirectory(mount.toFile());
+    }
+
+    /**
+     * Builder of another provider on the test's mount and bucket
+     */
+    protected SystemStorageProviderBuilder newProvider() {
+        return SystemStorageProvider.newProvider()
+            .withMount(mount.toString())
+            .withBucket(bucket);
+    }
+
+    /**
+     * Full path of a path in the test's bucket
+     */
+    protected Path fullPath(String path) {
+        return mount.resolve(bucket).resolve(path);
+    }
+
+    protected void _file(String path, String content) throws Exception {
+        provider.createFile(Paths.get(path), new ByteArrayInputStream(content.getBytes("UTF-8")));
+    }
+
+    protected String _read(String path) throws Exception {
+        try(InputStream input = provider.read(Paths.get(path))) {
+            return IOUtils.toString(input, "UTF-8");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.StorageException;
+import cworks.treefs.spi.TreePath;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Providers created for the same bucket share its layout, metadata store and relocation
+ * intents, closing one of them mustn't take those away from the others.
+ */
+public class SharedBucketTest {
+
+    private Path mount;
+
+    @Before
+    public void setUp() throws Exception {
+        mount = Files.createTempDirectory("treefs-shared");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(mount.toFile());
+    }
+
+    @Test
+    public void closingOneProviderKeepsTheLayout() throws Exception {
+        SystemStorageProvider first = _create(false, true);
+        SystemStorageProvider second = _create(false, true);
+        try {
+            first.createFolder(Paths.get("folder"));
+            first.createFile(Paths.get("folder/file.txt"),
+                new ByteArrayInputStream("content".getBytes("UTF-8")));
+            first.close();
+
+            Assert.assertEquals("content", _read(second, "folder/file.txt"));
+            second.createFile(Paths.get("folder/other.txt"),
+                new ByteArrayInputStream("other".getBytes("UTF-8")));
+            // still in the object folder, not next to the manifest
+            Assert.assertFalse(Files.exists(mount.resolve("shared/folder/other.txt")));
+            Assert.assertEquals("other", _read(second, "folder/other.txt"));
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test
+    public void closingOneProviderKeepsTheMetadataStore() throws Exception {
+        SystemStorageProvider first = _create(true, false);
+        SystemStorageProvider second = _create(true, false);
+        try {
+            first.close();
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put("owner", "second");
+            second.createFolder(Paths.get("folder"));
+            second.createFile(Paths.get("folder/file.txt"),
+                new ByteArrayInputStream("content".getBytes("UTF-8")), metadata);
+            // still in the store, not in a sidecar
+            Assert.assertFalse(Files.exists(mount.resolve("shared/folder/file.txt.f")));
+            TreePath file = second.openFolder(Paths.get("folder"), 1).items().get(0);
+            Assert.assertEquals("second", file.metadata().get("owner"));
+        } finally {
+            second.close();
+        }
+    }
+
+    private SystemStorageProvider _create(boolean metadataStore, boolean shardedLayout)
+        throws StorageException {
+        return SystemStorageProvider.newProvider()
+            .withMount(mount.toString())
+            .withBucket("shared")
+            .withMetadataStore(metadataStore)
+            .withShardedLayout(shardedLayout)
+            .create();
+    }
+
+    private String _read(SystemStorageProvider provider, String path) throws Exception {
+        try(InputStream input = provider.read(Paths.get(path))) {
+            return IOUtils.toString(input, "UTF-8");
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.AsyncStorageProvider;
+import cworks.treefs.spi.NoTreePathException;
+import cworks.treefs.spi.TreeFile;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class SystemAsyncStorageProviderTest extends BaseProviderTest {
+
+    private AsyncStorageProvider async;
+
+    /**
+     * Holds up the one I/O thread until it's counted down
+     */
+    private CountDownLatch release;
+
+    public SystemAsyncStorageProviderTest() {
+        super("async");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // one I/O thread so anything started while it's busy waits for it
+        System.setProperty("treefs-syssp.ioThreads", "1");
+        try {
+            async = provider.async();
+        } finally {
+            System.clearProperty("treefs-syssp.ioThreads");
+        }
+        release = new CountDownLatch(1);
+        _file("file.txt", "content");
+    }
+
+    @Test
+    public void createFileCompletesOnTheIoPool() throws Exception {
+        CompletableFuture<String> thread = async.createFile(Paths.get("created.txt"),
+            new HeldStream("created"), "held", null).thenApply(file -> _thread());
+        Assert.assertFalse(thread.isDone());
+
+        release.countDown();
+        Assert.assertTrue(thread.get(5, TimeUnit.SECONDS).startsWith("treefs-syssp-io-"));
+        Assert.assertEquals("created", _read("created.txt"));
+    }
+
+    @Test
+    public void readCompletesOnTheIoPool() throws Exception {
+        CompletableFuture<TreeFile> held = async.createFile(Paths.get("held.txt"),
+            new HeldStream("held"), "held", null);
+        // queued behind the held createFile
+        CompletableFuture<String> read = async.read(Paths.get("file.txt"), 2L, 3)
+            .thenApply(buffer -> _thread() + " " + _string(buffer));
+        Assert.assertFalse(read.isDone());
+
+        release.countDown();
+        String result = read.get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(result, result.startsWith("treefs-syssp-io-"));
+        Assert.assertTrue(result, result.endsWith(" nte"));
+        held.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void readingAMissingFileFails() throws Exception {
+        try {
+            async.read(Paths.get("missing.txt"), 0L, 3).get(5, TimeUnit.SECONDS);
+            Assert.fail("read a missing file");
+        } catch(ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof NoTreePathException);
+        }
+    }
+
+    private static String _thread() {
+        return Thread.currentThread().getName();
+    }
+
+    private static String _string(ByteBuffer buffer) {
+        return new String(buffer.array(), buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Content that can't be read until the test releases it
+     */
+    private final class HeldStream extends InputStream {
+
+        private final byte[] content;
+
+        private int position = 0;
+
+        HeldStream(String content) {
+            this.content = content.getBytes();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0];
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                release.await();
+            } catch(InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            if(position >= content.length) {
+                return -1;
+            }
+            int n = Math.min(length, content.length - position);
+            System.arraycopy(content, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+    }
+}
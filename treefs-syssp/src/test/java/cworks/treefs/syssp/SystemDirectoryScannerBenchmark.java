@@ -0,0 +1,107 @@
+package cworks.treefs.syssp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists the same folder with the per-entry checks a listing used to make and with
+ * SystemDirectoryScanner, and prints the wall time per entry of each.  It only measures time,
+ * run it under strace -c to compare the filesystem calls the two make.
+ *
+ * Usage: SystemDirectoryScannerBenchmark [files] [old|scan|both]
+ */
+public class SystemDirectoryScannerBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        String which = args.length > 1 ? args[1] : "both";
+
+        Path mount = Files.createTempDirectory("treefs-scan");
+        SystemStorageProvider provider = SystemStorageProvider.newProvider()
+            .withMount(mount.toString()).withBucket("bench").create();
+        try {
+            Path folder = Paths.get("scan");
+            provider.createFolder(folder);
+            for(int i = 0; i < files; i++) {
+                provider.createFile(folder.resolve("file" + i + ".txt"),
+                    new ByteArrayInputStream(("content of " + i).getBytes()));
+                if(i % 10 == 0) {
+                    provider.createFolder(folder.resolve("folder" + i));
+                }
+            }
+            Path fullPath = mount.resolve("bench").resolve("scan");
+            int items = files + (files + 9) / 10;
+
+            for(int round = 0; round < ROUNDS; round++) {
+                if(!"scan".equals(which)) {
+                    _report("old ", items, _old(fullPath), round);
+                }
+                if(!"old".equals(which)) {
+                    _report("scan", items, _scan(fullPath), round);
+                }
+            }
+        } finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * What listing a folder cost before the scanner, the SystemPathFilter's exists, the exists
+     * made again while loading and readSystemPath
+     */
+    private static long _old(Path fullPath) throws IOException {
+        long start = System.nanoTime();
+        List<SystemPath> items = new ArrayList<SystemPath>();
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(fullPath, new DirectoryStream.Filter<Path>() {
+            @Override
+            public boolean accept(Path entry) {
+                return _exists(entry);
+            }
+        })) {
+            for(Path entry : ds) {
+                if(!_exists(entry)) {
+                    continue;
+                }
+                items.add(SystemPathIO.readSystemPath(entry));
+            }
+        }
+        return _check(start, items.size());
+    }
+
+    private static long _scan(Path fullPath) throws IOException {
+        long start = System.nanoTime();
+        List<SystemPath> items = new ArrayList<SystemPath>();
+        for(SystemDirectoryScanner.Entry entry : SystemDirectoryScanner.scan(fullPath)) {
+            SystemPath item = entry.read();
+            if(item != null) {
+                items.add(item);
+            }
+        }
+        return _check(start, items.size());
+    }
+
+    private static boolean _exists(Path entry) {
+        return Files.exists(entry) && SystemPathIO.hasMetadata(entry);
+    }
+
+    private static long _check(long start, int loaded) {
+        long elapsed = System.nanoTime() - start;
+        if(loaded == 0) {
+            throw new IllegalStateException("nothing was listed");
+        }
+        return elapsed;
+    }
+
+    private static void _report(String name, int items, long nanos, int round) {
+        System.out.println(String.format("%s round %d: %d items in %.1f ms, %.0f ns/item",
+            name, round, items, nanos / 1e6, (double)nanos / items));
+    }
+}
@@ -0,0 +1,79 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.TreeMatchHandler;
+import cworks.treefs.spi.TreePath;
+import cworks.treefs.spi.TreeQuery;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class SystemFindTest extends BaseProviderTest {
+
+    public SystemFindTest() {
+        super("find");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // 3 folders of 50 files, one level deeper a folder of 50 more
+        for(int f = 0; f < 3; f++) {
+            provider.createFolder(Paths.get("top/folder" + f + "/deeper"));
+            for(int i = 0; i < 50; i++) {
+                _file("top/folder" + f + "/file" + i + ".txt");
+                _file("top/folder" + f + "/deeper/file" + i + ".pdf");
+            }
+        }
+    }
+
+    @Test
+    public void findsEveryMatch() throws Exception {
+        List<String> names = _find(TreeQuery.newQuery().withGlob("*.txt").withLimit(1000), -1);
+        Assert.assertEquals(150, names.size());
+        Assert.assertEquals(150, new HashSet<>(names).size());
+    }
+
+    @Test
+    public void maxLevelsKeepsToTheTop() throws Exception {
+        List<String> names = _find(TreeQuery.newQuery().withGlob("*.pdf").withMaxLevels(2), -1);
+        Assert.assertEquals(0, names.size());
+        names = _find(TreeQuery.newQuery().withGlob("*.pdf").withMaxLevels(3), -1);
+        Assert.assertEquals(150, names.size());
+    }
+
+    @Test
+    public void stopsAtTheLimit() throws Exception {
+        List<String> names = _find(TreeQuery.newQuery().filesOnly().withLimit(25), -1);
+        Assert.assertEquals(25, names.size());
+    }
+
+    @Test
+    public void stopsWhenTheHandlerSaysSo() throws Exception {
+        List<String> names = _find(TreeQuery.newQuery().filesOnly().withLimit(1000), 10);
+        Assert.assertEquals(10, names.size());
+    }
+
+    private void _file(String path) throws Exception {
+        _file(path, "content");
+    }
+
+    /**
+     * Find under top, the handler gives up after stopAfter matches when it's positive
+     */
+    private List<String> _find(TreeQuery query, final int stopAfter) throws Exception {
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        provider.find(Paths.get("top"), query, new TreeMatchHandler() {
+            @Override
+            public boolean handle(TreePath match) {
+                names.add(match.path().toString());
+                return stopAfter < 0 || names.size() < stopAfter;
+            }
+        });
+        return names;
+    }
+}
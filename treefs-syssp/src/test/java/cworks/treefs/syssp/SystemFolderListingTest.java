@@ -0,0 +1,122 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.TreeListing;
+import cworks.treefs.spi.TreePath;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class SystemFolderListingTest extends BaseProviderTest {
+
+    public SystemFolderListingTest() {
+        super("listing");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        provider.createFolder(Paths.get("list"));
+        for(int i = 0; i < 25; i++) {
+            _file(String.format("list/file%02d.txt", i), "content");
+        }
+        for(int i = 0; i < 5; i++) {
+            provider.createFolder(Paths.get("list/folder" + i));
+        }
+        // directories the provider doesn't manage, sorted after everything it does
+        for(int i = 0; i < 5; i++) {
+            Files.createDirectories(fullPath("list/unmanaged" + i));
+        }
+    }
+
+    @Test
+    public void cursorPagesThroughTheFolder() throws Exception {
+        List<String> names = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            List<String> page = new ArrayList<>();
+            cursor = _page(cursor, 7, page);
+            Assert.assertTrue(page.size() <= 7);
+            names.addAll(page);
+            pages++;
+        } while(cursor != null);
+
+        Assert.assertEquals(5, pages);
+        Assert.assertEquals(30, names.size());
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        Assert.assertEquals(sorted, names);
+        Assert.assertEquals("file00.txt", names.get(0));
+        Assert.assertEquals("folder4", names.get(29));
+    }
+
+    @Test
+    public void unmanagedItemsDontMakeAnotherPage() throws Exception {
+        List<String> page = new ArrayList<>();
+        String cursor = _page(null, 30, page);
+        Assert.assertEquals(30, page.size());
+        Assert.assertNull(cursor);
+    }
+
+    @Test
+    public void noLimitListsEverything() throws Exception {
+        List<String> page = new ArrayList<>();
+        Assert.assertNull(_page(null, 0, page));
+        Assert.assertEquals(30, page.size());
+    }
+
+    @Test
+    public void shardedFolderPagesThroughItsManifest() throws Exception {
+        SystemStorageProvider sharded = newProvider()
+            .withBucket("sharded")
+            .withShardedLayout(true)
+            .create();
+        try {
+            sharded.createFolder(Paths.get("list"));
+            for(int i = 0; i < 12; i++) {
+                sharded.createFile(Paths.get(String.format("list/file%02d.txt", i)),
+                    new ByteArrayInputStream("content".getBytes("UTF-8")));
+            }
+            sharded.createFolder(Paths.get("list/folder"));
+
+            List<String> names = new ArrayList<>();
+            String cursor = null;
+            int pages = 0;
+            do {
+                try(TreeListing listing = sharded.listFolder(Paths.get("list"), cursor, 5)) {
+                    for(TreePath item : listing) {
+                        names.add(item.name());
+                    }
+                    cursor = listing.cursor();
+                }
+                pages++;
+            } while(cursor != null);
+
+            Assert.assertEquals(3, pages);
+            Assert.assertEquals(13, names.size());
+            Assert.assertEquals("file00.txt", names.get(0));
+            Assert.assertEquals("folder", names.get(12));
+        } finally {
+            sharded.close();
+        }
+    }
+
+    /**
+     * List one page into names
+     * @return the cursor of the next page
+     */
+    private String _page(String cursor, int limit, List<String> names) throws Exception {
+        try(TreeListing listing = provider.listFolder(Paths.get("list"), cursor, limit)) {
+            for(TreePath item : listing) {
+                names.add(item.name());
+            }
+            return listing.cursor();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.StorageException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SystemMetadataStoreTest {
+
+    private Path mount;
+
+    private Path root;
+
+    private Path log;
+
+    private SystemMetadataStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        mount = Files.createTempDirectory("treefs-store");
+        root = Files.createDirectories(mount.resolve("bucket"));
+        log = SystemMetadataStore.logFile(mount.toString(), "bucket");
+        store = SystemMetadataStore.open(root, log);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        FileUtils.deleteDirectory(mount.toFile());
+    }
+
+    @Test
+    public void putReadAndRemove() throws Exception {
+        store.put(root.resolve("folder"), SystemMetadataStore.KIND_FOLDER, "{\"folder\":1}");
+        store.put(root.resolve("folder/file.txt"), SystemMetadataStore.KIND_FILE, "{\"file\":1}");
+        store.put(root.resolve("other"), SystemMetadataStore.KIND_FOLDER, "{\"other\":1}");
+        Assert.assertEquals(SystemMetadataStore.KIND_FILE, store.kind(root.resolve("folder/file.txt")));
+        Assert.assertEquals("{\"file\":1}", store.read(root.resolve("folder/file.txt")));
+
+        // a folder goes with everything beneath it
+        store.remove(root.resolve("folder"));
+        Assert.assertFalse(store.contains(root.resolve("folder")));
+        Assert.assertFalse(store.contains(root.resolve("folder/file.txt")));
+        Assert.assertEquals(1, store.size());
+
+        _reopen();
+        Assert.assertEquals(1, store.size());
+        Assert.assertEquals("{\"other\":1}", store.read(root.resolve("other")));
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws Exception {
+        store.put(root.resolve("a.txt"), SystemMetadataStore.KIND_FILE, "{\"a\":1}");
+        store.put(root.resolve("b.txt"), SystemMetadataStore.KIND_FILE, "{\"b\":1}");
+        store.close();
+        long size = Files.size(log);
+        // a crash part way through appending the next record
+        Files.write(log, new byte[] { 1, 2, 0, 0, 0, 5, 0, 0 }, StandardOpenOption.APPEND);
+
+        store = SystemMetadataStore.open(root, log);
+        Assert.assertEquals(size, Files.size(log));
+        Assert.assertEquals(2, store.size());
+        store.put(root.resolve("c.txt"), SystemMetadataStore.KIND_FILE, "{\"c\":1}");
+
+        _reopen();
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals("{\"b\":1}", store.read(root.resolve("b.txt")));
+        Assert.assertEquals("{\"c\":1}", store.read(root.resolve("c.txt")));
+    }
+
+    @Test
+    public void corruptRecordEndsTheLog() throws Exception {
+        store.put(root.resolve("a.txt"), SystemMetadataStore.KIND_FILE, "{\"a\":1}");
+        long size = Files.size(log);
+        store.put(root.resolve("b.txt"), SystemMetadataStore.KIND_FILE, "{\"b\":1}");
+        store.close();
+        // flip the last byte of b's document so its crc doesn't match
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[bytes.length - 1] ^= 0x7f;
+        Files.write(log, bytes);
+
+        store = SystemMetadataStore.open(root, log);
+        Assert.assertEquals(size, Files.size(log));
+        Assert.assertEquals(1, store.size());
+        Assert.assertFalse(store.contains(root.resolve("b.txt")));
+    }
+
+    @Test
+    public void compactionKeepsOnlyLiveRecords() throws Exception {
+        for(int i = 0; i < 100; i++) {
+            store.put(root.resolve("file.txt"), SystemMetadataStore.KIND_FILE, "{\"version\":" + i + "}");
+            store.put(root.resolve("gone" + i), SystemMetadataStore.KIND_FOLDER, "{}");
+            store.remove(root.resolve("gone" + i));
+        }
+        store.put(root.resolve("kept"), SystemMetadataStore.KIND_FOLDER, "{\"kept\":1}");
+        long before = Files.size(log);
+
+        store.compact();
+        Assert.assertTrue(Files.size(log) < before / 10);
+        Assert.assertEquals(2, store.size());
+        Assert.assertEquals("{\"version\":99}", store.read(root.resolve("file.txt")));
+        store.put(root.resolve("after"), SystemMetadataStore.KIND_FILE, "{\"after\":1}");
+
+        _reopen();
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals("{\"version\":99}", store.read(root.resolve("file.txt")));
+        Assert.assertEquals("{\"kept\":1}", store.read(root.resolve("kept")));
+        Assert.assertEquals("{\"after\":1}", store.read(root.resolve("after")));
+    }
+
+    @Test
+    public void migratorSkipsOnlyRealSidecars() throws Exception {
+        Path folder = Files.createDirectories(root.resolve("folder"));
+        Files.write(folder.resolve("folder.d"), "{\"folder\":1}".getBytes("UTF-8"));
+        Files.write(folder.resolve("file.txt"), "content".getBytes("UTF-8"));
+        Files.write(folder.resolve("file.txt.f"), "{\"file\":1}".getBytes("UTF-8"));
+        // content that happens to end like a sidecar
+        Files.write(folder.resolve("notes.d"), "content".getBytes("UTF-8"));
+        Files.write(folder.resolve("notes.d.f"), "{\"notes\":1}".getBytes("UTF-8"));
+        store.close();
+
+        Assert.assertEquals(3, SystemMetadataMigrator.migrate(mount.toString(), "bucket", true));
+        Assert.assertFalse(Files.exists(folder.resolve("notes.d.f")));
+        Assert.assertTrue(Files.exists(folder.resolve("notes.d")));
+
+        store = SystemMetadataStore.open(root, log);
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals("{\"notes\":1}", store.read(folder.resolve("notes.d")));
+        Assert.assertEquals(SystemMetadataStore.KIND_FOLDER, store.kind(folder));
+
+        // the migrator closed its open, so closing this one lets the next open load afresh
+        store.close();
+        Files.delete(log);
+        store = SystemMetadataStore.open(root, log);
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void providerFailsWhenItsStoreCantBeOpened() throws Exception {
+        // a log that can't be read as one
+        Files.createDirectories(SystemMetadataStore.logFile(mount.toString(), "broken"));
+        try {
+            SystemStorageProvider.newProvider()
+                .withMount(mount.toString())
+                .withBucket("broken")
+                .withMetadataStore(true)
+                .create();
+            Assert.fail("created on sidecars");
+        } catch(StorageException ex) {
+            Assert.assertTrue(ex.getMessage().contains("metadata store"));
+        }
+    }
+
+    @Test
+    public void trashedPathsKeepTheirMetadata() throws Exception {
+        // the trash is kept under treefs-syssp.home
+        System.setProperty("treefs-syssp.home", mount.toString());
+        SystemStorageProvider provider = SystemStorageProvider.newProvider()
+            .withMount(mount.toString())
+            .withBucket("trashed")
+            .withMetadataStore(true)
+            .create();
+        try {
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put("owner", "trash");
+            provider.createFolder(Paths.get("folder"));
+            provider.createFile(Paths.get("folder/file.txt"),
+                new ByteArrayInputStream("content".getBytes("UTF-8")), metadata);
+            provider.createFile(Paths.get("other.txt"),
+                new ByteArrayInputStream("content".getBytes("UTF-8")), metadata);
+
+            provider.trash(Paths.get("other.txt"));
+            provider.trash(Paths.get("folder"), true);
+
+            // the trash isn't under the store so the records go to sidecars
+            Path trash = Paths.get(SystemConfig.trashDir(), "trashed");
+            Assert.assertTrue(Files.exists(trash.resolve("folder/folder.d")));
+            Assert.assertTrue(_read(trash.resolve("other.txt.f")).contains("\"trash\""));
+            Assert.assertTrue(_read(trash.resolve("folder/file.txt.f")).contains("\"trash\""));
+            Assert.assertFalse(SystemPathIO.storeFor(mount.resolve("trashed")).contains(
+                mount.resolve("trashed/other.txt")));
+        } finally {
+            provider.close();
+            System.clearProperty("treefs-syssp.home");
+        }
+    }
+
+    private String _read(Path path) throws Exception {
+        return new String(Files.readAllBytes(path), "UTF-8");
+    }
+
+    private void _reopen() throws Exception {
+        store.close();
+        store = SystemMetadataStore.open(root, log);
+    }
+}
@@ -0,0 +1,149 @@
+package cworks.treefs.syssp;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class SystemObjectLayoutTest {
+
+    private Path mount;
+
+    private Path root;
+
+    private SystemObjectLayout layout;
+
+    @Before
+    public void setUp() throws Exception {
+        mount = Files.createTempDirectory("treefs-layout");
+        root = Files.createDirectories(mount.resolve("bucket"));
+        layout = _open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        layout.close();
+        FileUtils.deleteDirectory(mount.toFile());
+    }
+
+    @Test
+    public void bindUnbindAndReload() throws Exception {
+        Path folder = Files.createDirectories(root.resolve("folder"));
+        String a = SystemObjectLayout.newId();
+        String b = SystemObjectLayout.newId();
+        Assert.assertNull(layout.bind(folder.resolve("a.txt"), a));
+        Assert.assertNull(layout.bind(folder.resolve("b.txt"), b));
+        Assert.assertEquals(a, layout.bind(folder.resolve("a.txt"), b));
+        Assert.assertEquals(b, layout.unbind(folder.resolve("b.txt")));
+        Assert.assertNull(layout.unbind(folder.resolve("b.txt")));
+
+        layout.close();
+        layout = _open();
+        Map<String, String> entries = layout.entries(folder);
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals(b, entries.get("a.txt"));
+        Assert.assertNull(layout.id(folder.resolve("b.txt")));
+    }
+
+    @Test
+    public void tornLastLineIsCutOff() throws Exception {
+        Path folder = Files.createDirectories(root.resolve("torn"));
+        String a = SystemObjectLayout.newId();
+        String c = SystemObjectLayout.newId();
+        layout.bind(folder.resolve("a.txt"), a);
+        layout.close();
+        // a crash part way through appending the next line
+        Path manifest = SystemObjectLayout.manifestOf(folder);
+        Files.write(manifest, "+b.txt\t0123".getBytes("UTF-8"), StandardOpenOption.APPEND);
+
+        layout = _open();
+        Assert.assertNull(layout.id(folder.resolve("b.txt")));
+        layout.bind(folder.resolve("c.txt"), c);
+        layout.close();
+
+        layout = _open();
+        Map<String, String> entries = layout.entries(folder);
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals(a, entries.get("a.txt"));
+        Assert.assertEquals(c, entries.get("c.txt"));
+        Assert.assertEquals("+a.txt\t" + a + "\n+c.txt\t" + c + "\n",
+            new String(Files.readAllBytes(manifest), "UTF-8"));
+    }
+
+    @Test
+    public void concurrentBindsSurviveEvictionAndCompaction() throws Exception {
+        final Path folder = Files.createDirectories(root.resolve("busy"));
+        final String[] ids = new String[16];
+        for(int i = 0; i < ids.length; i++) {
+            ids[i] = SystemObjectLayout.newId();
+        }
+        List<Thread> threads = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+        for(int t = 0; t < 4; t++) {
+            final int offset = t * 4;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // enough rebinds that the log is compacted several times
+                        for(int i = 0; i < 2000; i++) {
+                            int name = offset + i % 4;
+                            layout.bind(folder.resolve("file" + name), ids[(name + i) % ids.length]);
+                        }
+                        for(int name = offset; name < offset + 4; name++) {
+                            layout.bind(folder.resolve("file" + name), ids[name]);
+                        }
+                    } catch(Throwable ex) {
+                        synchronized(errors) {
+                            errors.add(ex);
+                        }
+                    }
+                }
+            }));
+        }
+        // touches more folders than the layout keeps manifests for
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for(int i = 0; i < 1000; i++) {
+                        Path other = Files.createDirectories(root.resolve("other" + i));
+                        layout.bind(other.resolve("file"), ids[0]);
+                    }
+                } catch(Throwable ex) {
+                    synchronized(errors) {
+                        errors.add(ex);
+                    }
+                }
+            }
+        }));
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(errors.toString(), 0, errors.size());
+
+        layout.close();
+        layout = _open();
+        Map<String, String> entries = layout.entries(folder);
+        Assert.assertEquals(ids.length, entries.size());
+        for(int name = 0; name < ids.length; name++) {
+            Assert.assertEquals(ids[name], entries.get("file" + name));
+        }
+    }
+
+    private SystemObjectLayout _open() {
+        return SystemObjectLayout.open(mount.resolve("objects"), Arrays.asList(root));
+    }
+}
@@ -0,0 +1,128 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.NotATreeFolderException;
+import cworks.treefs.spi.StorageException;
+import cworks.treefs.spi.TreeFolder;
+import cworks.treefs.spi.TreePath;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SystemOpenFolderTest extends BaseProviderTest {
+
+    private static final String[] LEVELS = { "top", "a", "b", "c" };
+
+    /**
+     * Items of a folder on each level once it's loaded
+     */
+    private static final int[] ITEMS = { 9, 6, 6, 5 };
+
+    public SystemOpenFolderTest() {
+        super("open");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // top/a0..a3/b/c, every folder has 4 .txt files and a .pdf
+        for(int a = 0; a < 4; a++) {
+            provider.createFolder(Paths.get("top/a" + a + "/b/c"));
+        }
+        _files("top");
+        for(int a = 0; a < 4; a++) {
+            _files("top/a" + a);
+            _files("top/a" + a + "/b");
+            _files("top/a" + a + "/b/c");
+        }
+    }
+
+    @Test
+    public void eachLevelIsLoaded() throws Exception {
+        for(int levels = 0; levels <= 4; levels++) {
+            TreeFolder top = provider.openFolder(Paths.get("top"), levels);
+            for(int level = 0; level < LEVELS.length; level++) {
+                int expected = level < levels ? ITEMS[level] : 0;
+                // folders are loaded one level deeper than their items
+                Assert.assertEquals(level <= levels ? (level == 0 ? 1 : 4) : 0,
+                    _folders(top, level).size());
+                for(TreeFolder folder : _folders(top, level)) {
+                    Assert.assertEquals(LEVELS[level] + " of " + levels + " levels",
+                        expected, _items(folder).size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void filterOnlyAppliesToFiles() throws Exception {
+        TreeFolder top = provider.openFolder(Paths.get("top"),
+            path -> path.getFileName().toString().endsWith(".pdf"), 4);
+        Assert.assertEquals(5, _items(top).size());
+        for(int level = 1; level < LEVELS.length; level++) {
+            for(TreeFolder folder : _folders(top, level)) {
+                Assert.assertEquals(level < 3 ? 2 : 1, _items(folder).size());
+            }
+        }
+    }
+
+    @Test
+    public void openStopsOnceTheBudgetIsSpent() throws Exception {
+        System.setProperty("treefs-syssp.maxFolderItems", "20");
+        SystemStorageProvider bounded = newProvider().create();
+        try {
+            Assert.assertEquals(9, _items(bounded.openFolder(Paths.get("top"), 1)).size());
+            try {
+                bounded.openFolder(Paths.get("top"), 2);
+                Assert.fail("33 items within 2 levels");
+            } catch(StorageException ex) {
+                Assert.assertTrue(ex.getMessage().contains("more than 20 items"));
+            }
+        } finally {
+            System.clearProperty("treefs-syssp.maxFolderItems");
+            bounded.close();
+        }
+    }
+
+    @Test(expected = NotATreeFolderException.class)
+    public void openingAFileFails() throws Exception {
+        provider.openFolder(Paths.get("top/file0.txt"), 1);
+    }
+
+    private void _files(String folder) throws Exception {
+        for(int i = 0; i < 4; i++) {
+            _file(folder + "/file" + i + ".txt");
+        }
+        _file(folder + "/file.pdf");
+    }
+
+    private void _file(String path) throws Exception {
+        _file(path, path);
+    }
+
+    /**
+     * Items of a folder, a folder without any answers null
+     */
+    private List<TreePath> _items(TreeFolder folder) {
+        return folder.hasItems() ? folder.items() : new ArrayList<TreePath>();
+    }
+
+    /**
+     * Folders of a tree that are level folders below it
+     */
+    private List<TreeFolder> _folders(TreeFolder folder, int level) {
+        List<TreeFolder> folders = new ArrayList<>();
+        if(level == 0) {
+            folders.add(folder);
+            return folders;
+        }
+        for(TreePath item : _items(folder)) {
+            if(item instanceof TreeFolder) {
+                folders.addAll(_folders((TreeFolder)item, level - 1));
+            }
+        }
+        return folders;
+    }
+}
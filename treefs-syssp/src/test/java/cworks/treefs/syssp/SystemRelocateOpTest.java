@@ -0,0 +1,98 @@
+package cworks.treefs.syssp;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+public class SystemRelocateOpTest {
+
+    private Path root;
+
+    private Path intents;
+
+    private SystemRelocateOp relocator;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("treefs-relocate");
+        intents = root.resolve("intents");
+        relocator = new SystemRelocateOp(ForkJoinPool.commonPool(), intents);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void relocateRemovesItsIntent() throws Exception {
+        Path source = _folder("source");
+        Path target = root.resolve("target");
+        Assert.assertTrue(relocator.relocate(source, target));
+        Assert.assertFalse(Files.exists(source));
+        Assert.assertEquals("content", _read(target.resolve("file.txt")));
+        Assert.assertEquals(0, _intents());
+    }
+
+    @Test
+    public void resumeFinishesAnInterruptedRelocation() throws Exception {
+        Path source = _folder("source");
+        Path target = root.resolve("moved/target");
+        // what a crash after _begin leaves behind
+        _intent("crashed", source, target);
+
+        Assert.assertEquals(1, relocator.resume());
+        Assert.assertFalse(Files.exists(source));
+        Assert.assertEquals("content", _read(target.resolve("file.txt")));
+        Assert.assertEquals(0, _intents());
+        // nothing left to do
+        Assert.assertEquals(0, relocator.resume());
+    }
+
+    @Test
+    public void resumeSkipsRunningRelocations() throws Exception {
+        Path source = _folder("source");
+        Path target = root.resolve("target");
+        Path intent = _intent("running", source, target);
+
+        // the lock a relocation still in progress holds
+        try(FileChannel channel = FileChannel.open(intent, StandardOpenOption.WRITE);
+            FileLock lock = channel.lock()) {
+            Assert.assertEquals(0, relocator.resume());
+            Assert.assertTrue(Files.exists(source));
+            Assert.assertTrue(Files.exists(intent));
+        }
+
+        Assert.assertEquals(1, relocator.resume());
+        Assert.assertTrue(Files.exists(target));
+    }
+
+    private Path _folder(String name) throws Exception {
+        Path folder = Files.createDirectories(root.resolve(name));
+        Files.write(folder.resolve("file.txt"), "content".getBytes("UTF-8"));
+        return folder;
+    }
+
+    private Path _intent(String name, Path source, Path target) throws Exception {
+        Files.createDirectories(intents);
+        return Files.write(intents.resolve(name + ".intent"),
+            (source + "\n" + target + "\n").getBytes("UTF-8"));
+    }
+
+    private int _intents() throws Exception {
+        return Files.isDirectory(intents) ? intents.toFile().list().length : 0;
+    }
+
+    private String _read(Path file) throws Exception {
+        return new String(Files.readAllBytes(file), "UTF-8");
+    }
+}
@@ -0,0 +1,88 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.TreeCopyOption;
+import cworks.treefs.spi.TreeFolder;
+import cworks.treefs.spi.TreePathExistsException;
+import cworks.treefs.spi.NoTreePathException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Snapshots and LINK copies share content with the bucket, writes to either side mustn't show
+ * through to the other.
+ */
+public class SystemSnapshotTest extends BaseProviderTest {
+
+    public SystemSnapshotTest() {
+        super("snap");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        provider.createFolder(Paths.get("folder"));
+        provider.createFolder(Paths.get("other"));
+        _file("folder/file.txt", "v1");
+        _file("other/file.txt", "v2");
+    }
+
+    @Test
+    public void linkCopyIsCopiedOnWrite() throws Exception {
+        provider.createFolder(Paths.get("linked"));
+        provider.copy(Paths.get("folder/file.txt"), Paths.get("linked"), TreeCopyOption.LINK);
+        Assert.assertEquals("v1", _read("linked/file.txt"));
+
+        // replacing the copy unlinks it first
+        provider.copy(Paths.get("other/file.txt"), Paths.get("linked"),
+            StandardCopyOption.REPLACE_EXISTING);
+        Assert.assertEquals("v2", _read("linked/file.txt"));
+        Assert.assertEquals("v1", _read("folder/file.txt"));
+    }
+
+    @Test
+    public void snapshotKeepsTheContentItWasTakenWith() throws Exception {
+        TreeFolder snapshot = provider.snapshot(Paths.get("folder"), "first");
+        Assert.assertEquals("folder", snapshot.name());
+        Assert.assertEquals(Collections.singletonList("first"), provider.snapshots());
+
+        provider.copy(Paths.get("other/file.txt"), Paths.get("folder"),
+            StandardCopyOption.REPLACE_EXISTING);
+        Assert.assertEquals("v2", _read("folder/file.txt"));
+
+        TreeFolder opened = provider.openSnapshot("first", Paths.get("folder"));
+        Assert.assertEquals(1, opened.items().size());
+        Assert.assertEquals("file.txt", opened.items().get(0).name());
+        Assert.assertEquals(Paths.get("folder/file.txt"), opened.items().get(0).path());
+        Assert.assertEquals("v1", new String(Files.readAllBytes(
+            mount.resolve("snapshots/snap/first/folder/file.txt")), "UTF-8"));
+    }
+
+    @Test(expected = TreePathExistsException.class)
+    public void snapshotNamesAreUnique() throws Exception {
+        provider.snapshot(Paths.get("folder"), "first");
+        provider.snapshot(Paths.get("other"), "first");
+    }
+
+    @Test
+    public void deleteSnapshotLeavesTheBucket() throws Exception {
+        provider.snapshot(Paths.get("folder"), "first");
+        provider.snapshot(Paths.get("other"), "second");
+        Assert.assertEquals(Arrays.asList("first", "second"), provider.snapshots());
+
+        provider.deleteSnapshot("first");
+        Assert.assertEquals(Collections.singletonList("second"), provider.snapshots());
+        Assert.assertEquals("v1", _read("folder/file.txt"));
+        try {
+            provider.deleteSnapshot("first");
+            Assert.fail("snapshot was deleted");
+        } catch(NoTreePathException ex) {
+            // expected
+        }
+    }
+}
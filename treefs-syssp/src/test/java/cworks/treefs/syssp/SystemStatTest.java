@@ -0,0 +1,61 @@
+package cworks.treefs.syssp;
+
+import cworks.treefs.spi.TreeStat;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SystemStatTest extends BaseProviderTest {
+
+    public SystemStatTest() {
+        super("stat");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        provider.createFolder(Paths.get("folder"));
+    }
+
+    @Test
+    public void statOfAFile() throws Exception {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("owner", "stat");
+        provider.createFile(Paths.get("folder/file.txt"),
+            new ByteArrayInputStream("content".getBytes("UTF-8")), metadata);
+
+        TreeStat stat = provider.stat(Paths.get("folder/file.txt"));
+        Assert.assertTrue(stat.exists());
+        Assert.assertTrue(stat.isFile());
+        Assert.assertFalse(stat.isFolder());
+        Assert.assertEquals(Paths.get("folder/file.txt"), stat.path());
+        Assert.assertEquals(7L, stat.size());
+        Assert.assertNotNull(stat.lastModifiedTime());
+        Assert.assertNotNull(stat.creationTime());
+        Assert.assertTrue(stat.hasMetadata());
+    }
+
+    @Test
+    public void statOfAFolder() throws Exception {
+        TreeStat stat = provider.stat(Paths.get("folder"));
+        Assert.assertTrue(stat.exists());
+        Assert.assertTrue(stat.isFolder());
+        Assert.assertFalse(stat.isFile());
+        Assert.assertEquals(Paths.get("folder"), stat.path());
+    }
+
+    @Test
+    public void missingAndUnmanagedPathsAreNotFound() throws Exception {
+        Assert.assertSame(TreeStat.NOT_FOUND, provider.stat(Paths.get("folder/missing.txt")));
+        Assert.assertSame(TreeStat.NOT_FOUND, provider.stat(null));
+
+        // content without its metadata isn't a file this provider knows about
+        Files.write(fullPath("folder/unmanaged.txt"), "content".getBytes("UTF-8"));
+        Assert.assertFalse(provider.stat(Paths.get("folder/unmanaged.txt")).exists());
+    }
+}